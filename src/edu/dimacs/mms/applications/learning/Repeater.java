@@ -61,6 +61,13 @@ import edu.dimacs.mms.boxer.util.CMD;
      (ASD) to convergence. This parameter may only be set to true if
      <tt>sd</tt> is set to true as well. The default is false.
 
+     <li>qn: if true, we will run a quasi-Newton batch optimizer
+     (L-BFGS, or OWL-QN with Laplace priors) to convergence, instead
+     of ASD. This parameter may only be set to true if <tt>sd</tt> is
+     set to true as well, and cannot be combined with
+     <tt>adaptive</tt>. The meaning of <tt>eps</tt> and
+     <tt>geps</tt> is the same as for ASD. The default is false.
+
      <li>eps=1e-8: convergence criterion for ASD (|delta L|). Not
      applicable to other methods. Convergence may be quite slow at
      1e-8, and a higher value (1e-4 ... 1e-6) may often be quite
@@ -104,7 +111,7 @@ with a zero mode and the same variance for all matrix elements. As an example, s
 public class Repeater {
 
     
-    static boolean emulateSD = false, adaptiveSD=false;
+    static boolean emulateSD = false, adaptiveSD=false, quasiNewton=false;
     static double eps, geps;
  
 
@@ -167,10 +174,13 @@ public class Repeater {
 
 	emulateSD = ht.getOption("sd", false);
 	adaptiveSD = ht.getOption("adaptive", false);
+	quasiNewton = ht.getOption("qn", false);
 	eps = ht.getOptionDouble("eps", 1e-8);
 	geps = ht.getOptionDouble("geps", 0);
 
 	if (adaptiveSD && !emulateSD) usage("-Dadaptive=true may only be used with -Dsd=true. This is what's used for ASD.");
+	if (quasiNewton && !emulateSD) usage("-Dqn=true may only be used with -Dsd=true");
+	if (quasiNewton && adaptiveSD) usage("-Dqn=true and -Dadaptive=true are mutually exclusive");
 
 	int M =ht.getOption("M", 0);	
 	int r =ht.getOption("r", 0);
@@ -187,9 +197,9 @@ public class Repeater {
 	System.out.println("BOXER Repeater: " + 
 			   (cyclic? "Cyclic mode" :
 			    "Random mode with "+nRandom+"repeats")+
-			   (adaptiveSD? "" : ", r="+r+", M="+M ) +
-			   ", sd="+emulateSD+", adaptiveSD="+adaptiveSD+
-			   (adaptiveSD? " with eps=" + eps + ", geps=" +geps: "") +
+			   (adaptiveSD || quasiNewton? "" : ", r="+r+", M="+M ) +
+			   ", sd="+emulateSD+", adaptiveSD="+adaptiveSD+", qn="+quasiNewton+
+			   (adaptiveSD || quasiNewton? " with eps=" + eps + ", geps=" +geps: "") +
 			   ", out="+out);
 	System.out.println("[VERSION] " + Version.version);
 
@@ -378,7 +388,7 @@ public class Repeater {
 	}
 
 	if (emulateSD) {
-	    if (adaptiveSD) {
+	    if (adaptiveSD || quasiNewton) {
 		// repetition here is controlled by eps, and not by r, which is 
 		// not applicable. We notionally set M=r=train.size(), to ensure just 
 		// one call. No intermediate checkpointing is supported either.
@@ -429,8 +439,14 @@ public class Repeater {
 
 		if (!(algo instanceof TruncatedGradient)) throw new  IllegalArgumentException("In the 'emulate SD' mode only TG is supported");
 
-		if (adaptiveSD) {
-		    algo.runAdaptiveSD(train, 0, train.size(), eps, geps);
+		if (adaptiveSD || quasiNewton) {
+		    long t0 = System.currentTimeMillis();
+		    if (quasiNewton) {
+			algo.runQuasiNewton(train, 0, train.size(), eps, geps);
+		    } else {
+			algo.runAdaptiveSD(train, 0, train.size(), eps, geps);
+		    }
+		    if (Suite.verbosity>0) System.out.println((quasiNewton? "QN":"ASD") + " took " + (System.currentTimeMillis()-t0) + " msec");
 		} else {
 		    if (i1 % train.size() != 0 ||i2 % train.size() != 0) throw new AssertionError("emulateSD: i1, i2 not multiple of the train set size");
 		    int repeat = (i2-i1) / train.size();
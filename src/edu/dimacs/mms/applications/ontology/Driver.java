@@ -247,12 +247,14 @@ TG with theta=0, i.e. SGD).
      -Dlearn.adaptive=true|false : Only can be used in combination with learn.sd=true. If learn.adaptive=true, BOA ignores <tt>learn.rep</tt>, and tried to build a log-likelihood-optimizing model by running {@link edu.dimacs.mms.boxer.Learner#runAdaptiveSD Steepest Descent with adaptive learning rate (ASD)} until convergence, as determined by learn.eps. The learner file in this situation should specify "TruncatedGradient with theta=0", i.e. Steepest Descent, as adpative learning is currently only supported for optimizing non-penalized log-likelihood. No priors should be specified.
 <li>
      -Dlearn.priors=priors.xml : An optional priors file (modifies the penalty term for the function being optimized)
+<li>
+     -Dlearn.qn=true|false : Only can be used in combination with learn.sd=true, and not together with learn.adaptive=true. If learn.qn=true, BOA ignores <tt>learn.rep</tt>, and optimizes the same function as ASD with a {@link edu.dimacs.mms.boxer.Learner#runQuasiNewton quasi-Newton method} (L-BFGS, or OWL-QN if a Laplace prior is given), which typically converges in far fewer passes over the data. learn.eps and learn.geps are used as convergence criteria in the same way as with ASD.
 <li>
      -Dlearn.eps=1e-8 : The convergence criterion for adaptive SD (in terms of delta L).
 <li>
      -Dlearn.geps=0 : The convergence criterion for adaptive SD (in terms of |grad L|).
 <li>
-     -Dlearn.bxr=true|false : If true, BOA piggybacks on BXR, instead of using BOXER's built-in learning methods. If this option is used, the only other learning option that should be supplied is -Dlearn.eps (typically, -Dlearn.eps=0.01 or thereabout); this is interpreted as BXR's eps. Please see {@link edu.dimacs.mms.boxer.BXRLearner} for additional important details on using this option.
+     -Dlearn.bxr=true|false : If true, BOA piggybacks on BXR, instead of using BOXER's built-in learning methods. If this option is used, the only other learning option that should be supplied is -Dlearn.eps (typically, -Dlearn.eps=0.01 or thereabout); this is interpreted as BXR's eps. Please see {@link edu.dimacs.mms.boxer.BXRLearner} for additional important details on using this option. To get the same kind of model without running external programs, use -Dlearner=... with a {@link edu.dimacs.mms.boxer.CoordinateDescent} learner (e.g. sample-data/learners/cd-learner-param.xml) instead.
 </ul>
 
 <P>Note: No learner options need to be used when using a non-Bayesian method (cosine similarity of JSD).
@@ -292,7 +294,7 @@ public class Driver {
        CMD_VEC_COS="vec_cos", CMD_VEC_JS="vec_js";
 
     /** Learning options (initialized in main()) */
-    static private boolean emulateSD = false, adaptiveSD=false, useBXR=false;
+    static private boolean emulateSD = false, adaptiveSD=false, quasiNewton=false, useBXR=false;
     static double eps, geps;
     static int learnRep;
 
@@ -307,12 +309,15 @@ public class Driver {
 	useBXR =  ht.getOption("learn.bxr", false);
 	emulateSD = ht.getOption("learn.sd", false);
 	adaptiveSD = ht.getOption("learn.adaptive", false);
+	quasiNewton = ht.getOption("learn.qn", false);
 	eps = ht.getOptionDouble("learn.eps", 1e-8);
 	geps = ht.getOptionDouble("learn.geps", 0);
 
-	if (useBXR && (emulateSD || adaptiveSD)) usage("SD options, or priors, are not compatible with BXR");
+	if (useBXR && (emulateSD || adaptiveSD || quasiNewton)) usage("SD options, or priors, are not compatible with BXR");
 
 	if (adaptiveSD && !emulateSD) usage("-Dadaptive=true may only be used with -Dsd=true");
+	if (quasiNewton && !emulateSD) usage("-Dlearn.qn=true may only be used with -Dlearn.sd=true");
+	if (quasiNewton && adaptiveSD) usage("-Dlearn.qn=true and -Dlearn.adaptive=true are mutually exclusive");
 
 	// configure input data parsing options
 	DataSourceParser.inputOptions.init(ht);
@@ -329,8 +334,8 @@ public class Driver {
 	System.out.println("This is Ontology Matcher, using BOXER Toolkit (version " + Version.version+ ")");
 	System.out.println("Verbosity="+Suite.verbosity);
 	System.out.println("Input options: " + DataSourceParser.inputOptions.describe());
-	System.out.print("Learner options: BXR="+useBXR+", SD=" + emulateSD + ", adaptiveSD="+adaptiveSD);
-	if (adaptiveSD) System.out.print(" with eps=" + eps+", geps="+geps);
+	System.out.print("Learner options: BXR="+useBXR+", SD=" + emulateSD + ", adaptiveSD="+adaptiveSD+", QN="+quasiNewton);
+	if (adaptiveSD || quasiNewton) System.out.print(" with eps=" + eps+", geps="+geps);
 	else  System.out.print(" rep=" + learnRep);
 
 	System.out.println();
@@ -502,6 +507,8 @@ public class Driver {
 	    algo.absorbExample(p1.data, 0, p1.data.size());
 	} else 	if (adaptiveSD) {
 	    algo.runAdaptiveSD(p1.data, 0, p1.data.size(), eps, geps);
+	} else 	if (quasiNewton) {
+	    algo.runQuasiNewton(p1.data, 0, p1.data.size(), eps, geps);
 	} else {	
 	    if (algo instanceof NormalizedKnnLearner) {
 		// speed it up on repetitive data
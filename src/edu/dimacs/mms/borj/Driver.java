@@ -107,7 +107,7 @@ import edu.dimacs.mms.boxer.util.*;
     <h3>Usage</h3>
     Usage:
     <pre>
-java [-Dmodel=tg|eg|trivial] [-Dverbose=true | -Dverbosity={0...3}] [-Drunid=RUN_ID]  borj.Driver command:file [command:file ...]
+java [-Dmodel=tg|eg|trivial] [-Dverbose=true | -Dverbosity={0...3}] [-Drunid=RUN_ID] [-DxmlBatch=n] [-DcompactModel=true] borj.Driver command:file [command:file ...]
     </pre>
 
     The command line can contain any number of commands. They are
@@ -146,6 +146,8 @@ java [-Dmodel=tg|eg|trivial] [-Dverbose=true | -Dverbosity={0...3}] [-Drunid=RUN
     coefficient matrix (or matrices) for {@link edu.dimacs.mms.boxer.PLRMLearner
     PLRM-based algorithms}. A BORJ command line should have only one
     "read" command, and if given, it must be the first command.
+    If the file name ends in ".bin", the file is read as a binary
+    snapshot, written by an earlier "write" command (see below).
 
     <li>read-priors: Supplies a priors definition file. Can only
     appear after a read-suite command, so that the priors will be
@@ -211,6 +213,39 @@ java [-Dmodel=tg|eg|trivial] [-Dverbose=true | -Dverbosity={0...3}] [-Drunid=RUN
     to make BORJ save the test examples' scores to the second-named
     file. For the format of that file, see {@link edu.dimacs.mms.boxer.DataPoint#reportScoresAsText(double [][], Learner, String, PrintWriter)}
 
+    <p>Normally, the entire train or test file is read into memory
+    before it is used. With the option <tt>-DxmlBatch=<em>n</em></tt>,
+    XML files are instead read with a {@link
+    edu.dimacs.mms.boxer.ParseXML.DatasetReader pull parser}, and
+    processed in batches of <em>n</em> data points, so that files
+    larger than the heap can be used. The scores are the same as
+    without batching (but if there are several learners, the lines of
+    the score file are grouped by batch, rather than by learner). A
+    training file, however, is then given to the learners as a
+    sequence of separate training sets, which for some algorithms
+    (e.g. the end-of-call truncation in TG, or the optimization run
+    of CD) gives a somewhat different model; also, a discrimination
+    first appearing in a later batch won't see the earlier batches'
+    examples.
+
+    <p>With the option <tt>-DcompactModel=true</tt>, the feature
+    dictionary and the learners' models are compacted after each
+    training file (see {@link
+    edu.dimacs.mms.boxer.Suite#compactFeatures()}): features are
+    renumbered so that the most frequent ones get the lowest ids,
+    and features that no learner has any use for are dropped. The
+    compaction itself does not change the model, but it does change
+    the order in which the features are processed later on. So if
+    training continues after it, learners whose results depend on that
+    order may converge to a slightly different model than they would
+    have without compaction. E.g., {@link
+    edu.dimacs.mms.boxer.CoordinateDescent} sweeps through the
+    features in the order of their ids, and stops once the change
+    falls below its eps, so its probabilities can differ in the 3rd
+    or 4th decimal place. The feature ids in saved models change too.
+    Compaction is not done with a hashing dictionary, or with a
+    kNN learner.
+
     <li>write-suite: Writes out the suite (only the suite, i.e. the
     list of classes), as it currently stands, into the
     specified XML file.
@@ -218,7 +253,21 @@ java [-Dmodel=tg|eg|trivial] [-Dverbose=true | -Dverbosity={0...3}] [-Drunid=RUN
     <li>write: Writes out the complete "learner complex" (suite,
     feature dictionary, individual priors [if any], and all learners
     with their parameters and inner states), as it currently stands,
-    into the specified XML file.
+    into the specified XML file. If the file name ends in ".bin",
+    the same information is written as a binary snapshot instead,
+    which is much faster to write and to read for large models (see
+    {@link edu.dimacs.mms.boxer.Suite#serializeLearnerComplexBinary(String)}).
+    XML should be used for interchange.
+
+    <li>write-features: Writes out the feature dictionary. If the file
+    name ends in ".fdm", it's written as a {@link
+    edu.dimacs.mms.boxer.MappedFeatureDictionary memory-mapped
+    dictionary file}, and the suite switches to using that file
+    (with the same feature ids); a "write" command given after that
+    saves the model with a reference to the file instead of the full
+    feature list, so that processes that "read" the model start up
+    much faster, and share the file's pages. Otherwise, the
+    dictionary is written as an XML <tt>features</tt> element.
 
     </ul>
     <h4>Miscellaneous commands</h4>
@@ -321,6 +370,11 @@ public class Driver {
 	boolean verbose = ht.getOption("verbose", (Suite.verbosity>=3));
 
 	String runid = ht.getOption("runid", mkRunId());
+	// If positive, XML train and test files are read and processed
+	// in batches of this many data points
+	int xmlBatch = ht.getOption("xmlBatch", 0);
+	// If true, compact the features after each training file
+	boolean compactModel = ht.getOption("compactModel", false);
 	DataPoint.setDefaultNameBase(runid);
 
 	Suite suite = null; //new Suite();
@@ -335,7 +389,9 @@ public class Driver {
 	if (q.is(CMD.READ)) {
 	    // Reading a complete learner complex
 	    System.out.println("Reading learner(s) from file: "+q.f);
-	    suite =  Learner.deserializeLearnerComplex(new File(q.f));
+	    suite =  BinarySnapshot.isSnapshotFile(q.f) ?
+		Learner.deserializeLearnerComplexBinary(new File(q.f)) :
+		Learner.deserializeLearnerComplex(new File(q.f));
 	    Vector <Learner> algos = suite.getAllLearners();
 	    
 	    Logging.info("Read "+algos.size()+" learners from the 'learner complex' file " + q.f );
@@ -422,9 +478,22 @@ public class Driver {
 	    } else if  (q.is(CMD.WRITE_SUITE)) {		
 		System.out.println("Saving the suite (only) to file: "+q.f);
 		suite.saveAsXML(q.f); // save the suite only
+	    } else if  (q.is(CMD.WRITE_FEATURES)) {
+		if (MappedFeatureDictionary.isMappedFile(q.f)) {
+		    System.out.println("Saving the feature dictionary as a mapped dictionary file: "+q.f);
+		    suite.mapDic(new File(q.f));
+		} else {
+		    System.out.println("Saving the feature dictionary (only) to file: "+q.f);
+		    suite.getDic().saveAsXML(q.f);
+		}
 	    } else if  (q.is(CMD.WRITE)) {
 		System.out.println("Saving all "+nLearners+"  learner(s) to file: "+q.f);
-		suite.serializeLearnerComplex(q.f); // save the entire model
+		// save the entire model
+		if (BinarySnapshot.isSnapshotFile(q.f)) {
+		    suite.serializeLearnerComplexBinary(q.f);
+		} else {
+		    suite.serializeLearnerComplex(q.f); 
+		}
 	    } else if  (q.is(CMD.DELETE_DISCR)) {
 		System.out.println("Deleting discrimination "+q.f);
 		int delDid = suite.getDid( suite.getDisc(q.f));
@@ -447,28 +516,48 @@ public class Driver {
 		trainCnt++;
 		// read training set
 		System.out.println("Reading training set no. " +trainCnt+ " ("+q.f+")");
-		Vector<DataPoint> train = 
-		    ParseXML.readDataFileMultiformat(q.f, suite, true);
-		// Update labels from LabelStore
-		qrelStore.applyTo(train, suite, true);
-
-		// Do this in case new discriminations (with default classes)
-		// have been added during reading the XML file. (since ver 0.6)
-		//for(DataPoint p: train) p.addDefaultClasses(suite);
-
-		if (Suite.verbosity>0) System.out.println(suite.describe());
-		if (verbose) System.out.println(suite.getDic().describe());
-		if (Suite.verbosity>0) System.out.println("Training set no. " +trainCnt+ " ("+q.f+") contains " + train.size() + " points, memory use=" + Sizeof.sizeof(train) + " bytes");
-		for(int i =0; i<train.size(); i++) {
-		    if (verbose) System.out.println(train.elementAt(i));
+		ParseXML.DatasetReader reader = null;
+		Vector<DataPoint> train;
+		if (xmlBatch > 0 && ParseXML.isXMLFileName(q.f)) {
+		    reader = new ParseXML.DatasetReader(q.f, suite, true);
+		    train = new Vector<DataPoint>();
+		    reader.readBatch(train, xmlBatch);
+		} else {
+		    train = ParseXML.readDataFileMultiformat(q.f, suite, true);
+		}
+
+		int ts = 0;
+		while(true) {
+		    // Update labels from LabelStore
+		    qrelStore.applyTo(train, suite, true);
+
+		    // Do this in case new discriminations (with default classes)
+		    // have been added during reading the XML file. (since ver 0.6)
+		    //for(DataPoint p: train) p.addDefaultClasses(suite);
+
+		    if (Suite.verbosity>0) System.out.println(suite.describe());
+		    if (verbose) System.out.println(suite.getDic().describe());
+		    if (Suite.verbosity>0) System.out.println("Training set no. " +trainCnt+ " ("+q.f+") " + (reader==null? "contains " : "batch contains ") + train.size() + " points, memory use=" + Sizeof.sizeof(train) + " bytes");
+		    for(int i =0; i<train.size(); i++) {
+			if (verbose) System.out.println(train.elementAt(i));
+		    }
+
+		    // train
+		    memory("Read train set; starting to train");
+		    for(Learner algo: suite.getAllLearners()) {
+			algo.absorbExample(train);
+		    }
+		    ts += train.size();
+		    if (reader == null) break;
+		    train.clear();
+		    if (reader.readBatch(train, xmlBatch)==0) break;
 		}
+		if (reader != null) reader.close();
+		train = null;		
+		if (compactModel) suite.compactFeatures();
 
-		// train
-		memory("Read train set; starting to train");
 		cnt=0;
 		for(Learner algo: suite.getAllLearners()) {
-		    algo.absorbExample(train);
-
 		    if (Suite.verbosity>=0) {
 			System.out.println("Describing Learner No. "+(cnt++));
 			algo.describe(System.out, false);
@@ -479,66 +568,62 @@ public class Driver {
 		    // In verbose mode, write out the model after every training file
 		    if (verbose) algo.saveAsXML(algo.algoName() + "-out" + trainCnt + ".xml");
 		}
-		int ts = train.size();
-		train = null;		
 		memory("Absorbed "+ts+" examples from "+q.f);
+		if (Suite.verbosity>0) System.out.println("Feature dictionary contains " + suite.getDic().getDimension() + " features, memory use=" + suite.getDic().memoryEstimate() + " bytes");
 	    } else if (q.is(CMD.TEST)) {
 		testCnt++;
 		// read test set
 		System.out.println("Reading test set ("+q.f+")");
-		Vector<DataPoint> test=
-		    ParseXML.readDataFileMultiformat(q.f,suite,false);
-		qrelStore.applyTo(test, suite, false);
-		// score each test vector
-		if (Suite.verbosity>0) System.out.println("Test set no. " +testCnt+ " ("+q.f+") contains " + test.size() + " points, memory use=" + Sizeof.sizeof(test) + " bytes");
-
-		cnt=0;
+		ParseXML.DatasetReader reader = null;
+		Vector<DataPoint> test;
+		if (xmlBatch > 0 && ParseXML.isXMLFileName(q.f)) {
+		    reader = new ParseXML.DatasetReader(q.f, suite, false);
+		    test = new Vector<DataPoint>();
+		    reader.readBatch(test, xmlBatch);
+		} else {
+		    test = ParseXML.readDataFileMultiformat(q.f,suite,false);
+		}
 
 		PrintWriter sw = null;
 		if ( q.f2 != null) {
 		    System.out.println("Scores will go to text file ("+q.f2+")");
 		    sw = new PrintWriter( new FileWriter(q.f2));
 		}
-		
-		for(Learner algo: suite.getAllLearners()) {
-		    if (Suite.verbosity>0) System.out.println("Scoring test set ("+q.f+") using learner " + cnt);
-				
 
-		    Scores seLocal = new Scores(suite);
-  
-		    for(int i=0; i<test.size(); i++){
-			DataPoint x = test.elementAt(i);
-			// overcoming underflow...
-			double [][] probLog = algo.applyModelLog(x);
-			double [][] prob = expProb(probLog);
-
-			if (Suite.verbosity>0) System.out.println("Scored test vector "+i+"; scores=" +
-					   x.describeScores(prob, suite));
-
-			if (sw!=null) x.reportScoresAsText(prob,algo,runid,sw);
-
-			seLocal.evalScores(x, suite, prob);
-			se[cnt].evalScores(x, suite, prob);
-			x.addLogLik(probLog, suite, 
-				    seLocal.likCnt, seLocal.logLik);	
-			x.addLogLik(probLog, suite, 
-				    se[cnt].likCnt, se[cnt].logLik);	
+		Scores seLocal[] = new Scores[nLearners];
+		for( int i=0; i<seLocal.length; i++) seLocal[i] = new Scores(suite);
+		
+		int ts = 0;
+		while(true) {
+		    qrelStore.applyTo(test, suite, false);
+		    // score each test vector
+		    if (Suite.verbosity>0) System.out.println("Test set no. " +testCnt+ " ("+q.f+") " + (reader==null? "contains " : "batch contains ") + test.size() + " points, memory use=" + Sizeof.sizeof(test) + " bytes");
+
+		    cnt=0;
+		    for(Learner algo: suite.getAllLearners()) {
+			if (Suite.verbosity>0) System.out.println("Scoring test set ("+q.f+") using learner " + cnt);
+			scoreTestSet(algo, test, ts, runid, sw, seLocal[cnt], se[cnt]);
+			cnt++;
+		    } // for all learners
+
+		    ts += test.size();
+		    if (reader == null) break;
+		    test.clear();
+		    if (reader.readBatch(test, xmlBatch)==0) break;
+		}
+		if (reader != null) reader.close();
+		if (sw != null) sw.close();
+		test = null;		
 
-		    }
-		    // Print report on scores so far
-		    if (Suite.verbosity>=0) {
+		// Print report on scores so far
+		if (Suite.verbosity>=0) {
+		    for(int i=0; i<seLocal.length; i++) {
 			System.out.println("Scoring report (file "+q.f+"):");
 		    
-			System.out.println(seLocal.scoringReport(suite, "[SCORES]["+q.f+"]"));
-			System.out.println(seLocal.loglikReport(suite, "[LOGLIK]["+q.f+"]"));
-			
+			System.out.println(seLocal[i].scoringReport(suite, "[SCORES]["+q.f+"]"));
+			System.out.println(seLocal[i].loglikReport(suite, "[LOGLIK]["+q.f+"]"));
 		    }
-		    cnt++;
-		} // for all learners
-		if (sw != null) sw.close();
-
-		int ts = test.size();
-		test = null;		
+		}
 		memory("Scored "+ts+" examples from "+q.f);
 	    } else {
 		usage("Unknown command: " + q.cmd);
@@ -563,6 +648,47 @@ public class Driver {
 
     }
 
+    /** Applies one learner to a test set (or a batch of it),
+	recording the scores in the two Scores objects, and, optionally,
+	printing them to a text file.
+	@param base The position of the first point of test within
+	the entire test file (only used in messages)
+     */
+    private static void scoreTestSet(Learner algo, Vector<DataPoint> test,
+				     int base, String runid, PrintWriter sw,
+				     Scores seLocal, Scores seGlobal)
+	throws BoxerException {
+	// The points are scored in batches, which allows the
+	// learner to use a faster batch method. (Not in
+	// the verbose mode, so that any printouts from the
+	// learner come right before those for the point)
+	final int BATCH = (Suite.verbosity>0) ? 1 : 4096;
+	double [][][] batchLog = null;
+	Suite suite = algo.getSuite();
+  
+	for(int i=0; i<test.size(); i++){
+	    DataPoint x = test.elementAt(i);
+	    if (i % BATCH == 0) {
+		batchLog = algo.applyModelLog(test, i, Math.min(test.size(), i+BATCH));
+	    }
+	    // overcoming underflow...
+	    double [][] probLog = batchLog[i % BATCH];
+	    double [][] prob = expProb(probLog);
+
+	    if (Suite.verbosity>0) System.out.println("Scored test vector "+(base+i)+"; scores=" +
+						      x.describeScores(prob, suite));
+
+	    if (sw!=null) x.reportScoresAsText(prob,algo,runid,sw);
+
+	    seLocal.evalScores(x, suite, prob);
+	    seGlobal.evalScores(x, suite, prob);
+	    x.addLogLik(probLog, suite, 
+			seLocal.likCnt, seLocal.logLik);	
+	    x.addLogLik(probLog, suite, 
+			seGlobal.likCnt, seGlobal.logLik);	
+	}
+    }
+
     static void memory() {
 	memory("");
     }
@@ -16,6 +16,32 @@ class AdaptiveSteepestDescent  {
     final BetaMatrix w;
     final Discrimination dis;
     final TruncatedGradient.TruncatedGradientLearnerBlock block;
+    /** The learner, whose thread pool is used to compute the
+	log-likelihood, the gradient, and the adaptive eta over
+	different parts of the data set concurrently. With several
+	threads, sums are still combined in a fixed order, but that
+	order differs from the sequential one, so the results may
+	differ from those obtained with a single thread in the last
+	bits. */
+    final Learner learner;
+
+    /** Cached margins, for cheap evaluation of bonus steps. Along a
+	fixed direction A, the dot products x*(B+tA) are linear in t,
+	so we keep, for each data point x_i, marginsB[i][k]=x_i*beta_k
+	(for the current matrix B=w) and marginsA[i][k]=x_i*alpha_k
+	(for the current, already scaled, increment A). The former are
+	obtained as a by-product of the full log-likelihood computation
+	at the start of each iteration, the latter are computed once
+	per direction. After that, each step B:=B+A only costs
+	O(n*r) operations to update marginsB, instead of O(nnz*r) to
+	rescore all points. When a step is made with capping (Laplace
+	prior), the elements of B and A involved in capping are
+	corrected exactly, using the feature index of {@link #dpa}.
+
+	<p>marginsA is null when margins aren't being maintained
+	(e.g. when we don't do bonus steps).
+     */
+    private double [][] marginsB=null, marginsA=null;
 
 	/** Runs Steepest Descent (a batch method) with adaptive
 	    learning rate until it converges.
@@ -55,9 +81,10 @@ class AdaptiveSteepestDescent  {
 			    double eps, double gradEps, 
 			    boolean doAdaptive, boolean doBonus)    {
 	block = _block;
+	learner = block.getLearner();
 	w = block.w;
 	dis = block.dis;
-	prior = verifyPriors( _block.trunc);
+	prior = verifyPriors( _block.trunc, dis);
     
 	final int n=i2-i1;
 
@@ -97,6 +124,7 @@ class AdaptiveSteepestDescent  {
 	}
 
 	if (dpa.sumCnt==0) return; // no labeled points, nothing to optimize
+	if (doBonus && prior instanceof LaplacePrior) dpa.buildFeatureIndex();
 
 	boolean first = true;
 	double prevLogLik = 0;
@@ -107,6 +135,8 @@ class AdaptiveSteepestDescent  {
 	    
 	    // 1. compute probability predictions, and log-likelyhood
 	    double [][] zz = new double[dpa.length()][];
+	    marginsB = doBonus ? new double[dpa.length()][] : null;
+	    marginsA = null;
 	    double logLik = penalizedLogLik( zz ); // zz := (Y-P), not divided by n
 	    
 	    // 2. Check termination criterion
@@ -136,16 +166,10 @@ class AdaptiveSteepestDescent  {
 
 	    double sumA2 = a.squareOfNorm();
 	    double eta=safeEta;
+	    // margins x*A, unless computed by sumMaxDotSquare() below
+	    double [][] ma = doBonus? new double[dpa.length()][] : null;
 	    if (doAdaptive) {
-		double sumQ2 = 0;
-		for(int i=0; i< dpa.length(); i++) {
-		    DataPoint p = dpa.points.elementAt(i);
-		    double mp = 0;
-		    for(double q: p.dotProducts(a, dis)) {
-			mp = Math.max(mp, Math.abs(q));
-		    }
-		    sumQ2 += mp*mp * dpa.las.elementAt(i).sumCnt;
-		}
+		double sumQ2 = sumMaxDotSquare(a, ma);
 		eta =  (ivar==0) ?
 		    dpa.sumCnt * sumA2 / sumQ2 :
 		    dpa.sumCnt * sumA2 / (sumQ2 +   dpa.sumCnt * ivar * sumA2);
@@ -161,6 +185,11 @@ class AdaptiveSteepestDescent  {
 	    }
 
 
+	    if (doBonus) {
+		if (!doAdaptive) computeMargins(a, ma);
+		marginsA = ma;
+		scaleMarginsA(eta);
+	    }
 	    a.multiplyBy(eta);
 	    addAndCap(a);
 	    t++;
@@ -172,14 +201,15 @@ class AdaptiveSteepestDescent  {
 	    // direction, with increasingly longer steps, as long
 	    // as log-lik keeps increasing
 	    
-	    double savedLogLik = penalizedLogLik();
+	    double savedLogLik = penalizedLogLikFromMargins();
 	    while(true) {
 		BetaMatrix savedW = new BetaMatrix(w);
 		final double f = 2;
 		eta *= f ;
 		a.multiplyBy(f);
+		scaleMarginsA(f);
 		addAndCap(a);
-		double newLogLik =  penalizedLogLik();
+		double newLogLik =  penalizedLogLikFromMargins();
 		double bonusDelta = newLogLik - savedLogLik;
 		if (bonusDelta>0) {
 		    savedLogLik = newLogLik;
@@ -211,14 +241,15 @@ class AdaptiveSteepestDescent  {
 	    elements.  So this method checks if we have one of the two
 	    supported situations. If we do, it returns 1/var of this
 	    Gaussian prior (or 0 if there are no priors); if we don't,
-	    it throws an exception.
+	    it throws an exception. This method is also used by {@link
+	    QuasiNewton}, which supports the same kinds of priors.
 
 	    @return The inverse of the variance of the Gaussian prior,
 	    if there is one, i.e. 1/var=1/sigma^2. This will be 0 if
 	    there is no such prior. This value is used by ASD in
 	    computing the Gaussian penalty.
     */
-    private Prior verifyPriors(Truncation trunc) {
+    static Prior verifyPriors(Truncation trunc, Discrimination dis) {
 	if (trunc.getTheta() == 0) {
 	    // Truncation (and priors, if any) are disabled
 	    System.out.println("[SD][VP] No truncation of any kind");
@@ -253,8 +284,10 @@ class AdaptiveSteepestDescent  {
 	return onlyPrior;
     }
 
-    private double penalizedLogLik() {
-	return  penalizedLogLik(null);
+    /** Same as penalizedLogLik(null), but computed from the cached
+	margins, in O(n*r) operations plus the penalty computation */
+    private double penalizedLogLikFromMargins() {
+	return penalize( dpa.logLikelihoodFromMargins(learner, marginsB));
     }
 
 
@@ -263,7 +296,12 @@ class AdaptiveSteepestDescent  {
 	@param p Controls the penalty (if not null)
     */
     private double penalizedLogLik(double [][] zz) {
-	double logLik =  dpa.logLikelihood(block, zz);
+	return penalize( dpa.logLikelihood(block, zz, marginsB));
+    }
+
+    /** Subtracts the penalty (if any) for the current matrix w from
+	the log-likelihood */
+    private double penalize(double logLik) {
 	if (prior!=null && prior.avar != Double.POSITIVE_INFINITY) {
 	    double penalty = (prior instanceof GaussianPrior) ?
 		(0.5/ prior.avar)*w.squareOfNorm() : 
@@ -293,13 +331,20 @@ class AdaptiveSteepestDescent  {
 	    (new BetaMatrix(w)).multiplyBy( - 1/prior.avar) :
 	    new BetaMatrix(w.getNRows()); // was: d
 	
-	for(int i=0; i< dpa.length(); i++) {
-	    double [] z = zz[i];
-	    DataPoint x = dpa.points.elementAt(i);
-	    for(int h=0; h<x.features.length; h++) {
-		int j = x.features[h];	
-		a.addDenseRow(j, z, x.values[h]/dpa.sumCnt);
-	    }
+	int nc = learner.chunkCount(dpa.length(), DataPointArray.MIN_CHUNK);
+	if (nc == 1) {
+	    addGradLogLik(a, zz, 0, dpa.length());
+	} else {
+	    // Each thread sums up its part of X(Y-P) in its own matrix;
+	    // these are then added to A in the chunk order
+	    final BetaMatrix partial[] = new BetaMatrix[nc];
+	    final double [][] zz0 = zz;
+	    learner.forEachChunk(dpa.length(), nc, new Learner.ChunkTask() {
+		    void run(int chunk, int from, int to) {
+			partial[chunk] = new BetaMatrix(w.getNRows());
+			addGradLogLik(partial[chunk], zz0, from, to);
+		    }});
+	    for(BetaMatrix p: partial) a.add(p);
 	}
 
 	if (prior instanceof LaplacePrior) {
@@ -329,6 +374,74 @@ class AdaptiveSteepestDescent  {
 	return a;
     }
 
+    /** Adds the contribution of dpa.points[i1:i2-1] to grad L_log,
+	(1/n) X(Y-P), to the matrix a. */
+    private void addGradLogLik(BetaMatrix a, double[][] zz, int i1, int i2) {
+	for(int i=i1; i< i2; i++) {
+	    double [] z = zz[i];
+	    DataPoint x = dpa.points.elementAt(i);
+	    for(int h=0; h<x.features.length; h++) {
+		int j = x.features[h];	
+		a.addDenseRow(j, z, x.values[h]/dpa.sumCnt);
+	    }
+	}
+    }
+
+    /** Computes sum_i { max_j { (alpha_j * x_i)^2 }} (with the
+	multiplicity of each point x_i), which goes into the adaptive eta
+	formula. 
+	@param margins If not null, the dot products x_i*alpha_j are saved here
+    */
+    private double sumMaxDotSquare(final BetaMatrix a, final double[][] margins) {
+	int nc = learner.chunkCount(dpa.length(), DataPointArray.MIN_CHUNK);
+	final double partial[] = new double[nc];
+	learner.forEachChunk(dpa.length(), nc, new Learner.ChunkTask() {
+		void run(int chunk, int from, int to) {
+		    double sumQ2 = 0;
+		    for(int i=from; i< to; i++) {
+			DataPoint p = dpa.points.elementAt(i);
+			double mp = 0;
+			double dot[] = p.dotProducts(a, dis);
+			if (margins!=null) margins[i] = dot;
+			for(double q: dot) {
+			    mp = Math.max(mp, Math.abs(q));
+			}
+			sumQ2 += mp*mp * dpa.las.elementAt(i).sumCnt;
+		    }
+		    partial[chunk] = sumQ2;
+		}});
+	double sumQ2 = 0;
+	for(double q: partial) sumQ2 += q;
+	return sumQ2;
+    }
+
+    /** Computes margins[i][k] = x_i*alpha_k for all points */
+    private void computeMargins(final BetaMatrix a, final double[][] margins) {
+	int nc = learner.chunkCount(dpa.length(), DataPointArray.MIN_CHUNK);
+	learner.forEachChunk(dpa.length(), nc, new Learner.ChunkTask() {
+		void run(int chunk, int from, int to) {
+		    for(int i=from; i< to; i++) {
+			margins[i] = dpa.points.elementAt(i).dotProducts(a, dis);
+		    }
+		}});
+    }
+
+    /** Multiplies the cached margins of A by f, when A is multiplied by f */
+    private void scaleMarginsA(double f) {
+	if (marginsA==null) return;
+	for(double[] m: marginsA) {
+	    for(int k=0; k<m.length; k++) m[k] *= f;
+	}
+    }
+
+    /** Updates the cached margins of B for B:=B+A */
+    private void addMarginsA() {
+	for(int i=0; i<marginsB.length; i++) {
+	    double[] mb = marginsB[i], ma = marginsA[i];
+	    for(int k=0; k<mb.length; k++) mb[k] += ma[k];
+	}
+    }
+
     /** Increments w by a. Special treatment is provided in the
 	Laplacian case, when the derivative is not continuous, and
 	"steepest descent" beyond a crease makes no sense. There, if,
@@ -340,10 +453,27 @@ class AdaptiveSteepestDescent  {
 	    // addition that can't take a value beyond zero. When that would happen in normal addition,
 	    // we instead set the element to w to zero AND the corresponding element of a to zero as well
 	    // (to prevent crossing the "crease" on any "bonus" steps)
-	    w.addAndCap(a);
+	    if (marginsA == null) {
+		w.addAndCap(a);
+	    } else {
+		addMarginsA();
+		// For each capped element (j,c), B[j,c] has changed by
+		// -old rather than by inc, and A[j,c] has become 0
+		w.addAndCap(a, new BetaMatrix.CapListener() {
+			public void capped(int j, int c, double old, double inc) {
+			    if (j+1 >= dpa.fiStart.length) return; // in no point
+			    for(int p=dpa.fiStart[j]; p<dpa.fiStart[j+1]; p++) {
+				int i = dpa.fiPoint[p];
+				double x = dpa.fiValue[p];
+				marginsB[i][c] -= x * (old + inc);
+				marginsA[i][c] -= x * inc;
+			    }
+			}});
+	    }
 	} else {
 	    // simple addition
 	    w.add(a);
+	    if (marginsA != null) addMarginsA();
 	}
     }
 
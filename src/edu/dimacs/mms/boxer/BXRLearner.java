@@ -27,6 +27,10 @@ import org.w3c.dom.Element;
 
     </ul>
 
+    <p>{@link CoordinateDescent} implements the same algorithm
+    in-process, and is usually a better choice for training new
+    models; this class is mostly useful for applying existing BXR model
+    files.
  */
 public class BXRLearner extends Learner {
 
@@ -325,6 +329,18 @@ throws BoxerException
      return ((BXRLearnerBlock)blocks[did]).applyModelLog(v, i0, i1);
  }
 
+/** This overrides the method in the Learner class; BXRclassify
+    scores the whole batch in one external process, so there is no
+    parallelism here */
+public void applyModelLog(Vector<DataPoint> v, int i0, int i1, int did, double[] out)
+throws BoxerException
+ {
+     double [][] s = applyModelLog(v, i0, i1, did);
+     for(int i=0; i<s.length; i++) {
+	 System.arraycopy(s[i], 0, out, i*s[i].length, s[i].length);
+     }
+ }
+
     public void describe(PrintWriter out, boolean verbose) {
 	//System.out.println("=== (S) BXRLearner Classifier===");
 	out.println("===BXRLearner Classifier===");
@@ -1,7 +1,6 @@
 package edu.dimacs.mms.boxer;
 
-import java.util.Vector;
-import java.util.regex.*;
+import java.util.*;
 import java.io.*;
 
 /** Class for reading input files in the format that was used in BXR
@@ -30,68 +29,237 @@ public class BXRReader {
     static final char BMR_PAIR_SEPARATOR = ':';    
 
 
-    private static Pattern nonWsPat = Pattern.compile("\\s*(\\S+)");
-
     /** 
 	@param s "label feature_id:value feature_id:value ...." 
 	@param  PAIR_SEPARATOR the character (typically, colon or caret) that is expected to separate feature IDs and feature values
     */
     public static DataPoint readDataPoint(String s, Suite suite,  boolean isDefinitional, char PAIR_SEPARATOR) throws BoxerXMLException {
-	Matcher m = nonWsPat.matcher(s);
-	if (!m.lookingAt()) {
+	LineScanner sc = new LineScanner(suite.getDic(), PAIR_SEPARATOR);
+	char[] b = s.toCharArray();
+	int from = 0;
+	while(from < b.length && isSpace(b[from])) from++;
+	if (from == b.length) {
 	    throw new IllegalArgumentException("This string has no class label: " +s);
-	} 
-	String label = m.group(1);
-	
-	DataPoint p=new DataPoint( readFeatureVector
-				   (s.substring(m.end()),suite.getDic(), PAIR_SEPARATOR),
-				   suite.getDic());
-
-	Vector<Discrimination.Cla> v=new Vector<Discrimination.Cla>();
-	Discrimination.Cla c = suite.getClaAlways(null, /*  "default"*/
-						  label, isDefinitional);
-	v.add( c );
-	p.setClasses( v, suite);
-	return p;
+	}
+	sc.parseLine(b, from, b.length);
+	return sc.makeDataPoint(suite, isDefinitional);
     }
 
-    
-    static private Vector<DataPoint.FVPair> 
-	readFeatureVector(String s, FeatureDictionary dic, char PAIR_SEPARATOR)
-	throws BoxerXMLException {
-
-	String ps_regex = 
-	    (PAIR_SEPARATOR == '^' ? "\\":"") + PAIR_SEPARATOR;
-	// Pattern for feature names and values 
-	Pattern fpat = Pattern.compile("\\s*([^\\s:]+)\\s*"+
-				       ps_regex +
-				       "\\s*([0-9\\.eE\\-]+)");
-    
-	int pos=0;
-	Vector<DataPoint.FVPair> v = new Vector<DataPoint.FVPair>();	    
-	dic.addDummyCompoIfRequired(v);
-
-	while( pos < s.length() ) {
-	    
-	    Matcher m = fpat.matcher(s.subSequence(pos, s.length()));
-	    boolean b = m.lookingAt();
-	    if (!b) {
-		// end of line?
-		String rem = s.substring(pos).trim();
-		if (rem.length()>0) {
+    /** Same set of characters as \s in java.util.regex */
+    static boolean isSpace(char c) {
+	return c==' ' || c=='\t' || c=='\n' || c=='\r' || c=='\f' || c==0x0B;
+    }
+
+    /** A hand-written scanner for the lines of BXR/BMR data files
+	("label feature_id:value feature_id:value ..."). It parses a
+	line directly from a char buffer into reusable primitive arrays,
+	without regular expressions and without creating a String per
+	line or per feature, and then assembles a DataPoint from them.
+
+	<p>Feature labels that are plain non-negative integers (as they
+	usually are in BMR files) take a fast path: the feature id for
+	each such number is looked up in the dictionary only once, and
+	then cached in an array indexed by the number. Since every line
+	is still mapped through the same FeatureDictionary, the
+	resulting DataPoints are the same as if every label had gone
+	through {@link FeatureDictionary#getIdAlways(String)}. A scanner
+	should therefore not be used across operations that renumber
+	the features of its dictionary.
+
+	<p>Numbers are converted with a fast exact path where possible
+	(up to 15 significant digits, and a decimal exponent of at most
+	22 in absolute value), and with Double.parseDouble() otherwise,
+	so the values are always the same as Double.parseDouble() would
+	produce.
+     */
+    static public class LineScanner {
+	final FeatureDictionary dic;
+	final char sep;
+
+	/** The class label of the last line parsed */
+	String label;
+	/** Features and values of the last line parsed; only the
+	    first n elements are meaningful */
+	int [] features = new int[64];
+	double [] values = new double[64];
+	int n;
+
+	/** numIds[k] = 1 + the feature id for label "k", or 0 if not
+	    known yet */
+	private int [] numIds = new int[1024];
+	/** No numeric labels above this are cached */
+	static final int MAX_CACHED_NUM = 1<<24;
+
+	/** @param dic The feature dictionary to map feature labels
+	    with; if null, feature labels are read as feature ids
+	    @param sep The character (typically, colon or caret) that
+	    separates feature IDs and feature values */
+	public LineScanner(FeatureDictionary dic, char sep) {
+	    this.dic = dic;
+	    this.sep = sep;
+	}
+
+	private void add(int fid, double fval) {
+	    if (n == features.length) {
+		features = Arrays.copyOf(features, 2*n);
+		values = Arrays.copyOf(values, 2*n);
+	    }
+	    features[n] = fid;
+	    values[n] = fval;
+	    n++;
+	}
+
+	/** Parses the line b[from:to-1], which must start with the
+	    (non-empty) class label, into {@link #label}, {@link #features},
+	    and {@link #values}. */
+	void parseLine(char[] b, int from, int to) throws BoxerXMLException {
+	    int pos = from;
+	    while(pos < to && !isSpace(b[pos])) pos++;
+	    label = new String(b, from, pos-from);
+
+	    n = 0;
+	    if (dic != null && FeatureDictionary.ADD_DUMMY_COMPONENT) {
+		add(dic.getIdAlways(FeatureDictionary.DUMMY_LABEL), 1);
+	    }
+
+	    while(pos < to) {
+		// feature label
+		int p = pos;
+		while(p < to && isSpace(b[p])) p++;
+		if (p == to) break; // end of line
+		int f0 = p;
+		while(p < to && !isSpace(b[p]) && b[p] != ':' && b[p] != sep) p++;
+		int f1 = p;
+		// separator
+		while(p < to && isSpace(b[p])) p++;
+		boolean ok = (f1 > f0 && p < to && b[p] == sep);
+		int v0=0, v1=0;
+		if (ok) {
+		    p++;
+		    while(p < to && isSpace(b[p])) p++;
+		    v0 = p;
+		    while(p < to && isValueChar(b[p])) p++;
+		    v1 = p;
+		    ok = (v1 > v0);
+		}
+		if (!ok) {
 		    // The rest of the line is unparsable!
-		    throw new IllegalArgumentException("Could not parse string `"+s+"' as a list of feature:value pairs. Unparsable remainder: " + rem);
+		    String s = new String(b, from, to-from);
+		    throw new IllegalArgumentException("Could not parse string `"+s.substring(label.length())+"' as a list of feature:value pairs. Unparsable remainder: " + new String(b, pos, to-pos).trim());
 		}
-		break;
-	    } 
-	    String fs = m.group(1), vals = m.group(2);
+		add(featureId(b, f0, f1), parseDouble(b, v0, v1));
+		pos = p;
+	    }
+	}
+
+	/** Maps a feature label to a feature id, via the numeric
+	    cache where possible */
+	private int featureId(char[] b, int f0, int f1) throws BoxerXMLException {
 	    // Are we reading feature IDs, or do we need to map labels to IDs?
-	    int fid = (dic == null)? Integer.parseInt(fs) :dic.getIdAlways(fs);
-	    double fval = Double.parseDouble(vals);
-	    v.add(new DataPoint.FVPair(fid, fval));
-	    pos += m.end();
+	    if (dic == null) return Integer.parseInt(new String(b, f0, f1-f0));
+	    int k = parseCanonicalInt(b, f0, f1);
+	    if (k < 0 || k >= MAX_CACHED_NUM) {
+		return dic.getIdAlways(b, f0, f1);
+	    }
+	    if (k >= numIds.length) {
+		numIds = Arrays.copyOf(numIds, Math.max(k+1, 2*numIds.length));
+	    }
+	    if (numIds[k] == 0) {
+		numIds[k] = 1 + dic.getIdAlways(b, f0, f1);
+	    }
+	    return numIds[k] - 1;
 	}
-	return v;
+
+	/** Creates a DataPoint from the last line parsed, labeled with
+	    the class named by the line's label in the suite's default
+	    discrimination. */
+	DataPoint makeDataPoint(Suite suite, boolean isDefinitional) throws BoxerXMLException {
+	    DataPoint p=new DataPoint(features, values, n, suite.getDic(),
+				      DataPoint.autoGeneratedName());
+
+	    Vector<Discrimination.Cla> v=new Vector<Discrimination.Cla>();
+	    Discrimination.Cla c = suite.getClaAlways(null, /*  "default"*/
+						      label, isDefinitional);
+	    v.add( c );
+	    p.setClasses( v, suite);
+	    if (isDefinitional) suite.countFeatures(p);
+	    return p;
+	}
+    }
+
+    /** Characters that may appear in a feature value */
+    private static boolean isValueChar(char c) {
+	return (c>='0' && c<='9') || c=='.' || c=='e' || c=='E' || c=='-';
+    }
+
+    /** If b[from:to-1] is a non-negative decimal integer without
+	leading zeros (i.e., the label "k" that Integer.toString(k) would
+	produce), of at most 9 digits, returns it; otherwise, returns -1.
+     */
+    static int parseCanonicalInt(char[] b, int from, int to) {
+	int len = to - from;
+	if (len < 1 || len > 9 || (b[from]=='0' && len > 1)) return -1;
+	int k = 0;
+	for(int i=from; i<to; i++) {
+	    char c = b[i];
+	    if (c < '0' || c > '9') return -1;
+	    k = k*10 + (c - '0');
+	}
+	return k;
+    }
+
+    /** Exact powers of ten, for the fast path of parseDouble() */
+    private static final double[] POW10 = {
+	1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+	1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    /** Converts b[from:to-1] to a double. The result is always the
+	same as that of Double.parseDouble() on the same characters; in
+	the common case of a short decimal number (no more than 15
+	significant digits, and a power of ten not exceeding 10^22),
+	it is computed directly, as a single correctly rounded
+	multiplication or division of two exactly representable
+	numbers. Anything else is passed to Double.parseDouble().
+     */
+    static double parseDouble(char[] b, int from, int to) {
+	int i = from;
+	boolean neg = false;
+	if (i < to && b[i]=='-') { neg = true; i++; }
+	long m = 0;
+	int digits = 0, scale = 0;
+	boolean any = false, point = false;
+	for(; i<to; i++) {
+	    char c = b[i];
+	    if (c >= '0' && c <= '9') {
+		any = true;
+		if (m > 0 || c != '0') {
+		    m = m*10 + (c - '0');
+		    digits++;
+		}
+		if (point) scale--;
+	    } else if (c=='.' && !point) {
+		point = true;
+	    } else {
+		break;
+	    }
+	}
+	if (i < to && any && (b[i]=='e' || b[i]=='E')) {
+	    i++;
+	    boolean eneg = false;
+	    if (i < to && b[i]=='-') { eneg = true; i++; }
+	    int e = 0, ed = 0;
+	    for(; i<to && ed < 4 && b[i]>='0' && b[i]<='9'; i++, ed++) {
+		e = e*10 + (b[i] - '0');
+	    }
+	    if (ed == 0) any = false;
+	    scale += eneg ? -e : e;
+	}
+	if (i == to && any && digits <= 15 && scale >= -22 && scale <= 22) {
+	    double x = (double)m;
+	    x = (scale >= 0) ? x * POW10[scale] : x / POW10[-scale];
+	    return neg ? -x : x;
+	}
+	return Double.parseDouble(new String(b, from, to-from));
     }
 
     /** Parses a string in format "a1:b1 a2:b2 a3:b3 ...", where the
@@ -101,27 +269,44 @@ public class BXRReader {
 
      In each 'dis^class' pair, we check that both class and dis are
      non-empty (as per Allen McIntosh' request, 2011-06-27).
-   
+
+     The tokens are split the same way String.split() would split
+     them (in particular, trailing separators in a token are
+     ignored), but without regular expressions.
 */
     static Vector<String[]> readPairs(String s, Vector<String[]> v) {
     
 	if (v==null)   v = new Vector<String[]>();
 
-	// Using negative second arg to retain "" in "foo:" (an illegal input)
-	String tokens[] = s.split("\\s+", -1);
-	for(String token: tokens) {
-	    if (token.equals("")) continue;
-	    String[] pair = token.split(PAIR_SEPARATOR_REGEX);
-	    if (pair.length == 1) {
+	final int len = s.length();
+	int pos = 0;
+	while(pos < len) {
+	    while(pos < len && isSpace(s.charAt(pos))) pos++;
+	    if (pos == len) break;
+	    int t0 = pos;
+	    while(pos < len && !isSpace(s.charAt(pos))) pos++;
+	    int t1 = pos;
+
+	    // Trailing empty pieces are dropped, as in String.split()
+	    int end = t1;
+	    while(end > t0 && s.charAt(end-1)==PAIR_SEPARATOR) end--;
+	    // positions of the first two separators in the token, if any
+	    int k = s.indexOf(PAIR_SEPARATOR, t0);
+	    if (k >= end) k = -1;
+	    int k2 = (k < 0) ? -1 : s.indexOf(PAIR_SEPARATOR, k+1);
+	    if (k2 >= end) k2 = -1;
+	    String[] pair;
+	    if (end == t0 || k2 >= 0) {
+		throw new IllegalArgumentException("Could not parse string '"+s+"' as a list of dis"+PAIR_SEPARATOR+"class pairs. Too many colons/carets? Unparsable token: " + s.substring(t0,t1));
+	    } else if (k < 0) {
 		// discrimination name is supplied implicitly 
-		pair = new String[] { null, pair[0] };
-	    } else if (pair.length != 2) {
-		throw new IllegalArgumentException("Could not parse string '"+s+"' as a list of dis"+PAIR_SEPARATOR+"class pairs. Too many colons/carets? Unparsable token: " + token);
+		pair = new String[] { null, s.substring(t0, end) };
 	    } else { 
 		// Exactly 2 args, as there should be.
 		// Check that both are non-empty
+		pair = new String[] { s.substring(t0, k), s.substring(k+1, end)};
 		if (pair[0].equals("") || pair[1].equals("")) {
-		    throw new IllegalArgumentException("Could not parse string '"+s+"' as a list of dis"+PAIR_SEPARATOR+"class pairs. Bad token '"+token+"': either class of discrimination name given as empty string");
+		    throw new IllegalArgumentException("Could not parse string '"+s+"' as a list of dis"+PAIR_SEPARATOR+"class pairs. Bad token '"+s.substring(t0,t1)+"': either class of discrimination name given as empty string");
 		}
 	    }
 	    v.add(pair);
@@ -158,17 +343,47 @@ public class BXRReader {
 	throws IOException, BoxerXMLException {
 
 
-	LineNumberReader r = new LineNumberReader( new FileReader(fname));
+	Reader r = new FileReader(fname);
 	Vector<DataPoint> v = new Vector<DataPoint>();
-	String s=null;
-	int cnt=0;
-	while( (s=r.readLine()) != null) {
-	    s=s.trim();
-	    if (s.equals("")) continue;
-	    if (s.startsWith("#")) continue;
-	    cnt++;
-	    DataPoint p = readDataPoint(s, suite, isDefinitional, BMR_PAIR_SEPARATOR);
-	    v.add(p);	
+	LineScanner sc = new LineScanner(suite.getDic(), BMR_PAIR_SEPARATOR);
+	try {
+	    // The buffer always holds at least one complete line, and
+	    // is expanded if a line is longer than it
+	    char [] buf = new char[1<<16];
+	    int start = 0, lim = 0;
+	    boolean eof = false;
+	    while(true) {
+		// look for the end of the line starting at buf[start]
+		int eol = start;
+		while(true) {
+		    while(eol < lim && buf[eol] != '\n' && buf[eol] != '\r') eol++;
+		    if (eol < lim || eof) break;
+		    // need more data
+		    if (start > 0) {
+			System.arraycopy(buf, start, buf, 0, lim-start);
+			eol -= start;
+			lim -= start;
+			start = 0;
+		    } 
+		    if (lim == buf.length) buf = Arrays.copyOf(buf, 2*buf.length);
+		    int k = r.read(buf, lim, buf.length-lim);
+		    if (k < 0) eof = true;
+		    else lim += k;
+		}
+		if (start == lim && eof) break;
+
+		// Trim the line, as String.trim() would
+		int from = start, to = eol;
+		while(from < to && buf[from] <= ' ') from++;
+		while(to > from && buf[to-1] <= ' ') to--;
+		if (from < to && buf[from] != '#') {
+		    sc.parseLine(buf, from, to);
+		    v.add(sc.makeDataPoint(suite, isDefinitional));
+		}
+		start = (eol < lim) ? eol + 1 : eol;
+	    }
+	} finally {
+	    r.close();
 	}
 	return v;
     }
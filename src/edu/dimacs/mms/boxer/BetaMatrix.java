@@ -1,6 +1,8 @@
 package edu.dimacs.mms.boxer;
 
 import java.util.*;
+import java.io.IOException;
+import javax.xml.stream.*;
 
 /** This is used to store the matrix of Beta vectors (e.g.,
    representing a number of PLRMs, stored in a single matrix), used in
@@ -39,45 +41,141 @@ public class BetaMatrix extends Matrix  {
 	}
     }
 
-    /** Maps integer feature IDs (same as FeatureDictionary) to       
+    /** One row of the matrix, i.e. all stored coefficients for a
+	single feature. The coefficients are packed into two parallel
+	primitive arrays, icla[] (column positions, in increasing
+	order) and value[]; only the first <tt>size</tt> elements of
+	each array are in use, the rest being spare capacity. This
+	costs 12 bytes per stored element, instead of a separate Coef
+	object (plus a reference to it) per element.
+    */
+    static final class Row {
+	/** Column positions (indexes into dis.classes), in increasing order */
+	int[] icla;
+	/** Coefficient values, aligned with icla[] */
+	double[] value;
+	/** The number of elements actually in use */
+	int size;
+
+	/** Creates an empty row with the specified initial capacity */
+	Row(int capacity) {
+	    icla = new int[capacity];
+	    value = new double[capacity];
+	}
+
+	/** Copy constructor. The copy has no spare capacity. */
+	Row(Row r) {
+	    icla = Arrays.copyOf(r.icla, r.size);
+	    value = Arrays.copyOf(r.value, r.size);
+	    size = r.size;
+	}
+
+	/** Ensures that the row can hold at least n elements without
+	    further reallocation. Grows by 50%, for amortized
+	    constant-time appends. */
+	void ensureCapacity(int n) {
+	    if (icla.length >= n) return;
+	    int cap = Math.max(n, icla.length + (icla.length>>1) + 1);
+	    icla = Arrays.copyOf(icla, cap);
+	    value = Arrays.copyOf(value, cap);
+	}
+
+	/** Appends an element; the caller must ensure that c is
+	    greater than any column position already stored. */
+	void append(int c, double v) {
+	    ensureCapacity(size+1);
+	    icla[size] = c;
+	    value[size] = v;
+	    size++;
+	}
+
+	/** Inserts an element at the specified position, shifting
+	    all subsequent elements to the right. */
+	void insert(int pos, int c, double v) {
+	    ensureCapacity(size+1);
+	    System.arraycopy(icla, pos, icla, pos+1, size-pos);
+	    System.arraycopy(value, pos, value, pos+1, size-pos);
+	    icla[pos] = c;
+	    value[pos] = v;
+	    size++;
+	}
+
+	/** The position of the last column stored in this row, or -1 if the row is empty */
+	int lastIcla() {
+	    return size==0 ? -1 : icla[size-1];
+	}
+
+	/** Converts this row to a dense array, just long enough for
+	    all stored elements to fit, or null if the row is empty */
+	double[] toDense() {
+	    if (size==0) return null;
+	    double[] q = new double[ icla[size-1] + 1];
+	    for(int h=0; h<size; h++) q[icla[h]] = value[h];
+	    return q;
+	}
+
+	/** Releases spare capacity */
+	void trimToSize() {
+	    if (icla.length > size) {
+		icla = Arrays.copyOf(icla, size);
+		value = Arrays.copyOf(value, size);
+	    }
+	}
+    }
+
+    /** Maps integer feature IDs (same as FeatureDictionary) to
+	matrix rows. Only the first nRows elements are meaningful; a
+	null is stored for a row that has no stored elements.
      */
-    private Vector< Vector<Coef>> matrix = new  Vector< Vector<Coef>>();
+    private Row[] matrix;
+    /** The number of rows (some of which may be null) */
+    private int nRows;
+
+    /** Incremented on every modification of the matrix, so that
+	derived structures (such as {@link FusedBetaView}) can tell
+	whether they are still current. It is atomic, since in the
+	hogwild mode of {@link TruncatedGradient} several threads
+	modify the matrix at once; a plain int could then lose an
+	increment, and a stale view could be taken as current. */
+    private final java.util.concurrent.atomic.AtomicInteger modCount = new java.util.concurrent.atomic.AtomicInteger();
+
+    int getModCount() { return modCount.get(); }
+
+    /** Must be called by any code that modifies the values of a row
+	obtained from {@link #getRow(int)} in place */
+    void modified() { modCount.incrementAndGet(); }
 
     BetaMatrix() {	this(0);    }
 
     /** Creates a zero matrix. 
      @param d number of features */
     BetaMatrix(int d) {
-	matrix = new Vector<  Vector<Coef>>(d); // len=0, capacity=d
-	for(int i=0; i<d; i++) {
-	    matrix.add( new  Vector<Coef>());
-	}
+	matrix = new Row[d];
+	nRows = d;
     }
 
     /** Creates a deep copy of an existing matrix, changing column ids
      * as appropriate to map the old discrimination's default class to
      * the new discriination's one */
     BetaMatrix(BetaMatrix b, int oldDef, int newDef) {
-	matrix = new  Vector< Vector<Coef>>( b.matrix.size());
+	this(b.nRows);
 	int m = Math.max(oldDef, newDef);
-	for( Vector<Coef> v:  b.matrix) {
-	    Vector<Coef> w= null;
-	    if (v!=null)  {
-		if (oldDef == newDef) {
-		    // deep copy!
-		    w = new Vector<Coef>(v.size());
-		    for(Coef c: v) w.add(new Coef(c));
-		} else {
-		    // have to reorder properly in all situations
-		    double z[] = coefVector2denseArray(v);
-		    if (z.length < m+1) z = Arrays.copyOf(z, m+1);
-		    double a = z[oldDef];
-		    z[oldDef] = z[newDef];
-		    z[newDef] = a;
-		    w= denseArray2coefVector(z);
-		}
+	for(int j=0; j<nRows; j++) {
+	    Row v = b.matrix[j];
+	    if (v==null) continue;
+	    if (oldDef == newDef) {
+		// deep copy!
+		matrix[j] = new Row(v);
+	    } else {
+		// have to reorder properly in all situations
+		double z[] = v.toDense();
+		if (z==null) z = new double[0];
+		if (z.length < m+1) z = Arrays.copyOf(z, m+1);
+		double a = z[oldDef];
+		z[oldDef] = z[newDef];
+		z[newDef] = a;
+		matrix[j] = denseArray2row(z);
 	    }
-	    matrix.add(w);
 	}
     }
 
@@ -89,7 +187,9 @@ public class BetaMatrix extends Matrix  {
 
     /** Very shallow copy */
     void setMatrixFrom(BetaMatrix b) {
+	modCount.incrementAndGet();
 	matrix = b.matrix;
+	nRows = b.nRows;
     }
 
     /** Verifying that we indeed have a fallback discrimination's
@@ -102,28 +202,29 @@ public class BetaMatrix extends Matrix  {
 	    throw new IllegalArgumentException("No default class in discrimination " + dis);
 	}
 	int defPos = dis.getDefaultCla().getPos();	
-	for( Vector<Coef> v:  matrix) {
+	for(int j=0; j<nRows; j++) {
+	    Row v = matrix[j];
 	    if (v==null) continue;
 	    // All non-defaults are zeros
-	    if (v.size() == 1 && v.elementAt(0).icla == defPos) continue;
+	    if (v.size == 1 && v.icla[0] == defPos) continue;
 	    // 1 default col, 1 non-default col, and one of them is 0
-	    if (v.size() == 1 && n==2) continue;
+	    if (v.size == 1 && n==2) continue;
 
 	    // two possibilities: either (A) or (B) 
-	    if (v.size() == n) {
+	    if (v.size == n) {
 		// (A) all non-defaults and one defaults,
-		double nonDef = v.elementAt(defPos == 0? 1:0).value;
+		double nonDef = v.value[defPos == 0? 1:0];
 		for(int i=0; i<n; i++) {
-		    if (v.elementAt(i).icla != i) return false;
-		    if (i != defPos && v.elementAt(i).value != nonDef) return false;
+		    if (v.icla[i] != i) return false;
+		    if (i != defPos && v.value[i] != nonDef) return false;
 		}
-	    } else  if (v.size() == n-1) {
+	    } else  if (v.size == n-1) {
 		// (B) only all non-defaults (becuase default is 0)
-		double nonDef = v.elementAt(0).value;
-		for(int i=0; i<n; i++) {
+		double nonDef = v.value[0];
+		for(int i=0; i<n-1; i++) {
 		    int shouldBe = (i<defPos) ? i : i+1;
-		    if (v.elementAt(i).icla != shouldBe) return false;
-		    if (v.elementAt(i).value != nonDef) return false;
+		    if (v.icla[i] != shouldBe) return false;
+		    if (v.value[i] != nonDef) return false;
 		}
 	    } else {
 		// Unexpected array length
@@ -135,11 +236,11 @@ public class BetaMatrix extends Matrix  {
 
     boolean isZero() {
 	if (matrix==null) return true;
-	for(Vector<Coef> v: matrix) {
-	    if (v != null) {
-		for(Coef q: v) { 
-		    if (q.value != 0) return false;
-		}
+	for(int j=0; j<nRows; j++) {
+	    Row v = matrix[j];
+	    if (v == null) continue;
+	    for(int h=0; h<v.size; h++) {
+		if (v.value[h] != 0) return false;
 	    }
 	}
 	return true;
@@ -151,11 +252,11 @@ public class BetaMatrix extends Matrix  {
     public int nzCount() {
 	if (matrix==null) return 0;
 	int sum = 0;
-	for(Vector<Coef> v: matrix) {
-	    if (v != null) {
-		for(Coef q: v) { 
-		    if (q.value != 0) sum ++;
-		}
+	for(int j=0; j<nRows; j++) {
+	    Row v = matrix[j];
+	    if (v == null) continue;
+	    for(int h=0; h<v.size; h++) {
+		if (v.value[h] != 0) sum ++;
 	    }
 	}
 	return sum;
@@ -166,11 +267,11 @@ public class BetaMatrix extends Matrix  {
      */
     public double squareOfNorm() {
 	double sum = 0;
-	for(Vector<Coef> v: matrix) {
-	    if (v != null) {
-		for(Coef q: v) { 
-		    sum+= q.value * q.value;
-		}
+	for(int j=0; j<nRows; j++) {
+	    Row v = matrix[j];
+	    if (v == null) continue;
+	    for(int h=0; h<v.size; h++) {
+		sum+= v.value[h] * v.value[h];
 	    }
 	}
 	return sum;
@@ -181,11 +282,11 @@ public class BetaMatrix extends Matrix  {
      */
     public double L1Norm() {
 	double sum = 0;
-	for(Vector<Coef> v: matrix) {
-	    if (v != null) {
-		for(Coef q: v) { 
-		    sum+= Math.abs(q.value);
-		}
+	for(int j=0; j<nRows; j++) {
+	    Row v = matrix[j];
+	    if (v == null) continue;
+	    for(int h=0; h<v.size; h++) {
+		sum+= Math.abs(v.value[h]);
 	    }
 	}
 	return sum;
@@ -194,49 +295,61 @@ public class BetaMatrix extends Matrix  {
 
 
     /** Converts an array of doubles - representing a dense vector - to
-	an array of Coef instances, representing a sparse vector */ 
-    private Vector<Coef> denseArray2coefVector(double a[]) {
-	Vector<Coef> v = new  Vector<Coef>(a.length);
+	a packed row, representing a sparse vector */ 
+    private static Row denseArray2row(double a[]) {
+	int nz = 0;
 	for(int i=0; i<a.length; i++) {
-	    if (a[i] != 0) v.addElement(new Coef(i, a[i]));
+	    if (a[i] != 0) nz++;
+	}
+	Row v = new Row(nz);
+	for(int i=0; i<a.length; i++) {
+	    if (a[i] != 0) v.append(i, a[i]);
 	}
-	v.trimToSize();
 	return v;
     }
 
+    /** Replaces the j-th row with the non-zero values from the
+	section a[off:off+len-1] of a dense array, a[off+k] going to
+	column k. If all of them are zeros, the row is dropped.
+     */
+    void setDenseRow(int j, double a[], int off, int len) {
+	modCount.incrementAndGet();
+	int nz = 0;
+	for(int k=0; k<len; k++) {
+	    if (a[off+k] != 0) nz++;
+	}
+	if (nz == 0) {
+	    dropRow(j);
+	    return;
+	}
+	ensureRows(j+1);
+	Row v = new Row(nz);
+	for(int k=0; k<len; k++) {
+	    if (a[off+k] != 0) v.append(k, a[off+k]);
+	}
+	matrix[j] = v;
+    }
+
     /** Constructing a BetaMatrix from a (possibly sparse) array of dense rows
      */
     BetaMatrix(double a[][]) {
-	matrix = new Vector<  Vector<Coef>>(a.length);
-	matrix.setSize(a.length);
+	this(a.length);
 	for(int i=0; i<a.length; i++) {
 	    if (a[i] != null) {
-		matrix.set(i,  denseArray2coefVector(a[i]));
+		matrix[i] = denseArray2row(a[i]);
 	    }
 	}
     }
 
-    private static double[] coefVector2denseArray(Vector<Coef> v ) {
-	double[] q = null;
-	if (v!=null && v.size() > 0) {
-	    q = new double[ v.lastElement().icla + 1];
-	    for(int h=0; h<v.size(); h++) {
-		Coef c = v.elementAt(h);
-		q[c.icla] = c.value;
-	    }
-	}
-	return q;
-    }
-
     /* Converts to (sparse) array of dense rows. Each row in the
      * return array will be a double[] of the length just enough for
      * all non-zero elements of this row to fit; thus rows may be of
      * different length. A null may be stored instead of a zero-length row.
      */
     public double [][] toArray() {
-	double w[][] = new double[matrix.size()][];
-	for(int j=0; j< matrix.size(); j++){
-	    w[j] = coefVector2denseArray( matrix.elementAt(j));
+	double w[][] = new double[nRows][];
+	for(int j=0; j< nRows; j++){
+	    if (matrix[j]!=null) w[j] = matrix[j].toDense();
 	}
 	return w; // new DenseMatrix(w);
     }
@@ -244,25 +357,104 @@ public class BetaMatrix extends Matrix  {
 
     /** Get a row of the matrix whose columns are beta vectors.
 	This gives us all the active classes for a given feature.
+	@return The row, or null if there are no stored elements for this 
+	feature. The caller may modify values in place (and then
+	must call {@link #modified()}), but must not change the row's
+	structure.
     */
-    Vector<Coef> getRow(int featureId) {
-	return featureId < matrix.size()? matrix.elementAt(featureId) : null;
+    Row getRow(int featureId) {
+	return featureId < nRows? matrix[featureId] : null;
+    }
+
+    /** Ensures that the matrix has at least d rows. Grows the row
+	array by 50% at a time, for amortized constant-time growth. */
+    private void ensureRows(int d) {
+	if (d <= nRows) return;
+	if (d > matrix.length) {
+	    matrix = Arrays.copyOf(matrix, Math.max(d, matrix.length + (matrix.length>>1) + 1));
+	}
+	nRows = d;
+    }
+
+    /** Writes the matrix as an XML "matrix" element, producing the
+	same output as the method in the parent class, but iterating
+	over the stored elements directly, without converting the
+	matrix with toArray() */
+    void writeXML(XMLStreamWriter w, Discrimination dis, FeatureDictionary dic, String name) throws XMLStreamException {
+	w.writeStartElement(XMLUtil.MATRIX);
+	w.writeAttribute("name", name);
+	StringBuilder b = new StringBuilder();
+	for(int j=0; j<nRows; j++) {
+	    Row v = matrix[j];
+	    if (v==null) continue;
+	    b.setLength(0);
+	    for(int h=0; h<v.size; h++) {
+		if (v.value[h] != 0) appendPair(b, dis, v.icla[h], v.value[h]);
+	    }
+	    if (b.length()>0) writeRow(w, dic.getLabel(j), b);
+	}
+	w.writeEndElement();
+    }
+
+    void writeBinary(BinarySnapshot.Out out) throws IOException {
+	int cnt = 0;
+	for(int j=0; j<nRows; j++) {
+	    if (matrix[j]!=null) cnt++;
+	}
+	out.writeInt(nRows);
+	out.writeInt(cnt);
+	for(int j=0; j<nRows; j++) {
+	    Row v = matrix[j];
+	    if (v==null) continue;
+	    out.writeInt(j);
+	    out.writeInt(v.size);
+	    out.writeInts(v.icla, 0, v.size);
+	    out.writeDoubles(v.value, 0, v.size);
+	}
+    }
+
+    void readBinary(BinarySnapshot.In in, int d, int r) throws IOException {
+	int n = in.readLength(), cnt = in.readLength();
+	if (n > d) throw in.corrupted("a matrix has " + n + " rows, but there are only " + d + " features");
+	modCount.incrementAndGet();
+	matrix = new Row[n];
+	nRows = n;
+	int prev = -1;
+	for(int i=0; i<cnt; i++) {
+	    int j = in.readInt();
+	    if (j<=prev || j>=n) throw in.corrupted("bad row number " + j);
+	    prev = j;
+	    int size = in.readLength();
+	    Row v = new Row(size);
+	    in.readInts(v.icla, 0, size);
+	    in.readDoubles(v.value, 0, size);
+	    v.size = size;
+	    for(int h=0; h<size; h++) {
+		if (v.icla[h]<0 || v.icla[h]>=r || (h>0 && v.icla[h]<=v.icla[h-1])) throw in.corrupted("bad column position " + v.icla[h] + " in row " + j);
+	    }
+	    matrix[j] = v;
+	}
     }
 
     /** Drops the row for the specified feature */
     void dropRow(int featureId) {
-	if (featureId < matrix.size()) {
-	    matrix.set(featureId, null);
+	modCount.incrementAndGet();
+	if (featureId < nRows) {
+	    matrix[featureId] = null;
 	}
     }
 
     /** Removes zero elements from the specified row */
     void compressRow(int featureId) {
-	Vector<Coef> v = getRow(featureId);
+	modCount.incrementAndGet();
+	Row v = getRow(featureId);
 	int  to=0;
-	for(int i=0; i<v.size(); i++) {
-	    if (v.elementAt(i).value != 0) {
-		if (to < i) v.set(to, v.elementAt(i));
+	for(int i=0; i<v.size; i++) {
+	    if (v.value[i] != 0) {
+		if (to < i) {
+		    v.icla[to] = v.icla[i];
+		    v.value[to] = v.value[i];
+		}
 		to++;
 	    }
 	}
@@ -271,71 +463,61 @@ public class BetaMatrix extends Matrix  {
 	    //Logging.info("Row " +  featureId + " has become all zeros (surprisingly), and is dropped");
 	    dropRow(featureId);
 	} else {
-	    v.setSize(to);
+	    v.size = to;
 	}
     }
 
     /** Number of rows */
-    public int getNRows() { return matrix.size(); }
-
-    Collection<Vector<Coef>> rows() {
-	return matrix;
-    }
+    public int getNRows() { return nRows; }
 
     /** Multiplies this matrix by a specified constant.
      @return This matrix (for the convenience of chained calls)
     */
     BetaMatrix multiplyBy(double q) {
-	for(Vector<Coef> v: matrix) {
-	    if (v!=null) {
-		for(Coef c: v) c.value *= q;
-	    }
+	modCount.incrementAndGet();
+	for(int j=0; j<nRows; j++) {
+	    Row v = matrix[j];
+	    if (v == null) continue;
+	    for(int h=0; h<v.size; h++) v.value[h] *= q;
 	}
 	return this;
     }
 
-
-    private Vector<Coef>  copyRow(Vector<Coef> a) {
-	if (a==null) return null;
-	Vector<Coef> b = new  Vector<Coef>(a.size());
-	for(Coef q: a) b.add( new Coef(q));
-	return b;
-    }
-
     /** this += b. The matrix b is not affected.
      */
     void add(BetaMatrix b) {
-	if ( matrix.size() < b.matrix.size() ) matrix.setSize(b.matrix.size());
-	for(int j=0; j<matrix.size(); j++) {
-
-	    if (matrix.elementAt(j)==null) {
+	modCount.incrementAndGet();
+	ensureRows(b.nRows);
+	for(int j=0; j<b.nRows; j++) {
+	    Row y = b.matrix[j];
+	    if (y==null) continue;
+	    Row x = matrix[j];
+	    if (x==null) {
 		// simply copy the row from b
-		if (b.matrix.elementAt(j)!=null) {
-		    matrix.set(j, copyRow(b.matrix.elementAt(j)));
+		matrix[j] = new Row(y);
+		continue;
+	    } 
+	    // add the stuff from b
+	    Row sum = new Row(x.size + y.size);
+	    int ix=0;
+	    for(int iy=0; iy<y.size; iy++) {
+		int c = y.icla[iy];
+		while(ix < x.size && x.icla[ix] < c) {
+		    sum.append(x.icla[ix], x.value[ix]);
+		    ix++;
 		}
-	    } else if (b.matrix.elementAt(j)!=null) {
-		// add the stuff from b
-		int ix=0;
-		Vector<Coef> sum = new Vector<Coef>();
-		Vector<Coef> x = matrix.elementAt(j);
-		
-		for(Coef ey:  b.matrix.elementAt(j)) {
-		    while(ix < x.size() && x.elementAt(ix).icla < ey.icla) {
-			sum.add(  x.elementAt( ix++));
-		    }
-		    if (ix < x.size() && x.elementAt(ix).icla == ey.icla) {
-			Coef ex = x.elementAt(ix++);
-			ex.value += ey.value;
-			sum.add(ex);
-		    } else {
-			sum.add( new Coef(ey));
-		    }
+		if (ix < x.size && x.icla[ix] == c) {
+		    sum.append(c, x.value[ix++] + y.value[iy]);
+		} else {
+		    sum.append(c, y.value[iy]);
 		}
-		while(ix < x.size()) {
-		    sum.add(  x.elementAt( ix++));
-		}		 
-		matrix.set( j, sum);
 	    }
+	    while(ix < x.size) {
+		sum.append(x.icla[ix], x.value[ix]);
+		ix++;
+	    }		 
+	    sum.trimToSize();
+	    matrix[j] = sum;
 	}
     }
 
@@ -368,84 +550,108 @@ public class BetaMatrix extends Matrix  {
 	<p> The updated b is made to have a sparse stored structure, i.e. zero values are dropped.
      */
     void addAndCap(BetaMatrix b) {
-	if ( matrix.size() < b.matrix.size() ) matrix.setSize(b.matrix.size());
-	for(int j=0; j<matrix.size(); j++) {
+	addAndCap(b, null);
+    }
+
+    /** Receives notifications about the elements that have been
+	capped by {@link #addAndCap(BetaMatrix,BetaMatrix.CapListener)} */
+    static interface CapListener {
+	/** Called when element (j,c) has been capped, i.e. set to 0
+	    instead of old+inc, with the element of the increment matrix
+	    set to 0 as well
+	    @param old The value of the element before the addition
+	    @param inc The value of the increment matrix's element before it was zeroed 
+	*/
+	void capped(int j, int c, double old, double inc);
+    }
 
-	    if (matrix.elementAt(j)==null) {
+    /** Same as {@link #addAndCap(BetaMatrix)}, but also reports each
+	capped element to a listener (if it's not null). This allows a
+	caller who keeps track of the products of the matrix with
+	something to correct those for the capping.
+     */
+    void addAndCap(BetaMatrix b, CapListener listener) {
+	modCount.incrementAndGet();
+	ensureRows(b.nRows);
+	for(int j=0; j<b.nRows; j++) {
+	    Row y = b.matrix[j];
+	    if (y==null) continue;
+	    Row x = matrix[j];
+	    if (x==null) {
 		// simply copy the row from b
-		if (b.matrix.elementAt(j)!=null) {
-		    matrix.set(j, copyRow( b.matrix.elementAt(j)));
+		matrix[j] = new Row(y);
+		continue;
+	    } 
+	    // add the stuff from b
+	    Row sum = new Row(x.size + y.size);
+	    int ix=0;
+	    for(int iy=0; iy<y.size; iy++) {
+		int c = y.icla[iy];
+		while(ix < x.size && x.icla[ix] < c) {
+		    if (x.value[ix]!=0) sum.append(x.icla[ix], x.value[ix]);
+		    ix++;
 		}
-	    } else if (b.matrix.elementAt(j)!=null) {
-		// add the stuff from b
-		int ix=0;
-		Vector<Coef> sum = new Vector<Coef>();
-		Vector<Coef> x = matrix.elementAt(j);
-		
-		for(Coef ey:  b.matrix.elementAt(j)) {
-		    while(ix < x.size() && x.elementAt(ix).icla < ey.icla) {
-			Coef ex = x.elementAt(ix++);
-			if (ex.value!=0) sum.add(ex);
-		    }
-		    if (ix < x.size() && x.elementAt(ix).icla == ey.icla) {
-			Coef ex = x.elementAt(ix++);
-			double res = ex.value + ey.value;
-			if (ex.value < 0 && res >= 0 || ex.value > 0 && res <= 0) {
-			    res = 0;
-			    ey.value = 0; // modify the element of B
-			}
-			if (res!=0) {
-			    ex.value = res;
-			    sum.add(ex);
-			}
-		    } else {
-			if (ey.value!=0) 		sum.add( new Coef(ey));
+		if (ix < x.size && x.icla[ix] == c) {
+		    double ex = x.value[ix++];
+		    double res = ex + y.value[iy];
+		    if (ex < 0 && res >= 0 || ex > 0 && res <= 0) {
+			if (listener!=null) listener.capped(j, c, ex, y.value[iy]);
+			res = 0;
+			y.value[iy] = 0; // modify the element of B
 		    }
+		    if (res!=0) sum.append(c, res);
+		} else {
+		    if (y.value[iy]!=0) sum.append(c, y.value[iy]);
 		}
-		while(ix < x.size()) {
-		    Coef ex = x.elementAt(ix++);
-		    if (ex.value!=0) sum.add(ex);
-		}		 
-		matrix.set( j, sum);
 	    }
+	    while(ix < x.size) {
+		if (x.value[ix]!=0) sum.append(x.icla[ix], x.value[ix]);
+		ix++;
+	    }		 
+	    sum.trimToSize();
+	    matrix[j] = sum;
 	}
     }
 
 
     /** Adds all values from a dense vector (array) to a given row of this 
 	matrix. As a result, that row of the matrix will in fact become
-	dense itself (alhough will still be represented as a Vector<Coef>)
+	dense itself (alhough will still be represented as a sparse Row)
 	@param j feature id 
 	@param a Values to be multiplied by q and stored in the j-th row 
 	@param q The multiplier
      */
     void addDenseRow(int j, final double a[], double q) {
-	if ( matrix.size() <=j ) matrix.setSize(j+1);
-	Vector<Coef> v = getRow(j);
+	modCount.incrementAndGet();
+	ensureRows(j+1);
+	Row v = matrix[j];
 	if (v==null) {
-	    matrix.set(j, v = new  Vector<Coef>());
+	    matrix[j] = v = new Row(a.length);
 	}
-	if (v.size() == a.length) {
+	if (v.size == a.length) {
 	    // The stored vector is already dense
-	    if (v.size()>0 && v.lastElement().icla != a.length-1) {
-		throw new IllegalArgumentException("Last-column-id mismatch: "+(a.length-1)+") in the dense array, " +v.lastElement().icla+ " in the sparse one");
+	    if (v.size>0 && v.icla[v.size-1] != a.length-1) {
+		throw new IllegalArgumentException("Last-column-id mismatch: "+(a.length-1)+") in the dense array, " +v.icla[v.size-1]+ " in the sparse one");
 	    }
 	    for(int i=0; i<a.length; i++) {
-		Coef c = v.elementAt(i);
-		if (c.icla != i) throw new AssertionError("Matrix row " +j+ " is not dense, despite its length being " + v.size());
-		c.value += a[i] *q;
+		if (v.icla[i] != i) throw new AssertionError("Matrix row " +j+ " is not dense, despite its length being " + v.size);
+		v.value[i] += a[i] *q;
 	    }
 	} else {
 	    // It will be made dense...
-	    if (v.size()>0 && v.lastElement().icla >= a.length) {
-		throw new IllegalArgumentException("Adding a short dense vector (length="+a.length+") to a sparse row with higher-numbered columns (" +v.lastElement().icla+ ")");
+	    if (v.size>0 && v.icla[v.size-1] >= a.length) {
+		throw new IllegalArgumentException("Adding a short dense vector (length="+a.length+") to a sparse row with higher-numbered columns (" +v.icla[v.size-1]+ ")");
 	    }
 	    // error (failing to multiply by q) fixed 2009-10-29
 	    double b[] = new double[a.length];
 	    for(int i=0; i<b.length; i++) b[i] = a[i]*q;
-	    for(Coef c: v) b[c.icla] += c.value;
-	    v.setSize(b.length);
-	    for(int i=0; i<b.length; i++) v.set(i, new Coef(i, b[i]));
+	    for(int h=0; h<v.size; h++) b[v.icla[h]] += v.value[h];
+	    v.ensureCapacity(b.length);
+	    for(int i=0; i<b.length; i++) {
+		v.icla[i] = i;
+		v.value[i] = b[i];
+	    }
+	    v.size = b.length;
 	}		     
     }
 
@@ -455,33 +661,35 @@ public class BetaMatrix extends Matrix  {
 	column positions). It is assumed that they are already sorted in
 	the order of increasing column position. */
     public void setElements(int j, Vector<Coef> v) {
-	if ( matrix.size() <=j ) matrix.setSize(j+1);
-	Vector<Coef> w = matrix.elementAt(j);
-	if (v==null || v.size()==0) {
-	    return;
-	} else if (w==null || w.size()==0) {
-	    matrix.set(j, new Vector<Coef>(v));
+	modCount.incrementAndGet();
+	ensureRows(j+1);
+	if (v==null || v.size()==0) return;
+	Row w = matrix[j];
+	if (w==null || w.size==0) {
+	    w = new Row(v.size());
+	    for(Coef q: v) w.append(q.icla, q.value);
+	    matrix[j] = w;
 	    return;
 	}
 	
 	int iw=0; 
 	for(Coef q: v) {
-	    while(iw<w.size() && w.elementAt(iw).icla < q.icla) iw++;
-	    if (iw>=w.size()) {
-		w.add(q);
-	    } else if (w.elementAt(iw).icla == q.icla) {
-		w.elementAt(iw).setValue(q);
+	    while(iw<w.size && w.icla[iw] < q.icla) iw++;
+	    if (iw>=w.size) {
+		w.append(q.icla, q.value);
+	    } else if (w.icla[iw] == q.icla) {
+		w.value[iw] = q.value;
 	    } else {
-		w.add(iw++, q);
+		w.insert(iw++, q.icla, q.value);
 	    }
 	}
     }
 
     public long memoryEstimate() {
-	long sum=Sizeof.OBJ;	
-	for(Vector<Coef> v: matrix) {
-	    sum += Sizeof.OBJREF;
-	    if (v!=null) sum += v.size() * (Sizeof.INT + Sizeof.DOUBLE);
+	long sum=Sizeof.OBJ + Sizeof.OBJ + matrix.length * Sizeof.OBJREF;	
+	for(int j=0; j<nRows; j++) {
+	    Row v = matrix[j];
+	    if (v!=null) sum += Sizeof.OBJ + Sizeof.sizeof(v.icla) + Sizeof.sizeof(v.value);
 	}
 	return sum;
     }
@@ -496,22 +704,43 @@ public class BetaMatrix extends Matrix  {
 	@param map Maps old column ids to new column ids. If an element is  -1, it means that the column must be deleted.
      */ 
     void deleteDiscrimination(RenumMap map) {
+	modCount.incrementAndGet();
+	for(int j=0; j<nRows; j++) {
+	    Row v = matrix[j];
+	    if (v==null) continue;
+	    int to=0;
+	    for(int k=0; k<v.size; k++) {
+		int newCol = map.renumMap[v.icla[k]];
+		if (newCol>=0) {
+		    v.icla[to] = newCol;
+		    v.value[to] = v.value[k];
+		    to++;
+		}
+	    }
+	    v.size = to;
+	}
+    }
 
-	for(Vector<Coef> v: matrix) {
-	    if (v!=null) {
-		for(int k=0; k<v.size(); k++) {
-		    Coef c = v.elementAt(k);
-		    int oldCol = c.icla;
-		    if (map.renumMap[oldCol]<0) {
-			v.removeElementAt(k--);
-		    } else {
-			c.icla = map.renumMap[oldCol];
-		    }
+    void markUsedFeatures(boolean used[]) {
+	for(int j=0; j<nRows; j++) {
+	    Row v = matrix[j];
+	    if (v==null) continue;
+	    for(int h=0; h<v.size; h++) {
+		if (v.value[h] != 0) {
+		    used[j] = true;
+		    break;
 		}
 	    }
 	}
     }
 
+    void renumberFeatures(FeatureRenumMap map) {
+	modCount.incrementAndGet();
+	matrix = map.applyTo(matrix, nRows);
+	nRows = matrix.length;
+    }
+
+
 
 
 }
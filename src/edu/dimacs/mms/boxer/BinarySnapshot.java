@@ -0,0 +1,432 @@
+package edu.dimacs.mms.boxer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Vector;
+
+import org.w3c.dom.*;
+import org.apache.xerces.dom.DocumentImpl;
+import org.xml.sax.SAXException;
+
+/** Writes and reads a "learner complex" (the suite, the feature
+    dictionary, the priors, and all learners with their state) in a
+    versioned binary format. This is the binary alternative to {@link
+    Suite#serializeLearnerComplex(String)} and {@link
+    Learner#deserializeLearnerComplex(File)}, and it's much faster, and
+    needs far less memory, for large models: no DOM tree is built for
+    the bulk of the data, and the coefficients are stored as raw
+    doubles rather than formatted as text.
+
+    <p>The file consists of the following sections:
+    <ul>
+    <li>The header: magic number, format version, BOXER version.
+    <li>The suite, as the text of a <tt>suite</tt> XML element. (It's
+    small, and this way it's parsed by exactly the same code as
+    always).
+    <li>The feature dictionary: all feature labels, in the order of
+    their IDs; thus the IDs are preserved, and the matrix rows can be
+    stored by ID. (For a {@link HashingFeatureDictionary}, the number
+    of hashing bits, and the sample labels of its reverse map, if
+    any, instead; for a {@link MappedFeatureDictionary}, the path of
+    the mapped file, and only the labels added on top of it).
+    <li>The priors, if any, as the text of a <tt>priors</tt> XML element.
+    <li>The learners. For each {@link PLRMLearner}, the learner element
+    with the algorithm parameters (without the classifiers) is stored
+    as XML text, and then, for each block, all its matrices and any
+    other state (such as that of the {@link Truncation}) in binary
+    form. Other learners are stored as the complete XML text of their
+    <tt>learner</tt> elements.
+    </ul>
+
+    <p>The I/O is done through FileChannels, with a large direct
+    buffer.
+*/
+public class BinarySnapshot {
+
+    /** Files with this extension are treated as binary snapshots by
+	{@link edu.dimacs.mms.borj.Driver} */
+    public static final String EXTENSION = ".bin";
+
+    /** Does the file name indicate a binary snapshot (rather than an
+	XML file)? */
+    public static boolean isSnapshotFile(String fname) {
+	return fname.toLowerCase().endsWith(EXTENSION);
+    }
+
+    /** "BXSN" */
+    private static final int MAGIC = 0x4258534e;
+    /** Incremented on any incompatible format change. Version 2 added
+	the hashing bits to the feature dictionary section, and version
+	3, the mapped dictionary reference; files of versions 1 and 2
+	can still be read. */
+    static final int FORMAT_VERSION = 3;
+
+    /** Section markers, to detect corrupted or mismatched files early */
+    private static final int SEC_SUITE=1, SEC_FEATURES=2, SEC_PRIORS=3,
+	SEC_LEARNERS=4, SEC_END=5;
+    /** Learner storage modes */
+    private static final int LEARNER_BINARY=1, LEARNER_XML=2;
+
+    private static final int BUFFER_SIZE = 1<<20;
+
+    /** Buffered binary output into a FileChannel. The data are written
+	in the big-endian order, like DataOutputStream does. */
+    static class Out {
+	private final FileChannel ch;
+	private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	Out(File f) throws IOException {
+	    ch = new FileOutputStream(f).getChannel();
+	}
+
+	/** Ensures that at least n bytes can be put into the buffer */
+	private void room(int n) throws IOException {
+	    if (buf.remaining() < n) flush();
+	}
+
+	private void flush() throws IOException {
+	    buf.flip();
+	    while(buf.hasRemaining()) ch.write(buf);
+	    buf.clear();
+	}
+
+	void close() throws IOException {
+	    flush();
+	    ch.close();
+	}
+
+	void writeInt(int x) throws IOException {
+	    room(4);
+	    buf.putInt(x);
+	}
+
+	void writeDouble(double x) throws IOException {
+	    room(8);
+	    buf.putDouble(x);
+	}
+
+	void writeBoolean(boolean x) throws IOException {
+	    room(1);
+	    buf.put(x ? (byte)1 : (byte)0);
+	}
+
+	/** Writes a string of any length, as its UTF-8 byte count followed by the bytes */
+	void writeString(String s) throws IOException {
+	    byte[] b = s.getBytes("UTF-8");
+	    writeInt(b.length);
+	    writeBytes(b, 0, b.length);
+	}
+
+	void writeBytes(byte[] b, int off, int len) throws IOException {
+	    for(int pos=off; pos<off+len; ) {
+		room(1);
+		int n = Math.min(buf.remaining(), off+len-pos);
+		buf.put(b, pos, n);
+		pos += n;
+	    }
+	}
+
+	void writeInts(int[] a, int off, int len) throws IOException {
+	    while(len>0) {
+		room(4);
+		int n = Math.min(len, buf.remaining()/4);
+		buf.asIntBuffer().put(a, off, n);
+		buf.position(buf.position() + 4*n);
+		off += n;
+		len -= n;
+	    }
+	}
+
+	void writeDoubles(double[] a, int off, int len) throws IOException {
+	    while(len>0) {
+		room(8);
+		int n = Math.min(len, buf.remaining()/8);
+		buf.asDoubleBuffer().put(a, off, n);
+		buf.position(buf.position() + 8*n);
+		off += n;
+		len -= n;
+	    }
+	}
+    }
+
+    /** Buffered binary input from a FileChannel; the counterpart of {@link Out} */
+    static class In {
+	private final FileChannel ch;
+	private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	final String fname;
+
+	In(File f) throws IOException {
+	    fname = f.getPath();
+	    ch = new FileInputStream(f).getChannel();
+	    buf.flip(); // empty, in the "get" mode
+	}
+
+	/** Ensures that at least n bytes are available in the buffer */
+	private void need(int n) throws IOException {
+	    if (buf.remaining() >= n) return;
+	    buf.compact();
+	    while(buf.position() < n) {
+		if (ch.read(buf) < 0) throw new EOFException("Unexpected end of the snapshot file " + fname);
+	    }
+	    buf.flip();
+	}
+
+	void close() throws IOException {
+	    ch.close();
+	}
+
+	int readInt() throws IOException {
+	    need(4);
+	    return buf.getInt();
+	}
+
+	double readDouble() throws IOException {
+	    need(8);
+	    return buf.getDouble();
+	}
+
+	boolean readBoolean() throws IOException {
+	    need(1);
+	    return buf.get()!=0;
+	}
+
+	String readString() throws IOException {
+	    int len = readLength();
+	    byte[] b = new byte[len];
+	    for(int pos=0; pos<len; ) {
+		need(1);
+		int n = Math.min(buf.remaining(), len-pos);
+		buf.get(b, pos, n);
+		pos += n;
+	    }
+	    return new String(b, "UTF-8");
+	}
+
+	/** Reads an array length or element count, which must be non-negative */
+	int readLength() throws IOException {
+	    int n = readInt();
+	    if (n<0) throw corrupted("negative length " + n);
+	    return n;
+	}
+
+	void readInts(int[] a, int off, int len) throws IOException {
+	    while(len>0) {
+		need(4);
+		int n = Math.min(len, buf.remaining()/4);
+		buf.asIntBuffer().get(a, off, n);
+		buf.position(buf.position() + 4*n);
+		off += n;
+		len -= n;
+	    }
+	}
+
+	void readDoubles(double[] a, int off, int len) throws IOException {
+	    while(len>0) {
+		need(8);
+		int n = Math.min(len, buf.remaining()/8);
+		buf.asDoubleBuffer().get(a, off, n);
+		buf.position(buf.position() + 8*n);
+		off += n;
+		len -= n;
+	    }
+	}
+
+	/** Reads a section marker, and checks that it has the expected value */
+	void expect(int marker, String what) throws IOException {
+	    int x = readInt();
+	    if (x!=marker) throw corrupted("expected " + what + ", found marker " + x);
+	}
+
+	IOException corrupted(String msg) {
+	    return new IOException("The snapshot file " + fname + " is corrupted or inconsistent: " + msg);
+	}
+    }
+
+    /** Converts an XML element into its text representation */
+    private static String toXMLString(Element e) {
+	StringWriter w = new StringWriter();
+	XMLUtil.writeXML(e, w);
+	return w.toString();
+    }
+
+    /** Writes the complete learner complex (the suite, with its
+	dictionary, priors, and all learners) into a file */
+    static void write(Suite suite, File f) throws IOException {
+	Out out = new Out(f);
+	try {
+	    out.writeInt(MAGIC);
+	    out.writeInt(FORMAT_VERSION);
+	    out.writeString(Version.version);
+
+	    Document xmldoc = new DocumentImpl();
+	    out.writeInt(SEC_SUITE);
+	    out.writeString(toXMLString(suite.saveAsXML(xmldoc)));
+
+	    out.writeInt(SEC_FEATURES);
+	    FeatureDictionary dic = suite.getDic();
+	    out.writeInt(dic.getHashingBits());
+	    if (dic instanceof HashingFeatureDictionary) {
+		HashingFeatureDictionary hd = (HashingFeatureDictionary)dic;
+		out.writeBoolean(hd.keepsLabels());
+		Vector<String> labels = hd.getSampleLabels();
+		out.writeInt(labels.size());
+		for(String label: labels) out.writeString(label);
+	    } else if (dic instanceof MappedFeatureDictionary) {
+		MappedFeatureDictionary md = (MappedFeatureDictionary)dic;
+		out.writeBoolean(true);
+		out.writeString(md.file.getPath());
+		out.writeInt(md.n);
+		int d = dic.getDimension();
+		out.writeInt(d - md.n);
+		for(int i=md.n; i<d; i++) out.writeString(dic.getLabel(i));
+	    } else {
+		out.writeBoolean(false);
+		int d = dic.getDimension();
+		out.writeInt(d);
+		for(int i=0; i<d; i++) out.writeString(dic.getLabel(i));
+	    }
+
+	    out.writeInt(SEC_PRIORS);
+	    Priors priors = suite.getPriors();
+	    out.writeBoolean(priors!=null);
+	    if (priors!=null) out.writeString(toXMLString(priors.saveAsXML(xmldoc)));
+
+	    out.writeInt(SEC_LEARNERS);
+	    Vector<Learner> algos = suite.getAllLearners();
+	    out.writeInt(algos.size());
+	    for(Learner algo: algos) {
+		if (algo instanceof PLRMLearner) {
+		    out.writeInt(LEARNER_BINARY);
+		    out.writeString(toXMLString(algo.createLearnerElement(xmldoc)));
+		    out.writeInt(algo.blocks.length);
+		    for(Learner.LearnerBlock b: algo.blocks) {
+			((PLRMLearner.PLRMLearnerBlock)b).writeSnapshot(out);
+		    }
+		} else {
+		    out.writeInt(LEARNER_XML);
+		    out.writeString(toXMLString(algo.saveAsXML(xmldoc)));
+		}
+	    }
+	    out.writeInt(SEC_END);
+	} finally {
+	    out.close();
+	}
+    }
+
+    /** Parses an XML element stored in the snapshot as text */
+    private static Element parseXML(In in, String s) throws IOException {
+	try {
+	    return ParseXML.parseStringToElement(s);
+	} catch(SAXException ex) {
+	    throw in.corrupted("could not parse an embedded XML element: " + ex.getMessage());
+	}
+    }
+
+    /** Reads a learner complex from a file written by {@link #write(Suite,File)}.
+	@return The new suite, with all learners attached to it
+     */
+    static Suite read(File f) throws IOException, BoxerXMLException {
+	In in = new In(f);
+	try {
+	    if (in.readInt() != MAGIC) throw new IOException("File " + f + " is not a BOXER binary snapshot");
+	    int v = in.readInt();
+	    if (v < 1 || v > FORMAT_VERSION) throw new IOException("Snapshot file " + f + " has format version " + v + "; this version of BOXER only supports format versions 1 through " + FORMAT_VERSION);
+	    String boxerVersion = in.readString();
+	    Logging.info("Reading binary snapshot " + f + ", written by BOXER version " + boxerVersion);
+
+	    in.expect(SEC_SUITE, "the suite");
+	    Suite suite;
+	    try {
+		suite = new Suite(parseXML(in, in.readString()));
+	    } catch(SAXException ex) {
+		throw in.corrupted(ex.getMessage());
+	    }
+
+	    in.expect(SEC_FEATURES, "the feature dictionary");
+	    int bits = (v == 1) ? 0 : in.readInt();
+	    FeatureDictionary dic;
+	    if (bits > 0) {
+		dic = new HashingFeatureDictionary(bits, in.readBoolean());
+		int n = in.readLength();
+		for(int i=0; i<n; i++) dic.getIdAlways(in.readString());
+	    } else if (v >= 3 && in.readBoolean()) {
+		String path = in.readString();
+		MappedFeatureDictionary md = new MappedFeatureDictionary(new File(path));
+		if (md.n != in.readLength()) throw in.corrupted("the mapped feature dictionary " + path + " does not contain the same number of features as it did when the snapshot was written");
+		int d = in.readLength();
+		for(int i=0; i<d; i++) {
+		    String label = in.readString();
+		    if (md.getIdAlways(label) != md.n + i) throw in.corrupted("feature " + label + " is out of place");
+		}
+		dic = md;
+	    } else {
+		int d = in.readLength();
+		dic = FeatureDictionary.create(0);
+		for(int i=0; i<d; i++) {
+		    String label = in.readString();
+		    if (dic.getIdAlways(label) != i) throw in.corrupted("feature " + label + " is out of place");
+		}
+	    }
+	    suite.setDic(dic);
+
+	    in.expect(SEC_PRIORS, "the priors");
+	    if (in.readBoolean()) {
+		suite.setPriors(new Priors(parseXML(in, in.readString()), suite));
+	    }
+
+	    in.expect(SEC_LEARNERS, "the learners");
+	    int nLearners = in.readLength();
+	    for(int i=0; i<nLearners; i++) {
+		int mode = in.readInt();
+		if (mode == LEARNER_BINARY) {
+		    Learner algo;
+		    try {
+			algo = suite.deserializeLearner(parseXML(in, in.readString()));
+		    } catch(SAXException ex) {
+			throw in.corrupted(ex.getMessage());
+		    }
+		    int nb = in.readLength();
+		    if (nb != algo.blocks.length) throw in.corrupted("learner " + algo.getName() + " has " + nb + " blocks in the file, but the suite has " + algo.blocks.length + " discriminations");
+		    for(Learner.LearnerBlock b: algo.blocks) {
+			((PLRMLearner.PLRMLearnerBlock)b).readSnapshot(in);
+		    }
+		} else if (mode == LEARNER_XML) {
+		    try {
+			suite.deserializeLearner(parseXML(in, in.readString()));
+		    } catch(SAXException ex) {
+			throw in.corrupted(ex.getMessage());
+		    }
+		} else {
+		    throw in.corrupted("unknown learner storage mode " + mode);
+		}
+	    }
+	    in.expect(SEC_END, "the end of file");
+	    return suite;
+	} finally {
+	    in.close();
+	}
+    }
+}
+
+/*
+Copyright 2009-2011, Rutgers University, New Brunswick, NJ.
+
+All Rights Reserved
+
+Permission to use, copy, and modify this software and its documentation for any purpose
+other than its incorporation into a commercial product is hereby granted without fee,
+provided that the above copyright notice appears in all copies and that both that
+copyright notice and this permission notice appear in supporting documentation, and that
+the names of Rutgers University, DIMACS, and the authors not be used in advertising or
+publicity pertaining to distribution of the software without specific, written prior
+permission.
+
+RUTGERS UNIVERSITY, DIMACS, AND THE AUTHORS DISCLAIM ALL WARRANTIES WITH REGARD TO
+THIS SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ANY PARTICULAR PURPOSE. IN NO EVENT SHALL RUTGERS UNIVERSITY, DIMACS, OR THE AUTHORS
+BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER
+RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT,
+NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+PERFORMANCE OF THIS SOFTWARE.
+*/
@@ -81,5 +81,12 @@ class CFKey implements Comparable<CFKey> {
 	boolean isAllClasses() { return cid==ALL; }
 	/** Is this an "all features" key? */
 	boolean isAllFeatures() { return fid==ALL; }
+
+	/** Creates a key for the same class (or classes) as this one,
+	    but for a different feature. Only used for feature-specific
+	    keys (which, unlike L3 ones, have no class name). */
+	CFKey withFid(int f) {
+	    return new CFKey(cid, f);
+	}
 }
 
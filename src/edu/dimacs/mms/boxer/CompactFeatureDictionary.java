@@ -0,0 +1,466 @@
+package edu.dimacs.mms.boxer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.w3c.dom.*;
+import org.xml.sax.SAXException;
+
+/** A FeatureDictionary that stores its labels compactly, for
+    applications with very large vocabularies. The regular
+    FeatureDictionary keeps a String object for every label, plus a
+    hash map entry and an id entry for it, which, with all the object
+    headers and references, comes to 100+ bytes per feature on top of
+    the characters themselves. This dictionary instead keeps:
+
+    <ul>
+
+    <li>the labels' characters, UTF-8 encoded, one after another, in
+    a single byte arena (a ByteBuffer, which can be allocated on or off
+    the Java heap);
+
+    <li>for each id, the offset of its label in the arena, and the
+    label's hash code (two int arrays);
+
+    <li>an open-addressing hash table (with linear probing) of ids,
+    i.e. one more int array.
+
+    </ul>
+
+    That is, about 16 bytes per feature, plus the label's bytes. No
+    String objects are kept; {@link #getLabel(int)} decodes the label
+    from the arena on each call, and lookups compare the label being
+    looked up directly against the arena bytes. Characters outside
+    the Basic Multilingual Plane are stored as surrogate pairs (as
+    in CESU-8), so that every char takes 1 to 3 bytes.
+
+    <p>The dictionary is read and written in the same XML format as
+    the regular FeatureDictionary (see {@link #saveAsXML(String)}
+    and {@link #CompactFeatureDictionary(File, boolean)}). It is used
+    instead of the regular one for all new suites, and for all
+    dictionaries read from XML files or binary snapshots, when the
+    <tt>-DcompactFeatures=true</tt> option is given; with
+    <tt>-DcompactFeaturesOffHeap=true</tt>, the arena is also moved
+    off the Java heap (into a direct ByteBuffer).
+
+    <p>Unlike the regular dictionary, this one is not lock-free:
+    lookups take a shared (read) lock, and adding a new feature takes
+    an exclusive (write) lock, as the arena and the table may have to
+    be reallocated.
+
+    <p>The {@link #main(String[])} method of this class loads a
+    dictionary file both ways, and reports the memory use of each.
+ */
+public class CompactFeatureDictionary extends FeatureDictionary {
+
+    /** Should new dictionaries be compact? From the system property
+	compactFeatures */
+    static boolean defaultCompact = new ParseConfig().getOption("compactFeatures", false);
+    /** Should compact dictionaries keep their arenas off the heap?
+	From the system property compactFeaturesOffHeap */
+    static boolean defaultOffHeap = new ParseConfig().getOption("compactFeaturesOffHeap", false);
+
+    /** Is the arena a direct (off-heap) buffer? */
+    final boolean offHeap;
+
+    /** The UTF-8 bytes of all labels, in the order of ids. Only the
+	bytes before start[size] are in use */
+    private ByteBuffer arena;
+    /** start[id] is the offset of the label of the feature id in
+	the arena; the label ends where the next one, start[id+1],
+	starts */
+    private int[] start;
+    /** hashes[id] is the hash code of the label of the feature id */
+    private int[] hashes;
+    /** The number of features so far */
+    private volatile int size = 0;
+    /** The hash table: each slot contains 1+id, or 0 if empty. The
+	length is a power of 2 */
+    private int[] table;
+    /** The table is grown when it's this full */
+    private static final double MAX_LOAD = 0.6;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** Creates an empty (or near-empty) dictionary; the only label it
+	may contain is the dummy one, same as in FeatureDictionary()
+	@param offHeap Allocate the label arena off the Java heap?
+     */
+    public CompactFeatureDictionary(boolean offHeap) {
+	this(offHeap, 1024, 1<<16);
+    }
+
+    private CompactFeatureDictionary(boolean offHeap, int n, int arenaSize) {
+	this.offHeap = offHeap;
+	start = new int[n+1];
+	hashes = new int[n];
+	table = new int[tableSizeFor(n)];
+	arena = allocate(arenaSize);
+	if (ADD_DUMMY_COMPONENT) add(DUMMY_LABEL);
+    }
+
+    /** Creates a compact copy of another dictionary, with the same ids */
+    public CompactFeatureDictionary(FeatureDictionary dic, boolean offHeap) {
+	this(offHeap, Math.max(dic.getDimension(), 16), 1<<16);
+	int d = dic.getDimension();
+	for(int i=size; i<d; i++) add(dic.getLabel(i));
+    }
+
+    /** Reads in a CompactFeatureDictionary from an XML file, in the
+	format written by saveAsXML() (of either this class or the
+	regular FeatureDictionary).
+    */
+    public CompactFeatureDictionary(File f, boolean offHeap)
+		throws IOException, SAXException, BoxerXMLException {
+	this(ParseXML.readFileToElement(f), offHeap);
+    }
+
+    /** Creates a CompactFeatureDictionary from a <tt>features</tt> XML
+	element, such as one produced by createFeaturesElement(). Same
+	as {@link FeatureDictionary#FeatureDictionary(Element)}, but
+	producing a compact dictionary.
+    */
+    public CompactFeatureDictionary(Element e, boolean offHeap) throws BoxerXMLException {
+	this(offHeap, 1024, 1<<16);
+	if (!e.getTagName().equals(XML.FEATURES)) {
+	    throw new BoxerXMLException("FeatureDictionary can only be deserialized from an XML element named `" + XML.FEATURES + "'");
+	}
+	if (XMLUtil.nonempty(e.getAttribute(XML.HASHING)) ||
+	    XMLUtil.nonempty(e.getAttribute(XML.MAPPED))) {
+	    throw new BoxerXMLException("This `" + XML.FEATURES + "' element describes a hashing or mapped dictionary, and should be read with FeatureDictionary.createFromElement()");
+	}
+	boolean found = false;
+	for(Node n = e.getFirstChild(); n!=null; n = n.getNextSibling()) {
+	    int type = n.getNodeType();
+	    if (type == Node.COMMENT_NODE) { // skip
+	    }  else if (type == Node.TEXT_NODE) {
+		String val = n.getNodeValue().trim();
+		if (val.length()==0) continue;
+		if (found)  throw new BoxerXMLException("FeatureDictionary deserializer expects only one non-empty TEXT element in the XML element being parsed");
+		found = true;
+		String[] tokens = val.split("\\s+");
+		if (ADD_DUMMY_COMPONENT && !tokens[0].equals(DUMMY_LABEL)) {
+		    throw new BoxerXMLException("FeatureDictionary deserializer:  ADD_DUMMY_COMPONENT flag is on, but the feature list in the XML element does not start with " + DUMMY_LABEL);
+		}
+		// The dummy is already in
+		for(int i=(ADD_DUMMY_COMPONENT? 1: 0); i<tokens.length; i++) {
+		    if (!IDValidation.validateFeatureName(tokens[i])) {
+			throw new BoxerXMLException("Can't add feature with the name '"+ tokens[i]+"' to the feature dictionary, because this is not a legal name");
+		    }
+		    add(tokens[i]);
+		}
+	    } else {
+		throw new IllegalArgumentException("FeatureDictionary deserializer: encountered unexpected node type " + type);
+	    }
+	}
+    }
+
+    private ByteBuffer allocate(int n) {
+	return offHeap ? ByteBuffer.allocateDirect(n) : ByteBuffer.allocate(n);
+    }
+
+    /** The smallest power of 2 that's big enough for a table of n
+	ids */
+    private static int tableSizeFor(int n) {
+	int t = 16;
+	while(t * MAX_LOAD < n + 1) t <<= 1;
+	return t;
+    }
+
+    /** Looks up a label in the table.
+	@return The label's id, or -1 if it's not there
+    */
+    private int find(char[] b, int from, int to, int h) {
+	int mask = table.length - 1;
+	for(int slot = h & mask; ; slot = (slot+1) & mask) {
+	    int t = table[slot];
+	    if (t == 0) return -1;
+	    if (hashes[t-1] == h && matches(t-1, b, from, to)) return t-1;
+	}
+    }
+
+    /** Does the label of the specified feature consist of the
+	specified chars? */
+    private boolean matches(int id, char[] b, int from, int to) {
+	return matches(arena, start[id], start[id+1], b, from, to);
+    }
+
+    /** Do the bytes a[p..end) decode into the chars b[from..to)? */
+    static boolean matches(ByteBuffer a, int p, int end, char[] b, int from, int to) {
+	// each char takes at least 1 and at most 3 bytes
+	if (end - p < to - from || end - p > 3*(to - from)) return false;
+	int i = from;
+	while(p < end) {
+	    if (i == to) return false;
+	    int c = a.get(p++) & 0xFF;
+	    if (c >= 0x80) {
+		if (c < 0xE0) {
+		    c = ((c & 0x1F) << 6) | (a.get(p++) & 0x3F);
+		} else {
+		    c = ((c & 0x0F) << 12) | ((a.get(p++) & 0x3F) << 6);
+		    c |= a.get(p++) & 0x3F;
+		}
+	    }
+	    if (b[i++] != c) return false;
+	}
+	return i == to;
+    }
+
+    /** Decodes the bytes a[p..end) into a String */
+    static String decode(ByteBuffer a, int p, int end) {
+	char[] b = new char[end - p];
+	int n = 0;
+	while(p < end) {
+	    int c = a.get(p++) & 0xFF;
+	    if (c >= 0x80) {
+		if (c < 0xE0) {
+		    c = ((c & 0x1F) << 6) | (a.get(p++) & 0x3F);
+		} else {
+		    c = ((c & 0x0F) << 12) | ((a.get(p++) & 0x3F) << 6);
+		    c |= a.get(p++) & 0x3F;
+		}
+	    }
+	    b[n++] = (char)c;
+	}
+	return new String(b, 0, n);
+    }
+
+    /** Encodes the chars b[from..to) into a, starting at position
+	p, which must have room for 3*(to-from) bytes.
+	@return The position after the last byte written
+     */
+    static int encode(char[] b, int from, int to, ByteBuffer a, int p) {
+	for(int i=from; i<to; i++) {
+	    char c = b[i];
+	    if (c < 0x80) {
+		a.put(p++, (byte)c);
+	    } else if (c < 0x800) {
+		a.put(p++, (byte)(0xC0 | (c >> 6)));
+		a.put(p++, (byte)(0x80 | (c & 0x3F)));
+	    } else {
+		a.put(p++, (byte)(0xE0 | (c >> 12)));
+		a.put(p++, (byte)(0x80 | ((c >> 6) & 0x3F)));
+		a.put(p++, (byte)(0x80 | (c & 0x3F)));
+	    }
+	}
+	return p;
+    }
+
+    /** Adds a label (already validated, and not in the dictionary
+	yet) with the next id. The caller must hold the write lock, or
+	be the constructor. */
+    private int add(char[] b, int from, int to, int h) {
+	int id = size;
+	if (id + 1 >= start.length) {
+	    int n = 2*hashes.length;
+	    int[] ns = new int[n+1];
+	    System.arraycopy(start, 0, ns, 0, id+1);
+	    start = ns;
+	    int[] nh = new int[n];
+	    System.arraycopy(hashes, 0, nh, 0, id);
+	    hashes = nh;
+	}
+	if ((id+1) > table.length * MAX_LOAD) rehash(2*table.length);
+
+	int p = start[id];
+	if (p + 3*(to-from) > arena.capacity()) {
+	    long cap = arena.capacity();
+	    while(cap < p + 3L*(to-from)) cap *= 2;
+	    if (cap > Integer.MAX_VALUE) {
+		cap = Integer.MAX_VALUE;
+		if (cap < p + 3L*(to-from)) throw new IllegalArgumentException("The label arena of the CompactFeatureDictionary is full (" + p + " bytes, " + id + " features)");
+	    }
+	    ByteBuffer a = allocate((int)cap);
+	    ByteBuffer src = arena.duplicate();
+	    src.position(0);
+	    src.limit(p);
+	    a.put(src);
+	    arena = a;
+	}
+	p = encode(b, from, to, arena, p);
+	start[id+1] = p;
+	hashes[id] = h;
+	insert(id, h);
+	size = id + 1;
+	return id;
+    }
+
+    private int add(String label) {
+	char[] b = label.toCharArray();
+	return add(b, 0, b.length, HashingFeatureDictionary.hash(b, 0, b.length));
+    }
+
+    /** Puts an id into the table */
+    private void insert(int id, int h) {
+	int mask = table.length - 1;
+	int slot = h & mask;
+	while(table[slot] != 0) slot = (slot+1) & mask;
+	table[slot] = id + 1;
+    }
+
+    private void rehash(int n) {
+	table = new int[n];
+	for(int id=0; id<size; id++) insert(id, hashes[id]);
+    }
+
+    /** Retrieves the (0-based integer) ID for the given feature label
+      - provided it's in the dictionary already
+      @throws NullPointerException if it isn't (same as the regular
+      FeatureDictionary)
+    */
+    public int getId(String label) {
+	char[] b = label.toCharArray();
+	int h = HashingFeatureDictionary.hash(b, 0, b.length);
+	lock.readLock().lock();
+	try {
+	    int id = find(b, 0, b.length, h);
+	    if (id < 0) throw new NullPointerException("Feature '" + label + "' is not in the dictionary");
+	    return id;
+	} finally {
+	    lock.readLock().unlock();
+	}
+    }
+
+    public int getIdAlways(String label) throws BoxerXMLException {
+	if (label==null) throw new IllegalArgumentException("label=null");
+	char[] b = label.toCharArray();
+	return getIdAlways(b, 0, b.length);
+    }
+
+    /** Always returns a valid ID for the given feature label, adding
+	it to the dictionary (after validating it) if needed. Looking
+	up a feature that's already there does not create a String. */
+    public int getIdAlways(char[] b, int from, int to) throws BoxerXMLException {
+	int h = HashingFeatureDictionary.hash(b, from, to);
+	lock.readLock().lock();
+	try {
+	    int id = find(b, from, to, h);
+	    if (id >= 0) return id;
+	} finally {
+	    lock.readLock().unlock();
+	}
+
+	String label = new String(b, from, to-from);
+	if (!IDValidation.validateFeatureName(label)) {
+	    throw new BoxerXMLException("Can't add feature with the name '"+label+"' to the feature dictionary, because this is not a legal name");
+	}
+	lock.writeLock().lock();
+	try {
+	    // another thread may have added it in the meantime
+	    int id = find(b, from, to, h);
+	    return (id >= 0) ? id : add(b, from, to, h);
+	} finally {
+	    lock.writeLock().unlock();
+	}
+    }
+
+    /** Decodes the label of the specified feature from the arena */
+    public String getLabel(int id) {
+	lock.readLock().lock();
+	try {
+	    if (id < 0 || id >= size) {
+		throw new ArrayIndexOutOfBoundsException("Feature id " + id + " is not in the dictionary, whose dimension is " + size);
+	    }
+	    return decode(arena, start[id], start[id+1]);
+	} finally {
+	    lock.readLock().unlock();
+	}
+    }
+
+    public int getDimension() {
+	return size;
+    }
+
+    /** The number of bytes used by the labels in the arena */
+    public long arenaBytes() {
+	return start[size];
+    }
+
+    /** The part of {@link #memoryEstimate()} that is off the Java
+	heap (i.e., the arena, if it's a direct buffer) */
+    public long offHeapEstimate() {
+	return offHeap? arena.capacity() : 0;
+    }
+
+    /** Estimates the memory use of the dictionary, on and off the
+	heap, in bytes */
+    public long memoryEstimate() {
+	lock.readLock().lock();
+	try {
+	    return 2*Sizeof.OBJ + arena.capacity() + Sizeof.sizeof(start) +
+		Sizeof.sizeof(hashes) + Sizeof.sizeof(table);
+	} finally {
+	    lock.readLock().unlock();
+	}
+    }
+
+    /** The JVM's heap use, after garbage collection */
+    private static long usedHeap() {
+	Runtime run =  Runtime.getRuntime();
+	for(int i=0; i<3; i++) run.gc();
+	return run.totalMemory() - run.freeMemory();
+    }
+
+    /** Loads a feature dictionary from an XML file (in the format
+	written by {@link FeatureDictionary#saveAsXML(String)}), into a
+	regular FeatureDictionary and into a CompactFeatureDictionary,
+	and reports the memory use of each, both estimated and
+	measured (as the growth of the heap).
+
+	<p>Usage: java [-DcompactFeaturesOffHeap=true] edu.dimacs.mms.boxer.CompactFeatureDictionary features.xml [out.xml]
+
+	<p>If out.xml is given, the compact dictionary is saved into
+	it, which should produce a copy of features.xml.
+     */
+    public static void main(String[] argv) throws IOException, SAXException, BoxerXMLException {
+	if (argv.length < 1 || argv.length > 2) {
+	    throw new IllegalArgumentException("Usage: java [-DcompactFeaturesOffHeap=true] CompactFeatureDictionary features.xml [out.xml]");
+	}
+	File f = new File(argv[0]);
+	Element e = ParseXML.readFileToElement(f);
+
+	long m0 = usedHeap();
+	FeatureDictionary dic = new FeatureDictionary(e);
+	long m1 = usedHeap();
+	CompactFeatureDictionary cdic = new CompactFeatureDictionary(e, defaultOffHeap);
+	long m2 = usedHeap();
+
+	int d = dic.getDimension();
+	for(int i=0; i<d; i++) {
+	    if (!dic.getLabel(i).equals(cdic.getLabel(i))) {
+		throw new AssertionError("Feature " + i + " has label " + dic.getLabel(i) + " in the regular dictionary, but " + cdic.getLabel(i) + " in the compact one");
+	    }
+	}
+
+	System.out.println("Dictionary " + f + ": " + d + " features, " + cdic.arenaBytes() + " bytes of labels (UTF-8)");
+	System.out.println("FeatureDictionary:        estimated " + dic.memoryEstimate() + " bytes, heap growth " + (m1-m0) + " bytes");
+	System.out.println("CompactFeatureDictionary: estimated " + cdic.memoryEstimate() + " bytes (of which " + cdic.offHeapEstimate() + " off heap), heap growth " + (m2-m1) + " bytes");
+	if (d > 0) {
+	    System.out.println("Per feature: " + (m1-m0)/d + " vs. " + (m2-m1+cdic.offHeapEstimate())/d + " bytes");
+	}
+	if (argv.length > 1) cdic.saveAsXML(argv[1]);
+    }
+
+}
+
+/*
+Copyright 2009, Rutgers University, New Brunswick, NJ.
+
+All Rights Reserved
+
+Permission to use, copy, and modify this software and its documentation for any purpose
+other than its incorporation into a commercial product is hereby granted without fee,
+provided that the above copyright notice appears in all copies and that both that
+copyright notice and this permission notice appear in supporting documentation, and that
+the names of Rutgers University, DIMACS, and the authors not be used in advertising or
+publicity pertaining to distribution of the software without specific, written prior
+permission.
+
+RUTGERS UNIVERSITY, DIMACS, AND THE AUTHORS DISCLAIM ALL WARRANTIES WITH REGARD TO
+THIS SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ANY PARTICULAR PURPOSE. IN NO EVENT SHALL RUTGERS UNIVERSITY, DIMACS, OR THE AUTHORS
+BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER
+RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT,
+NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+PERFORMANCE OF THIS SOFTWARE.
+*/
@@ -0,0 +1,488 @@
+package edu.dimacs.mms.boxer;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Vector;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import javax.xml.stream.*;
+
+
+/** A batch learner for Polytomous Logistic Regression Models (PLRM),
+    which finds the MAP (posterior mode) model by cyclic coordinate
+    descent, using the algorithm of BBR/BMR (Genkin, Lewis, Madigan,
+    "Large-scale Bayesian logistic regression for text
+    categorization", 2007, and its multinomial extension). This gives
+    the same kind of model as the one produced by BXRtrain (see {@link
+    BXRLearner}), but the computation is carried out right in the
+    JVM, without spawning external processes or writing temporary
+    files; and the resulting model is an ordinary PLRM matrix, which
+    can be saved and read back like that of any other PLRM learner.
+
+    <p>The function being maximized is the log-posterior,
+    <center>
+    sum_{i=1..n} log P(y_i|x_i) + sum_{j,k} log p_{jk}(beta_{jk}),
+    </center>
+    where p_{jk} is the prior for the matrix element beta_{jk}. (Note
+    that, unlike in {@link AdaptiveSteepestDescent}, the
+    log-likelihood here is not averaged over the training set, so that
+    the priors are interpreted exactly as BXR would interpret them).
+    If the suite has a {@link Priors} object associated with it, the
+    priors are taken from there, with every matrix element having its
+    own (Gaussian or Laplacian) prior, possibly with a non-zero mode
+    and skew. Otherwise, a Gaussian prior with mode 0 and the variance
+    given by the "var" parameter is used for all elements.
+
+    <p>Each coordinate update is a one-dimensional Newton step, with
+    the second derivative replaced by its upper bound over a trust
+    region around the current value; the trust region's width is
+    maintained separately for each matrix element. The training set is
+    stored in a column-oriented (feature to data points) form, and
+    identical data points are only stored once (see {@link
+    DataPointArray}), so each step only touches the data points that
+    actually have the feature in question. The iterations stop when
+    the relative change of the linear scores (sum_i |delta r_i| / (1 +
+    sum_i |r_i|)) over one full sweep falls below eps.
+
+    <p>Since the coordinates are updated one by one, the training for
+    each discrimination is sequential; but if the suite has several
+    discriminations, the learner blocks can be trained concurrently
+    (see {@link Learner#setThreads(int)}).
+
+    <p>Each call to absorbExample() runs the optimization to
+    convergence on the examples given, starting from the current
+    matrix. Normally, you'd call it just once, on the entire training
+    set.
+ */
+public class CoordinateDescent extends PLRMLearner {
+
+    /** Convergence criterion: the relative change in the linear
+	scores over one sweep. This is the same as BXRtrain's eps; the
+	default value of 1e-3 is the same as in {@link BXRLearner}. */
+    double eps = 1e-3;
+
+    /** The max number of sweeps through all coordinates */
+    int maxIter = 1000;
+
+    /** The variance of the default Gaussian prior, which is used if
+	the suite has no Priors object. If this is 0, the variance is
+	computed as in BBR's "autovariance" mode: var = dd / avg(|x|^2),
+	where dd is the number of features actually occurring in the
+	training set, and the average is taken over the training set.
+     */
+    double var = 0;
+
+    Truncation defaultCommonTrunc() {
+	return new Truncation(false);
+    }
+
+    class CoordinateDescentLearnerBlock extends PLRMLearner.PLRMLearnerBlock {
+
+	/** Creates a new learner block, possibly patterned on an old one
+	    @param b An old block. If not null, this constructor will
+	    copy its matrix into this block. This can be used for
+	    AssumeDefaultHistory
+	 */
+	CoordinateDescentLearnerBlock(Discrimination _dis, CoordinateDescentLearnerBlock b) {
+	    dis = _dis;
+	    if (b != null) super.initFrom(b);
+	}
+
+	/** Trains the model on xvec[i1:i2-1], running cyclic
+	    coordinate descent to convergence. The current content of
+	    the matrix is used as the starting point.
+	 */
+	public void absorbExample(Vector<DataPoint> xvec, int i1, int i2) {
+	    final int r = dis.claCount();
+	    if (r < 2) return; // nothing to learn with fewer than 2 classes
+	    DataPointArray dpa = new DataPointArray(xvec, i1, i2, dis);
+	    if (dpa.sumCnt==0) {
+		if (Suite.verbosity>1) System.out.println("[CD] No examples labeled for " + dis.getName());
+		return;
+	    }
+	    dpa.buildFeatureIndex();
+	    final int n = dpa.length();
+	    final int d = Math.max(dpa.fiStart.length-1, w.getNRows());
+	    final int feat[] = activeFeatures(d, dpa);
+	    final int nf = feat.length;
+
+	    // the dense copy of the active rows of the matrix,
+	    // beta_{feat[s],k} = b[s*r+k]
+	    double b[] = new double[nf*r];
+	    for(int s=0; s<nf; s++) {
+		BetaMatrix.Row v = w.getRow(feat[s]);
+		if (v==null) continue;
+		for(int h=0; h<v.size; h++) b[s*r + v.icla[h]] = v.value[h];
+	    }
+
+	    PriorTable pt = new PriorTable(feat, r, dpa);
+
+	    // linear scores, m[i][k] = x_i * beta_k
+	    double m[][] = new double[n][];
+	    for(int i=0; i<n; i++) m[i] = dpa.points.elementAt(i).dotProducts(w, dis);
+
+	    // trust region widths
+	    double delta[] = new double[nf*r];
+	    java.util.Arrays.fill(delta, 1.0);
+
+	    if (Suite.verbosity>0) {
+		System.out.println("[CD] dis=" + dis.getName() + ": " + dpa.sumCnt + " labeled examples, " + n + " unique ones; " + nf + " features x " + r + " classes; " + pt.describe() + "; eps=" + eps);
+	    }
+
+	    int iter = 0;
+	    double rel = Double.POSITIVE_INFINITY;
+	    while(iter < maxIter && rel > eps) {
+		iter++;
+		double sumChange = 0;
+		for(int s=0; s<nf; s++) {
+		    int j = feat[s];
+		    int p1 = (j+1 < dpa.fiStart.length)? dpa.fiStart[j] : 0;
+		    int p2 = (j+1 < dpa.fiStart.length)? dpa.fiStart[j+1] : 0;
+		    for(int k=0; k<r; k++) {
+			int q = s*r+k;
+			if (pt.fixed(q)) {
+			    if (b[q] != pt.mode[q]) sumChange += setCoef(b, q, pt.mode[q]-b[q], dpa, m, p1, p2, k);
+			    continue;
+			}
+			// gradient and the upper bound of the 2nd derivative
+			// of the negative log-likelihood, over the trust region
+			double grad=0, hess=0;
+			for(int p=p1; p<p2; p++) {
+			    int i = dpa.fiPoint[p];
+			    double x = dpa.fiValue[p];
+			    DataPointArray.LabelArray la = dpa.las.elementAt(i);
+			    double rr = relativeScore(m[i], k);
+			    double prob = 1/(1+Math.exp(-rr));
+			    grad += x * (la.sumCnt * prob - la.cnt[k]);
+			    hess += la.sumCnt * x * x * bound(rr, delta[q]*Math.abs(x));
+			}
+			double dv = pt.step(q, b[q], grad, hess);
+			dv = Math.max(-delta[q], Math.min(delta[q], dv));
+			dv = pt.applySkew(q, b[q], dv);
+			delta[q] = Math.max(2*Math.abs(dv), delta[q]/2);
+			if (dv != 0) sumChange += setCoef(b, q, dv, dpa, m, p1, p2, k);
+		    }
+		}
+		double sumAbs = 0;
+		for(int i=0; i<n; i++) {
+		    double mult = dpa.las.elementAt(i).sumCnt;
+		    for(double z: m[i]) sumAbs += mult * Math.abs(z);
+		}
+		rel = sumChange / (1 + sumAbs);
+		if (Suite.verbosity>1) {
+		    System.out.println("[CD] sweep " + iter + ": rel. change=" + rel + ", logLik=" + logLik(dpa, m));
+		}
+	    }
+
+	    for(int s=0; s<nf; s++) w.setDenseRow(feat[s], b, s*r, r);
+
+	    if (Suite.verbosity>0) {
+		System.out.println("[CD] dis=" + dis.getName() + ": " + (rel<=eps? "converged" : "stopped") + " after " + iter + " sweeps, rel. change=" + rel + ", logLik=" + logLik(dpa, m) + ", nzCount=" + w.nzCount());
+	    }
+	}
+
+	/** Lists, in increasing order, the ids of the features (below
+	    d) whose matrix rows the optimization may change: those
+	    that occur in the training set, those already in the
+	    matrix, and those with feature-specific priors. Any other
+	    row is empty, has no data, and has a prior with the mode at
+	    0, so it would stay empty anyway. (If a class-level prior has
+	    a non-zero mode, though, all rows are included.)
+	*/
+	private int[] activeFeatures(int d, DataPointArray dpa) {
+	    boolean used[] = new boolean[d];
+	    Priors priors = suite.getPriors();
+	    if (priors != null) {
+		for(int k=0; k<dis.claCount(); k++) {
+		    if (priors.get(dis.getClaById(k), CFKey.ALL).mode != 0) {
+			java.util.Arrays.fill(used, true);
+		    }
+		}
+		priors.markUsedFeatures(used);
+	    }
+	    for(int j=0; j<w.getNRows(); j++) {
+		if (w.getRow(j)!=null) used[j] = true;
+	    }
+	    for(int j=0; j+1<dpa.fiStart.length; j++) {
+		if (dpa.fiStart[j+1] > dpa.fiStart[j]) used[j] = true;
+	    }
+	    int cnt = 0;
+	    for(boolean u: used) if (u) cnt++;
+	    int feat[] = new int[cnt];
+	    cnt = 0;
+	    for(int j=0; j<d; j++) if (used[j]) feat[cnt++] = j;
+	    return feat;
+	}
+
+	/** Adds dv to b[q], and updates the linear scores of all data
+	    points in the column p1:p2-1 of the feature index.
+	    @return The sum of the (multiplicity-weighted) absolute
+	    changes of the scores
+	*/
+	private double setCoef(double b[], int q, double dv, DataPointArray dpa, double m[][], int p1, int p2, int k) {
+	    b[q] += dv;
+	    double sum = 0;
+	    for(int p=p1; p<p2; p++) {
+		int i = dpa.fiPoint[p];
+		double z = dv * dpa.fiValue[p];
+		m[i][k] += z;
+		sum += dpa.las.elementAt(i).sumCnt * Math.abs(z);
+	    }
+	    return sum;
+	}
+
+	public void describe(PrintWriter out, boolean verbose) {
+	    out.println("===CoordinateDescent Classifier["+dis.name+"]===");
+	    out.println("--- W --------------");
+	    if (verbose) {
+		w.describe( out, suite.getDic());
+	    } else {
+		out.println("(Matrix content skipped)");
+	    }
+	}
+
+	public Element saveAsXML(Document xmldoc) {
+ 	    Element de =   xmldoc.createElement(XMLUtil.CLASSIFIER);
+	    de.setAttribute(XMLUtil.DISCRIMINATION, dis.getName());
+	    de.appendChild(w.saveAsXML(xmldoc, dis, suite.getDic(), "W"));
+	    return de;
+	}
+
+	void writeXML(XMLStreamWriter out, Document xmldoc) throws XMLStreamException {
+	    out.writeStartElement(XMLUtil.CLASSIFIER);
+	    out.writeAttribute(XMLUtil.DISCRIMINATION, dis.getName());
+	    w.writeXML(out, dis, suite.getDic(), "W");
+	    out.writeEndElement();
+	}
+
+	/** List of names of matrices that we may need to serialize
+	 * (and deserialize)
+	 */
+	HashMap<String, Matrix> listMatrices() {
+	    HashMap<String, Matrix> h = new HashMap<String, Matrix>();
+	    h.put("W", w);
+	    return h;
+	}
+
+	public long memoryEstimate() {
+	    return Sizeof.OBJ +  Sizeof.OBJREF + w.memoryEstimate();
+	}
+
+	/** The table of prior parameters for the matrix elements in
+	    the active rows (indexed the same way as b[]), looked up
+	    once per training session, so that we don't
+	    have to consult the Priors object on every step. */
+	private class PriorTable {
+	    /** Modes */
+	    final double mode[];
+	    /** 1/var for Gaussian priors, lambda for Laplacian ones */
+	    final double coef[];
+	    /** True for Laplacian priors */
+	    final boolean laplace[];
+	    /** Skews (-1, 0, 1) */
+	    final byte skew[];
+	    /** The variance of the default Gaussian prior, if used */
+	    double defaultVar = 0;
+
+	    PriorTable(int feat[], int r, DataPointArray dpa) {
+		final int nf = feat.length;
+		mode = new double[nf*r];
+		coef = new double[nf*r];
+		laplace = new boolean[nf*r];
+		skew = new byte[nf*r];
+		Priors priors = suite.getPriors();
+		if (priors == null) {
+		    defaultVar = (var > 0) ? var : autoVariance(dpa);
+		    java.util.Arrays.fill(coef, 1/defaultVar);
+		    return;
+		}
+		for(int k=0; k<r; k++) {
+		    Discrimination.Cla c = dis.getClaById(k);
+		    for(int s=0; s<nf; s++) {
+			Prior p = priors.get(c, feat[s]);
+			int q = s*r+k;
+			mode[q] = p.mode;
+			skew[q] = (byte)p.skew;
+			if (p instanceof LaplacePrior) {
+			    laplace[q] = true;
+			    coef[q] = ((LaplacePrior)p).getLambda();
+			} else if (p instanceof GaussianPrior) {
+			    coef[q] = (p.avar == 0)? Double.POSITIVE_INFINITY : 1/p.avar;
+			} else {
+			    throw new IllegalArgumentException("Unsupported prior type: " + p.getType() );
+			}
+		    }
+		}
+	    }
+
+	    String describe() {
+		return (defaultVar > 0) ?
+		    "Gaussian prior with var=" + defaultVar + " for all elements" :
+		    "individual priors";
+	    }
+
+	    /** BBR's default: var = dd / avg(|x|^2) */
+	    private double autoVariance(DataPointArray dpa) {
+		int dd = 0;
+		for(int j=0; j+1<dpa.fiStart.length; j++) {
+		    if (dpa.fiStart[j+1] > dpa.fiStart[j]) dd++;
+		}
+		double avg = dpa.sumNormSquare() / dpa.sumCnt;
+		return (avg > 0) ? dd / avg : 1.0;
+	    }
+
+	    /** Is the element pinned at the mode (zero variance)? */
+	    boolean fixed(int q) {
+		return Double.isInfinite(coef[q]);
+	    }
+
+	    /** Computes the (unclipped) Newton step for the q-th
+		element, whose current value is beta, given the
+		gradient and the 2nd derivative bound of the negative
+		log-likelihood */
+	    double step(int q, double beta, double grad, double hess) {
+		final double diff = beta - mode[q];
+		if (!laplace[q]) {
+		    double h = hess + coef[q];
+		    return (h==0) ? 0 : -(grad + coef[q]*diff) / h;
+		}
+		final double lambda = coef[q];
+		if (hess == 0) {
+		    // no data for this feature: the posterior mode is the prior's
+		    return (lambda > 0) ? -diff : 0;
+		}
+		if (diff == 0) {
+		    // try both directions; at most one can work
+		    double dv = -(grad + lambda) / hess;
+		    if (dv > 0) return dv;
+		    dv = -(grad - lambda) / hess;
+		    return (dv < 0) ? dv : 0;
+		} else {
+		    double s = (diff > 0) ? 1 : -1;
+		    double dv = -(grad + s*lambda) / hess;
+		    // don't cross the mode
+		    return ((diff + dv) * s < 0) ? -diff : dv;
+		}
+	    }
+
+	    /** Modifies the step so that the new value does not
+		violate the prior's skew constraint */
+	    double applySkew(int q, double beta, double dv) {
+		double diff = beta + dv - mode[q];
+		return (skew[q] * diff < 0) ? mode[q] - beta : dv;
+	    }
+	}
+    }
+
+    /** Computes r = m_k - log(sum_{l != k} exp(m_l)), so that P(k|x) =
+	1/(1+exp(-r)) */
+    private static double relativeScore(double m[], int k) {
+	double mx = Double.NEGATIVE_INFINITY;
+	for(int l=0; l<m.length; l++) {
+	    if (l != k && m[l] > mx) mx = m[l];
+	}
+	double z = 0;
+	for(int l=0; l<m.length; l++) {
+	    if (l != k) z += Math.exp(m[l] - mx);
+	}
+	return m[k] - mx - Math.log(z);
+    }
+
+    /** The upper bound of p(1-p) = 1/(2+exp(r)+exp(-r)) over the interval
+	[r-del, r+del] (BBR's F(r, delta)) */
+    private static double bound(double r, double del) {
+	double a = Math.abs(r);
+	return (a <= del) ? 0.25 : 1/(2 + Math.exp(a-del) + Math.exp(del-a));
+    }
+
+    /** The total (not averaged) log-likelihood, computed from the
+	linear scores */
+    private static double logLik(DataPointArray dpa, double m[][]) {
+	double sum = 0;
+	for(int i=0; i<m.length; i++) {
+	    double logProb[] = PLRMLearner.logNormalize( m[i].clone());
+	    int cnt[] = dpa.las.elementAt(i).cnt;
+	    for(int k=0; k<cnt.length; k++) {
+		if (cnt[k] != 0) sum += cnt[k] * logProb[k];
+	    }
+	}
+	return sum;
+    }
+
+    public CoordinateDescent(Suite _suite) throws org.xml.sax.SAXException, BoxerXMLException  {
+	this(_suite, null);
+    }
+
+    /** Creates an instance of CoordinateDescent learner based on the
+      content of an XML "learner" element. The element may be the
+      top-level element of an XML file, or more often, an element
+      nested within a "learners" element within a "learner complex"
+      element.
+    */
+    CoordinateDescent(Suite _suite, Element e) throws org.xml.sax.SAXException,  BoxerXMLException  {
+	super.init(_suite, e);
+    }
+
+    public void describe(PrintWriter out, boolean verbose) {
+	out.println("===" + algoName() + " Classifier===");
+	out.println("eps="+ eps +", maxIter=" + maxIter + ", var=" + (var>0? ""+var : "auto"));
+	for(LearnerBlock b: blocks)  b.describe(out, verbose);
+	out.println("=====================");
+	out.println("[NET] Main tables memory estimate=" + memoryEstimate() + " bytes");
+ 	out.flush();
+    }
+
+    Element saveParamsAsXML(Document xmldoc) {
+	return createParamsElement
+	    (xmldoc,
+	     new String[] {PARAM.eps, PARAM.maxIter, PARAM.var},
+	     new Object[] {new Double(eps), new Integer(maxIter), new Double(var)});
+    }
+
+    void parseParams(Element e) throws BoxerXMLException  {
+	XMLUtil.assertName(e, Learner.PARAMETERS);
+
+	HashMap<String,Object> h = makeHashMap
+	    ( new String[] { PARAM.eps, PARAM.maxIter, PARAM.var, PARAM.threads},
+	      new Object[] {new Double(eps), new Integer(maxIter), new Double(var), new Integer(threads)});
+
+	h = parseParamsElement(e,h);
+
+	eps =  ((Double)(h.get(PARAM.eps))).doubleValue();
+	if (eps<=0) throw new IllegalArgumentException("eps=" + eps + " in the XML learner definition. eps must be positive");
+	maxIter = ((Number)(h.get(PARAM.maxIter))).intValue();
+	if (maxIter<=0) throw new IllegalArgumentException("maxIter=" + maxIter + " in the XML learner definition. maxIter must be a positive integer");
+	var =  ((Double)(h.get(PARAM.var))).doubleValue();
+	if (var<0) throw new IllegalArgumentException("var=" + var + " in the XML learner definition. var must be non-negative (0 means auto)");
+	setThreads( ((Number)(h.get(PARAM.threads))).intValue());
+	commonTrunc = defaultCommonTrunc();
+    }
+
+    CoordinateDescentLearnerBlock createBlock(Discrimination dis, LearnerBlock model) {
+	return new CoordinateDescentLearnerBlock(dis, (CoordinateDescentLearnerBlock) model);
+    }
+
+}
+
+/*
+Copyright 2009-2011, Rutgers University, New Brunswick, NJ.
+
+All Rights Reserved
+
+Permission to use, copy, and modify this software and its documentation for any purpose
+other than its incorporation into a commercial product is hereby granted without fee,
+provided that the above copyright notice appears in all copies and that both that
+copyright notice and this permission notice appear in supporting documentation, and that
+the names of Rutgers University, DIMACS, and the authors not be used in advertising or
+publicity pertaining to distribution of the software without specific, written prior
+permission.
+
+RUTGERS UNIVERSITY, DIMACS, AND THE AUTHORS DISCLAIM ALL WARRANTIES WITH REGARD TO
+THIS SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ANY PARTICULAR PURPOSE. IN NO EVENT SHALL RUTGERS UNIVERSITY, DIMACS, OR THE AUTHORS
+BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER
+RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT,
+NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+PERFORMANCE OF THIS SOFTWARE.
+*/
@@ -242,16 +242,30 @@ public class DataPoint implements Measurable  {
 	double result[] = new  double[dis.claCount() ];
 	
 	for(int i=0; i < features.length;i++) {
-	    Vector<BetaMatrix.Coef> v = mat.getRow(features[i]);
+	    BetaMatrix.Row v = mat.getRow(features[i]);
 	    if (v==null) continue; // no active classes for this feature
-	    for(BetaMatrix.Coef b: v) {
-		result[b.icla] += values[i] * b.value;
+	    for(int h=0; h<v.size; h++) {
+		result[v.icla[h]] += values[i] * v.value[h];
 	    }
 	}
 	return result;
     }
 
 
+    /** Same as {@link #dotProducts(BetaMatrix, Discrimination)}, but
+	writes the r dot products into result[off:off+r-1] rather than
+	into a new array */
+    void dotProducts(BetaMatrix mat, double result[], int off, int r) {
+	Arrays.fill(result, off, off+r, 0);
+	for(int i=0; i < features.length;i++) {
+	    BetaMatrix.Row v = mat.getRow(features[i]);
+	    if (v==null) continue; // no active classes for this feature
+	    for(int h=0; h<v.size; h++) {
+		result[off + v.icla[h]] += values[i] * v.value[h];
+	    }
+	}
+    }
+
     /** The dot product of this vector to itself, i.e. the square of
      * the 2-norm of this vector */
     public double normSquare() {
@@ -358,6 +372,42 @@ public class DataPoint implements Measurable  {
 	 }
      }
 
+    /** A constructor used by the BXR line scanner, which keeps the
+	parsed line in reusable arrays. The first n elements of
+	_features and _values are copied, and sorted by feature id the
+	same way {@link #DataPoint(Vector, FeatureDictionary, String)}
+	would sort them (i.e., stably). The arrays themselves are not
+	modified.
+     */
+    DataPoint(int[] _features, double[] _values, int n, FeatureDictionary _dic,String _name)
+    throws BoxerXMLException {
+	name = _name;
+	if (!IDValidation.validateBasic(name)) {
+	    throw new  BoxerXMLException("'"+name + "' is not a legal datapoint name. Please see Boxer log messages for details.");
+	}
+	dic = _dic;
+	features = new int[n];
+	values = new double[n];
+
+	boolean sorted = true;
+	for(int i=1; i<n && sorted; i++) sorted = (_features[i-1] <= _features[i]);
+	if (sorted) {
+	    System.arraycopy(_features, 0, features, 0, n);
+	    System.arraycopy(_values, 0, values, 0, n);
+	    return;
+	}
+	// Sort (feature id, original position) keys; as all keys are
+	// distinct, this is equivalent to a stable sort by feature id
+	long [] keys = new long[n];
+	for(int i=0; i<n; i++) keys[i] = (((long)_features[i]) << 32) | i;
+	Arrays.sort(keys);
+	for(int i=0; i<n; i++) {
+	    int j = (int)(keys[i] & 0xFFFFFFFFL);
+	    features[i] = _features[j];
+	    values[i] = _values[j];
+	}
+    }
+
     /** Constructs a data point from the data in the hash map.
 
 	@param words The feature name / feature value map describing the new
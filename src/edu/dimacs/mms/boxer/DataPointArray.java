@@ -46,29 +46,14 @@ class DataPointArray {
 
     DataPointArray( Vector<DataPoint> xvec, int i1, int i2, Discrimination dis) {
 
-	final int nCla = dis.claCount();
-
-	for(int i=i1; i<i2; i++) {
-	    DataPoint x = xvec.elementAt(i);
-	    Discrimination.Cla trueC = x.claForDisc(dis);
-	    if (trueC==null) continue; // skip unlabeled
-	    DataPoint q = x.shallowCopyWithoutLabels();
-	    LabelArray la = h.get(q);
-	    if (la == null) h.put( q, la = new LabelArray(nCla));	    
-	    la.add(  trueC.getPos());
-	}
-
-	// how many unique points?
+	// Unique points are listed in the order of their first
+	// occurrence, rather than in the hash map's order; the latter
+	// may depend on identity hash codes (when many points collide),
+	// and thus vary from thread to thread
 	points = new Vector<DataPoint>();
-	points.addAll( h.keySet() );
-	int un = points.size();
-	las = new  Vector<LabelArray>(un);
+	las = new  Vector<LabelArray>();
 	sumCnt = 0;
-	for(DataPoint q: points) {
-	    LabelArray a = h.get( q);
-	    las.add( a );
-	    sumCnt += a.sumCnt;
-	}
+	for(int i=i1; i<i2; i++) addPoint(xvec.elementAt(i), dis);
     }
 
     void addPoint(DataPoint x, Discrimination dis) {
@@ -83,6 +68,7 @@ class DataPointArray {
 	    las.add(la);	   
 	}
 	la.add(  trueC.getPos());
+	sumCnt++;
     }
 
     /** Sum of squares of the Euclidean norms of all vectors, taking
@@ -114,13 +100,117 @@ class DataPointArray {
     */
     double logLikelihood(PLRMLearner.PLRMLearnerBlock block,
 			 double zz[][]) {
+	return logLikelihood(block, zz, null);
+    }
+
+    /** Same as {@link #logLikelihood(PLRMLearner.PLRMLearnerBlock, double[][])},
+	but also, if margins is not null, saves the dot products
+	x*beta_k (with k ranging over all classes) for each point x as
+	margins[i]. Those can then be used with {@link
+	#logLikelihoodFromMargins(Learner, double[][])}.
+    */
+    double logLikelihood(final PLRMLearner.PLRMLearnerBlock block,
+			 final double zz[][], final double margins[][]) {
 	if (zz!=null && zz.length != points.size()) throw new IllegalArgumentException("The log prob array, if supplied, must be pre-allocated to size "+points.size());
 
+	// The points are split into chunks, which are processed
+	// concurrently if the learner has several threads. Partial sums
+	// are then added in the chunk order, so that, for a given number
+	// of threads, the result does not depend on scheduling.
+	Learner learner = block.getLearner();
+	final int n = points.size();
+	int nc = learner.chunkCount(n, MIN_CHUNK);
+	final double partial[] = new double[nc];
+	learner.forEachChunk(n, nc, new Learner.ChunkTask() {
+		void run(int chunk, int from, int to) {
+		    partial[chunk] = sumLogLik(block, zz, margins, from, to);
+		}});
+
 	double logLik = 0;
-	for( int i=0; i<points.size(); i++) {
+	for(double q: partial) logLik += q;
+	return  (sumCnt==0) ? 0 :  logLik/sumCnt;
+    }
+
+    /** Computes the same average log-likelihood as {@link
+	#logLikelihood(PLRMLearner.PLRMLearnerBlock, double[][])}, but
+	from the previously computed dot products x*beta_k, rather than
+	from the matrix itself. This takes O(n*r) operations, rather than
+	O(nnz*r).
+
+	@param margins margins[i][k] = points[i]*beta_k, for each class k
+     */
+    double logLikelihoodFromMargins(Learner learner, final double margins[][]) {
+	final int n = points.size();
+	int nc = learner.chunkCount(n, MIN_CHUNK);
+	final double partial[] = new double[nc];
+	learner.forEachChunk(n, nc, new Learner.ChunkTask() {
+		void run(int chunk, int from, int to) {
+		    double logLik = 0;
+		    for( int i=from; i<to; i++) {
+			LabelArray la = las.elementAt(i);
+			double [] logProb = PLRMLearner.logNormalize(margins[i].clone());
+			for(int k=0; k<logProb.length; k++) {
+			    logLik +=  la.cnt[k] * logProb[k];
+			}
+		    }
+		    partial[chunk] = logLik;
+		}});
+
+	double logLik = 0;
+	for(double q: partial) logLik += q;
+	return  (sumCnt==0) ? 0 :  logLik/sumCnt;
+    }
+
+    /** The feature index: the points that contain feature j, and the
+	values of feature j in them, are listed in fiPoint[] and
+	fiValue[], from position fiStart[j] to fiStart[j+1]-1. Built by
+	buildFeatureIndex().
+     */
+    int fiStart[], fiPoint[];
+    double fiValue[];
+
+    /** Builds the inverted index (feature id to data points), {@link
+	#fiStart} etc. */
+    void buildFeatureIndex() {
+	int d = 0, nnz=0;
+	for(DataPoint x: points) {
+	    for(int j: x.features) d = Math.max(d, j+1);
+	    nnz += x.features.length;
+	}
+	fiStart = new int[d+1];
+	for(DataPoint x: points) {
+	    for(int j: x.features) fiStart[j+1]++;
+	}
+	for(int j=0; j<d; j++) fiStart[j+1] += fiStart[j];
+	fiPoint = new int[nnz];
+	fiValue = new double[nnz];
+	int pos[] = new int[d];
+	for(int i=0; i<points.size(); i++) {
+	    DataPoint x = points.elementAt(i);
+	    for(int h=0; h<x.features.length; h++) {
+		int j = x.features[h];
+		int p = fiStart[j] + pos[j]++;
+		fiPoint[p] = i;
+		fiValue[p] = x.values[h];
+	    }
+	}
+    }
+
+    /** Don't give a thread fewer points than this in logLikelihood() */
+    static final int MIN_CHUNK = 64;
+
+    /** The non-normalized log-likelihood sum for points[i1:i2-1];
+	an auxiliary for logLikelihood() */
+    private double sumLogLik(PLRMLearner.PLRMLearnerBlock block,
+			     double zz[][], double margins[][], int i1, int i2) {
+	double logLik = 0;
+	for( int i=i1; i<i2; i++) {
 	    DataPoint x = points.elementAt(i);
 	    LabelArray la = las.elementAt(i);
-	    double [] logProb = block.applyModelLog(x);
+	    // same as block.applyModelLog(x), but we keep the dot products
+	    double [] dot = x.dotProducts(block.w, block.dis);
+	    if (margins!=null) margins[i] = dot.clone();
+	    double [] logProb = PLRMLearner.logNormalize(dot);
 	    if (zz!=null) {
 		double z[] =  zz[i] = new double[logProb.length];
 		for(int k=0; k<logProb.length; k++) {
@@ -131,6 +221,6 @@ class DataPointArray {
 		logLik +=  la.cnt[k] * logProb[k];
 	    }
 	}
-	return  (sumCnt==0) ? 0 :  logLik/sumCnt;
+	return logLik;
     }
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 package edu.dimacs.mms.boxer;
 
 import java.util.*;
+import java.io.IOException;
 
  /** A sparse matrix of dense rows. For all-zero rows, null is
 	stored. */
@@ -109,6 +110,51 @@ public class DenseMatrix extends Matrix  {
 	}
     }
 
+    void markUsedFeatures(boolean used[]) {
+	for(int j=0; j<data.length; j++) {
+	    if (data[j]==null) continue;
+	    for(double x: data[j]) {
+		if (x != 0) {
+		    used[j] = true;
+		    break;
+		}
+	    }
+	}
+    }
+
+    void renumberFeatures(FeatureRenumMap map) {
+	data = map.applyTo(data, data.length);
+    }
+
+    void writeBinary(BinarySnapshot.Out out) throws IOException {
+	int cnt = 0;
+	for(double[] row: data) {
+	    if (row!=null) cnt++;
+	}
+	out.writeInt(data.length);
+	out.writeInt(cnt);
+	for(int j=0; j<data.length; j++) {
+	    if (data[j]==null) continue;
+	    out.writeInt(j);
+	    out.writeInt(data[j].length);
+	    out.writeDoubles(data[j], 0, data[j].length);
+	}
+    }
+
+    void readBinary(BinarySnapshot.In in, int d, int r) throws IOException {
+	int n = in.readLength(), cnt = in.readLength();
+	if (n > Math.max(d,1)) throw in.corrupted("a matrix has " + n + " rows, but there are only " + d + " features");
+	data = new double[n][];
+	int prev = -1;
+	for(int i=0; i<cnt; i++) {
+	    int j = in.readInt();
+	    if (j<=prev || j>=n) throw in.corrupted("bad row number " + j);
+	    prev = j;
+	    data[j] = new double[in.readLength()];
+	    in.readDoubles(data[j], 0, data[j].length);
+	}
+    }
+
    void dropRow(int j) {
        if (j < data.length) data[j]=null;
    }
@@ -6,6 +6,7 @@ import java.util.*;
 import org.apache.xerces.dom.DocumentImpl;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import javax.xml.stream.*;
 
 /** An auxiliary class for {@link Priors}: stores Priors of several levels for one
     discrimination, or the defaults for all discriminations. */
@@ -104,6 +105,61 @@ class DiscPriorSet {
 	return e;
     }
 
+    /** The streaming (StAX) counterpart of {@link
+	#saveFeatureSpecificAsXML(Document, FeatureDictionary)} */
+    void writeFeatureSpecificXML(XMLStreamWriter w, FeatureDictionary dic) throws XMLStreamException {
+	w.writeStartElement(Priors.NODE.FEATURES);
+	for(Map.Entry<CFKey, Prior> en: L567.entrySet()) {
+	    CFKey key = en.getKey();
+	    if (key.isAllClasses() && !key.isAllFeatures()) {
+		w.writeStartElement(Priors.NODE.FEATURE_PRIOR);
+		w.writeAttribute(Prior.ATTR.FEATURE, dic.getLabel(key.getFid()));	
+		en.getValue().writeXML(w);
+		w.writeEndElement();
+	    }
+	}
+	w.writeEndElement();
+    }
+
+    /** The streaming (StAX) counterpart of {@link
+	#saveClassSpecificAsXML(Document, Discrimination)} */
+    void writeClassSpecificXML(XMLStreamWriter w, Discrimination dis) throws XMLStreamException {
+	if ((dis==null) ^ (this instanceof CrossDiscPriorSet)) {
+	    throw  new IllegalArgumentException("dis==null should be only used with cross disc data set");
+	}
+	w.writeStartElement(Priors.NODE.CLASSES);
+	for(Map.Entry<CFKey, Prior> en: L567.entrySet()) {
+	    CFKey key = en.getKey();
+	    if (!key.isAllClasses() && key.isAllFeatures()) {
+		w.writeStartElement(Priors.NODE.CLASS_PRIOR);
+		w.writeAttribute(Prior.ATTR.CLASS, key.getCName(dis));
+		en.getValue().writeXML(w);
+		w.writeEndElement();
+	    }
+	}
+	w.writeEndElement();
+    }
+
+    /** The streaming (StAX) counterpart of {@link
+	#saveCoeffSpecificAsXML(Document, FeatureDictionary, Discrimination)} */
+    void writeCoeffSpecificXML(XMLStreamWriter w, FeatureDictionary dic, Discrimination dis) throws XMLStreamException {
+	if (dis==null) {
+	    throw  new IllegalArgumentException("dis==null should be used for coeff specific data");
+	}
+	w.writeStartElement(Priors.NODE.COEFFICIENTS);
+	for(Map.Entry<CFKey, Prior> en: L567.entrySet()) {
+	    CFKey key = en.getKey();
+	    if (!key.isAllClasses() && !key.isAllFeatures()) {
+		w.writeStartElement(Priors.NODE.COEFF_PRIOR);
+		w.writeAttribute(Prior.ATTR.FEATURE,dic.getLabel(key.getFid()));
+		w.writeAttribute(Prior.ATTR.CLASS, key.getCName(dis));
+		en.getValue().writeXML(w);
+		w.writeEndElement();
+	    }
+	}
+	w.writeEndElement();
+    }
+
     /** How many priors are stored? */
     int objectCnt() {
 	return  (L_overall==null? 0: 1) + L567.size();
@@ -131,6 +187,30 @@ class DiscPriorSet {
 	return L567.size() == 0 ?  L_overall : null;
     }
 
+    /** Sets used[f]=true for every feature f for which there is a
+	feature-specific (or coefficient-specific) prior in this set */
+    void markUsedFeatures(boolean used[]) {
+	for(CFKey key: L567.keySet()) {
+	    if (!key.isAllFeatures() && key.getFid() < used.length) used[key.getFid()] = true;
+	}
+    }
+
+    /** Rebuilds the table with the new feature ids in the keys. The
+	priors of dropped features (if any) are dropped too. */
+    void renumberFeatures(FeatureRenumMap map) {
+	HashMap<CFKey, Prior> h = new  HashMap<CFKey, Prior>();
+	for(Map.Entry<CFKey, Prior> en: L567.entrySet()) {
+	    CFKey key = en.getKey();
+	    if (!key.isAllFeatures()) {
+		int f = map.get(key.getFid());
+		if (f < 0) continue;
+		key = key.withFid(f);
+	    }
+	    h.put(key, en.getValue());
+	}
+	L567 = h;
+    }
+
 
 }
 
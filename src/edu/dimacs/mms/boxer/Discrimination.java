@@ -820,7 +820,10 @@ public class Discrimination {
 	else throw new IllegalArgumentException("The discrimination " + name + " has DCS=" + dcs+", rather than " +  Suite.DCS.Bounded +", and MaxNumberOfClasses makes no sense in it");
     }
 
-    public void ensureCommitted() {
+    /** Commits this discrimination with the default DCS, unless it has
+	been committed already. Synchronized, since learners may call
+	it from multiple threads. */
+    public synchronized void ensureCommitted() {
 	if (dcs == Suite.DCS.Uncommitted) {
 	    commitStructure(Suite.DCS.Fixed); // FIXME
 	}
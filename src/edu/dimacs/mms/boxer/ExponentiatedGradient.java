@@ -6,6 +6,7 @@ import java.util.Vector;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import javax.xml.stream.*;
 
 
 /** Using Exponentiated Gradient for training of Polytomous Logistic
@@ -62,6 +63,13 @@ public class ExponentiatedGradient extends PLRMLearner {
 	ClassSizesMatrix(ClassSizesMatrix a) {
 	    super(a);
 	}
+
+	/** The only row here is not a feature's, so there is
+	    nothing to mark */
+	void markUsedFeatures(boolean used[]) {}
+	/** The only row here is not a feature's, so it stays as is */
+	void renumberFeatures(FeatureRenumMap map) {}
+
 	/** Computes the size of the smallest (non-empty) class in the
 	    training set. The result can be used in the heuristic for
 	    setting the parameter U: "U is some fraction (perhaps 0.1
@@ -159,6 +167,20 @@ public class ExponentiatedGradient extends PLRMLearner {
 	    return h;
 	}
 
+	/** Marks all features. Since each feature's empty rows in
+	    vplus and vminus still contribute to the normalization in
+	    latentToModelAll(), dropping any feature would change the
+	    model (but the features can still be reordered).
+	*/
+	void markUsedFeatures(boolean used[]) {
+	    java.util.Arrays.fill(used, true);
+	}
+
+	void renumberFeatures(FeatureRenumMap map) {
+	    super.renumberFeatures(map);
+	    trunc.renumberFeatures(map);
+	}
+
 	/** Builds a BetaMatrix w from the matrix V (vplus and vminus)
 	 */
 	private BetaMatrix latentToModelAll() {
@@ -385,11 +407,7 @@ public class ExponentiatedGradient extends PLRMLearner {
  	    Element de =   xmldoc.createElement(XMLUtil.CLASSIFIER);
 	    de.setAttribute(XMLUtil.DISCRIMINATION, dis.getName());
 
-	    de.appendChild(createParamsElement
-	    	 (xmldoc, 
-		  new String[] {PARAM.maxInfNorm, PARAM.f, PARAM.U, PARAM.t},
-		  new double[] {maxInfNorm, f, U, trunc.t}
-		  ));
+	    de.appendChild(saveDSPAsXML(xmldoc));
 	    
 	    de.appendChild(classSizesMatrix.saveAsXML(xmldoc, dis, suite.getDic(), PARAM.classSizes));
 	    de.appendChild(vplus.saveAsXML(xmldoc,dis,suite.getDic(),"Vplus"));
@@ -400,6 +418,40 @@ public class ExponentiatedGradient extends PLRMLearner {
 	    return de;
 	}
 
+	/** Discrimination-specific parameters */
+	private Element saveDSPAsXML(Document xmldoc) {
+	    return createParamsElement
+	    	 (xmldoc, 
+		  new String[] {PARAM.maxInfNorm, PARAM.f, PARAM.U, PARAM.t},
+		  new double[] {maxInfNorm, f, U, trunc.t}
+		  );
+	}
+
+	void writeXML(XMLStreamWriter out, Document xmldoc) throws XMLStreamException {
+	    out.writeStartElement(XMLUtil.CLASSIFIER);
+	    out.writeAttribute(XMLUtil.DISCRIMINATION, dis.getName());
+	    XMLUtil.writeElement(out, saveDSPAsXML(xmldoc));
+	    classSizesMatrix.writeXML(out, dis, suite.getDic(), PARAM.classSizes);
+	    vplus.writeXML(out, dis, suite.getDic(), "Vplus");
+	    vminus.writeXML(out, dis, suite.getDic(), "Vminus");
+	    w.writeXML(out, dis, suite.getDic(), "W");
+	    out.writeEndElement();
+	}
+
+
+	void writeStateSnapshot(BinarySnapshot.Out out) throws java.io.IOException {
+	    out.writeDouble(f);
+	    out.writeDouble(U);
+	    out.writeDouble(maxInfNorm);
+	    trunc.writeState(out);
+	}
+
+	void readStateSnapshot(BinarySnapshot.In in) throws java.io.IOException {
+	    f = in.readDouble();
+	    U = in.readDouble();
+	    maxInfNorm = in.readDouble();
+	    trunc.readState(in);
+	}
 
 	/** Parses the element for discrimination-specific parameters,
 	    which may be supplied in the learner's
@@ -526,8 +578,8 @@ public class ExponentiatedGradient extends PLRMLearner {
 	double g = 0;
 	int K = 1;
 	HashMap<String,Object> h = makeHashMap
-	    (new String[] { PARAM.theta, PARAM.g, PARAM.K,  PARAM.f, PARAM.U},
-	     new Object[]{Zero,Zero, new Double(K), reportCommonF(), reportCommonU()});
+	    (new String[] { PARAM.theta, PARAM.g, PARAM.K,  PARAM.f, PARAM.U, PARAM.threads},
+	     new Object[]{Zero,Zero, new Double(K), reportCommonF(), reportCommonU(), new Integer(threads)});
 	
 	h =  parseParamsElement(e,h);
 
@@ -543,6 +595,7 @@ public class ExponentiatedGradient extends PLRMLearner {
 	if (!adjustU) commonU=  ((Double)o).doubleValue();
 	
 	K = ((Number)(h.get(PARAM.K))).intValue();
+	setThreads( ((Number)(h.get(PARAM.threads))).intValue());
 		
 	setTruncation(theta, g, K);
 
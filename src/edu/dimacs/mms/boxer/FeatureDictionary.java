@@ -2,6 +2,8 @@ package edu.dimacs.mms.boxer;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.*;
 import java.text.*;
 // for XML generation
 import org.w3c.dom.*;
@@ -29,8 +31,13 @@ import org.apache.xerces.dom.DocumentImpl;
     e.g. creating {@link edu.dimacs.mms.boxer.DataPoint DataPoint} objects directly
     (rather than reading them from an XML dataset definition).
 
+    <p>A FeatureDictionary can be used by several threads at once
+    (e.g., ones parsing different parts of the input in parallel):
+    looking up features that are already in the dictionary takes no
+    lock, and new features are appended without locking either.
+
 */
-public class FeatureDictionary {
+public class FeatureDictionary implements Measurable {
 
     /** If this flag is true, we add a dummy component x_0=1 to each vector
 	when we read it in, and strip it on the output. */
@@ -40,10 +47,38 @@ public class FeatureDictionary {
 
     /** Maps an integer 0-based feature id to feature label. All
      * values stored here are supposed to be syntactically legal
-     * feature labels; thus, validation is done before every add call. */
-    private Vector<String> id2label = new Vector<String>();
-    /** Reverse: feature label to feature id */
-    private HashMap<String, Integer> label2id = new  HashMap<String, Integer>();
+     * feature labels; thus, validation is done before every add call.
+
+     The labels are stored in chunks, chunk no. k having
+     2^(FIRST_CHUNK_BITS+k) elements, so that the storage can grow
+     without ever being copied or locked, and a label can still be
+     found by its id in O(1) time.
+     */
+    private final AtomicReferenceArray<AtomicReferenceArray<String>> id2label = 
+	new AtomicReferenceArray<AtomicReferenceArray<String>>(MAX_CHUNKS);
+    static final int FIRST_CHUNK_BITS = 10;
+    /** This many chunks are enough for Integer.MAX_VALUE ids */
+    static final int MAX_CHUNKS = 32 - FIRST_CHUNK_BITS;
+
+    /** The number of ids assigned so far. Ids are assigned in order,
+	so the ids in use are 0 through size-1 */
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    /** An entry of label2id. The id is set (once) by the thread that
+	has put the entry into label2id; until then, it is -1 */
+    private static final class Entry {
+	volatile int id = -1;
+	/** Waits until the inserting thread sets the id (which it does
+	    right after putting the entry into the map) */
+	int await() {
+	    int x;
+	    while((x = id) < 0) Thread.yield();
+	    return x;
+	}
+    }
+
+    /** Reverse: feature label to feature id. Lookups take no lock */
+    private final ConcurrentHashMap<String, Entry> label2id = new  ConcurrentHashMap<String, Entry>();
 
 
     /** Creates an empty (or near-empty) dictionary. The only value
@@ -52,9 +87,49 @@ public class FeatureDictionary {
      */
     public FeatureDictionary() {
 	if (ADD_DUMMY_COMPONENT) {
-	    id2label.add( DUMMY_LABEL );
-	    label2id.put(  DUMMY_LABEL, new Integer(0));
+	    add(DUMMY_LABEL);
+	}
+    }
+
+    /** Which chunk of id2label is the specified id stored in? (Also
+	used for {@link Suite}'s feature counts, which are laid out the
+	same way) */
+    static int chunkOf(int id) {
+	return 31 - Integer.numberOfLeadingZeros((id >>> FIRST_CHUNK_BITS) + 1);
+    }
+
+    /** The position of the specified id within its chunk */
+    static int offsetOf(int id, int chunk) {
+	return id - (((1<<chunk)-1) << FIRST_CHUNK_BITS);
+    }
+
+    /** Gets the specified chunk of id2label, creating it if needed */
+    private AtomicReferenceArray<String> chunk(int k) {
+	AtomicReferenceArray<String> c = id2label.get(k);
+	if (c == null) {
+	    id2label.compareAndSet(k, null, new AtomicReferenceArray<String>(1 << (FIRST_CHUNK_BITS + k)));
+	    c = id2label.get(k);
 	}
+	return c;
+    }
+
+    /** Assigns the next id to a label, which the caller has just put
+	into label2id with the entry e */
+    private int append(String label, Entry e) {
+	int id = size.getAndIncrement();
+	int k = chunkOf(id);
+	chunk(k).set(offsetOf(id, k), label);
+	e.id = id;
+	return id;
+    }
+
+    /** Adds a label (already validated) with the next id, even if
+	it's in the dictionary already; only used while a dictionary
+	is being constructed. */
+    private int add(String label) {
+	Entry e = new Entry();
+	label2id.put(label, e);
+	return append(label, e);
     }
 
     /** Returns true if the dictionary is either completely empty, or only 
@@ -62,23 +137,32 @@ public class FeatureDictionary {
      */
     public boolean isPracticallyEmpty() {
 	return getDimension()==0 ||
-	    getDimension()==1 && id2label.elementAt(0).equals(DUMMY_LABEL);
+	    getDimension()==1 && getLabel(0).equals(DUMMY_LABEL);
     }
 
     boolean hasDummyIfRequired() {
 	return !ADD_DUMMY_COMPONENT ||  
-	    getDimension()>0 && id2label.elementAt(0).equals(DUMMY_LABEL);
+	    getDimension()>0 && getLabel(0).equals(DUMMY_LABEL);
     }
 
 
     /** Retrieves the (0-based integer) ID for the given feature label
       - provided it's in the dictionary already */
-    synchronized public int getId(String label) { 
-	return label2id.get(label).intValue();
+    public int getId(String label) { 
+	return label2id.get(label).await();
     }
 
     public String getLabel(int id) {
-	return id2label.elementAt(id);
+	if (id < 0 || id >= size.get()) {
+	    throw new ArrayIndexOutOfBoundsException("Feature id " + id + " is not in the dictionary, whose dimension is " + size.get());
+	}
+	int k = chunkOf(id);
+	AtomicReferenceArray<String> c = chunk(k);
+	String label;
+	// The id may have been just assigned by another thread, which
+	// is about to store the label
+	while((label = c.get(offsetOf(id, k))) == null) Thread.yield();
+	return label;
     }
 
     /** Is this the dummy component? (We just test by position, which
@@ -93,33 +177,83 @@ public class FeatureDictionary {
      otherwise. In the latter case, the feature label is validated
      before being inserted into the dictionary.
 
-     This method must be synchronized to prevent double insertion
+     This method takes no lock. A label already in the dictionary
+     is found with a single ConcurrentHashMap lookup. A new label is
+     inserted with putIfAbsent(); only the thread that wins the
+     insertion takes a new id (from an atomic counter), so the ids
+     stay dense even if several threads encounter the same new label
+     at once. The other threads wait for the winner to publish the id.
 
      @param label The feature label (name). Should be non-null
     */
-    synchronized public int getIdAlways(String label) throws BoxerXMLException {
+    public int getIdAlways(String label) throws BoxerXMLException {
 	if (label==null) throw new IllegalArgumentException("label=null");
-	Integer x = label2id.get(label);
-	if (x != null) return x.intValue();
-	if (!IDValidation.validateFeatureName(label)) {
-	    throw new BoxerXMLException("Can't add feature with the name '"+label+"' to the feature dictionary, because this is not a legal name");
+	Entry e = label2id.get(label);
+	if (e == null) {
+	    if (!IDValidation.validateFeatureName(label)) {
+		throw new BoxerXMLException("Can't add feature with the name '"+label+"' to the feature dictionary, because this is not a legal name");
+	    }
+	    Entry ne = new Entry();
+	    e = label2id.putIfAbsent(label, ne);
+	    if (e == null) return append(label, ne);
 	}
-
-	id2label.add( label );
-	int z =  id2label.size() - 1;  // the index of the last element
-	label2id.put(label, new Integer(z));
-	return z;
+	return e.await();
     }
     
+    /** Same as getIdAlways(new String(b, from, to-from)). This is
+	used by parsers that scan a char buffer; a dictionary that
+	doesn't store labels can then look up features without creating
+	a String for each. */
+    public int getIdAlways(char[] b, int from, int to) throws BoxerXMLException {
+	return getIdAlways(new String(b, from, to-from));
+    }
+
+    /** If this is a {@link HashingFeatureDictionary}, the number of
+	bits, b, of its 2^b id space; otherwise, 0 */
+    public int getHashingBits() {
+	return 0;
+    }
+
+    /** Creates an empty dictionary of the regular kind, or a {@link
+	HashingFeatureDictionary} if hashingBits is positive, or a
+	{@link CompactFeatureDictionary} if the -DcompactFeatures option
+	is on */
+    static FeatureDictionary create(int hashingBits) {
+	return (hashingBits > 0) ?
+	    new HashingFeatureDictionary(hashingBits, HashingFeatureDictionary.defaultKeepLabels) :
+	    CompactFeatureDictionary.defaultCompact ? 
+	    new CompactFeatureDictionary(CompactFeatureDictionary.defaultOffHeap) :
+	    new FeatureDictionary();
+    }
+
     /** How many features are there so far? */
     public int getDimension() {
-	return id2label.size();
+	return size.get();
+    }
+
+    /** Estimates the memory use of the dictionary, in bytes. Each
+	label costs a String (with its char array), a hash map entry,
+	and a slot in id2label.
+     */
+    public long memoryEstimate() {
+	long sum = 3*Sizeof.OBJ + Sizeof.OBJREF * (long)MAX_CHUNKS;
+	for(int k=0; k<MAX_CHUNKS; k++) {
+	    AtomicReferenceArray<String> c = id2label.get(k);
+	    if (c != null) sum += Sizeof.OBJ + c.length() * Sizeof.OBJREF;
+	}
+	int d = getDimension();
+	for(int i=0; i<d; i++) {
+	    // String + char[]; map node + Entry; map table slots
+	    sum += 2*Sizeof.OBJ + Sizeof.INT + 2*getLabel(i).length() +
+		2*Sizeof.OBJ + 4*Sizeof.OBJREF + 2*Sizeof.INT + 2*Sizeof.OBJREF;
+	}
+	return sum;
     }
 
     public String describe() {
 	NumberFormat fmt = new DecimalFormat("###");
 	StringBuffer b=new StringBuffer("--- FeatureDictionary ---\n");
-	for(int i=0; i< id2label.size();i++) {
+	for(int i=0; i< getDimension();i++) {
 	    b.append(fmt.format(i) + " " + getLabel(i) + "\n");
 	}
 	b.append("------------------------");
@@ -134,13 +268,15 @@ public class FeatureDictionary {
     }    
 
     /**  Element names for XML serializing and deserializing  */
-    class XML { static final String FEATURES = "features"; }
+    class XML { static final String FEATURES = "features",
+	    HASHING = "hashing", LABELS = "labels",
+	    MAPPED = "mapped", COUNT = "count"; }
 
     /** Describe the list of features as an element of an XML document */
     public org.w3c.dom.Element createFeaturesElement(Document xmldoc) {
 	Element e = xmldoc.createElement(XML.FEATURES);
 	StringBuffer b=new StringBuffer();
-	for(int i=0; i< id2label.size();i++) {
+	for(int i=0; i< getDimension();i++) {
 	    if (b.length()>0) b.append(" ");
 	    b.append(getLabel(i));
 	}
@@ -172,6 +308,30 @@ public class FeatureDictionary {
 	this(ParseXML.readFileToElement(f));
     }
 
+    /** Creates a FeatureDictionary of the appropriate kind (a regular
+	one, or a {@link HashingFeatureDictionary}, if the element has
+	the <tt>hashing</tt> attribute, or a {@link
+	MappedFeatureDictionary}, if it has the <tt>mapped</tt> attribute,
+	or a {@link CompactFeatureDictionary}, if the -DcompactFeatures
+	option is on)
+	from an XML element that may have been produced by
+	createFeaturesElement().
+
+	@param e A <tt>features</tt> XML element
+    */
+    static public FeatureDictionary createFromElement(Element e) throws BoxerXMLException {
+	if (XMLUtil.nonempty(e.getAttribute(XML.HASHING))) {
+	    XMLUtil.assertName(e, XML.FEATURES);
+	    return new HashingFeatureDictionary(e);
+	}
+	if (XMLUtil.nonempty(e.getAttribute(XML.MAPPED))) {
+	    return MappedFeatureDictionary.fromElement(e);
+	}
+	return CompactFeatureDictionary.defaultCompact ?
+	    new CompactFeatureDictionary(e, CompactFeatureDictionary.defaultOffHeap) :
+	    new FeatureDictionary(e);
+    }
+
     /** Creates a new Feature Dictionary and loads it with the feature
 	list from an XML element that may have been produced by
 	createFeaturesElement().   
@@ -186,6 +346,10 @@ public class FeatureDictionary {
 	if (!e.getTagName().equals(XML.FEATURES)) {
 	    throw new BoxerXMLException("FeatureDictionary can only be deserialized from an XML element named `" + XML.FEATURES + "'");
 	}
+	if (XMLUtil.nonempty(e.getAttribute(XML.HASHING)) ||
+	    XMLUtil.nonempty(e.getAttribute(XML.MAPPED))) {
+	    throw new BoxerXMLException("This `" + XML.FEATURES + "' element describes a hashing or mapped dictionary, and should be read with FeatureDictionary.createFromElement()");
+	}
 
 	for(Node n = e.getFirstChild(); n!=null; n = n.getNextSibling()) {
 	    int type = n.getNodeType();
@@ -204,14 +368,11 @@ public class FeatureDictionary {
 			(tokens.length==0 || !tokens[0].equals(DUMMY_LABEL))) {
 			throw new BoxerXMLException("FeatureDictionary deserializer:  ADD_DUMMY_COMPONENT flag is on, but the feature list in the XML element does not start with " + DUMMY_LABEL);
 		    }
-		    id2label.setSize(tokens.length);
-
 		    for(int i=0; i<tokens.length; i++) {
 			if (!IDValidation.validateFeatureName(tokens[i])) {
 			    throw new BoxerXMLException("Can't add feature with the name '"+ tokens[i]+"' to the feature dictionary, because this is not a legal name");
 			}
-			id2label.set( i, tokens[i]);
-			label2id.put( tokens[i], i);
+			add(tokens[i]);
 		    }
 		}
 	    } else {
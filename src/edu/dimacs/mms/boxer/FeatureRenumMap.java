@@ -0,0 +1,109 @@
+package edu.dimacs.mms.boxer;
+
+import java.util.Arrays;
+
+/** An auxiliary class used to renumber features (and to drop unused
+ * ones) in learners' matrices and other feature-indexed structures
+ * when the suite's feature dictionary is compacted. It is the
+ * row-side counterpart of {@link RenumMap}. See {@link
+ * Suite#compactFeatures()}.
+ */
+class FeatureRenumMap {
+    /** Maps old feature ids to new feature ids. If an element is -1,
+     * it means that the feature is dropped. */
+    final int[] renumMap;
+    /** Maps new feature ids back to old ones */
+    final int[] oldIds;
+
+    /** Creates a map that gives the new id k to the feature whose
+	old id is order[k].
+	@param order Old ids of the features that are kept, in the new order
+	@param oldD The number of features before renumbering
+     */
+    FeatureRenumMap(int[] order, int oldD) {
+	oldIds = order;
+	renumMap = new int[oldD];
+	Arrays.fill(renumMap, -1);
+	for(int k=0; k<order.length; k++) {
+	    if (renumMap[order[k]] >= 0) throw new IllegalArgumentException("Feature " + order[k] + " is listed twice in the new order");
+	    renumMap[order[k]] = k;
+	}
+    }
+
+    /** The number of features after renumbering */
+    int getNewDimension() { return oldIds.length; }
+
+    /** The new id for the given old id, or -1 if the feature is dropped */
+    int get(int oldId) {
+	return oldId < renumMap.length ? renumMap[oldId] : -1;
+    }
+
+    /** Does this map leave every feature where it was? */
+    boolean isIdentity() {
+	if (oldIds.length != renumMap.length) return false;
+	for(int k=0; k<oldIds.length; k++) {
+	    if (oldIds[k] != k) return false;
+	}
+	return true;
+    }
+
+    /** Moves the first n elements of a feature-indexed array to their
+	new positions, dropping those of the dropped features.  The
+	returned array is just long enough to hold the new positions of
+	all n old ones that are kept (so that, e.g., rows that a matrix
+	"has", even as nulls, stay within its new size).
+     */
+    <T> T[] applyTo(T[] v, int n) {
+	int len = 0;
+	for(int j=0; j<n; j++) {
+	    int k = get(j);
+	    if (k >= len) len = k+1;
+	}
+	T[] w = Arrays.copyOf(v, len);
+	Arrays.fill(w, null);
+	for(int j=0; j<n; j++) {
+	    int k = get(j);
+	    if (k >= 0) w[k] = v[j];
+	}
+	return w;
+    }
+
+    /** Same as {@link #applyTo(Object[], int)}, for an array of ints,
+	with fill used for the new positions that no old element maps to */
+    int[] applyTo(int[] v, int fill) {
+	int len = 0;
+	for(int j=0; j<v.length; j++) {
+	    int k = get(j);
+	    if (k >= len) len = k+1;
+	}
+	int[] w = new int[len];
+	Arrays.fill(w, fill);
+	for(int j=0; j<v.length; j++) {
+	    int k = get(j);
+	    if (k >= 0) w[k] = v[j];
+	}
+	return w;
+    }
+}
+
+/*
+Copyright 2009, Rutgers University, New Brunswick, NJ.
+
+All Rights Reserved
+
+Permission to use, copy, and modify this software and its documentation for any purpose
+other than its incorporation into a commercial product is hereby granted without fee,
+provided that the above copyright notice appears in all copies and that both that
+copyright notice and this permission notice appear in supporting documentation, and that
+the names of Rutgers University, DIMACS, and the authors not be used in advertising or
+publicity pertaining to distribution of the software without specific, written prior
+permission.
+
+RUTGERS UNIVERSITY, DIMACS, AND THE AUTHORS DISCLAIM ALL WARRANTIES WITH REGARD TO
+THIS SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ANY PARTICULAR PURPOSE. IN NO EVENT SHALL RUTGERS UNIVERSITY, DIMACS, OR THE AUTHORS
+BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER
+RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT,
+NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+PERFORMANCE OF THIS SOFTWARE.
+*/
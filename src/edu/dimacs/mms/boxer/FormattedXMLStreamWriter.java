@@ -0,0 +1,462 @@
+package edu.dimacs.mms.boxer;
+
+import java.io.*;
+import java.util.*;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/** A StAX writer that lays out its output exactly the way our DOM
+    path does, i.e. the way {@link
+    XMLUtil#writeXML(org.w3c.dom.Element, OutputStream)} (the Xerces XMLSerializer, in indenting mode, with
+    the default indent of 4 and line width of 72) prints a DOM tree
+    with the same content. So a file written through this class is
+    byte-for-byte identical to one written by building a DOM tree and
+    serializing it; the difference is that nothing is kept in memory
+    beyond the start tag currently being written and the current
+    line.
+
+    <p>The layout rules reproduced here are those of the Xerces
+    IndentPrinter: a start tag that follows another tag goes on a new
+    line, indented by its depth; attributes are sorted by name (as they
+    are in a DOM NamedNodeMap), and a long list of attributes is
+    wrapped onto the next line; text content is never broken; an
+    element without content is written as an empty-element tag;
+    whitespace-only text is dropped. Escaping of characters in
+    attribute values and text also follows XMLSerializer.
+
+    <p>Only the subset of XMLStreamWriter that BOXER needs (elements
+    without namespaces, attributes and text) is supported; the other
+    methods throw UnsupportedOperationException.
+ */
+public class FormattedXMLStreamWriter implements XMLStreamWriter {
+
+    /** Same as the Xerces OutputFormat defaults in the indenting mode */
+    static final int INDENT=4, LINE_WIDTH=72;
+    static final String LINE_SEPARATOR = "\n";
+
+    private final Writer w;
+    private final String encoding;
+    /** True if the writer has opened the output file itself, and
+	thus has to close it */
+    private boolean ownsOutput = false;
+
+    /** The IndentPrinter's state: the line being assembled, the
+	last unbroken piece of text, the number of pending spaces before
+	it, and the indentation of this line and the next one */
+    private StringBuilder line = new StringBuilder(), text = new StringBuilder();
+    private int spaces=0, thisIndent=0, nextIndent=0;
+
+    /** Per-element state of the serializer */
+    private static class ElementState {
+	final String name;
+	/** No content has been written into the element yet, so its
+	    start tag has not been closed */
+	boolean empty = true;
+	/** The last thing written was a child element */
+	boolean afterElement = false;
+	ElementState(String _name) { name = _name; }
+    }
+
+    /** Open elements, innermost last */
+    private Vector<ElementState> stack = new Vector<ElementState>();
+    /** The state of the document itself (before and after the root) */
+    private ElementState docState = new ElementState(null);
+    private boolean started = false;
+
+    /** The start tag that has been requested, but not printed yet,
+	since its attributes may still be coming */
+    private String pendingName = null;
+    private TreeMap<String,String> pendingAttr = new TreeMap<String,String>();
+    private boolean pendingIsEmpty = false;
+
+    /** Creates a writer for a new file (in UTF-8), which will be
+	closed by {@link #close()} */
+    public FormattedXMLStreamWriter(String fname) throws XMLStreamException {
+	this(openFile(fname), "utf-8");
+	ownsOutput = true;
+    }
+
+    private static Writer openFile(String fname) throws XMLStreamException {
+	try {
+	    return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fname), "UTF-8"), 1<<16);
+	} catch(IOException ex) {
+	    throw new XMLStreamException("Cannot open file " + fname + " for writing: " + ex.getMessage(), ex);
+	}
+    }
+
+    /** @param out The stream to write to; it is not closed by {@link #close()}
+     */
+    public FormattedXMLStreamWriter(OutputStream out) throws IOException {
+	this(new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 1<<16), "utf-8");
+    }
+
+    /** @param _encoding The encoding name to put into the XML declaration.
+     */
+    public FormattedXMLStreamWriter(Writer _w, String _encoding) {
+	w = _w;
+	encoding = _encoding;
+    }
+
+    //--- the IndentPrinter part
+
+    private void printText(String s) {	text.append(s);    }
+    private void printText(char c) {	text.append(c);    }
+
+    private void printSpace() throws IOException {
+	if (text.length() > 0) {
+	    if (thisIndent + line.length() + spaces + text.length() > LINE_WIDTH) {
+		flushLine();
+		w.write(LINE_SEPARATOR);
+	    }
+	    for(; spaces > 0; spaces--) line.append(' ');
+	    line.append(text);
+	    text.setLength(0);
+	}
+	spaces++;
+    }
+
+    private void breakLine() throws IOException {
+	if (text.length() > 0) {
+	    for(; spaces > 0; spaces--) line.append(' ');
+	    line.append(text);
+	    text.setLength(0);
+	}
+	flushLine();
+	w.write(LINE_SEPARATOR);
+    }
+
+    private void flushLine() throws IOException {
+	if (line.length() > 0) {
+	    int indent = thisIndent;
+	    if (2*indent > LINE_WIDTH) indent = LINE_WIDTH/2;
+	    for(; indent>0; indent--) w.write(' ');
+	    thisIndent = nextIndent;
+	    spaces = 0;
+	    w.write(line.toString());
+	    line.setLength(0);
+	}
+    }
+
+    private void indent() {	nextIndent += INDENT;    }
+
+    private void unindent() {
+	nextIndent -= INDENT;
+	if (nextIndent < 0) nextIndent = 0;
+	if (line.length() + spaces + text.length() == 0) thisIndent = nextIndent;
+    }
+
+    //--- the XMLSerializer part
+
+    private ElementState current() {
+	return stack.size()==0 ? docState : stack.lastElement();
+    }
+
+    private void printDeclaration() throws IOException {
+	printText("<?xml version=\"1.0\" encoding=\"" + encoding + "\"?>");
+	breakLine();
+	started = true;
+    }
+
+    /** Prints the start tag requested by the last writeStartElement()
+	call, if it hasn't been printed yet */
+    private void flushPending() throws XMLStreamException {
+	if (pendingName==null) return;
+	try {
+	    ElementState state = current();
+	    if (stack.size()==0) {
+		if (!started) printDeclaration();
+	    } else {
+		if (state.empty) printText('>');
+		if (state.empty || state.afterElement) breakLine();
+	    }
+	    printText('<');
+	    printText(pendingName);
+	    indent();
+	    for(Map.Entry<String,String> a: pendingAttr.entrySet()) {
+		printSpace();
+		printText(a.getKey());
+		printText("=\"");
+		printEscapedAttr(a.getValue());
+		printText('"');
+	    }
+	} catch(IOException ex) {
+	    throw new XMLStreamException(ex);
+	}
+	stack.add(new ElementState(pendingName));
+	pendingName = null;
+	pendingAttr.clear();
+	if (pendingIsEmpty) {
+	    pendingIsEmpty = false;
+	    writeEndElement();
+	}
+    }
+
+    /** Checks for characters that can't appear in XML at all, and
+	returns the code point of a valid surrogate pair, or 0 for a
+	normal character */
+    private static int checkChar(String s, int i) throws XMLStreamException {
+	char ch = s.charAt(i);
+	if (ch >= 0x20 && ch <= 0xD7FF ||
+	    ch == '\n' || ch == '\r' || ch == '\t' ||
+	    ch >= 0xE000 && ch <= 0xFFFD) return 0;
+	if (Character.isHighSurrogate(ch) && i+1 < s.length() &&
+	    Character.isLowSurrogate(s.charAt(i+1))) {
+	    return Character.toCodePoint(ch, s.charAt(i+1));
+	}
+	throw new XMLStreamException("The character '" + ch + "' is an invalid XML character");
+    }
+
+    private void printHex(int ch) {
+	printText("&#x");
+	printText(Integer.toHexString(ch));
+	printText(';');
+    }
+
+    private void printEscapedAttr(String s) throws XMLStreamException {
+	for(int i=0; i<s.length(); i++) {
+	    int cp = checkChar(s, i);
+	    if (cp != 0) {
+		printHex(cp);
+		i++;
+		continue;
+	    }
+	    char ch = s.charAt(i);
+	    if (ch == '\n' || ch == '\r' || ch == '\t') printHex(ch);
+	    else if (ch == '<') printText("&lt;");
+	    else if (ch == '&') printText("&amp;");
+	    else if (ch == '"') printText("&quot;");
+	    else printText(ch);
+	}
+    }
+
+    private void printEscapedText(String s) throws XMLStreamException {
+	for(int i=0; i<s.length(); i++) {
+	    int cp = checkChar(s, i);
+	    if (cp != 0) {
+		printHex(cp);
+		i++;
+		continue;
+	    }
+	    char ch = s.charAt(i);
+	    if (ch == '\r') printHex(ch);
+	    else if (ch == '<') printText("&lt;");
+	    else if (ch == '&') printText("&amp;");
+	    else if (ch == '>') printText("&gt;");
+	    else printText(ch);
+	}
+    }
+
+    //--- XMLStreamWriter methods
+
+    public void writeStartDocument() throws XMLStreamException {
+	if (started || stack.size()>0 || pendingName!=null) throw new XMLStreamException("The document has been started already");
+	try {
+	    printDeclaration();
+	} catch(IOException ex) {
+	    throw new XMLStreamException(ex);
+	}
+    }
+
+    public void writeStartDocument(String version) throws XMLStreamException {
+	writeStartDocument();
+    }
+
+    public void writeStartDocument(String _encoding, String version) throws XMLStreamException {
+	writeStartDocument();
+    }
+
+    public void writeStartElement(String localName) throws XMLStreamException {
+	flushPending();
+	pendingName = localName;
+    }
+
+    public void writeStartElement(String namespaceURI, String localName) throws XMLStreamException {
+	noNamespace(namespaceURI);
+	writeStartElement(localName);
+    }
+
+    public void writeStartElement(String prefix, String localName, String namespaceURI) throws XMLStreamException {
+	noNamespace(namespaceURI);
+	writeStartElement(localName);
+    }
+
+    public void writeEmptyElement(String localName) throws XMLStreamException {
+	writeStartElement(localName);
+	pendingIsEmpty = true;
+    }
+
+    public void writeEmptyElement(String namespaceURI, String localName) throws XMLStreamException {
+	noNamespace(namespaceURI);
+	writeEmptyElement(localName);
+    }
+
+    public void writeEmptyElement(String prefix, String localName, String namespaceURI) throws XMLStreamException {
+	noNamespace(namespaceURI);
+	writeEmptyElement(localName);
+    }
+
+    public void writeAttribute(String localName, String value) throws XMLStreamException {
+	if (pendingName==null) throw new XMLStreamException("Attribute " + localName + " written outside of a start tag");
+	pendingAttr.put(localName, value==null? "" : value);
+    }
+
+    public void writeAttribute(String namespaceURI, String localName, String value) throws XMLStreamException {
+	noNamespace(namespaceURI);
+	writeAttribute(localName, value);
+    }
+
+    public void writeAttribute(String prefix, String namespaceURI, String localName, String value) throws XMLStreamException {
+	noNamespace(namespaceURI);
+	writeAttribute(localName, value);
+    }
+
+    /** Writes a text node. Like a DOM text node, each call is printed
+	or skipped as a whole: text that is empty or consists of
+	whitespace only is not printed at all. */
+    public void writeCharacters(String s) throws XMLStreamException {
+	flushPending();
+	if (stack.size()==0) throw new XMLStreamException("Text outside of the root element");
+	if (s.replace('\n',' ').trim().length()==0) return;
+	ElementState state = current();
+	if (state.empty) {
+	    printText('>');
+	    state.empty = false;
+	}
+	state.afterElement = false;
+	printEscapedText(s);
+    }
+
+    public void writeCharacters(char[] buf, int start, int len) throws XMLStreamException {
+	writeCharacters(new String(buf, start, len));
+    }
+
+    public void writeEndElement() throws XMLStreamException {
+	flushPending();
+	if (stack.size()==0) throw new XMLStreamException("No open element to end");
+	try {
+	    unindent();
+	    ElementState state = stack.remove(stack.size()-1);
+	    if (state.empty) {
+		printText("/>");
+	    } else {
+		if (state.afterElement) breakLine();
+		printText("</");
+		printText(state.name);
+		printText('>');
+	    }
+	    ElementState parent = current();
+	    parent.afterElement = true;
+	    parent.empty = false;
+	    if (stack.size()==0) {
+		if (line.length() > 0 || text.length() > 0) breakLine();
+		w.flush();
+	    }
+	} catch(IOException ex) {
+	    throw new XMLStreamException(ex);
+	}
+    }
+
+    public void writeEndDocument() throws XMLStreamException {
+	while(pendingName!=null || stack.size()>0) writeEndElement();
+    }
+
+    public void flush() throws XMLStreamException {
+	try {
+	    w.flush();
+	} catch(IOException ex) {
+	    throw new XMLStreamException(ex);
+	}
+    }
+
+    /** Flushes the output. Like other StAX writers, does not close
+	the underlying stream, unless the writer has opened the file
+	itself. */
+    public void close() throws XMLStreamException {
+	try {
+	    if (ownsOutput) w.close();
+	    else w.flush();
+	} catch(IOException ex) {
+	    throw new XMLStreamException(ex);
+	}
+    }
+
+    private static void noNamespace(String namespaceURI) {
+	if (namespaceURI!=null && namespaceURI.length()>0) throw new UnsupportedOperationException("Namespaces are not supported by " + FormattedXMLStreamWriter.class.getName());
+    }
+
+    public void writeNamespace(String prefix, String namespaceURI) {
+	noNamespace(namespaceURI);
+    }
+
+    public void writeDefaultNamespace(String namespaceURI) {
+	noNamespace(namespaceURI);
+    }
+
+    public String getPrefix(String uri) { return null; }
+
+    public void setPrefix(String prefix, String uri) {
+	noNamespace(uri);
+    }
+
+    public void setDefaultNamespace(String uri) {
+	noNamespace(uri);
+    }
+
+    public void setNamespaceContext(NamespaceContext context) {
+	throw new UnsupportedOperationException("Namespaces are not supported");
+    }
+
+    public NamespaceContext getNamespaceContext() { return null; }
+
+    public Object getProperty(String name) {
+	throw new IllegalArgumentException("Property " + name + " is not supported");
+    }
+
+    public void writeComment(String data) {
+	throw new UnsupportedOperationException("Comments are not supported");
+    }
+
+    public void writeProcessingInstruction(String target) {
+	throw new UnsupportedOperationException("Processing instructions are not supported");
+    }
+
+    public void writeProcessingInstruction(String target, String data) {
+	throw new UnsupportedOperationException("Processing instructions are not supported");
+    }
+
+    public void writeCData(String data) {
+	throw new UnsupportedOperationException("CDATA sections are not supported");
+    }
+
+    public void writeDTD(String dtd) {
+	throw new UnsupportedOperationException("DTDs are not supported");
+    }
+
+    public void writeEntityRef(String name) {
+	throw new UnsupportedOperationException("Entity references are not supported");
+    }
+
+}
+
+/*
+Copyright 2009-2011, Rutgers University, New Brunswick, NJ.
+
+All Rights Reserved
+
+Permission to use, copy, and modify this software and its documentation for any purpose
+other than its incorporation into a commercial product is hereby granted without fee,
+provided that the above copyright notice appears in all copies and that both that
+copyright notice and this permission notice appear in supporting documentation, and that
+the names of Rutgers University, DIMACS, and the authors not be used in advertising or
+publicity pertaining to distribution of the software without specific, written prior
+permission.
+
+RUTGERS UNIVERSITY, DIMACS, AND THE AUTHORS DISCLAIM ALL WARRANTIES WITH REGARD TO
+THIS SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ANY PARTICULAR PURPOSE. IN NO EVENT SHALL RUTGERS UNIVERSITY, DIMACS, OR THE AUTHORS
+BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER
+RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT,
+NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+PERFORMANCE OF THIS SOFTWARE.
+*/
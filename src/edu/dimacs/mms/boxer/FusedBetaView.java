@@ -0,0 +1,139 @@
+package edu.dimacs.mms.boxer;
+
+/** An auxiliary class for {@link PLRMLearner}: a read-only,
+    feature-major view of the {@link BetaMatrix} objects of all
+    blocks (discriminations) of a learner, concatenated side by
+    side. Row j of the view contains all stored coefficients for
+    feature j, in all discriminations; column positions are global,
+    i.e. the classes of discrimination did occupy columns
+    discOffset[did] through discOffset[did+1]-1.
+
+    <p>This allows one to compute the dot products of a data point
+    with the beta vectors of all classes of all discriminations in a
+    single pass over the point's features, instead of a separate pass
+    (with a separate row lookup) per discrimination. The rows are
+    stored in the CSR format (three flat arrays), and the elements of
+    each row are ordered by discrimination, and then by class, so
+    that each dot product is accumulated in exactly the same order as
+    in {@link DataPoint#dotProducts(BetaMatrix, Discrimination)}.
+
+    <p>The view is a snapshot; {@link #isCurrent(Learner.LearnerBlock[])} tells
+    whether it still reflects the learner's matrices.
+ */
+class FusedBetaView {
+
+    /** The matrices the view has been built from, and their
+	modification counts at that time */
+    private final BetaMatrix[] src;
+    private final int[] srcMod;
+    /** The number of classes in each discrimination */
+    private final int[] claCnt;
+
+    /** Columns of discrimination did are discOffset[did] through discOffset[did+1]-1 */
+    final int[] discOffset;
+
+    /** Elements of row j are at positions rowStart[j] through rowStart[j+1]-1 of col[] and val[] */
+    final int[] rowStart;
+    final int[] col;
+    final double[] val;
+
+    FusedBetaView(Learner.LearnerBlock[] blocks) {
+	final int nd = blocks.length;
+	src = new BetaMatrix[nd];
+	srcMod = new int[nd];
+	claCnt = new int[nd];
+	discOffset = new int[nd+1];
+	int nRows = 0;
+	for(int did=0; did<nd; did++) {
+	    src[did] = ((PLRMLearner.PLRMLearnerBlock)blocks[did]).w;
+	    srcMod[did] = src[did].getModCount();
+	    claCnt[did] = blocks[did].dis.claCount();
+	    discOffset[did+1] = discOffset[did] + claCnt[did];
+	    nRows = Math.max(nRows, src[did].getNRows());
+	}
+
+	rowStart = new int[nRows+1];
+	for(int j=0; j<nRows; j++) {
+	    int len = 0;
+	    for(BetaMatrix w: src) {
+		BetaMatrix.Row v = w.getRow(j);
+		if (v!=null) len += v.size;
+	    }
+	    rowStart[j+1] = rowStart[j] + len;
+	}
+
+	col = new int[rowStart[nRows]];
+	val = new double[rowStart[nRows]];
+	for(int j=0; j<nRows; j++) {
+	    int pos = rowStart[j];
+	    for(int did=0; did<nd; did++) {
+		BetaMatrix.Row v = src[did].getRow(j);
+		if (v==null) continue;
+		for(int h=0; h<v.size; h++) {
+		    col[pos] = discOffset[did] + v.icla[h];
+		    val[pos] = v.value[h];
+		    pos++;
+		}
+	    }
+	}
+    }
+
+    /** Does this view still reflect the current state of the
+	specified blocks' matrices? */
+    boolean isCurrent(Learner.LearnerBlock[] blocks) {
+	if (blocks.length != src.length) return false;
+	for(int did=0; did<src.length; did++) {
+	    BetaMatrix w = ((PLRMLearner.PLRMLearnerBlock)blocks[did]).w;
+	    if (w != src[did] || w.getModCount() != srcMod[did] ||
+		blocks[did].dis.claCount() != claCnt[did]) return false;
+	}
+	return true;
+    }
+
+    /** The number of rows (features) */
+    int getNRows() { return rowStart.length-1; }
+
+    /** The total number of columns (classes in all discriminations) */
+    int width() { return discOffset[src.length]; }
+
+    /** Computes the dot products of p with the beta vectors of all
+	classes, and writes them into out[0:width()-1] */
+    void dotProducts(DataPoint p, double[] out) {
+	java.util.Arrays.fill(out, 0, width(), 0);
+	final int nRows = rowStart.length-1;
+	for(int i=0; i<p.features.length; i++) {
+	    int j = p.features[i];
+	    if (j >= nRows) continue;
+	    final double x = p.values[i];
+	    for(int k=rowStart[j]; k<rowStart[j+1]; k++) {
+		out[col[k]] += x * val[k];
+	    }
+	}
+    }
+
+    long memoryEstimate() {
+	return Sizeof.OBJ + rowStart.length * Sizeof.INT + col.length * (Sizeof.INT + Sizeof.DOUBLE);
+    }
+}
+
+/*
+Copyright 2009-2011, Rutgers University, New Brunswick, NJ.
+
+All Rights Reserved
+
+Permission to use, copy, and modify this software and its documentation for any purpose
+other than its incorporation into a commercial product is hereby granted without fee,
+provided that the above copyright notice appears in all copies and that both that
+copyright notice and this permission notice appear in supporting documentation, and that
+the names of Rutgers University, DIMACS, and the authors not be used in advertising or
+publicity pertaining to distribution of the software without specific, written prior
+permission.
+
+RUTGERS UNIVERSITY, DIMACS, AND THE AUTHORS DISCLAIM ALL WARRANTIES WITH REGARD TO
+THIS SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ANY PARTICULAR PURPOSE. IN NO EVENT SHALL RUTGERS UNIVERSITY, DIMACS, OR THE AUTHORS
+BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER
+RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT,
+NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+PERFORMANCE OF THIS SOFTWARE.
+*/
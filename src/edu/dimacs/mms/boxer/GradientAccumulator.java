@@ -0,0 +1,109 @@
+package edu.dimacs.mms.boxer;
+
+import java.util.Arrays;
+
+/** A reusable sparse accumulator for the gradient of the
+    log-likelihood (or any other sum of per-example updates) with
+    respect to a single discrimination's coefficient matrix. Only rows
+    (features) that have actually been touched since the last {@link
+    #clear()} take any space, apart from one int per feature in the
+    row-to-slot map, so an accumulator can be kept around and reused
+    for each mini-batch without re-allocating anything in the steady
+    state.
+
+    <p>Used by the mini-batch mode of {@link TruncatedGradient}.
+ */
+class GradientAccumulator {
+    /** Number of columns (classes) in each row */
+    private final int r;
+    /** slot[j] is the position of feature j's row in rows[], or -1 */
+    private int slot[] = new int[0];
+    /** Features touched since the last clear(), in the order of the
+     * first touch */
+    private int features[] = new int[16];
+    /** Accumulated values for the touched features */
+    private double rows[][] = new double[16][];
+    /** Number of touched features */
+    private int size = 0;
+
+    GradientAccumulator(int _r) {
+	r = _r;
+    }
+
+    /** Number of columns in each row */
+    int getR() { return r; }
+
+    /** Adds q*a[] to the row for feature j */
+    void addDenseRow(int j, double a[], double q) {
+	double v[] = row(j);
+	for(int k=0; k<r; k++) v[k] += a[k] * q;
+    }
+
+    /** Finds or allocates the row for feature j */
+    private double[] row(int j) {
+	if (j >= slot.length) {
+	    int oldLen = slot.length;
+	    slot = Arrays.copyOf(slot, Math.max(j+1, oldLen + (oldLen>>1)));
+	    Arrays.fill(slot, oldLen, slot.length, -1);
+	}
+	int s = slot[j];
+	if (s < 0) {
+	    if (size == features.length) {
+		features = Arrays.copyOf(features, 2*size);
+		rows = Arrays.copyOf(rows, 2*size);
+	    }
+	    s = slot[j] = size++;
+	    features[s] = j;
+	    if (rows[s] == null) rows[s] = new double[r];
+	}
+	return rows[s];
+    }
+
+    /** Adds the accumulated values to the matrix w, in the order in
+	which the features were first touched. */
+    void addTo(BetaMatrix w) {
+	for(int s=0; s<size; s++) {
+	    w.addDenseRow(features[s], rows[s], 1.0);
+	}
+    }
+
+    /** Sum of squares of all accumulated values */
+    double squareOfNorm() {
+	double sum = 0;
+	for(int s=0; s<size; s++) {
+	    for(double q: rows[s]) sum += q*q;
+	}
+	return sum;
+    }
+
+    /** Zeroes the accumulator, keeping the allocated rows for reuse */
+    void clear() {
+	for(int s=0; s<size; s++) {
+	    slot[features[s]] = -1;
+	    Arrays.fill(rows[s], 0);
+	}
+	size = 0;
+    }
+}
+
+/*
+Copyright 2009-2011, Rutgers University, New Brunswick, NJ.
+
+All Rights Reserved
+
+Permission to use, copy, and modify this software and its documentation for any purpose 
+other than its incorporation into a commercial product is hereby granted without fee, 
+provided that the above copyright notice appears in all copies and that both that 
+copyright notice and this permission notice appear in supporting documentation, and that 
+the names of Rutgers University, DIMACS, and the authors not be used in advertising or 
+publicity pertaining to distribution of the software without specific, written prior 
+permission.
+
+RUTGERS UNIVERSITY, DIMACS, AND THE AUTHORS DISCLAIM ALL WARRANTIES WITH REGARD TO 
+THIS SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ANY PARTICULAR PURPOSE. IN NO EVENT SHALL RUTGERS UNIVERSITY, DIMACS, OR THE AUTHORS 
+BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER 
+RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, 
+NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR 
+PERFORMANCE OF THIS SOFTWARE.
+*/
@@ -0,0 +1,320 @@
+package edu.dimacs.mms.boxer;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.w3c.dom.*;
+
+/** A FeatureDictionary that uses the "hashing trick": feature labels
+    are mapped to a fixed space of 2^b ids by a hash function, rather
+    than being stored. Thus the dictionary, and every model row array
+    indexed by feature id, has a bounded size no matter how many
+    distinct features the input contains, and looking up a feature
+    takes no memory allocation. The price is that different features
+    may share an id (and thus a coefficient).
+
+    <p>Id 0 is still reserved for the dummy (intercept) feature
+    {@link FeatureDictionary#DUMMY_LABEL}; every other label is mapped
+    to an id in the range 1 through 2^b-1, by the 32-bit MurmurHash3 of
+    the label's characters. The hash function and its seed are fixed,
+    so that a saved model can be applied to new data in another run.
+
+    <p>Since no labels are stored, {@link #getLabel(int)} can't
+    normally recover the label of a feature; it returns a synthetic
+    label "@hNNN" instead, which this dictionary will map back to the
+    id NNN (and which can't be confused with a real feature label, as
+    the "@" character is not allowed in those). Optionally, the
+    dictionary can keep a "sampled" reverse map, in which each id
+    remembers the first label that has been mapped to it; getLabel()
+    then returns that label, which keeps {@link #describe()} and model
+    dumps readable. The reverse map has at most one label per id, so
+    the memory use is still bounded.
+
+    <p>Unlike the regular FeatureDictionary, this one does not check
+    the labels' syntax.
+
+    <p>A hashing dictionary is selected for a suite with the
+    <tt>featurehashing</tt> attribute of the <tt>suite</tt> XML
+    element (see {@link Suite#Suite(Element)}), or, as the default for
+    new suites, with the <tt>-DfeatureHashing=b</tt> option. The
+    reverse map is turned on with <tt>-DfeatureHashingLabels=true</tt>.
+ */
+public class HashingFeatureDictionary extends FeatureDictionary {
+
+    /** Default for the reverse map, from the system property
+     * featureHashingLabels */
+    static boolean defaultKeepLabels = new ParseConfig().getOption("featureHashingLabels", false);
+
+    /** Prefix of synthetic labels */
+    static final String ID_PREFIX = "@h";
+
+    private static final int SEED = 0x2c1b3c6d;
+
+    /** The number of bits, b */
+    final int bits;
+    /** 2^b */
+    final int dim;
+    /** The sampled reverse map (id to the first label seen with
+	that id), or null if it's not kept */
+    private final AtomicReferenceArray<String> labels;
+    /** Has any feature other than the dummy been looked up? */
+    private volatile boolean used = false;
+
+    /** Creates a hashing dictionary with 2^bits ids
+	@param keepLabels Keep the "sampled" reverse map?
+     */
+    public HashingFeatureDictionary(int bits, boolean keepLabels) {
+	if (bits < 1 || bits > 30) throw new IllegalArgumentException("The number of bits for feature hashing must be between 1 and 30; " + bits + " given");
+	this.bits = bits;
+	dim = 1 << bits;
+	labels = keepLabels ? new AtomicReferenceArray<String>(dim) : null;
+    }
+
+    /** Creates a hashing dictionary from a <tt>features</tt> element
+	that has been produced by {@link #createFeaturesElement(Document)}.
+     */
+    HashingFeatureDictionary(Element e) throws BoxerXMLException {
+	this(XMLUtil.getAttributeInt(e, XML.HASHING),
+	     XMLUtil.getAttributeBoolean(e, XML.LABELS, false));
+	for(Node n = e.getFirstChild(); n!=null; n = n.getNextSibling()) {
+	    int type = n.getNodeType();
+	    if (type == Node.TEXT_NODE) {
+		// the sample labels
+		for(String label: n.getNodeValue().trim().split("\\s+")) {
+		    if (label.length()>0) getIdAlways(label);
+		}
+	    } else if (type != Node.COMMENT_NODE) {
+		throw new IllegalArgumentException("FeatureDictionary deserializer: encountered unexpected node type " + type);
+	    }
+	}
+    }
+
+    public int getHashingBits() { return bits; }
+
+    /** Does this dictionary keep the sampled reverse map? */
+    boolean keepsLabels() { return labels != null; }
+
+    /** The sample labels of the reverse map, in the order of ids */
+    Vector<String> getSampleLabels() {
+	Vector<String> v = new Vector<String>();
+	if (labels == null) return v;
+	for(int i=0; i<dim; i++) {
+	    String s = labels.get(i);
+	    if (s!=null) v.add(s);
+	}
+	return v;
+    }
+
+    /** Always 2^b */
+    public int getDimension() {
+	return dim;
+    }
+
+    /** True if no feature other than the dummy has been looked up yet */
+    public boolean isPracticallyEmpty() {
+	return !used;
+    }
+
+    public int getId(String label) {
+	return getIdAlways(label);
+    }
+
+    /** Maps a label to its id. This never fails, and never adds
+	anything to the dictionary (other than, perhaps, a sample label
+	to the reverse map). */
+    public int getIdAlways(String label) {
+	if (label==null) throw new IllegalArgumentException("label=null");
+	if (label.startsWith("@")) {
+	    if (label.equals(DUMMY_LABEL)) return 0;
+	    int k = parseSyntheticLabel(label, dim);
+	    if (k >= 0) return k;
+	}
+	int id = toId(hash(label), dim);
+	record(id, label);
+	return id;
+    }
+
+    /** Maps a label to the id that {@link #getIdAlways(String)}
+	would give it in a dictionary with 2^bits ids. This needs no
+	dictionary object, and records nothing; it is used by {@link
+	ScoringModel}, which does not keep the dictionary. */
+    static int labelToId(String label, int bits) {
+	final int dim = 1 << bits;
+	if (label.startsWith("@")) {
+	    if (label.equals(DUMMY_LABEL)) return 0;
+	    int k = parseSyntheticLabel(label, dim);
+	    if (k >= 0) return k;
+	}
+	return toId(hash(label), dim);
+    }
+
+    /** Same as getIdAlways(new String(b, from, to-from)), but does not
+	need to create a String */
+    public int getIdAlways(char[] b, int from, int to) {
+	if (to > from && b[from] == '@') {
+	    return getIdAlways(new String(b, from, to-from));
+	}
+	int id = toId(hash(b, from, to), dim);
+	if (labels != null && labels.get(id) == null) {
+	    record(id, new String(b, from, to-from));
+	} else {
+	    record(id, null);
+	}
+	return id;
+    }
+
+    /** Notes the use of a feature, and puts the label into the
+	reverse map, if that is kept, and the label is the first one
+	for this id */
+    private void record(int id, String label) {
+	if (!used) used = true;
+	if (labels != null && label != null && labels.get(id) == null) {
+	    labels.compareAndSet(id, null, label);
+	}
+    }
+
+    /** Parses "@hNNN", returning NNN, or -1 if the label is not in
+	this format or NNN is out of the range [1, dim-1] */
+    private static int parseSyntheticLabel(String label, int dim) {
+	if (!label.startsWith(ID_PREFIX) || label.length() == ID_PREFIX.length() ||
+	    label.length() > ID_PREFIX.length() + 10) return -1;
+	long k = 0;
+	for(int i=ID_PREFIX.length(); i<label.length(); i++) {
+	    char c = label.charAt(i);
+	    if (c < '0' || c > '9') return -1;
+	    k = k*10 + (c - '0');
+	}
+	return (k > 0 && k < dim) ? (int)k : -1;
+    }
+
+    public String getLabel(int id) {
+	if (id < 0 || id >= dim) {
+	    throw new ArrayIndexOutOfBoundsException("Feature id " + id + " is not in the dictionary, whose dimension is " + dim);
+	}
+	if (isDummy(id)) return DUMMY_LABEL;
+	String s = (labels == null) ? null : labels.get(id);
+	return (s != null) ? s : ID_PREFIX + id;
+    }
+
+    /** Maps a hash value to an id in the range [1, dim-1] */
+    private static int toId(int h, int dim) {
+	return 1 + (int)((h & 0xFFFFFFFFL) % (dim - 1));
+    }
+
+    private static int mixK(int k) {
+	k *= 0xcc9e2d51;
+	k = Integer.rotateLeft(k, 15);
+	k *= 0x1b873593;
+	return k;
+    }
+
+    private static int mixH(int h, int k) {
+	h ^= mixK(k);
+	h = Integer.rotateLeft(h, 13);
+	return h*5 + 0xe6546b64;
+    }
+
+    static int fmix(int h, int len) {
+	h ^= len;
+	h ^= h >>> 16;
+	h *= 0x85ebca6b;
+	h ^= h >>> 13;
+	h *= 0xc2b2ae35;
+	h ^= h >>> 16;
+	return h;
+    }
+
+    /** 32-bit MurmurHash3 of the label's UTF-16 characters, two characters
+	per 32-bit block */
+    static int hash(String s) {
+	int len = s.length();
+	int h = SEED;
+	int i = 0;
+	for(; i+1 < len; i += 2) {
+	    h = mixH(h, s.charAt(i) | (s.charAt(i+1) << 16));
+	}
+	if (i < len) h ^= mixK(s.charAt(i));
+	return fmix(h, 2*len);
+    }
+
+    /** Same as hash(new String(b, from, to-from)) */
+    static int hash(char[] b, int from, int to) {
+	return hash(b, from, to, SEED);
+    }
+
+    /** The same hash function, with a different seed (as used by
+	{@link MappedFeatureDictionary}) */
+    static int hash(char[] b, int from, int to, int seed) {
+	int len = to - from;
+	int h = seed;
+	int i = from;
+	for(; i+1 < to; i += 2) {
+	    h = mixH(h, b[i] | (b[i+1] << 16));
+	}
+	if (i < to) h ^= mixK(b[i]);
+	return fmix(h, 2*len);
+    }
+
+    /** The reverse map, if kept, is the only thing that grows with
+	the number of features */
+    public long memoryEstimate() {
+	long sum = 2*Sizeof.OBJ;
+	if (labels != null) {
+	    sum += Sizeof.OBJ + dim * (long)Sizeof.OBJREF;
+	    for(String s: getSampleLabels()) sum += 2*Sizeof.OBJ + Sizeof.INT + 2*s.length();
+	}
+	return sum;
+    }
+
+    public String describe() {
+	StringBuffer b=new StringBuffer("--- FeatureDictionary (hashing, 2^"+bits+" ids) ---\n");
+	b.append("0 " + DUMMY_LABEL + "\n");
+	if (labels != null) {
+	    for(int i=1; i<dim; i++) {
+		String s = labels.get(i);
+		if (s != null) b.append(i + " " + s + "\n");
+	    }
+	}
+	b.append("------------------------");
+	return b.toString();
+    }
+
+    /** Describes the dictionary as a <tt>features</tt> element with
+	the <tt>hashing</tt> attribute. The element contains the sample
+	labels of the reverse map, if it's kept. */
+    public Element createFeaturesElement(Document xmldoc) {
+	Element e = xmldoc.createElement(XML.FEATURES);
+	e.setAttribute(XML.HASHING, "" + bits);
+	if (labels != null) {
+	    e.setAttribute(XML.LABELS, "true");
+	    StringBuffer b=new StringBuffer();
+	    for(String s: getSampleLabels()) {
+		if (b.length()>0) b.append(" ");
+		b.append(s);
+	    }
+	    e.appendChild(xmldoc.createTextNode(b.toString()));
+	}
+	return e;
+    }
+}
+
+/*
+Copyright 2009, Rutgers University, New Brunswick, NJ.
+
+All Rights Reserved
+
+Permission to use, copy, and modify this software and its documentation for any purpose
+other than its incorporation into a commercial product is hereby granted without fee,
+provided that the above copyright notice appears in all copies and that both that
+copyright notice and this permission notice appear in supporting documentation, and that
+the names of Rutgers University, DIMACS, and the authors not be used in advertising or
+publicity pertaining to distribution of the software without specific, written prior
+permission.
+
+RUTGERS UNIVERSITY, DIMACS, AND THE AUTHORS DISCLAIM ALL WARRANTIES WITH REGARD TO
+THIS SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ANY PARTICULAR PURPOSE. IN NO EVENT SHALL RUTGERS UNIVERSITY, DIMACS, OR THE AUTHORS
+BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER
+RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT,
+NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+PERFORMANCE OF THIS SOFTWARE.
+*/
@@ -0,0 +1,187 @@
+package edu.dimacs.mms.boxer;
+
+import java.util.Arrays;
+
+/** An auxiliary class for {@link NormalizedKnnLearner}: an inverted
+    index (feature id to the list of data points having that
+    feature), which allows one to compute the dot products of a query
+    vector with all stored vectors by only looking at those stored
+    vectors that share at least one feature with the query.
+
+    <p>Stored points are identified by consecutive integer IDs (0, 1,
+    2, ...), in the order in which they have been added. The dummy
+    component of vectors is not indexed, since kNN ignores it.
+*/
+class InvertedIndex {
+
+    /** Postings for each feature: the IDs of the points having
+	this feature (in increasing order), and the values of the
+	feature in those points */
+    private int[][] postIds = new int[0][];
+    private double[][] postVals = new double[0][];
+    private int[] postLen = new int[0];
+
+    /** Norms (without the dummy component) of the stored points */
+    private double[] norms = new double[16];
+    /** Number of stored points */
+    private int n = 0;
+
+    /** IDs of the points with zero norm (in increasing order). They
+	are returned by every search, because their cosine with
+	anything is 0/0, rather than 0 */
+    private int[] zeroNorm = new int[0];
+    private int zeroNormCnt=0;
+
+    /** Reusable per-thread storage for search() */
+    private static class Scratch {
+	double acc[] = new double[0];
+	int stamp[] = new int[0];
+	int gen = 0;
+	int list[] = new int[16];
+    }
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+	protected Scratch initialValue() { return new Scratch(); }
+    };
+
+    /** The result of a search: the IDs of the candidate points (in
+	increasing order), and their dot products with the query,
+	aligned with the IDs */
+    static class Hits {
+	final int ids[];
+	final double dots[];
+	Hits(int n) {
+	    ids = new int[n];
+	    dots = new double[n];
+	}
+    }
+
+    int size() { return n; }
+
+    double getNorm(int id) { return norms[id]; }
+
+    /** Adds a point to the index.
+	@param norm The norm of p without its dummy component
+	@return The ID assigned to the point
+     */
+    int add(DataPoint p, double norm) {
+	int id = n++;
+	if (id >= norms.length) norms = Arrays.copyOf(norms, 2*norms.length);
+	norms[id] = norm;
+	if (norm == 0) {
+	    if (zeroNormCnt >= zeroNorm.length) zeroNorm = Arrays.copyOf(zeroNorm, Math.max(4, 2*zeroNorm.length));
+	    zeroNorm[zeroNormCnt++] = id;
+	}
+
+	for(int h=0; h<p.features.length; h++) {
+	    int j = p.features[h];
+	    if (p.dic.isDummy(j)) continue;
+	    if (j >= postLen.length) {
+		int len = Math.max(j+1, 2*postLen.length);
+		postIds = Arrays.copyOf(postIds, len);
+		postVals = Arrays.copyOf(postVals, len);
+		postLen = Arrays.copyOf(postLen, len);
+	    }
+	    int m = postLen[j];
+	    if (postIds[j]==null) {
+		postIds[j] = new int[4];
+		postVals[j] = new double[4];
+	    } else if (m >= postIds[j].length) {
+		postIds[j] = Arrays.copyOf(postIds[j], 2*m);
+		postVals[j] = Arrays.copyOf(postVals[j], 2*m);
+	    }
+	    postIds[j][m] = id;
+	    postVals[j][m] = p.values[h];
+	    postLen[j] = m+1;
+	}
+	return id;
+    }
+
+    /** Computes the dot products of p (without the dummy component)
+	with all stored points that share at least one feature with
+	it; all other stored points (except for those with zero norm,
+	which are included as well) have the dot product of 0 with
+	p. The products are accumulated in the order of increasing
+	feature id, so they are exactly the same as those computed by
+	{@link DataPoint#dotProductWithoutDummy(DataPoint)}.
+     */
+    Hits search(DataPoint p) {
+	Scratch s = scratch.get();
+	if (s.acc.length < n) {
+	    s.acc = new double[norms.length];
+	    s.stamp = new int[norms.length];
+	    s.gen = 0;
+	}
+	if (++s.gen == 0) { // wrapped around
+	    Arrays.fill(s.stamp, 0);
+	    s.gen = 1;
+	}
+	final int gen = s.gen;
+	int cnt = 0;
+
+	for(int h=0; h<p.features.length; h++) {
+	    int j = p.features[h];
+	    if (j >= postLen.length || postLen[j]==0 || p.dic.isDummy(j)) continue;
+	    final double v = p.values[h];
+	    final int ids[] = postIds[j];
+	    final double vals[] = postVals[j];
+	    for(int m=0; m<postLen[j]; m++) {
+		int id = ids[m];
+		if (s.stamp[id] != gen) {
+		    s.stamp[id] = gen;
+		    s.acc[id] = 0;
+		    if (cnt >= s.list.length) s.list = Arrays.copyOf(s.list, 2*s.list.length);
+		    s.list[cnt++] = id;
+		}
+		s.acc[id] += v * vals[m];
+	    }
+	}
+	for(int z=0; z<zeroNormCnt; z++) {
+	    int id = zeroNorm[z];
+	    if (s.stamp[id] != gen) {
+		s.stamp[id] = gen;
+		s.acc[id] = 0;
+		if (cnt >= s.list.length) s.list = Arrays.copyOf(s.list, 2*s.list.length);
+		s.list[cnt++] = id;
+	    }
+	}
+
+	Arrays.sort(s.list, 0, cnt);
+	Hits hits = new Hits(cnt);
+	for(int i=0; i<cnt; i++) {
+	    int id = s.list[i];
+	    hits.ids[i] = id;
+	    hits.dots[i] = s.acc[id];
+	}
+	return hits;
+    }
+
+    long memoryEstimate() {
+	long sum = Sizeof.OBJ + norms.length * Sizeof.DOUBLE + postLen.length * (3*Sizeof.OBJREF + Sizeof.INT);
+	for(int j=0; j<postLen.length; j++) {
+	    if (postIds[j]!=null) sum += postIds[j].length * (Sizeof.INT + Sizeof.DOUBLE);
+	}
+	return sum;
+    }
+}
+
+/*
+Copyright 2009-2011, Rutgers University, New Brunswick, NJ.
+
+All Rights Reserved
+
+Permission to use, copy, and modify this software and its documentation for any purpose
+other than its incorporation into a commercial product is hereby granted without fee,
+provided that the above copyright notice appears in all copies and that both that
+copyright notice and this permission notice appear in supporting documentation, and that
+the names of Rutgers University, DIMACS, and the authors not be used in advertising or
+publicity pertaining to distribution of the software without specific, written prior
+permission.
+
+RUTGERS UNIVERSITY, DIMACS, AND THE AUTHORS DISCLAIM ALL WARRANTIES WITH REGARD TO
+THIS SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ANY PARTICULAR PURPOSE. IN NO EVENT SHALL RUTGERS UNIVERSITY, DIMACS, OR THE AUTHORS
+BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER
+RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT,
+NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+PERFORMANCE OF THIS SOFTWARE.
+*/
@@ -1,18 +1,27 @@
 package edu.dimacs.mms.boxer;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 import org.apache.xerces.dom.DocumentImpl;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.xml.sax.SAXException;
+import javax.xml.stream.*;
 
 /** The abstract parent of Learning Algorithm classes. Contains the
  * common API, as well as the shared auxiliary methods.
@@ -48,6 +57,9 @@ public abstract class Learner implements Model {
 	/** Discrimination associated with this learner block */
 	Discrimination dis;
 
+	/** The learner this block belongs to */
+	Learner getLearner() { return Learner.this; }
+
 	/** This flag is set to true in the block corresponding to the
 	    fallback discrimination. That block can't be updated other
 	    than in a "default" fashion
@@ -80,6 +92,23 @@ public abstract class Learner implements Model {
 	    for(int i=0; i<q.length; i++) qlog[i] = Math.log(q[i]);
 	    return qlog;
 	}
+
+	/** Same as applyModel(p), but writes the result into
+	    out[off:off+r-1] (where r is the number of classes in the
+	    discrimination). The method in this class simply copies
+	    the array returned by applyModel(p); child classes may
+	    override it to avoid the allocation. */
+	void applyModel( DataPoint p, double[] out, int off) {
+	    double [] q= applyModel(p);
+	    System.arraycopy(q, 0, out, off, q.length);
+	}
+
+	/** Same as applyModelLog(p), but writes the result into
+	    out[off:off+r-1]. See {@link #applyModel(DataPoint, double[], int)} */
+	void applyModelLog( DataPoint p, double[] out, int off) {
+	    double [] q= applyModelLog(p);
+	    System.arraycopy(q, 0, out, off, q.length);
+	}
 	
 	/** This method is called by Learner.absorbExample() method,
 	    in order to ensure that we don't update the learner, and
@@ -139,6 +168,18 @@ public abstract class Learner implements Model {
 	 */
 	abstract public Element saveAsXML(Document xmldoc);
 
+	/** Writes the same "classifier" element as {@link
+	    #saveAsXML(Document)} does, through a StAX writer. The method
+	    in this class simply writes out the DOM element; blocks with
+	    large matrices override it, in order to write them without
+	    building a DOM tree.
+	    @param xmldoc A scratch document, in which DOM nodes for small
+	    parts of the output may be created
+	*/
+	void writeXML(XMLStreamWriter w, Document xmldoc) throws XMLStreamException {
+	    XMLUtil.writeElement(w, saveAsXML(xmldoc));
+	}
+
 	/** Prints a human-readable description of the classifier for
 	  this particular discrimination. The method in the root class
 	  prints nothing; it should be overriden by concrete classes
@@ -170,6 +211,198 @@ public abstract class Learner implements Model {
 	learning algorithm */
     public Suite getSuite() { return suite; }
 
+    /** The number of worker threads used to train the blocks
+	(discriminations) of this learner. With the default value of 1,
+	the blocks are trained one after another, as always; with a
+	larger value, {@link #absorbExample(Vector, int, int)} and
+	{@link #absorbExamplesSD(Vector, int, int)} train different
+	blocks concurrently on a fork-join pool. Since each block only
+	updates its own matrix (and its own Truncation object), while
+	the data points are merely read, the resulting model is
+	identical to the one obtained in the sequential mode. 
+
+	<p>The initial value comes from the Java system property
+	<tt>threads</tt> (e.g. <tt>-Dthreads=8</tt>); a value of 0 means
+	"as many threads as there are processors". Learners that
+	support this option (TG, EG) may have it overridden by the
+	"threads" parameter in the learner's XML description. This is
+	an execution setting, rather than a part of the model, and so
+	it is not written back into saved learner XML files.
+     */
+    int threads = threadsFromProperty();
+
+    /** The pool used in the parallel mode; created on first use */
+    private ForkJoinPool pool = null;
+
+    /** Reads the default thread count from the system property
+     * "threads". */
+    static int threadsFromProperty() {
+	return validThreads(new ParseConfig().getOption(PLRMLearner.PARAM.threads, 1));
+    }
+
+    /** Interprets 0 as "all processors", and rejects negative values */
+    static int validThreads(int n) {
+	if (n<0) throw new IllegalArgumentException("threads=" + n + ". The number of training threads must be a non-negative integer");
+	return (n==0) ? Runtime.getRuntime().availableProcessors() : n;
+    }
+
+    /** Sets the number of threads used in training. See {@link #threads}.
+	@param n Number of threads; 0 means "as many as processors" */
+    synchronized public void setThreads(int n) {
+	threads = validThreads(n);
+	if (pool != null && pool.getParallelism() != threads) {
+	    pool.shutdown();
+	    pool = null;
+	}
+    }
+
+    public int getThreads() { return threads; }
+
+    synchronized private ForkJoinPool getPool() {
+	if (pool==null) pool = new ForkJoinPool(threads);
+	return pool;
+    }
+
+    /** Runs the specified tasks in this learner's pool, and waits
+	for all of them to complete. If we already are in a
+	fork-join pool (e.g., because blocks are being trained
+	concurrently), the tasks are forked right there. Used by
+	learners that employ several threads within a single block.
+    */
+    void invokeAllInPool(final ForkJoinTask<?>[] tasks) {
+	if (ForkJoinTask.inForkJoinPool()) {
+	    ForkJoinTask.invokeAll(tasks);
+	} else {
+	    getPool().invoke(new RecursiveAction() {
+		    protected void compute() {
+			invokeAll(tasks);
+		    }});
+	}
+    }
+
+    /** A piece of work over a contiguous range of indices, for {@link
+	#forEachChunk(int, int, ChunkTask)} */
+    static abstract class ChunkTask {
+	/** Processes indices from&le;i&lt;to
+	    @param chunk The number of this chunk, 0&le;chunk&lt;nChunks */
+	abstract void run(int chunk, int from, int to);
+    }
+
+    /** How many chunks should a loop over n items be split into, so
+	that each thread gets at least minChunk items? Returns 1 if the
+	work is better done sequentially (including the highly verbose
+	mode, where printouts from different threads would be interleaved).
+    */
+    int chunkCount(int n, int minChunk) {
+	if (Suite.verbosity>1) return 1;
+	return Math.max(1, Math.min(threads, n / Math.max(1,minChunk)));
+    }
+
+    /** Splits the range [0:n-1] into nChunks contiguous chunks, and
+	processes them concurrently in the pool (or in the current
+	thread, if nChunks==1). Returns when all are done. Chunk number
+	k covers indices from n*k/nChunks to n*(k+1)/nChunks-1, so
+	that callers that need to combine per-chunk results can do it
+	in the same order each time, independently of scheduling.
+    */
+    void forEachChunk(final int n, final int nChunks, final ChunkTask task) {
+	if (nChunks <= 1) {
+	    task.run(0, 0, n);
+	    return;
+	}
+	RecursiveAction[] workers = new RecursiveAction[nChunks];
+	for(int k=0; k<nChunks; k++) {
+	    final int chunk = k;
+	    final int from = (int)(((long)n*k)/nChunks);
+	    final int to =  (int)(((long)n*(k+1))/nChunks);
+	    workers[k] = new RecursiveAction() {
+		    protected void compute() {
+			task.run(chunk, from, to);
+		    }};
+	}
+	invokeAllInPool(workers);
+    }
+
+    /** Should we train the blocks concurrently? We don't do it when
+	there is nothing to gain from it, and also in the highly verbose
+	mode (Suite.verbosity &gt; 1), since the blocks' step-by-step
+	diagnostic printouts would be interleaved and rendered
+	unreadable. */
+    private boolean useParallelTraining() {
+	return threads > 1 && blocks.length > 1 && Suite.verbosity <= 1;
+    }
+
+    /** A unit of per-block training work, to be carried out for each
+	block by {@link #trainAllBlocks(Vector, int, int, BlockTrainer)} */
+    static abstract class BlockTrainer {
+	abstract void train(LearnerBlock block, Vector<DataPoint> xvec, int i1, int i2) throws BoxerException;
+    }
+
+    /** Trains one block, reporting a BoxerException the same way
+	absorbExample always has */
+    private static void trainBlock(BlockTrainer trainer, LearnerBlock block, Vector<DataPoint> xvec, int i1, int i2) {
+	try {
+	    trainer.train(block, xvec, i1, i2);
+	} catch(BoxerException ex) {
+	    Logging.error(ex.getMessage());
+	    // FIXME
+	    throw new AssertionError(ex.getMessage());
+	}
+    }
+
+    /** Applies the specified training operation to every block,
+	either sequentially or (see {@link #threads}) concurrently.
+
+	<p>In the parallel mode, all discriminations are committed and
+	all blocks validated first, in the sequential order, since
+	committing a discrimination may modify the suite; only then
+	the training tasks are submitted. The tasks are joined in the
+	order of discrimination IDs; if any of them fail, we wait for
+	the rest to finish, and then rethrow the exception from the
+	block with the lowest ID. Thus errors are reported in the same
+	way as in the sequential mode (although blocks with higher IDs
+	may have been trained by then).
+     */
+    private void trainAllBlocks(final Vector<DataPoint> xvec, final int i1, final int i2, final BlockTrainer trainer) {
+	createMissingBlocks();
+	if (!useParallelTraining()) {
+	    for(LearnerBlock block: blocks) {
+		block.dis.ensureCommitted();
+		block.validateExamples(xvec, i1,i2);
+		trainBlock(trainer, block, xvec, i1, i2);
+	    }
+	    return;
+	}
+
+	for(LearnerBlock block: blocks) {
+	    block.dis.ensureCommitted();
+	    block.validateExamples(xvec, i1,i2);
+	}
+
+	ForkJoinPool p = getPool();
+	Vector<ForkJoinTask<?>> tasks = new Vector<ForkJoinTask<?>>(blocks.length);
+	for(final LearnerBlock block: blocks) {
+	    tasks.add( p.submit( new Runnable() {
+		    public void run() {
+			trainBlock(trainer, block, xvec, i1, i2);
+		    }}));
+	}
+
+	Throwable failure = null;
+	for(ForkJoinTask<?> task: tasks) {
+	    try {
+		task.get();
+	    } catch(ExecutionException ex) {
+		if (failure==null) failure = ex.getCause();
+	    } catch(InterruptedException ex) {
+		if (failure==null) failure = ex;
+	    }
+	}
+	if (failure instanceof RuntimeException) throw (RuntimeException)failure;
+	else if (failure instanceof Error) throw (Error)failure;
+	else if (failure != null) throw new AssertionError(failure);
+    }
+
     /** Applies the classifiers to the example p and returns the
 	probabilities of membership in different classes.
 
@@ -220,6 +453,85 @@ public abstract class Learner implements Model {
     }
 
 
+    /** The smallest number of data points per thread in batch scoring */
+    static final int MIN_SCORING_CHUNK = 16;
+
+    /** Batch scoring: applies the model for the discrimination did
+	to the data points v[i0:i1-1], and writes the probabilities
+	into the caller-supplied flat array out. With r being the
+	number of classes in the discrimination, the scores of v[i]
+	(aligned with the discrimination's list of classes, as in
+	{@link #applyModel(DataPoint, int)}) go to out[(i-i0)*r : (i-i0)*r+r-1].
+	The buffer can be reused from one batch to the next.
+
+	<p>The batch is split into contiguous chunks, which are scored
+	concurrently in this learner's pool (see {@link #threads}), 
+	each thread writing only into its own section of out.
+
+	<p>Scoring does not modify the model, so it is safe to call
+	this method (or any other applyModel method) from several
+	threads at once, as long as the learner is not being trained at
+	the same time. Concurrent scoring and training is not
+	supported, and may produce inconsistent scores.
+
+	@param out The output array; its length must be at least (i1-i0)*r
+    */
+    public void applyModel(Vector<DataPoint> v, int i0, int i1, int did, double[] out) throws BoxerException {
+	scoreBatch(v, i0, i1, did, out, false);
+    }
+
+    /** Same as {@link #applyModel(Vector, int, int, int, double[])},
+	but writes logarithms of probabilities into out.
+    */
+    public void applyModelLog(Vector<DataPoint> v, int i0, int i1, int did, double[] out) throws BoxerException {
+	scoreBatch(v, i0, i1, did, out, true);
+    }
+
+    private void scoreBatch(final Vector<DataPoint> v, final int i0, int i1, final int did, final double[] out, final boolean log) {
+	final int r = blocks[did].dis.claCount();
+	final int n = i1-i0;
+	if (n<0) throw new IllegalArgumentException("Invalid range i0=" + i0 + ", i1=" + i1);
+	if (out.length < (long)n*r) throw new IllegalArgumentException("The output buffer must have at least " + ((long)n*r) + " elements; it has " + out.length);
+
+	forEachChunk(n, chunkCount(n, MIN_SCORING_CHUNK), new ChunkTask() {
+		void run(int chunk, int from, int to) {
+		    for(int i=from; i<to; i++) {
+			DataPoint p = v.elementAt(i0+i);
+			if (log) applyModelLog(p, did, out, i*r);
+			else applyModel(p, did, out, i*r);
+		    }
+		}});
+    }
+
+    /** Scores the data points v[i0:i1-1] for all discriminations.
+	@return An array s, where s[i-i0] is the same as 
+	applyModelLog(v.elementAt(i)) would return. That is also how
+	this method is implemented here; child classes (PLRMLearner)
+	may override it with a faster batch computation.
+     */
+    public double [][][] applyModelLog(Vector<DataPoint> v, int i0, int i1) throws BoxerException {
+	double [][][] s = new double[i1-i0][][];
+	for(int i=i0; i<i1; i++) {
+	    s[i-i0] = applyModelLog(v.elementAt(i));
+	}
+	return s;	
+    }
+
+    /** Scores one data point for the discrimination did, writing the
+	probabilities into out[off:off+r-1]. This is used by batch
+	scoring; the method in this class delegates to the learner
+	block, and child classes may override it. It must be
+	thread-safe. */
+    void applyModel(DataPoint p, int did, double[] out, int off) {
+	blocks[did].applyModel(p, out, off);
+    }
+
+    /** Same as {@link #applyModel(DataPoint, int, double[], int)},
+	but writes logarithms of probabilities */
+    void applyModelLog(DataPoint p, int did, double[] out, int off) {
+	blocks[did].applyModelLog(p, out, off);
+    }
+
     /** Estimates probabilities of a given data point's belonging to
 	various classes of a specified discrimination.
 
@@ -248,39 +560,34 @@ public abstract class Learner implements Model {
      This is the main absorbExample() method; other methods of the
      same name are just "syntactic sugar" for it.
 
+     <p>If the learner has been configured to use several {@link
+     #threads}, the blocks for different discriminations are trained
+     concurrently.
+
      @param xvec A vector of data points for training. Only a section of this vector (from i1 thru i2-1) will be used.
 
      // FIXME should throw BoxerException
 
      */
     public void absorbExample(Vector<DataPoint> xvec, int i1, int i2) {
-	createMissingBlocks();
-	for(LearnerBlock block: blocks) {
-	    block.dis.ensureCommitted();
-	    block.validateExamples(xvec, i1,i2);
-	    try {
-		block.absorbExample(xvec, i1, i2);
-	    } catch(BoxerException ex) {
-		Logging.error(ex.getMessage());
-		// FIXME
-		throw new AssertionError(ex.getMessage());
-	    }
-	}
+	trainAllBlocks(xvec, i1, i2, new BlockTrainer() {
+		void train(LearnerBlock block, Vector<DataPoint> xvec, int i1, int i2) throws BoxerException {
+		    block.absorbExample(xvec, i1, i2);
+		}});
     }
 
     /** The SD-emulating act. When the learning rate is very small, the
      results should be similar to absorbExample(...) with the same arguments.
 
      Presently, this method is only supported for TruncatedGradient.
+     Like absorbExample(), it can train blocks concurrently; see {@link #threads}.
     */
     public void absorbExamplesSD(Vector<DataPoint> xvec, int i1, int i2) {
 	if (!(this instanceof TruncatedGradient)) throw new UnsupportedOperationException("Only TG can emulate SD");
-	createMissingBlocks();
-	for(LearnerBlock block: blocks) {
-	    block.dis.ensureCommitted();
-	    block.validateExamples(xvec, i1,i2);
-	    ((  TruncatedGradient.TruncatedGradientLearnerBlock)block).absorbExamplesSD(xvec, i1, i2);
-	}
+	trainAllBlocks(xvec, i1, i2, new BlockTrainer() {
+		void train(LearnerBlock block, Vector<DataPoint> xvec, int i1, int i2) {
+		    ((  TruncatedGradient.TruncatedGradientLearnerBlock)block).absorbExamplesSD(xvec, i1, i2);
+		}});
     }
 
     /** Runs Steepest Descent (a batch method) with adaptive
@@ -319,6 +626,23 @@ public abstract class Learner implements Model {
 	}
     }
 
+    /** Runs a quasi-Newton batch optimizer (L-BFGS, or OWL-QN with
+	Laplace priors) until it converges. This is an alternative to
+	{@link #runAdaptiveSD(Vector, int, int, double, double)}, with
+	the same requirements and the same meaning of the parameters.
+
+	<p>For algorithm details, see {@link QuasiNewton}.
+     */
+    public void runQuasiNewton(Vector<DataPoint> xvec, int i1, int i2, double eps, double gradEps) {
+	if (!(this instanceof TruncatedGradient)) throw new UnsupportedOperationException("Only TG can emulate SD");
+	createMissingBlocks();
+	for(LearnerBlock block: blocks) {
+	    block.dis.ensureCommitted();
+	    block.validateExamples(xvec, i1,i2);
+	    ((  TruncatedGradient.TruncatedGradientLearnerBlock)block).runQuasiNewton(xvec, i1, i2, eps, gradEps);
+	}
+    }
+
     /**  Ensures that a "learner block" (classifier object) is provided
 	 for each discriminations in the current suite. This method is
 	 invoked both from the derived classes' constructors (when it
@@ -349,7 +673,10 @@ public abstract class Learner implements Model {
 
     }
 
-    final void createMissingBlocks() {
+    /** Creates blocks for any discriminations that have been added to
+	the suite since the last call. This is synchronized, since
+	it replaces the blocks[] array. */
+    synchronized final void createMissingBlocks() {
 	
 	int nd = suite.disCnt();
 	if (blocks==null)  throw new AssertionError("CreateAllBlocks() should have been called prior to createMissingBlocks()");
@@ -484,6 +811,16 @@ public abstract class Learner implements Model {
      @see #describe() describe()
      */
     final public void saveAsXML(String fname) {
+	if (XMLUtil.streamingXML) {
+	    try {
+		XMLStreamWriter w = new FormattedXMLStreamWriter(fname);
+		writeXML(w, new DocumentImpl());
+		w.close();
+	    } catch (XMLStreamException ex) {
+		System.err.println("Exception when trying to write XML file " + fname + "\n" + ex);
+	    }
+	    return;
+	}
 	Document xmldoc= new DocumentImpl();
 	Element e = saveAsXML(xmldoc);
 	xmldoc.appendChild(e);
@@ -501,12 +838,8 @@ public abstract class Learner implements Model {
      @see #describe() describe()
      */
     public Element saveAsXML(Document xmldoc) {
-		
-	Element root = xmldoc.createElement( XMLUtil.LEARNER);
-	root.setAttribute(ParseXML.ATTR.NAME_ATTR, getName());
-	root.setAttribute(ParseXML.ATTR.LEARNER.ALGORITHM, algoName());
-	root.setAttribute("version", Version.version);
-	root.appendChild( saveParamsAsXML(xmldoc));
+
+	Element root = createLearnerElement(xmldoc);
 
 	for(LearnerBlock b: blocks)  {
 	    root.appendChild(b.saveAsXML(xmldoc));
@@ -515,6 +848,34 @@ public abstract class Learner implements Model {
     }
 
 
+    /** Writes the same "learner" element as {@link
+	#saveAsXML(Document)} does, through a StAX writer. The method in
+	this class simply writes out the DOM element; {@link PLRMLearner}
+	overrides it, in order to write the matrices without building a
+	DOM tree.
+	@param xmldoc A scratch document, in which DOM nodes for small
+	parts of the output may be created
+     */
+    void writeXML(XMLStreamWriter w, Document xmldoc) throws XMLStreamException {
+	XMLUtil.writeElement(w, saveAsXML(xmldoc));
+    }
+
+    /** Creates a "learner" element with the learner's name,
+	algorithm, and parameters, but without any classifiers (i.e.,
+	without the state of the blocks). This is the part of
+	saveAsXML() that's common for all learners; it is also used in
+	binary snapshots, where the state of the blocks is stored
+	separately.
+     */
+    Element createLearnerElement(Document xmldoc) {
+	Element root = xmldoc.createElement( XMLUtil.LEARNER);
+	root.setAttribute(ParseXML.ATTR.NAME_ATTR, getName());
+	root.setAttribute(ParseXML.ATTR.LEARNER.ALGORITHM, algoName());
+	root.setAttribute("version", Version.version);
+	root.appendChild( saveParamsAsXML(xmldoc));
+	return root;
+    }
+
     /** Names used in XML files */
     static final String PARAMETER = "parameter",
 	PARAMETERS = "parameters",
@@ -714,7 +1075,81 @@ public abstract class Learner implements Model {
     */
     static public Suite deserializeLearnerComplex(File f)
 	throws IOException, SAXException, BoxerXMLException {
-	return deserializeLearnerComplex(ParseXML.readFileToElement(f));
+	if (!XMLUtil.streamingXML) {
+	    return deserializeLearnerComplex(ParseXML.readFileToElement(f));
+	}
+	if (!f.exists()) {
+	    throw new IllegalArgumentException("Input file " + f + " does not exist");
+	}
+	InputStream is = new BufferedInputStream(new FileInputStream(f), 1<<16);
+	try {
+	    return deserializeLearnerComplex(XMLUtil.createXMLReader(is));
+	} catch(XMLStreamException ex) {
+	    throw XMLUtil.toSAXException(ex);
+	} finally {
+	    is.close();
+	}
+    }
+
+    /** The streaming (StAX) counterpart of {@link
+	#deserializeLearnerComplex(Element)}. The suite, the feature
+	dictionary, the priors, and the learners' parameters are small,
+	and are parsed from DOM fragments by the usual code; the
+	matrices of PLRM learners, which make the bulk of the file, are
+	parsed one row at a time, without a DOM tree ever being built
+	for them.
+
+	@param r A reader positioned at the <tt>learnercomplex</tt> element
+    */
+    static public Suite deserializeLearnerComplex(XMLStreamReader r)
+	throws XMLStreamException, SAXException, BoxerXMLException {
+	XMLUtil.assertName(r, XMLUtil.LEARNER_COMPLEX);
+	Document xmldoc = new DocumentImpl();
+	Suite suite  = null;
+	FeatureDictionary dic=null; 
+
+	while(XMLUtil.nextChildElement(r)) {
+	    String name = r.getLocalName();
+	    if (name.equals(XMLUtil.SUITE)) {
+		suite = new Suite(XMLUtil.readElement(r, xmldoc));
+		if (dic !=null)  suite.setDic(dic);
+	    } else if (name.equals( FeatureDictionary.XML.FEATURES)) {
+		if (suite!=null && !suite.getDic().isPracticallyEmpty()) {
+		    throw new BoxerXMLException("The 'features' element appeared too late in the learner complex. "+ suite.getDic().getDimension()+" features had already been initialized in the suite (via a 'priors' element, perhaps");
+		}
+		dic = FeatureDictionary.createFromElement(XMLUtil.readElement(r, xmldoc));
+		if (suite!=null) {
+		    suite.setDic(dic);
+		}
+	    } else if (name.equals( Priors.NODE.PRIORS)) {
+		if (suite==null) {
+		    throw new BoxerXMLException("Cannot read the priors element before the suite element!");
+		}
+		suite.setPriors(new Priors(XMLUtil.readElement(r, xmldoc), suite));
+	    } else if (name.equals(XMLUtil.LEARNERS)) {
+		if (suite==null) throw new AssertionError("Missing suite info");
+		if (suite.getDic()==null) throw new AssertionError("Missing feature dictionary info");
+		suite.deserializeLearners(r, xmldoc);
+	    } else {
+		throw new IllegalArgumentException("Unexpected element " + name + " within element " + XMLUtil.LEARNER_COMPLEX);
+	    }	
+	}
+	return suite;
+    }
+
+    /** Creates a new Suite instance, and a set of Learners using it,
+	from a binary snapshot file that has been created with {@link
+	Suite#serializeLearnerComplexBinary(String)}. The result is the
+	same as that of reading the XML file produced by {@link
+	Suite#serializeLearnerComplex(String)}, but this is much faster
+	for large models.
+
+	@throws IOException If the file can't be read, or is not a
+	valid snapshot file
+    */
+    static public Suite deserializeLearnerComplexBinary(File f)
+	throws IOException, BoxerXMLException {
+	return BinarySnapshot.read(f);
     }
 
   /** Creates an instance of a Learner based on the content of an XML
@@ -770,7 +1205,7 @@ public abstract class Learner implements Model {
 			    throw new BoxerXMLException("The 'features' element appeared too late in the learner complex. "+ suite.getDic().getDimension()+" features had already been initialized in the suite (via a 'priors' element, perhaps");
 		    }
 
-		    dic = new FeatureDictionary((Element)n);
+		    dic = FeatureDictionary.createFromElement((Element)n);
 		    if (suite!=null) {
 			suite.setDic(dic);
 		    }
@@ -805,6 +1240,33 @@ public abstract class Learner implements Model {
 	blocks = b;
     } 
 
+    /** Can this learner have its features renumbered by {@link
+	Suite#compactFeatures()}? The method in the root class returns
+	false; learners that support {@link
+	#renumberFeatures(FeatureRenumMap)} override it.
+     */
+    boolean canRenumberFeatures() {
+	return false;
+    }
+
+    /** Sets used[j]=true for every feature j for which this learner
+	stores any non-trivial information, so that the feature can't
+	be dropped by {@link Suite#compactFeatures()}. The method in
+	the root class (conservatively) marks all features.
+     */
+    void markUsedFeatures(boolean used[]) {
+	Arrays.fill(used, true);
+    }
+
+    /** This is invoked from {@link Suite#compactFeatures()}, before
+	the suite's dictionary is replaced, to move all feature-indexed
+	data to the new feature ids. Learners that return true from
+	{@link #canRenumberFeatures()} must override it.
+     */
+    void renumberFeatures(FeatureRenumMap map) {
+	throw new IllegalArgumentException("Learner " + getName() + " does not support feature renumbering");
+    }
+
     /** "Links" a learner with a particular suite. This method is typically
      invoked from Learner constructors. */
     final void setSuite(Suite _suite) {
@@ -0,0 +1,177 @@
+package edu.dimacs.mms.boxer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Vector;
+
+/** An auxiliary class for {@link NormalizedKnnLearner}: a set of
+    locality-sensitive hash (LSH) tables, based on signed random
+    projections (Charikar, 2002). In each of the L tables, a vector x
+    is assigned the b-bit signature whose k-th bit is the sign of
+    (r_k,x), where r_k is a random vector; two vectors collide (have
+    the same signature) with the probability (1 - theta/pi)^b, where
+    theta is the angle between them. Thus the vectors that collide
+    with a query vector in at least one table are likely to include
+    its nearest neighbors, in terms of the cosine similarity.
+
+    <p>The random vectors are never stored: the component of r_k for
+    feature j (in table t) is +1 or -1, depending on the k-th bit of a
+    64-bit hash of (t,j). The dummy component of vectors is ignored,
+    as it is in kNN.
+
+    <p>Stored points are identified by consecutive integer IDs, like
+    in {@link InvertedIndex}.
+*/
+class LshIndex {
+
+    /** Number of tables (L) and signature bits (b) */
+    final int nTables, nBits;
+
+    /** Buckets of each table: signature to the list of point IDs
+	(in increasing order); the 0-th element of each array
+	is the number of IDs stored in it */
+    private final Vector<HashMap<Integer,int[]>> tables;
+
+    private int n = 0;
+
+    /** Reusable per-thread storage for search() */
+    private static class Scratch {
+	int stamp[] = new int[0];
+	int gen = 0;
+	int list[] = new int[16];
+    }
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+	protected Scratch initialValue() { return new Scratch(); }
+    };
+
+    static final int MAX_BITS = 30;
+
+    LshIndex(int _nTables, int _nBits) {
+	if (_nTables < 1) throw new IllegalArgumentException("The number of LSH tables must be positive");
+	if (_nBits < 1 || _nBits > MAX_BITS) throw new IllegalArgumentException("The number of LSH bits must be in the range 1.." + MAX_BITS);
+	nTables = _nTables;
+	nBits = _nBits;
+	tables = new Vector<HashMap<Integer,int[]>>(nTables);
+	for(int t=0; t<nTables; t++) tables.add(new HashMap<Integer,int[]>());
+    }
+
+    int size() { return n; }
+
+    /** A 64-bit mixing function (the finalizer of MurmurHash3), used
+	to get pseudo-random projection signs for (table, feature) */
+    private static long mix(long z) {
+	z ^= (z >>> 33);
+	z *= 0xff51afd7ed558ccdL;
+	z ^= (z >>> 33);
+	z *= 0xc4ceb9fe1a85ec53L;
+	z ^= (z >>> 33);
+	return z;
+    }
+
+    /** Computes the signatures of p in all tables */
+    private int[] signatures(DataPoint p) {
+	int sig[] = new int[nTables];
+	double proj[] = new double[nBits];
+	for(int t=0; t<nTables; t++) {
+	    Arrays.fill(proj, 0);
+	    for(int h=0; h<p.features.length; h++) {
+		int j = p.features[h];
+		if (p.dic.isDummy(j)) continue;
+		long bits = mix( ((long)t << 32) ^ j ^ 0x9e3779b97f4a7c15L);
+		double v = p.values[h];
+		for(int k=0; k<nBits; k++) {
+		    if (((bits >>> k) & 1) != 0) proj[k] += v;
+		    else proj[k] -= v;
+		}
+	    }
+	    int s = 0;
+	    for(int k=0; k<nBits; k++) {
+		if (proj[k] > 0) s |= (1<<k);
+	    }
+	    sig[t] = s;
+	}
+	return sig;
+    }
+
+    /** Adds a point to all tables.
+	@return The ID assigned to the point
+    */
+    int add(DataPoint p) {
+	int id = n++;
+	int sig[] = signatures(p);
+	for(int t=0; t<nTables; t++) {
+	    Integer key = new Integer(sig[t]);
+	    int[] b = tables.elementAt(t).get(key);
+	    if (b==null) {
+		tables.elementAt(t).put(key, b = new int[4]);
+	    } else if (b[0]+1 >= b.length) {
+		tables.elementAt(t).put(key, b = Arrays.copyOf(b, 2*b.length));
+	    }
+	    b[ ++b[0] ] = id;
+	}
+	return id;
+    }
+
+    /** Returns the IDs (in increasing order) of all stored points
+	that collide with p in at least one table */
+    int[] search(DataPoint p) {
+	Scratch s = scratch.get();
+	if (s.stamp.length < n) {
+	    s.stamp = new int[Math.max(n, 2*s.stamp.length)];
+	    s.gen = 0;
+	}
+	if (++s.gen == 0) {
+	    Arrays.fill(s.stamp, 0);
+	    s.gen = 1;
+	}
+	final int gen = s.gen;
+	int cnt = 0;
+	int sig[] = signatures(p);
+	for(int t=0; t<nTables; t++) {
+	    int[] b = tables.elementAt(t).get(new Integer(sig[t]));
+	    if (b==null) continue;
+	    for(int m=1; m<=b[0]; m++) {
+		int id = b[m];
+		if (id >= s.stamp.length) continue; // added after we've started
+		if (s.stamp[id] != gen) {
+		    s.stamp[id] = gen;
+		    if (cnt >= s.list.length) s.list = Arrays.copyOf(s.list, 2*s.list.length);
+		    s.list[cnt++] = id;
+		}
+	    }
+	}
+	int res[] = Arrays.copyOf(s.list, cnt);
+	Arrays.sort(res);
+	return res;
+    }
+
+    long memoryEstimate() {
+	long sum = Sizeof.OBJ;
+	for(HashMap<Integer,int[]> h: tables) {
+	    for(int[] b: h.values()) sum += 2*Sizeof.OBJ + Sizeof.OBJREF + b.length * Sizeof.INT;
+	}
+	return sum;
+    }
+}
+
+/*
+Copyright 2009-2011, Rutgers University, New Brunswick, NJ.
+
+All Rights Reserved
+
+Permission to use, copy, and modify this software and its documentation for any purpose
+other than its incorporation into a commercial product is hereby granted without fee,
+provided that the above copyright notice appears in all copies and that both that
+copyright notice and this permission notice appear in supporting documentation, and that
+the names of Rutgers University, DIMACS, and the authors not be used in advertising or
+publicity pertaining to distribution of the software without specific, written prior
+permission.
+
+RUTGERS UNIVERSITY, DIMACS, AND THE AUTHORS DISCLAIM ALL WARRANTIES WITH REGARD TO
+THIS SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ANY PARTICULAR PURPOSE. IN NO EVENT SHALL RUTGERS UNIVERSITY, DIMACS, OR THE AUTHORS
+BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER
+RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT,
+NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+PERFORMANCE OF THIS SOFTWARE.
+*/
@@ -0,0 +1,447 @@
+package edu.dimacs.mms.boxer;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import org.w3c.dom.*;
+import org.xml.sax.SAXException;
+
+/** A read-only FeatureDictionary that lives in a memory-mapped
+    file. Such a file is built once (with {@link
+    #write(FeatureDictionary, File)}, or the <tt>write-features:</tt>
+    command of {@link edu.dimacs.mms.borj.Driver}); after that, any
+    number of processes can open it instantly, since nothing is
+    deserialized: the lookups are done directly in the mapped file,
+    and the processes on one host share the same pages of the OS page
+    cache.
+
+    <p>The file contains:
+
+    <ul>
+
+    <li>A minimal perfect hash function of the labels, built with the
+    "hash and displace" method. Each label has two 32-bit hash codes,
+    h1 and h2 (the same MurmurHash3 as in {@link
+    HashingFeatureDictionary}, with two different seeds). The label
+    goes into bucket h1 mod B, B being about n/4. For each bucket, a
+    displacement d has been found so that all labels of that bucket
+    go to distinct free slots, mix(h2+d*c, h1) mod n; the buckets
+    with a single label are stored directly in the slots left over,
+    with a negative displacement. So a lookup takes two hash
+    computations and three array accesses.
+
+    <li>For each slot, the id of the label in it. The lookup compares
+    the label found there against the label being looked up, so
+    labels that are not in the file are recognized as such.
+
+    <li>The labels themselves, in the order of ids, in a byte arena
+    (encoded as in {@link CompactFeatureDictionary}), with the offset
+    of each label.
+
+    </ul>
+
+    <p>The mapped file is never modified. Features that are not in it
+    (e.g. new features in a test set) can still be added to the
+    dictionary: they get ids after those of the mapped features, and
+    are kept on the heap, as in a regular FeatureDictionary.
+
+    <p>A model (learner complex) whose suite uses a mapped dictionary
+    is saved with a reference to the mapped file, i.e. as a
+    <tt>features</tt> element with the <tt>mapped</tt> attribute (the
+    absolute path of the file) and the <tt>count</tt> attribute (the
+    number of features in it), which only lists the features added
+    on top of the mapped ones. Reading such a model maps the same
+    file again. The file size is limited to 2 GB.
+ */
+public class MappedFeatureDictionary extends FeatureDictionary {
+
+    /** The conventional extension of mapped dictionary files */
+    public static final String EXTENSION = ".fdm";
+
+    /** Does the file name indicate a mapped dictionary file? */
+    public static boolean isMappedFile(String fname) {
+	return fname.toLowerCase().endsWith(EXTENSION);
+    }
+
+    /** "BXFM" */
+    private static final int MAGIC = 0x4258464d;
+    private static final int VERSION = 1;
+    /** magic, version, n, B, seed, arena size */
+    private static final int HEADER = 6*4;
+    /** The average number of labels per bucket */
+    private static final int LAMBDA = 4;
+    /** Used to derive the seed of h2 from that of h1 */
+    private static final int SEED2 = 0x5bd1e995;
+    private static final int GOLDEN = 0x9E3779B9;
+
+    /** The mapped file (absolute path) */
+    final File file;
+    /** The number of features in the mapped file */
+    final int n;
+    private final int nb, seed;
+    /** Displacements of buckets */
+    private final IntBuffer disp;
+    /** The id of the label in each slot */
+    private final IntBuffer slots;
+    /** The offset of each label in the arena; n+1 values */
+    private final IntBuffer start;
+    private final ByteBuffer arena;
+
+    /** Ids of the features added to the base class's storage start from 0
+	or 1, depending on whether it has the dummy */
+    private static final int BASE0 = ADD_DUMMY_COMPONENT ? 1 : 0;
+
+    /** Maps a dictionary file written by {@link #write(FeatureDictionary, File)} */
+    public MappedFeatureDictionary(File f) throws IOException {
+	file = f.getAbsoluteFile();
+	RandomAccessFile raf = new RandomAccessFile(f, "r");
+	MappedByteBuffer map;
+	try {
+	    long len = raf.length();
+	    if (len > Integer.MAX_VALUE) throw new IOException("Mapped dictionary file " + f + " is too large (" + len + " bytes)");
+	    // the mapping remains valid after the channel is closed
+	    map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, len);
+	} finally {
+	    raf.close();
+	}
+	if (map.capacity() < HEADER || map.getInt(0) != MAGIC) throw new IOException("File " + f + " is not a mapped feature dictionary");
+	int v = map.getInt(4);
+	if (v != VERSION) throw new IOException("Mapped dictionary file " + f + " has format version " + v + "; this version of BOXER only supports format version " + VERSION);
+	n = map.getInt(8);
+	nb = map.getInt(12);
+	seed = map.getInt(16);
+	int arenaSize = map.getInt(20);
+	long expected = HEADER + 4L*nb + 4L*n + 4L*(n+1) + arenaSize;
+	if (n < 0 || nb < 1 || arenaSize < 0 || expected != map.capacity()) {
+	    throw new IOException("Mapped dictionary file " + f + " is corrupted: its size is " + map.capacity() + " bytes, not " + expected);
+	}
+	int pos = HEADER;
+	disp = section(map, pos, 4*nb).asIntBuffer();
+	pos += 4*nb;
+	slots = section(map, pos, 4*n).asIntBuffer();
+	pos += 4*n;
+	start = section(map, pos, 4*(n+1)).asIntBuffer();
+	pos += 4*(n+1);
+	arena = section(map, pos, arenaSize);
+
+	if (ADD_DUMMY_COMPONENT && (n==0 || !getLabel(0).equals(DUMMY_LABEL))) {
+	    throw new IOException("Mapped dictionary file " + f + " does not start with " + DUMMY_LABEL);
+	}
+    }
+
+    private static ByteBuffer section(ByteBuffer map, int pos, int len) {
+	ByteBuffer b = map.duplicate();
+	b.position(pos);
+	b.limit(pos + len);
+	return b.slice();
+    }
+
+    /** Creates a dictionary from a <tt>features</tt> element with the
+	<tt>mapped</tt> attribute, as written by {@link
+	#createFeaturesElement(Document)}: maps the file it refers to, and
+	adds the features listed in the element.
+     */
+    static MappedFeatureDictionary fromElement(Element e) throws BoxerXMLException {
+	XMLUtil.assertName(e, XML.FEATURES);
+	String path = e.getAttribute(XML.MAPPED);
+	MappedFeatureDictionary dic;
+	try {
+	    dic = new MappedFeatureDictionary(new File(path));
+	} catch(IOException ex) {
+	    throw new BoxerXMLException("Can't open the mapped feature dictionary referred to by the `" + XML.FEATURES + "' element: " + ex.getMessage());
+	}
+	int count = XMLUtil.getAttributeInt(e, XML.COUNT);
+	if (count != dic.n) throw new BoxerXMLException("The mapped feature dictionary " + path + " contains " + dic.n + " features, and not " + count + " as expected; it must have been rebuilt after the model was saved");
+	for(Node x = e.getFirstChild(); x!=null; x = x.getNextSibling()) {
+	    int type = x.getNodeType();
+	    if (type == Node.TEXT_NODE) {
+		for(String label: x.getNodeValue().trim().split("\\s+")) {
+		    if (label.length()==0) continue;
+		    int id = dic.getIdAlways(label);
+		    if (id != dic.getDimension()-1) throw new BoxerXMLException("Feature " + label + " is listed in the `" + XML.FEATURES + "' element, but it's in the mapped dictionary " + path + " already");
+		}
+	    } else if (type != Node.COMMENT_NODE) {
+		throw new IllegalArgumentException("FeatureDictionary deserializer: encountered unexpected node type " + type);
+	    }
+	}
+	return dic;
+    }
+
+    /** The slot to which a label with hash codes h1, h2 goes, with
+	the displacement d */
+    private static int position(int h1, int h2, int d, int n) {
+	return (int)((HashingFeatureDictionary.fmix(h2 + d*GOLDEN, h1) & 0xFFFFFFFFL) % n);
+    }
+
+    private static int bucket(int h1, int nb) {
+	return (int)((h1 & 0xFFFFFFFFL) % nb);
+    }
+
+    /** Looks up a label in the mapped file.
+	@return Its id, or -1 if it's not there */
+    private int find(char[] b, int from, int to) {
+	if (n == 0) return -1;
+	int h1 = HashingFeatureDictionary.hash(b, from, to, seed);
+	int d = disp.get(bucket(h1, nb));
+	int slot = (d < 0) ? -d-1 :
+	    position(h1, HashingFeatureDictionary.hash(b, from, to, seed ^ SEED2), d, n);
+	int id = slots.get(slot);
+	return CompactFeatureDictionary.matches(arena, start.get(id), start.get(id+1), b, from, to) ? id : -1;
+    }
+
+    public int getId(String label) {
+	char[] b = label.toCharArray();
+	int id = find(b, 0, b.length);
+	return (id >= 0) ? id : n + super.getId(label) - BASE0;
+    }
+
+    public int getIdAlways(String label) throws BoxerXMLException {
+	if (label==null) throw new IllegalArgumentException("label=null");
+	char[] b = label.toCharArray();
+	int id = find(b, 0, b.length);
+	return (id >= 0) ? id : n + super.getIdAlways(label) - BASE0;
+    }
+
+    /** Looks up a feature; one that's in the mapped file is found
+	without creating a String */
+    public int getIdAlways(char[] b, int from, int to) throws BoxerXMLException {
+	int id = find(b, from, to);
+	return (id >= 0) ? id : n + super.getIdAlways(new String(b, from, to-from)) - BASE0;
+    }
+
+    public String getLabel(int id) {
+	if (id < 0 || id >= getDimension()) {
+	    throw new ArrayIndexOutOfBoundsException("Feature id " + id + " is not in the dictionary, whose dimension is " + getDimension());
+	}
+	return (id < n) ?
+	    CompactFeatureDictionary.decode(arena, start.get(id), start.get(id+1)) :
+	    super.getLabel(id - n + BASE0);
+    }
+
+    /** The number of features in the mapped file, plus the number of
+	those added since */
+    public int getDimension() {
+	return n + super.getDimension() - BASE0;
+    }
+
+    /** Only the features added on top of the mapped ones take heap memory */
+    public long memoryEstimate() {
+	return Sizeof.OBJ + 5*Sizeof.OBJREF + super.memoryEstimate();
+    }
+
+    /** The size of the mapped file */
+    public long mappedBytes() {
+	return HEADER + 4L*nb + 4L*n + 4L*(n+1) + arena.capacity();
+    }
+
+    /** Describes the dictionary as a <tt>features</tt> element that
+	refers to the mapped file, and lists the features that have been
+	added on top of those in it. */
+    public Element createFeaturesElement(Document xmldoc) {
+	Element e = xmldoc.createElement(XML.FEATURES);
+	e.setAttribute(XML.MAPPED, file.getPath());
+	e.setAttribute(XML.COUNT, "" + n);
+	StringBuffer b=new StringBuffer();
+	for(int i=n; i< getDimension();i++) {
+	    if (b.length()>0) b.append(" ");
+	    b.append(getLabel(i));
+	}
+	if (b.length()>0) e.appendChild(xmldoc.createTextNode(b.toString()));
+	return e;
+    }
+
+    /** Writes a dictionary into a file that can then be mapped with
+	{@link #MappedFeatureDictionary(File)}. The features will have
+	the same ids as in dic.
+
+	@throws IllegalArgumentException If dic is a {@link
+	HashingFeatureDictionary}, which has no labels to write, or if
+	the file would be larger than 2 GB.
+     */
+    public static void write(FeatureDictionary dic, File f) throws IOException {
+	if (dic instanceof HashingFeatureDictionary) {
+	    throw new IllegalArgumentException("A hashing feature dictionary can't be written into a mapped dictionary file");
+	}
+	final int n = dic.getDimension();
+	int nb = Math.max(1, (n + LAMBDA - 1)/LAMBDA);
+
+	// the hash codes, and the label offsets
+	int[] h1 = new int[n], h2 = new int[n], start = new int[n+1];
+	int[] disp = null, slots = null;
+	int seed = 0;
+	for(int attempt=0; disp==null; attempt++) {
+	    if (attempt == 16) throw new IllegalArgumentException("Failed to build a perfect hash function for " + n + " features");
+	    seed = 0x2545F491 + attempt*GOLDEN;
+	    long p = 0;
+	    for(int i=0; i<n; i++) {
+		char[] b = dic.getLabel(i).toCharArray();
+		h1[i] = HashingFeatureDictionary.hash(b, 0, b.length, seed);
+		h2[i] = HashingFeatureDictionary.hash(b, 0, b.length, seed ^ SEED2);
+		if (attempt==0) {
+		    start[i] = (int)p;
+		    p += encodedLength(b);
+		    if (HEADER + 4L*nb + 8L*n + 4 + p > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("The dictionary is too large to be written into a mapped dictionary file");
+		    }
+		}
+	    }
+	    if (attempt==0) start[n] = (int)p;
+	    slots = new int[n];
+	    disp = buildHash(h1, h2, nb, slots);
+	}
+
+	BinarySnapshot.Out out = new BinarySnapshot.Out(f);
+	try {
+	    out.writeInt(MAGIC);
+	    out.writeInt(VERSION);
+	    out.writeInt(n);
+	    out.writeInt(nb);
+	    out.writeInt(seed);
+	    out.writeInt(start[n]);
+	    out.writeInts(disp, 0, nb);
+	    out.writeInts(slots, 0, n);
+	    out.writeInts(start, 0, n+1);
+	    byte[] buf = new byte[256];
+	    for(int i=0; i<n; i++) {
+		char[] b = dic.getLabel(i).toCharArray();
+		if (buf.length < 3*b.length) buf = new byte[3*b.length];
+		int len = CompactFeatureDictionary.encode(b, 0, b.length, ByteBuffer.wrap(buf), 0);
+		out.writeBytes(buf, 0, len);
+	    }
+	} finally {
+	    out.close();
+	}
+    }
+
+    /** The number of bytes that the chars will take in the arena */
+    private static int encodedLength(char[] b) {
+	int len = 0;
+	for(char c: b) len += (c < 0x80) ? 1 : (c < 0x800) ? 2 : 3;
+	return len;
+    }
+
+    /** Builds the perfect hash function for the labels with the
+	specified hash codes.
+	@param slots Output: the id of the label in each slot
+	@return The displacements of the buckets, or null if the
+	function could not be built with these hash codes (then, another
+	seed should be tried)
+     */
+    private static int[] buildHash(int[] h1, int[] h2, int nb, int[] slots) {
+	final int n = h1.length;
+	final int MAX_D = 1 << 20;
+	// group the labels by bucket
+	int[] bstart = new int[nb+1];
+	for(int i=0; i<n; i++) bstart[bucket(h1[i], nb)+1]++;
+	int maxSize = 0;
+	for(int k=0; k<nb; k++) {
+	    maxSize = Math.max(maxSize, bstart[k+1]);
+	    bstart[k+1] += bstart[k];
+	}
+	int[] members = new int[n], fill = new int[nb];
+	for(int i=0; i<n; i++) {
+	    int k = bucket(h1[i], nb);
+	    members[bstart[k] + fill[k]++] = i;
+	}
+	// buckets, largest first
+	int[] bySize = new int[maxSize+2];
+	for(int k=0; k<nb; k++) bySize[maxSize - (bstart[k+1]-bstart[k]) + 1]++;
+	for(int s=0; s<=maxSize; s++) bySize[s+1] += bySize[s];
+	int[] order = new int[nb];
+	for(int k=0; k<nb; k++) order[bySize[maxSize - (bstart[k+1]-bstart[k])]++] = k;
+
+	int[] disp = new int[nb];
+	BitSet taken = new BitSet(n);
+	int[] pos = new int[maxSize];
+	int j = 0;
+	for(; j<nb; j++) {
+	    int k = order[j];
+	    int size = bstart[k+1]-bstart[k];
+	    if (size <= 1) break;
+	    int d = 0;
+	    for(; d<MAX_D; d++) {
+		boolean ok = true;
+		for(int m=0; m<size && ok; m++) {
+		    int i = members[bstart[k]+m];
+		    pos[m] = position(h1[i], h2[i], d, n);
+		    if (taken.get(pos[m])) ok = false;
+		    for(int q=0; q<m && ok; q++) if (pos[q]==pos[m]) ok = false;
+		}
+		if (ok) break;
+	    }
+	    if (d == MAX_D) return null;
+	    disp[k] = d;
+	    for(int m=0; m<size; m++) {
+		taken.set(pos[m]);
+		slots[pos[m]] = members[bstart[k]+m];
+	    }
+	}
+	// single-label buckets go into the remaining free slots
+	int free = 0;
+	for(; j<nb; j++) {
+	    int k = order[j];
+	    if (bstart[k+1]==bstart[k]) break;
+	    free = taken.nextClearBit(free);
+	    disp[k] = -free-1;
+	    taken.set(free);
+	    slots[free] = members[bstart[k]];
+	}
+	return disp;
+    }
+
+    /** Builds a mapped dictionary file from the feature dictionary
+	found in an XML file: a <tt>features</tt> element, or a
+	learner complex, or a binary snapshot of one.
+
+	<p>Usage: java edu.dimacs.mms.boxer.MappedFeatureDictionary input.xml|input.bin output.fdm
+     */
+    public static void main(String[] argv) throws IOException, SAXException, BoxerXMLException {
+	if (argv.length != 2) {
+	    throw new IllegalArgumentException("Usage: java MappedFeatureDictionary input.xml|input.bin output" + EXTENSION);
+	}
+	File in = new File(argv[0]), out = new File(argv[1]);
+	FeatureDictionary dic;
+	if (BinarySnapshot.isSnapshotFile(argv[0])) {
+	    dic = Learner.deserializeLearnerComplexBinary(in).getDic();
+	} else {
+	    Element e = ParseXML.readFileToElement(in);
+	    dic = e.getTagName().equals(XML.FEATURES) ?
+		FeatureDictionary.createFromElement(e) :
+		Learner.deserializeLearnerComplex(e).getDic();
+	}
+	long t0 = System.currentTimeMillis();
+	write(dic, out);
+	long t1 = System.currentTimeMillis();
+	MappedFeatureDictionary m = new MappedFeatureDictionary(out);
+	for(int i=0; i<dic.getDimension(); i++) {
+	    String label = dic.getLabel(i);
+	    if (m.getId(label) != i || !m.getLabel(i).equals(label)) {
+		throw new AssertionError("Feature " + label + " (id=" + i + ") is not found correctly in the mapped dictionary");
+	    }
+	}
+	System.out.println("Wrote " + m.n + " features into " + out + " (" + m.mappedBytes() + " bytes) in " + (t1-t0) + " ms");
+    }
+}
+
+/*
+Copyright 2009, Rutgers University, New Brunswick, NJ.
+
+All Rights Reserved
+
+Permission to use, copy, and modify this software and its documentation for any purpose
+other than its incorporation into a commercial product is hereby granted without fee,
+provided that the above copyright notice appears in all copies and that both that
+copyright notice and this permission notice appear in supporting documentation, and that
+the names of Rutgers University, DIMACS, and the authors not be used in advertising or
+publicity pertaining to distribution of the software without specific, written prior
+permission.
+
+RUTGERS UNIVERSITY, DIMACS, AND THE AUTHORS DISCLAIM ALL WARRANTIES WITH REGARD TO
+THIS SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ANY PARTICULAR PURPOSE. IN NO EVENT SHALL RUTGERS UNIVERSITY, DIMACS, OR THE AUTHORS
+BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER
+RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT,
+NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+PERFORMANCE OF THIS SOFTWARE.
+*/
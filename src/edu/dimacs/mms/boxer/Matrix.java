@@ -5,6 +5,7 @@ import java.io.*;
 // for XML generation
 import org.w3c.dom.*;
 import org.apache.xerces.dom.DocumentImpl;
+import javax.xml.stream.*;
 
 /** This is a common abstract parent of our matrix classes (such as
   DenseMatrix and BetaMatrix). It declares some methods that all BOXER
@@ -36,6 +37,20 @@ public abstract class Matrix implements Measurable {
      */ 
     abstract void deleteDiscrimination( RenumMap map); 
 
+    /** Sets used[j]=true for every feature j whose row in this matrix
+	contains a non-zero element. This is called (indirectly) from
+	{@link edu.dimacs.mms.boxer.Suite#compactFeatures()}, to find
+	the features that can be dropped.
+     */
+    abstract void markUsedFeatures(boolean used[]);
+
+    /** Moves the rows of this matrix to the positions given by the
+	new feature ids, and drops the rows of the dropped features.
+	This is called (indirectly) from {@link
+	edu.dimacs.mms.boxer.Suite#compactFeatures()}.
+     */
+    abstract void renumberFeatures(FeatureRenumMap map);
+
     void describe(PrintWriter out, FeatureDictionary dic ) {
 	describeMatrix(toArray(), dic, out);
     }
@@ -81,6 +96,16 @@ public abstract class Matrix implements Measurable {
 
     /** Saves the matrix into a separate XML file. */
     final public void saveAsXML(String fname, Discrimination dis, FeatureDictionary dic, String name)  {
+	if (XMLUtil.streamingXML) {
+	    try {
+		XMLStreamWriter w = new FormattedXMLStreamWriter(fname);
+		writeXML(w, dis, dic, name);
+		w.close();
+	    } catch (XMLStreamException ex) {
+		System.err.println("Exception when trying to write XML file " + fname + "\n" + ex);
+	    }
+	    return;
+	}
 	Document xmldoc= new DocumentImpl();
 	Element e = saveAsXML(xmldoc, dis, dic, name);
 	xmldoc.appendChild(e);
@@ -92,6 +117,45 @@ public abstract class Matrix implements Measurable {
 	return createMatrixElement(xmldoc, dis, dic, name, toArray());
     }
 
+    /** Writes the matrix as a "matrix" element through a StAX writer.
+	The result is the same as that of serializing the element
+	created by {@link #saveAsXML(Document, Discrimination,
+	FeatureDictionary, String)}, but no DOM tree is built. The
+	method in this class goes through {@link #toArray()}; {@link
+	BetaMatrix} overrides it to write its rows straight from its own
+	storage.
+     */
+    void writeXML(XMLStreamWriter w, Discrimination dis, FeatureDictionary dic, String name) throws XMLStreamException {
+	w.writeStartElement(XMLUtil.MATRIX);
+	w.writeAttribute("name", name);
+	double [][] v = toArray();
+	StringBuilder b = new StringBuilder();
+	for(int i=0;i<v.length; i++) {
+	    if (v[i] == null) continue; 
+	    b.setLength(0);
+	    for(int j=0; j<v[i].length; j++) {
+		if (v[i][j] != 0) appendPair(b, dis, j, v[i][j]);
+	    }
+	    if (b.length()>0) writeRow(w, dic.getLabel(i), b);
+	}
+	w.writeEndElement();
+    }
+
+    /** Appends a class:value pair to the text of a matrix row
+	element, in the same format as {@link #createMatrixElement} uses */
+    static void appendPair(StringBuilder b, Discrimination dis, int j, double x) {
+	if (b.length()>0) b.append(' ');
+	b.append(dis.classes.elementAt(j).name).append(BXRReader.PAIR_SEPARATOR_STRING).append(x);
+    }
+
+    /** Writes a matrix row element through a StAX writer */
+    static void writeRow(XMLStreamWriter w, String feature, StringBuilder b) throws XMLStreamException {
+	w.writeStartElement(XMLUtil.ROW);
+	w.writeAttribute(XMLUtil.FEATURE, feature);
+	w.writeCharacters(b.toString());
+	w.writeEndElement();
+    }
+
     /** Creates an XML element describing a sparse matrix. Skips empty
 	rows to save space	
     */
@@ -148,18 +212,8 @@ public abstract class Matrix implements Measurable {
 		Element re = (Element)x;
 		String feature = re.getAttribute(XMLUtil.FEATURE);
 		if (!XMLUtil.nonempty(feature)) throw new IllegalArgumentException("Missing feature attribute in a matrix row element!");
-		String[] pairs = re.getFirstChild().getNodeValue().split("\\s+");
-		Vector<BetaMatrix.Coef> v = new Vector<BetaMatrix.Coef>(pairs.length);
-		for(String p: pairs) {
-		    if (p.length()==0) continue;
-		    String q[] = p.split(BXRReader.PAIR_SEPARATOR_REGEX);
-		    if (q.length!=2) throw new IllegalArgumentException("While reading matrix row element for feature '"+feature+"', could not parse element '"+p+"' as class"+BXRReader.PAIR_SEPARATOR_STRING+"value!");
-		    Discrimination.Cla c = dis.getCla(q[0]);
-		    if (c==null)  throw new IllegalArgumentException("While reading matrix row element for feature '"+feature+"', found previously undeclared class name: " + q[0]);
-		    elCnt++;
-		    v.add(new BetaMatrix.Coef(c.getPos(),
-					      Double.parseDouble(q[1])));
-		}
+		Vector<BetaMatrix.Coef> v = parseRow(feature, re.getFirstChild().getNodeValue(), dis);
+		elCnt += v.size();
 		int fid = canAddFeatures? suite.getDic().getIdAlways(feature) :
 		    suite.getDic().getId(feature);
 		setElements(fid, v);
@@ -168,6 +222,50 @@ public abstract class Matrix implements Measurable {
 	if (Suite.verbosity>1) Logging.info("Read " + rowCnt + " rows, "+elCnt + " elements for matrix "+ matName + " for discrimination " + dis);
     }
 
+    /** The streaming (StAX) counterpart of {@link
+	#readMatrix(Element, Suite, Discrimination, boolean)}: parses
+	the "matrix" element at which the reader is positioned, one row
+	at a time, inserting the values into this matrix. When the
+	method returns, the reader is positioned at the matrix's end
+	tag.
+     */
+    void readMatrix(XMLStreamReader r, Suite suite, Discrimination dis, boolean canAddFeatures) throws BoxerXMLException, XMLStreamException {
+	String matName = XMLUtil.getAttribute(r, ParseXML.ATTR.NAME_ATTR);
+	int rowCnt=0, elCnt=0;
+	while(XMLUtil.nextChildElement(r)) {
+	    if (!r.getLocalName().equals(XMLUtil.ROW)) {
+		XMLUtil.skipElement(r);
+		continue;
+	    }
+	    rowCnt++;
+	    String feature = XMLUtil.getAttribute(r, XMLUtil.FEATURE);
+	    if (!XMLUtil.nonempty(feature)) throw new IllegalArgumentException("Missing feature attribute in a matrix row element!");
+	    Vector<BetaMatrix.Coef> v = parseRow(feature, r.getElementText(), dis);
+	    elCnt += v.size();
+	    int fid = canAddFeatures? suite.getDic().getIdAlways(feature) :
+		suite.getDic().getId(feature);
+	    setElements(fid, v);
+	}
+	if (Suite.verbosity>1) Logging.info("Read " + rowCnt + " rows, "+elCnt + " elements for matrix "+ matName + " for discrimination " + dis);
+    }
+
+    /** Parses the text of a matrix row element, i.e. a list of
+	class:value pairs */
+    private static Vector<BetaMatrix.Coef> parseRow(String feature, String text, Discrimination dis) {
+	String[] pairs = text.split("\\s+");
+	Vector<BetaMatrix.Coef> v = new Vector<BetaMatrix.Coef>(pairs.length);
+	for(String p: pairs) {
+	    if (p.length()==0) continue;
+	    String q[] = p.split(BXRReader.PAIR_SEPARATOR_REGEX);
+	    if (q.length!=2) throw new IllegalArgumentException("While reading matrix row element for feature '"+feature+"', could not parse element '"+p+"' as class"+BXRReader.PAIR_SEPARATOR_STRING+"value!");
+	    Discrimination.Cla c = dis.getCla(q[0]);
+	    if (c==null)  throw new IllegalArgumentException("While reading matrix row element for feature '"+feature+"', found previously undeclared class name: " + q[0]);
+	    v.add(new BetaMatrix.Coef(c.getPos(),
+				      Double.parseDouble(q[1])));
+	}
+	return v;
+    }
+
     /** Parses a "matrix" XML element, creating a new BetaMatrix out
 	of it. The names of classes and features are matched against
 	the specified discrimination, and the feature dictionary of
@@ -179,6 +277,20 @@ public abstract class Matrix implements Measurable {
 	return w;
     }
 
+    /** Writes the content of the matrix into a binary snapshot. Unlike
+	{@link #saveAsXML(Document, Discrimination, FeatureDictionary, String)},
+	this stores rows by feature ID, and columns by position rather than
+	by class name, so the data can only be read back in the context
+	of the same suite and feature dictionary. */
+    abstract void writeBinary(BinarySnapshot.Out out) throws IOException;
+
+    /** Reads the content written by {@link #writeBinary(BinarySnapshot.Out)},
+	replacing the current content of this matrix.
+	@param d The number of features in the dictionary
+	@param r The number of classes in the discrimination
+     */
+    abstract void readBinary(BinarySnapshot.In in, int d, int r) throws IOException;
+
     /** Computes the square of the vector 2-norm of this matrix, i.e.
 	the sum of squares of all matrix elements. 
      */
@@ -13,6 +13,18 @@ import org.xml.sax.SAXException;
     normalized. Thus, |a-b|^2 = |a|^2 + |b|^2 - 2(a,b) = 2 (1-(a,b)),
     and ordering vectors in the increasing-distance order is 
     equivalent to ordering them in decreasing-cosine sim order.
+
+    <p>The training points are kept in an {@link InvertedIndex}, so
+    that scoring a data point only involves looking at the training
+    points that share at least one (non-dummy) feature with it; the
+    others have cos=0, and would not be counted as neighbors anyway.
+
+    <p>Optionally (if the parameter lshTables is set to a positive
+    value), the training points are also hashed into signed random
+    projection tables ({@link LshIndex}), and only those colliding
+    with the query point are examined. This approximate search may
+    miss some neighbors; {@link #reportLshRecall(Vector,int,int)}
+    measures how many.
  */
 public class NormalizedKnnLearner extends Learner {
 
@@ -84,7 +96,17 @@ public class NormalizedKnnLearner extends Learner {
 
     }; // End of class KnnLearnerBlock 
 
+    /** Unique training vectors, in the order of their first
+	appearance. The position of each one in this vector is its
+	ID in {@link #index}. */
     private Vector<DataPoint> points=new  Vector<DataPoint>();
+    /** PointInfo for each element of points[] */
+    private Vector<PointInfo> infos=new  Vector<PointInfo>();
+    /** Feature-to-points index for points[] */
+    private InvertedIndex index = new InvertedIndex();
+    /** Approximate-search tables for points[]; null unless
+	{@link #lshTables} is positive */
+    private LshIndex lsh = null;
     //private Vector<Double> norms = new Vector<Double>();
 
     /** This is the <em>k</em> in  <em>k</em>-NN.
@@ -94,12 +116,150 @@ public class NormalizedKnnLearner extends Learner {
      */
     double mincos=0;
 
+    /** If positive, neighbors are searched for approximately, among
+	the training points that collide with the query point in (at
+	least one of) this many LSH tables. If 0, the exact search is
+	done. */
+    int lshTables=0;
+    /** Number of bits in the signature of each LSH table. More bits
+	mean smaller buckets, i.e. faster, but less accurate, search.
+	The default, 8, gave the best speed/recall trade-off in our
+	tests (with 32 to 64 tables); with 16 bits, hardly any of the
+	true neighbors were found */
+    int lshBits=8;
+
     enum Weighting {
 	EQUAL, INVERSE_DISTANCE;
     };
     final Weighting weighting = Weighting.INVERSE_DISTANCE;
 
 
+    /** Finds the nearest neighbors of p among the training points,
+	and leaves them, sorted, in toplist.
+	@param approximate If true, only the points colliding with p
+	in the LSH tables are examined; otherwise, all points sharing
+	features with p are
+	@param toplist A TopValues object (for this learner's k and
+	mincos), which will be cleared first
+     */
+    void findNeighbors(DataPoint p, boolean approximate, TopValues toplist) {
+	toplist.clear();
+
+	double pNorm = Math.sqrt(p.normSquareWithoutDummy());
+	if (pNorm == 0) {
+	    // Every cos is 0/0 here; the index would not help, so just
+	    // do what the math says
+	    for(int id=0; id<points.size(); id++) {
+		DataPoint q=points.elementAt(id);
+		double cos = p.dotProductWithoutDummy(q) / (pNorm * index.getNorm(id));
+		toplist.offer(id, infos.elementAt(id).multiplicity, cos);
+	    }
+	} else if (approximate) {
+	    // Re-rank the LSH candidates with the exact cosine. The
+	    // query is scattered into a dense array, so that each dot
+	    // product is one pass over the candidate's features (in
+	    // increasing order, same as in dotProductWithoutDummy)
+	    int[] ids = lsh.search(p);
+	    double[] dense = scatter(p);
+	    for(int id: ids) {
+		DataPoint q=points.elementAt(id);
+		double dot = 0;
+		for(int h=0; h<q.features.length; h++) {
+		    int j = q.features[h];
+		    if (j < dense.length) dot += dense[j] * q.values[h];
+		}
+		double cos = dot / (pNorm * index.getNorm(id));
+		toplist.offer(id, infos.elementAt(id).multiplicity, cos);
+	    }
+	    for(int j: p.features) {
+		if (j < dense.length) dense[j] = 0;
+	    }
+	} else {
+	    // Only the points sharing features with p (or having zero
+	    // norm) can have cos other than 0, and thus can be offered
+	    // with cos > mincos
+	    InvertedIndex.Hits hits = index.search(p);
+	    for(int h=0; h<hits.ids.length; h++) {
+		int id = hits.ids[h];
+		double cos = hits.dots[h] / (pNorm * index.getNorm(id));
+		toplist.offer(id, infos.elementAt(id).multiplicity, cos);
+	    }
+	}
+	toplist.sort();
+    }
+
+    /** Per-thread neighbor list for applyModel(), reused across queries */
+    private final ThreadLocal<TopValues> toplists = new ThreadLocal<TopValues>() {
+	protected TopValues initialValue() { return new TopValues(neighborhoodSize, mincos); }
+    };
+
+    /** Per-thread dense copy of the query vector, used in re-ranking
+	LSH candidates. Kept all-zero between uses. */
+    private final ThreadLocal<double[]> denseQuery = new ThreadLocal<double[]>() {
+	protected double[] initialValue() { return new double[0]; }
+    };
+
+    /** Writes the non-dummy components of p into the per-thread dense
+	array (growing it if needed), and returns that array */
+    private double[] scatter(DataPoint p) {
+	double[] dense = denseQuery.get();
+	int maxId = -1;
+	for(int j: p.features) maxId = Math.max(maxId, j);
+	if (maxId >= dense.length) {
+	    dense = new double[Math.max(maxId+1, 2*dense.length)];
+	    denseQuery.set(dense);
+	}
+	for(int h=0; h<p.features.length; h++) {
+	    int j = p.features[h];
+	    if (!p.dic.isDummy(j)) dense[j] = p.values[h];
+	}
+	return dense;
+    }
+
+    /** Compares the approximate (LSH) neighbor search with the exact
+	one on the points v[i0:i1-1], and prints the recall@k (the
+	fraction of the exact neighbors that have been found by the
+	approximate search as well), along with the query throughput of
+	both searches. Only neighbor search is timed, not the score
+	computation.
+
+	@return The recall@k
+     */
+    public double reportLshRecall(Vector<DataPoint> v, int i0, int i1) {
+	if (lsh==null) throw new IllegalArgumentException("LSH is not enabled in learner " + getName() + "; set " + PARAM.LSH_TABLES + " to a positive value");
+	TopValues[] exact = new TopValues[i1-i0];
+	TopValues[] approx = new TopValues[i1-i0];
+	for(int i=0; i<exact.length; i++) {
+	    exact[i] = new TopValues(neighborhoodSize, mincos);
+	    approx[i] = new TopValues(neighborhoodSize, mincos);
+	}
+	long t0 = System.currentTimeMillis();
+	for(int i=i0; i<i1; i++) findNeighbors(v.elementAt(i), false, exact[i-i0]);
+	long t1 = System.currentTimeMillis();
+	for(int i=i0; i<i1; i++) findNeighbors(v.elementAt(i), true, approx[i-i0]);
+	long t2 = System.currentTimeMillis();
+
+	long found=0, total=0;
+	for(int i=0; i<exact.length; i++) {
+	    HashSet<Integer> a = new HashSet<Integer>();
+	    for(int h=0; h<approx[i].size(); h++) a.add(approx[i].getId(h));
+	    for(int h=0; h<exact[i].size(); h++) {
+		total++;
+		if (a.contains(exact[i].getId(h))) found++;
+	    }
+	}
+	double recall = (total==0) ? 1 : found/(double)total;
+	int n = i1-i0;
+	System.out.println("[LSH] L=" + lsh.nTables + ", b=" + lsh.nBits + 
+			   ": recall@" + neighborhoodSize + "=" + recall +
+			   " over " + n + " queries; exact: " + (t1-t0) + " msec (" + rate(n, t1-t0) + " q/sec), LSH: " + (t2-t1) + " msec (" + rate(n, t2-t1) + " q/sec)");
+	return recall;
+    }
+
+    private static String rate(int n, long msec) {
+	return (msec==0) ? "n/a" : "" + Math.round(1000.0*n/msec);
+    }
+
     /** Applies the classifiers to the example p and returns the
 	probabilities of membership in different classes.
 
@@ -109,14 +269,8 @@ public class NormalizedKnnLearner extends Learner {
 
      */
     final public double [][] applyModel( DataPoint p) {
-	TopValues toplist= new  TopValues(neighborhoodSize, mincos);
-
-	double pNorm = Math.sqrt(p.normSquareWithoutDummy());
-	for(Map.Entry<DataPoint, PointInfo> e: pointInfoMap.entrySet()) {
-	    DataPoint q=e.getKey();
-	    double cos = p.dotProductWithoutDummy(q) / (pNorm * e.getValue().norm);
-	    toplist.offer(q, e.getValue().multiplicity, cos);
-	}
+	TopValues toplist= toplists.get();
+	findNeighbors(p, lsh!=null, toplist);
 
 	double [][] s = new double[blocks.length][];
 	double [] sum = new double[blocks.length];
@@ -128,46 +282,50 @@ public class NormalizedKnnLearner extends Learner {
 	final double minDist=1e-6;
 	final int  SHOW_VAL_CNT=5;
 
+	final int groupCnt = (Suite.verbosity>0) ? toplist.groupCount() : 0;
 	if (Suite.verbosity>0) {
 	    System.out.print(p.getName() + " : toplist size=" + toplist.getCnt());
-	    if (toplist.map.size()>SHOW_VAL_CNT) {
-		System.out.print(" [skip "+(toplist.map.size()-SHOW_VAL_CNT)+" vals]");
+	    if (groupCnt>SHOW_VAL_CNT) {
+		System.out.print(" [skip "+(groupCnt-SHOW_VAL_CNT)+" vals]");
 	    }
 	}
 
-	// dot products (cosine similarities) in ascending order
+	// dot products (cosine similarities) in ascending order; each
+	// group [g0:g1-1] consists of the points with the same cos
 	int valCnt=0;
-	for( Map.Entry<Double, TopValues.VectorDP> e:  toplist.map.entrySet()) {
-	    TopValues.VectorDP points = e.getValue();
-	    // when processing the 1st array, tie-breaking may be involved 
+	for(int g0=0, g1; g0<toplist.size(); g0=g1) {
+	    final double cos = toplist.getCos(g0);
+	    int multi = 0;
+	    for(g1=g0; g1<toplist.size() && Double.compare(toplist.getCos(g1), cos)==0; g1++) {
+		multi += toplist.getMulti(g1);
+	    }
+	    // when processing the 1st group, tie-breaking may be involved 
 	    double dw = 1;
 	    if (valCnt==0) {
 		int excess = toplist.getCnt() - neighborhoodSize;
-		if (excess > points.multi) throw new AssertionError( "(neighborhoodSize="+neighborhoodSize+") - (toplist.cnt="+toplist.getCnt()+") + (points.multi="+points.multi+") < 0");
+		if (excess > multi) throw new AssertionError( "(neighborhoodSize="+neighborhoodSize+") - (toplist.cnt="+toplist.getCnt()+") + (points.multi="+multi+") < 0");
 		if (excess > 0) {
-		    dw =  ((double)(points.multi - excess))/points.multi;
+		    dw =  ((double)(multi - excess))/multi;
 		}
 		if (dw < 0) {
-		    Logging.warning("dw=" + dw + "= (neighborhoodSize="+neighborhoodSize+") - (toplist.cnt="+toplist.getCnt()+") + (points.multi="+points.multi+")");
+		    Logging.warning("dw=" + dw + "= (neighborhoodSize="+neighborhoodSize+") - (toplist.cnt="+toplist.getCnt()+") + (points.multi="+multi+")");
 		}
 	    }
-	    double cos = e.getKey().doubleValue();
 	    if (weighting == Weighting.INVERSE_DISTANCE) {
 		double dist = (cos>1)? 0 : Math.sqrt( 2*(1-cos));
 		dw /= Math.max(dist, minDist);
 	    }
 
-	    if (Suite.verbosity>0 && toplist.map.size()-valCnt<=SHOW_VAL_CNT ) {
+	    if (Suite.verbosity>0 && groupCnt-valCnt<=SHOW_VAL_CNT ) {
 		System.out.print(" [cos="+cos+" :");
-		if (points.multi > 1) System.out.print(" cnt=" + points.multi);
-		if (points.size()>3) System.out.print( " ...");
-		else  for(DataPoint q: points) System.out.print(" " + q.getName());
+		if (multi > 1) System.out.print(" cnt=" + multi);
+		if (g1-g0>3) System.out.print( " ...");
+		else  for(int h=g0; h<g1; h++) System.out.print(" " + points.elementAt(toplist.getId(h)).getName());
 		System.out.print("]");
-		//	System.out.print(p.getName() + " : toplist size=" + toplist.getCnt());
 	    }
 
-	    for(DataPoint q: points) {
-		double [][] ysec = pointInfoMap.get(q).ysec;
+	    for(int h=g0; h<g1; h++) {
+		double [][] ysec = infos.elementAt(toplist.getId(h)).ysec;
 		for(int did=0; did<s.length; did++) {
 		    for(int i=0; i<ysec[did].length; i++) {	
 			s[did][i] += ysec[did][i] * dw;
@@ -235,6 +393,19 @@ public class NormalizedKnnLearner extends Learner {
 	return s;	
     }
 
+    /** Used in batch scoring. Since kNN scores all discriminations
+	at once, the scores for the other discriminations are
+	discarded. */
+    void applyModel(DataPoint p, int did, double[] out, int off) {
+	double q[] = applyModel(p)[did];
+	System.arraycopy(q, 0, out, off, q.length);
+    }
+
+    void applyModelLog(DataPoint p, int did, double[] out, int off) {
+	double q[] = applyModelLog(p)[did];
+	System.arraycopy(q, 0, out, off, q.length);
+    }
+
     /** Stores the norm and the sum-of-labels of a data point or a family of data points with an identical featur vector */
     private static class PointInfo {
 	/** The norm of underlying feature vector */
@@ -326,11 +497,16 @@ public class NormalizedKnnLearner extends Learner {
 	    // create a local copy, so that we can look for identical vectors
 	    DataPoint key = pragmaCacheDataPoints ? p.shallowCopyWithoutLabels(p.getName()) : p;
 
-	    if (pointInfoMap.containsKey(key)) {
-		pointInfoMap.get(key).addYSec(ysec);
+	    PointInfo info = pointInfoMap.get(key);
+	    if (info != null) {
+		info.addYSec(ysec);
 	    } else {
+		info = new PointInfo( ysec, Math.sqrt(key.normSquareWithoutDummy()));
 		points.add(key);
-		pointInfoMap.put(key, new PointInfo( ysec, Math.sqrt(key.normSquareWithoutDummy())));	    
+		infos.add(info);
+		pointInfoMap.put(key, info);
+		index.add(key, info.norm);
+		if (lsh!=null) lsh.add(key);
 	    }
 
 	    // Adjust counts of examples in each class
@@ -348,7 +524,8 @@ public class NormalizedKnnLearner extends Learner {
     }
 
     public void describe(PrintWriter out, boolean verbose) {
-	out.println("kNN learner with k=" + neighborhoodSize + "; cos>"+mincos+"; weighting="+weighting);
+	out.println("kNN learner with k=" + neighborhoodSize + "; cos>"+mincos+"; weighting="+weighting +
+		    (lsh==null? "" : "; LSH with L="+lsh.nTables+", b="+lsh.nBits));
     }
 
  
@@ -400,8 +577,10 @@ public class NormalizedKnnLearner extends Learner {
 	    }
 	}
 	for( DataPoint p: points) sum+= p.memoryEstimate();
+	if (lsh!=null) sum += lsh.memoryEstimate();
 	// FIXME: plenty more per entry, in fact...
 	sum += pointInfoMap.size() * Sizeof.DOUBLE;
+	sum += index.memoryEstimate();
 	return sum;
     }
 
@@ -471,21 +650,30 @@ public class NormalizedKnnLearner extends Learner {
    /** Names of parameters, as they appear in XML files */
     static class PARAM {
 	final static String 
-	    K = "k", MINCOS="mincos";
+	    K = "k", MINCOS="mincos", LSH_TABLES="lshTables", LSH_BITS="lshBits";
     }
   
     private void parseParams(Element e) throws BoxerXMLException  {
 	XMLUtil.assertName(e, Learner.PARAMETERS);
 
 	HashMap<String,Object> h = makeHashMap
-	    ( new String[] { PARAM.K, PARAM.MINCOS},
-	      new Object[] {   new Integer(neighborhoodSize), new Double(mincos)	      });
+	    ( new String[] { PARAM.K, PARAM.MINCOS, PARAM.LSH_TABLES, PARAM.LSH_BITS},
+	      new Object[] {   new Integer(neighborhoodSize), new Double(mincos),
+			       new Integer(lshTables), new Integer(lshBits)	      });
 
 	h = parseParamsElement(e,h);
 	neighborhoodSize = ((Number)(h.get(PARAM.K))).intValue();
 	if (neighborhoodSize<1) throw  new BoxerXMLException("k must be >=1");
 	mincos = ((Double)(h.get(PARAM.MINCOS))).doubleValue();
 	if (mincos>=1 || mincos < 0) throw  new BoxerXMLException("mincos must be in the range 0<=mincos<1");
+	lshTables = ((Number)(h.get(PARAM.LSH_TABLES))).intValue();
+	if (lshTables<0) throw  new BoxerXMLException(PARAM.LSH_TABLES + " must be >=0");
+	lshBits = ((Number)(h.get(PARAM.LSH_BITS))).intValue();
+	if (lshBits<1 || lshBits>LshIndex.MAX_BITS) throw  new BoxerXMLException(PARAM.LSH_BITS + " must be in the range 1.." + LshIndex.MAX_BITS);
+	if (lshTables>0) {
+	    if (points.size()>0) throw  new BoxerXMLException("Cannot enable LSH in a kNN learner that has already been trained");
+	    lsh = new LshIndex(lshTables, lshBits);
+	}
     }
 
 }
@@ -1,11 +1,14 @@
 package edu.dimacs.mms.boxer;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Vector;
 import java.io.PrintWriter;
 
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
+import javax.xml.stream.*;
 
 
 /** This class contains methods common for all PLRM learning
@@ -69,29 +72,21 @@ public abstract class PLRMLearner extends Learner {
 	    the discrimination's list of classes (dis.classes)
 	*/
 	public double [] applyModel( DataPoint p) {
+	    double[] s = new double[dis.claCount()];
+	    applyModel(p, s, 0);
+	    return s;
+	}
 
-	    //final double UF = -600;
+	/** Same as applyModel(p), but the probabilities are written
+	    into out[off:off+r-1], and nothing is allocated */
+	void applyModel( DataPoint p, double[] out, int off) {
 
-	    double[] dot = p.dotProducts(w, dis);
-	    if (dot.length==0) return dot; //empty discr-probably dummy fallback
-	    double z=0, maxDot=dot[0];
-	    // We'll normalize the exponent, to reduce the chance of overflow
-	    for(int i=1; i<dot.length; i++) {
-		if (dot[i]>maxDot) {
-		    maxDot = dot[i];
-		} 
-	    }
-	    
-	    for(int i=0; i<dot.length; i++) {
-		double a  = dot[i] - maxDot;
-		dot[i] = /*(a < UF) ? 0 : */ Math.exp(a);
-		z += dot[i];
-	    }
+	    //final double UF = -600;
 
-	    for(int i=0; i<dot.length; i++) {
-		dot[i] /= z;
-	    }
-	    return dot;
+	    final int r = dis.claCount();
+	    if (r==0) return; //empty discr-probably dummy fallback
+	    p.dotProducts(w, out, off, r);
+	    expNormalize(out, off, r);
 	}
 
 	/** Returns logarithms of scores (i.e., probabilities
@@ -101,28 +96,15 @@ public abstract class PLRMLearner extends Learner {
 
 	@param p A DataPoint object to be scored. Its labels don't matter. */
 	public double [] applyModelLog( DataPoint p) {
+	    return logNormalize( p.dotProducts(w, dis));
+	}
 
-	    double[] dot = p.dotProducts(w, dis);
-	    if (dot.length==0) return dot; // empty discr, probably dummy fallback
-	    double z=0, maxDot=dot[0];
-	    // We'll normalize the exponent, to reduce the chance of overflow
-	    for(int i=1; i<dot.length; i++) {
-		if (dot[i]>maxDot) {
-		    maxDot = dot[i];
-		} 
-	    }
-	    
-	    for(int i=0; i<dot.length; i++) {
-		dot[i] -= maxDot;		
-		z +=  Math.exp(dot[i]);
-	    }
-
-	    double logz = Math.log(z);
-
-	    for(int i=0; i<dot.length; i++) {
-		dot[i] -= logz;
-	    }
-	    return dot;
+	/** Same as applyModelLog(p), but the result is written into
+	    out[off:off+r-1], and nothing is allocated */
+	void applyModelLog( DataPoint p, double[] out, int off) {
+	    final int r = dis.claCount();
+	    p.dotProducts(w, out, off, r);
+	    logNormalize(out, off, r);
 	}
 
 	double logLikelihood(Vector<DataPoint> xvec, int i1, int i2) {
@@ -227,6 +209,23 @@ public abstract class PLRMLearner extends Learner {
 	 */
 	abstract HashMap<String, Matrix> listMatrices();
 
+	/** Marks the features that have non-zero rows in any of the
+	    matrices listed by listMatrices(). Blocks whose models
+	    depend on empty rows as well should override this.
+	*/
+	void markUsedFeatures(boolean used[]) {
+	    for(Matrix m: listMatrices().values()) m.markUsedFeatures(used);
+	}
+
+	/** Renumbers the rows of all matrices listed by
+	    listMatrices(). Blocks that keep any other feature-indexed
+	    state (e.g., of truncation) should override this, and call
+	    this method as well.
+	*/
+	void renumberFeatures(FeatureRenumMap map) {
+	    for(Matrix m: listMatrices().values()) m.renumberFeatures(map);
+	}
+
 	/** Parses a "classifier" element of an XML file, adding the
 	    and the appropriate matrix section(s) to this model's
 	    matrices, and setting the discrimination-specific
@@ -254,6 +253,71 @@ public abstract class PLRMLearner extends Learner {
 	    }
 	}
 
+	/** The streaming (StAX) counterpart of {@link
+	    #parseDisc(Element)}: parses the "classifier" element at
+	    which the reader is positioned, reading the matrices row by
+	    row, without building a DOM tree for them.
+	    @param xmldoc A scratch document, for the (small) "parameters" element
+	*/
+	final void parseDisc(XMLStreamReader r, Document xmldoc) throws BoxerXMLException, XMLStreamException {
+	    HashMap<String, Matrix> h =  listMatrices();// subclass-defined
+	    while(XMLUtil.nextChildElement(r)) {
+		String name = r.getLocalName();
+		if (name.equals(XMLUtil.MATRIX)) {
+		    String matName = XMLUtil.getAttribute(r, ParseXML.ATTR.NAME_ATTR);
+		    Matrix mat = h.get(matName);
+		    if (mat==null) {
+			throw new IllegalArgumentException("Matrix name is " + matName + " is not expected in the XML file");
+		    } else {
+			mat.readMatrix(r, suite, dis, false);
+		    }
+		} else if (name.equals(PARAMETERS)) {
+		    parseDSP(XMLUtil.readElement(r, xmldoc));// subclass-defined
+		} else {
+		    throw new IllegalArgumentException("Element " + XMLUtil.CLASSIFIER + " is not supposed to contain child element " +  name);
+		}
+	    }
+	}
+
+	/** Writes all matrices of this block (as listed by
+	    listMatrices()), and any other state, into a binary
+	    snapshot. */
+	final void writeSnapshot(BinarySnapshot.Out out) throws java.io.IOException {
+	    out.writeString(dis.getName());
+	    java.util.TreeMap<String, Matrix> h = new java.util.TreeMap<String, Matrix>(listMatrices());
+	    out.writeInt(h.size());
+	    for(String name: h.keySet()) {
+		out.writeString(name);
+		h.get(name).writeBinary(out);
+	    }
+	    writeStateSnapshot(out);
+	}
+
+	/** Reads the data written by {@link #writeSnapshot(BinarySnapshot.Out)} */
+	final void readSnapshot(BinarySnapshot.In in) throws java.io.IOException {
+	    String disName = in.readString();
+	    if (!disName.equals(dis.getName())) throw in.corrupted("found the classifier for discrimination " + disName + " in place of that for " + dis.getName());
+	    HashMap<String, Matrix> h =  listMatrices();
+	    int n = in.readLength();
+	    for(int i=0; i<n; i++) {
+		String name = in.readString();
+		Matrix mat = h.get(name);
+		if (mat==null) throw in.corrupted("matrix " + name + " is not expected in a " + algoName() + " classifier");
+		mat.readBinary(in, suite.getDic().getDimension(), dis.claCount());
+	    }
+	    readStateSnapshot(in);
+	}
+
+	/** Writes the block's state other than the matrices (e.g.,
+	    discrimination-specific parameters, and the state of
+	    truncation) into a binary snapshot. The method in
+	    PLRMLearner writes nothing; it should be overridden by
+	    blocks that have such state.  */
+	void writeStateSnapshot(BinarySnapshot.Out out) throws java.io.IOException {}
+
+	/** Reads what writeStateSnapshot() has written */
+	void readStateSnapshot(BinarySnapshot.In in) throws java.io.IOException {}
+
 	/** Saves the model (i.e., matrix W) in the same format as used
 	    by BXRclassify.
 
@@ -478,13 +542,257 @@ betaClassSparse GADGET @constant:-1.80e-02 Size:1.26e-01 Heat:-2.07e-01 ....
 	}
     }
 
+    /** The streaming (StAX) counterpart of the processing of a
+	"classifier" element in parseLearner(): finds the block for the
+	discrimination named in the element, and lets it parse the
+	element.
+	@param r A reader positioned at the "classifier" element
+     */
+    final void parseClassifier(XMLStreamReader r, Document xmldoc) throws BoxerXMLException, XMLStreamException {
+	String disName = XMLUtil.getAttribute(r, XMLUtil.DISCRIMINATION);
+	if (!XMLUtil.nonempty(disName)) throw new BoxerXMLException("There is no '"+XMLUtil.DISCRIMINATION+"' attribute in the XML element '"+XMLUtil.CLASSIFIER+"'");
+	Discrimination dis = suite.getDisc(disName);
+	if (dis==null) {
+	    throw new IllegalArgumentException("Classifier element contains referecence to discrimination name '"+disName+"', which does not exist in the current suite");
+	}
+	int did = suite.getDid(dis);
+	((PLRMLearnerBlock)blocks[did]).parseDisc(r, xmldoc);
+    }
+
+    /** Writes the same "learner" element as {@link
+	#saveAsXML(Document)}, but with each block writing its matrices
+	directly into the stream
+     */
+    void writeXML(XMLStreamWriter w, Document xmldoc) throws XMLStreamException {
+	Element root = createLearnerElement(xmldoc);
+	XMLUtil.writeStartElement(w, root);
+	for(Node n = root.getFirstChild(); n!=null; n = n.getNextSibling()) {
+	    XMLUtil.writeElement(w, (Element)n);
+	}
+	for(LearnerBlock b: blocks)  {
+	    b.writeXML(w, xmldoc);
+	}
+	w.writeEndElement();
+    }
+
+    /** If true, {@link #applyModel(DataPoint)} and {@link
+	#applyModelLog(DataPoint)} compute the dot products for all
+	discriminations in a single pass over the data point's
+	features, using a {@link FusedBetaView} of all blocks'
+	matrices. This gives exactly the same scores as the
+	block-by-block computation, and is faster when there are many
+	discriminations, at the cost of keeping a second copy of the
+	model in memory. The view is rebuilt on first use after any
+	change in the model; so this mode is meant for scoring
+	many points with a model that is not being trained at the
+	moment.
+
+	<p>The initial value comes from the Java system property
+	<tt>fusedScoring</tt> (e.g. <tt>-DfusedScoring=true</tt>). Like
+	{@link #threads}, this is an execution setting, and is not
+	saved in the learner's XML description.
+     */
+    boolean fusedScoring = new ParseConfig().getOption("fusedScoring", false);
+
+    public void setFusedScoring(boolean x) {
+	fusedScoring = x;
+	if (!x) fused = null;
+    }
+
+    /** The most recently built fused view, or null */
+    private volatile FusedBetaView fused = null;
+
+    /** Returns a fused view reflecting the current state of all
+	blocks, rebuilding it if the model has changed */
+    private FusedBetaView getFusedView() {
+	FusedBetaView f = fused;
+	if (f==null || !f.isCurrent(blocks)) {
+	    synchronized(this) {
+		f = fused;
+		if (f==null || !f.isCurrent(blocks)) {
+		    fused = f = new FusedBetaView(blocks);
+		}
+	    }
+	}
+	return f;
+    }
+
+    /** Same as the method in the parent class, but in the fused
+	mode (see {@link #fusedScoring}), computes all dot products in a single
+	pass */
+    public double [][] applyModel( DataPoint p) {
+	if (!fusedScoring) return super.applyModel(p);
+	FusedBetaView f = getFusedView();
+	double [] dot = new double[f.width()];
+	f.dotProducts(p, dot);
+	double [][] s = new double[blocks.length][];
+	for(int did=0; did<s.length; did++) {
+	    int off = f.discOffset[did], r = f.discOffset[did+1] - off;
+	    expNormalize(dot, off, r);
+	    s[did] = Arrays.copyOfRange(dot, off, off+r);
+	}
+	return s;	
+    }
+
+    /** Same as the method in the parent class, but in the fused
+	mode (see {@link #fusedScoring}), computes all dot products in a single
+	pass */
+    public double [][] applyModelLog( DataPoint p) {
+	if (!fusedScoring) return super.applyModelLog(p);
+	FusedBetaView f = getFusedView();
+	double [] dot = new double[f.width()];
+	f.dotProducts(p, dot);
+	double [][] s = new double[blocks.length][];
+	for(int did=0; did<s.length; did++) {
+	    int off = f.discOffset[did], r = f.discOffset[did+1] - off;
+	    logNormalize(dot, off, r);
+	    s[did] = Arrays.copyOfRange(dot, off, off+r);
+	}
+	return s;	
+    }
+
+    /** The number of data points in a tile, for batch scoring
+	with {@link #applyModelLog(Vector, int, int)}. The initial
+	value comes from the Java system property <tt>scoringTile</tt>.
+     */
+    int scoringTile = new ParseConfig().getOption("scoringTile", 1024);
+
+    public void setScoringTile(int n) {
+	if (n<1) throw new IllegalArgumentException("Scoring tile size must be positive");
+	scoringTile = n;
+    }
+
+    /** Scores the data points v[i0:i1-1] for all discriminations,
+	with the same results as applyModelLog(p) for each point
+	would give. The points are processed in tiles of {@link
+	#scoringTile} points; each tile is transposed into the
+	feature-major layout ({@link ScoringTile}), so that each
+	matrix row is looked up once per tile, rather than once per
+	point. In the fused mode (see {@link #fusedScoring}), the rows
+	of the {@link FusedBetaView} are used, covering all
+	discriminations at once. Tiles are spread over this learner's
+	threads (see {@link #threads}).
+
+	<p>Like other scoring methods, this one is thread-safe as long as
+	the model is not being trained at the same time.
+     */
+    public double [][][] applyModelLog(final Vector<DataPoint> v, final int i0, int i1) {
+	final int n = i1-i0;
+	final int nd = blocks.length;
+	final int[] off = new int[nd+1];
+	for(int did=0; did<nd; did++) off[did+1] = off[did] + blocks[did].dis.claCount();
+	final int width = off[nd];
+	final FusedBetaView f = fusedScoring ? getFusedView() : null;
+	final int tile = scoringTile;
+	final double [][][] s = new double[n][nd][];
+
+	final int nTiles = (n + tile - 1)/tile;
+	forEachChunk(nTiles, chunkCount(nTiles, 1), new ChunkTask() {
+		void run(int chunk, int from, int to) {
+		    ScoringTile t = new ScoringTile();
+		    double [] out = new double[Math.min(tile,n)*width];
+		    for(int k=from; k<to; k++) {
+			int a = i0 + k*tile, b = Math.min(i0+n, a+tile);
+			t.load(v, a, b);
+			Arrays.fill(out, 0, t.size()*width, 0);
+			if (f!=null) {
+			    t.multiply(f, out, width);
+			} else {
+			    for(int did=0; did<nd; did++) {
+				t.multiply(((PLRMLearnerBlock)blocks[did]).w, out, width, off[did]);
+			    }
+			}
+			for(int i=0; i<t.size(); i++) {
+			    for(int did=0; did<nd; did++) {
+				int o = i*width + off[did], r = off[did+1]-off[did];
+				logNormalize(out, o, r);
+				s[a-i0+i][did] = Arrays.copyOfRange(out, o, o+r);
+			    }
+			}
+		    }
+		}});
+	return s;
+    }
+
+    /** Exports the current state of the model as an immutable {@link
+	ScoringModel}, which can score data points (or plain lists of
+	feature labels and values) without the learner, the suite, or
+	the feature dictionary. This should not be done while the
+	learner is being trained.
+
+	@param singlePrecision If true, the coefficients are stored as
+	floats, which halves the memory they use; otherwise, as
+	doubles, which gives the same scores as the learner itself.
+    */
+    public ScoringModel exportScoringModel(boolean singlePrecision) {
+	return ScoringModel.export(this, singlePrecision);
+    }
+
+    /** Converts the dot products (x*beta_k) in dot[off:off+r-1] into
+	class probabilities, exp(dot_k)/sum_j exp(dot_j), in place */
+    static void expNormalize(double[] dot, int off, int r) {
+	if (r==0) return; // empty discr, probably dummy fallback
+	double z=0, maxDot=dot[off];
+	// We'll normalize the exponent, to reduce the chance of overflow
+	for(int i=off+1; i<off+r; i++) {
+	    if (dot[i]>maxDot) {
+		maxDot = dot[i];
+	    } 
+	}
+	    
+	for(int i=off; i<off+r; i++) {
+	    double a  = dot[i] - maxDot;
+	    dot[i] = Math.exp(a);
+	    z += dot[i];
+	}
+
+	for(int i=off; i<off+r; i++) {
+	    dot[i] /= z;
+	}
+    }
+
+    /** Converts the vector of dot products (x*beta_k) for all
+	classes k into the vector of the logarithms of the class
+	probabilities, log P(k|x) = dot_k - log(sum_j exp(dot_j)). This
+	is done in place; the (modified) input array is returned.
+     */
+    static double [] logNormalize(double[] dot) {
+	logNormalize(dot, 0, dot.length);
+	return dot;
+    }
+
+    /** Same as logNormalize(dot), for the section dot[off:off+r-1] */
+    static void logNormalize(double[] dot, int off, int r) {
+	if (r==0) return; // empty discr, probably dummy fallback
+	double z=0, maxDot=dot[off];
+	// We'll normalize the exponent, to reduce the chance of overflow
+	for(int i=off+1; i<off+r; i++) {
+	    if (dot[i]>maxDot) {
+		maxDot = dot[i];
+	    } 
+	}
+	    
+	for(int i=off; i<off+r; i++) {
+	    dot[i] -= maxDot;		
+	    z +=  Math.exp(dot[i]);
+	}
+
+	double logz = Math.log(z);
+
+	for(int i=off; i<off+r; i++) {
+	    dot[i] -= logz;
+	}
+    }
+
     /** Names of parameters, as they appear in XML files */
     static class PARAM {
 	final static String f = "f", U = "u" , maxInfNorm = "maxInfNorm",
 	    classSizes = "classSizes",
 	    eta = "eta", 
 	    theta = "theta", 	    g = "g", 
-	    K = "k", t = "t";
+	    K = "k", t = "t",
+	    threads = "threads", hogwild = "hogwild", batch = "batch",
+	    eps = "eps", maxIter = "maxIter", var = "var";
     }
 
     /** Derived classes must have their own implementation, looking
@@ -500,6 +808,25 @@ betaClassSparse GADGET @constant:-1.80e-02 Size:1.26e-01 Heat:-2.07e-01 ....
 	super.deleteDiscrimination(map); 
     } 
 
+    boolean canRenumberFeatures() {
+	return true;
+    }
+
+    /** Marks the features that have non-zero rows in any matrix of
+	any block */
+    void markUsedFeatures(boolean used[]) {
+	for(LearnerBlock b: blocks) {
+	    ((PLRMLearnerBlock)b).markUsedFeatures(used);
+	}
+    }
+
+    /** Renumbers the rows of all matrices of all blocks */
+    void renumberFeatures(FeatureRenumMap map) {
+	for(LearnerBlock b: blocks) {
+	    ((PLRMLearnerBlock)b).renumberFeatures(map);
+	}
+    }
+
 }
 
 /*
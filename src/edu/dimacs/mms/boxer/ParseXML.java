@@ -2,6 +2,7 @@ package edu.dimacs.mms.boxer;
 
 import java.io.*; 
 import java.util.Vector;
+import javax.xml.stream.*;
 import org.apache.xerces.parsers.DOMParser;
 import org.w3c.dom.*;
 import org.xml.sax.SAXException;
@@ -64,7 +65,8 @@ public class ParseXML {
 		ND_TEST = "ndtest",
 		CREATE_ND_MODE = "CreateNewDiscriminationMode",
 		SUPPORTS_SIMPLE_LABELS="SupportsSimpleLabels",
-		HOW_TO_HANDLE_MISSING_IDS = "HowToHandleMissingIDs";	    
+		HOW_TO_HANDLE_MISSING_IDS = "HowToHandleMissingIDs",
+		FEATURE_HASHING = "featurehashing";	    
 	}
 	/** Attributes For the Discrimination element */
 	public static class DISCR {
@@ -147,11 +149,115 @@ public class ParseXML {
 						     boolean isDefinitional)
 	throws IOException, SAXException, BoxerXMLException {
 
+	if (XMLUtil.streamingXML) {
+	    // No DOM tree for the entire file is built
+	    DatasetReader reader = new DatasetReader(fname, suite, isDefinitional);
+	    try {
+		Vector<DataPoint> v = new Vector<DataPoint>();
+		reader.readBatch(v, Integer.MAX_VALUE);
+		return v;
+	    } finally {
+		reader.close();
+	    }
+	}
+
 	Element e=readFileToElement(fname);
 	return parseDatasetElement(e, suite, isDefinitional);
 
     }
 
+    /** A pull-parser (StAX) based reader for a data set XML file,
+	which returns the data points one at a time, or in batches of
+	a specified size. Unlike {@link #readDataFileXML(String,
+	Suite, boolean)}, it never holds more than one
+	<tt>datapoint</tt> element of the XML document in memory, and
+	thus allows one to process data files larger than the heap.
+
+	<p>The data points are parsed with the same semantics as in
+	{@link #parseDatasetElement(Element, Suite, boolean)}; in
+	particular, any new discriminations and classes are created in
+	the suite (according to its NC/ND modes) as soon as the data
+	point that mentions them is read.
+     */
+    public static class DatasetReader {
+	private final InputStream is;
+	private final XMLStreamReader r;
+	private final Suite suite;
+	private final boolean isDefinitional;
+	/** Set to true once the end of the dataset element has been reached */
+	private boolean done = false;
+
+	/** Opens the file, and reads the top-level <tt>dataset</tt> element's
+	    start tag.
+	    @param isDefinitional Set this flag to true if you're reading the training set
+	 */
+	public DatasetReader(String fname, Suite suite, boolean isDefinitional)
+	    throws IOException, SAXException, BoxerXMLException {
+	    if (!(new File(fname)).exists()) {
+		throw new IllegalArgumentException("Input file " + fname + 
+						   " does not exist");
+	    }
+	    this.suite = suite;
+	    this.isDefinitional = isDefinitional;
+	    is = new BufferedInputStream(new FileInputStream(fname));
+	    try {
+		r = XMLUtil.createXMLReader(is);
+	    } catch(XMLStreamException ex) {
+		is.close();
+		throw XMLUtil.toSAXException(ex);
+	    }
+	    XMLUtil.assertName(r, NODE.DATASET);
+	    // not actually used
+	    String dataSetName = XMLUtil.getAttribute(r, ATTR.NAME_ATTR);
+	    if (!IDValidation.validateBasic(dataSetName)) {
+		throw new BoxerXMLException("The data set name '"+dataSetName+"' contained in the XML suite definition is invalid");
+	    }
+	    Logging.info("Parsing data set named "  +  dataSetName);
+	}
+
+	/** Parses the next <tt>datapoint</tt> element of the data set.
+	    @return The next data point, or null if there are no more */
+	public DataPoint next() throws SAXException, BoxerXMLException {
+	    if (done) return null;
+	    try {
+		while(XMLUtil.nextChildElement(r)) {
+		    if (!r.getLocalName().equals(NODE.DATAPOINT)) {
+			Logging.warning("Element node name is not " + NODE.DATAPOINT + ", ignoring");
+			XMLUtil.skipElement(r);
+		    } else {
+			return parseDataPoint(r, suite, isDefinitional);
+		    }
+		}
+	    } catch(XMLStreamException ex) {
+		throw XMLUtil.toSAXException(ex);
+	    }
+	    done = true;
+	    return null;
+	}
+
+	/** Reads up to max data points, appending them to the vector v.
+	    @return The number of data points read; 0 means that the
+	    end of the data set has been reached */
+	public int readBatch(Vector<DataPoint> v, int max)
+	    throws SAXException, BoxerXMLException {
+	    int n = 0;
+	    DataPoint p;
+	    while(n < max && (p=next())!=null) {
+		v.add(p);
+		n++;
+	    }
+	    return n;
+	}
+
+	/** Closes the underlying file */
+	public void close() throws IOException {
+	    try {
+		r.close();
+	    } catch(XMLStreamException ex) {}
+	    is.close();
+	}
+    }
+
     /** Reads a file containing a single DataPoint element as a top
      * element. (This is not a common format for BOXER, but is used in some applications)
      */
@@ -177,13 +283,19 @@ public class ParseXML {
 						     Suite suite, 
 						     boolean isDefinitional)
 	throws IOException, SAXException, BoxerXMLException {
-	if (fname.toLowerCase().endsWith(".xml")) {
+	if (isXMLFileName(fname)) {
 	    return readDataFileXML(fname, suite,  isDefinitional);
 	} else {
 	    return BXRReader.readDataFileBXR(fname, suite,  isDefinitional);
 	}
     }
 
+    /** Is this file to be read as XML (rather than BXR/BMR), judging
+	by its name? */
+    public static boolean isXMLFileName(String fname) {
+	return fname.toLowerCase().endsWith(".xml");
+    }
+
     /** Builds a vector of DataPoints out of the content of an XML
       element (which, typically, is the top-level element of an XML
       file)
@@ -250,46 +362,108 @@ public class ParseXML {
 			throw new BoxerXMLException("Duplicate non-empty " + NODE.LABELS + " tag in for the data point '"+dpName+"'. Was there a separate labels (QREL) file?");
 		    }
 
-		    clav = new Vector<Discrimination.Cla>();
-		    for(int i=0; i<v.size(); i++) {
-			String [] pair = v.elementAt(i);
-			Discrimination.Cla c = suite.getClaAlways(pair[0], pair[1], isDefinitional);
-			if (c!=null) {
-			    clav.add(c);
-			    if (isDefinitional && suite.isFallback(c.getDisc())) {
-			    //!c.isDefault()
-			    // Fallback discr is meant to only receive default
-			    // updates
-				throw new  BoxerXMLException("Data point '"+dpName+"' contains an explicit class label "+c+" for the fallback discrimination, which is prohibited");
-			    }
-			}
-		    }
+		    clav = toClasses(v, suite, isDefinitional, dpName);
 		} else if  (name.equals(NODE.FEATURES)) {
 		    if (fv != null) {
 			throw new BoxerXMLException("Duplicate " + NODE.FEATURES + " tag in data point '"+dpName+"'!");
 		    }
 		    Vector<String[]> v=parseList(n,NODE.FEATURE,
 						 ATTR.FEATURE_ATTR);
-		    fv = new Vector<DataPoint.FVPair>();
-		    // FIXME: is there a better place to set the dummy coeff?
-		    // Besides, one should not set this feature (or should
-		    // modify it later) if the input DOES contain the dummy
-		    // feature already (which is not normally done now, but 
-		    // could be imagined in some application)
-		    suite.getDic().addDummyCompoIfRequired(fv);
-
-		    for(int i=0; i<v.size(); i++) {
-			String [] pair = v.elementAt(i);
-			// Are we reading feature IDs, or do we need to map labels to IDs?
-			int fid = (suite.getDic() == null)? Integer.parseInt(pair[0]) :
-			    suite.getDic().getIdAlways(pair[0]);
-			double fval = Double.parseDouble(pair[1]);
-			fv.add(new DataPoint.FVPair(fid, fval));
-		    }
+		    fv = toFeatures(v, suite);
 		}    
 		    
 	    }
 	}
+	return makeDataPoint(fv, clav, suite, dpName, isDefinitional);
+    }
+
+    /** Creates a DataPoint from the <tt>datapoint</tt> element at
+     which the StAX reader is positioned. This is the pull-parser
+     counterpart of {@link #parseDataPoint(Element, Suite, boolean)};
+     on return, the reader is positioned at the element's end tag.
+     */
+    static DataPoint parseDataPoint(XMLStreamReader r, Suite suite,
+				    boolean isDefinitional)
+	throws XMLStreamException, BoxerXMLException {
+	Vector<DataPoint.FVPair> fv = null;
+	String dpName= validateDataPointName(XMLUtil.getAttribute(r, ATTR.NAME_ATTR), suite);
+
+	Vector<Discrimination.Cla> clav = null;
+
+	int type;
+	while((type = r.next()) != XMLStreamConstants.END_ELEMENT) {
+	    if (type != XMLStreamConstants.START_ELEMENT) continue;
+	    String name = r.getLocalName();
+	    if (name.equals(NODE.LABELS)) {
+		Vector<String[]> v=parseList(r,NODE.LABEL, ATTR.LABEL_ATTR);
+		if (clav != null && v.size() > 0) {
+		    throw new BoxerXMLException("Duplicate non-empty " + NODE.LABELS + " tag in for the data point '"+dpName+"'. Was there a separate labels (QREL) file?");
+		}
+		clav = toClasses(v, suite, isDefinitional, dpName);
+	    } else if  (name.equals(NODE.FEATURES)) {
+		if (fv != null) {
+		    throw new BoxerXMLException("Duplicate " + NODE.FEATURES + " tag in data point '"+dpName+"'!");
+		}
+		Vector<String[]> v=parseList(r,NODE.FEATURE,
+					     ATTR.FEATURE_ATTR);
+		fv = toFeatures(v, suite);
+	    } else {
+		XMLUtil.skipElement(r);
+	    }
+	}
+	return makeDataPoint(fv, clav, suite, dpName, isDefinitional);
+    }
+
+    /** Converts (dis, class) name pairs, parsed from a <tt>labels</tt>
+	element, to classes, creating new discriminations and classes
+	in the suite as needed. */
+    private static Vector<Discrimination.Cla> toClasses(Vector<String[]> v, Suite suite, boolean isDefinitional, String dpName) 
+	throws BoxerXMLException {
+	Vector<Discrimination.Cla> clav = new Vector<Discrimination.Cla>();
+	for(int i=0; i<v.size(); i++) {
+	    String [] pair = v.elementAt(i);
+	    Discrimination.Cla c = suite.getClaAlways(pair[0], pair[1], isDefinitional);
+	    if (c!=null) {
+		clav.add(c);
+		if (isDefinitional && suite.isFallback(c.getDisc())) {
+		    //!c.isDefault()
+		    // Fallback discr is meant to only receive default
+		    // updates
+		    throw new  BoxerXMLException("Data point '"+dpName+"' contains an explicit class label "+c+" for the fallback discrimination, which is prohibited");
+		}
+	    }
+	}
+	return clav;
+    }
+
+    /** Converts (feature, value) pairs, parsed from a <tt>features</tt>
+	element, to a feature vector */
+    private static Vector<DataPoint.FVPair> toFeatures(Vector<String[]> v, Suite suite) 
+	throws BoxerXMLException {
+	Vector<DataPoint.FVPair> fv = new Vector<DataPoint.FVPair>();
+	// FIXME: is there a better place to set the dummy coeff?
+	// Besides, one should not set this feature (or should
+	// modify it later) if the input DOES contain the dummy
+	// feature already (which is not normally done now, but 
+	// could be imagined in some application)
+	suite.getDic().addDummyCompoIfRequired(fv);
+
+	for(int i=0; i<v.size(); i++) {
+	    String [] pair = v.elementAt(i);
+	    // Are we reading feature IDs, or do we need to map labels to IDs?
+	    int fid = (suite.getDic() == null)? Integer.parseInt(pair[0]) :
+		suite.getDic().getIdAlways(pair[0]);
+	    double fval = Double.parseDouble(pair[1]);
+	    fv.add(new DataPoint.FVPair(fid, fval));
+	}
+	return fv;
+    }
+
+    private static DataPoint makeDataPoint(Vector<DataPoint.FVPair> fv, 
+					   Vector<Discrimination.Cla> clav,
+					   Suite suite, String dpName,
+					   boolean isDefinitional) 
+	throws BoxerXMLException {
 	if (fv == null || fv.size() == 0) {
 	    throw new BoxerXMLException("Data point '"+dpName+"' has no features");
 	} 
@@ -297,6 +471,7 @@ public class ParseXML {
 
 	if (clav== null) clav = new Vector<Discrimination.Cla>();
 	p.setClasses(clav, suite);
+	if (isDefinitional) suite.countFeatures(p);
 
 	return p;
     }
@@ -343,6 +518,43 @@ public class ParseXML {
     }
 
 
+    /** The pull-parser counterpart of {@link #parseList(Node, String,
+	String[])}: parses the element at which the StAX reader is
+	positioned, leaving the reader at its end tag. */
+    static Vector<String[]> parseList(XMLStreamReader r, String pairName, 
+				      String[] aname) 
+	throws XMLStreamException, BoxerXMLException {
+	Vector<String[]> v = 	new Vector<String[]>();
+	while(true) {
+	    int type = r.next();
+	    if (type == XMLStreamConstants.END_ELEMENT) {
+		return v;
+	    } else if (type == XMLStreamConstants.START_ELEMENT) {
+		if (!r.getLocalName().equals(pairName)) {
+		    throw new BoxerXMLException("Unexpected element inside a " + 
+						pairName+" node: " + r.getLocalName());
+		}
+		String c[] = new String[2];
+		for(int i=0; i<2; i++) {
+		    c[i] = XMLUtil.getAttribute(r, aname[i]);
+		    if (!XMLUtil.nonempty(c[i])) {
+			throw new BoxerXMLException("Missing attribute " +aname[i] +
+						    " in a "+pairName+" tag");
+		    }
+		}
+		v.add(c);
+		XMLUtil.skipElement(r);
+	    } else if (type == XMLStreamConstants.CHARACTERS ||
+		       type == XMLStreamConstants.CDATA ||
+		       type == XMLStreamConstants.SPACE) {
+		String s = r.getText().trim();
+		if (s.length()>0) {
+		    v = BXRReader.readPairs(s,v);
+		}
+	    }
+	}
+    }
+
     /** Creates a more or less unique name for a data point, if none
 	has been supplied in the input file.
      */
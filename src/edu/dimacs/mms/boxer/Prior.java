@@ -4,6 +4,7 @@ import java.util.*;
 import java.io.*;
 import org.w3c.dom.Element;
 import org.w3c.dom.Document;
+import javax.xml.stream.*;
 //import org.w3c.dom.Node;
 
 /** An individual "prior", which may be applicable only to a single
@@ -174,6 +175,18 @@ abstract public class Prior //implements Measurable
 	return e;
     }
 
+    /** Writes the same "prior" element as {@link #saveAsXML(Document)}
+	creates, through a StAX writer */
+    void writeXML(XMLStreamWriter w) throws XMLStreamException {
+	w.writeStartElement(Priors.NODE.PRIOR);
+	w.writeAttribute(ATTR.TYPE, getType().toString());
+	w.writeAttribute(ATTR.MODE, ""+mode);
+	w.writeAttribute(ATTR.VAR, ""+var);
+	w.writeAttribute(ATTR.ABSOLUTE, ""+absolute);
+	w.writeAttribute(ATTR.SKEW, ""+skew);
+	w.writeEndElement();
+    }
+
     /** Produces a human-readable description of the prior */
     public String toString() {
 	return "("+getType().toString() +
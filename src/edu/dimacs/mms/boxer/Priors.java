@@ -8,6 +8,7 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.xml.sax.SAXException;
+import javax.xml.stream.*;
 
 /** A Priors object is used to store a set of individual priors for a
     particular discrimination. A single prior is represented as a
@@ -473,6 +474,16 @@ public class Priors {
       @param fname Name of the file  to write the XML to.
      */
     public void saveAsXML(String fname) {
+	if (XMLUtil.streamingXML) {
+	    try {
+		XMLStreamWriter w = new FormattedXMLStreamWriter(fname);
+		writeXML(w);
+		w.close();
+	    } catch (XMLStreamException ex) {
+		System.err.println("Exception when trying to write XML file " + fname + "\n" + ex);
+	    }
+	    return;
+	}
 
 	Document xmldoc= new DocumentImpl();
 	Element e = saveAsXML(xmldoc);
@@ -527,6 +538,62 @@ public class Priors {
 	return root;
     }
 
+    /** Writes the same "priors" element as {@link
+	#saveAsXML(Document)} creates, through a StAX writer, without
+	building a DOM tree */
+    public void writeXML(XMLStreamWriter w) throws XMLStreamException {
+	w.writeStartElement(NODE.PRIORS);
+	w.writeAttribute(ParseXML.ATTR.NAME_ATTR, name);
+	w.writeAttribute(ParseXML.ATTR.VERSION_ATTR, Version.version);	
+
+	w.writeStartElement(NODE.CROSS_DISCRIMINATION);
+	w.writeStartElement(NODE.OVERALL);
+	getL1().writeXML(w);
+	w.writeEndElement();
+	crossDisc.writeFeatureSpecificXML(w, suite.getDic());
+	crossDisc.writeClassSpecificXML(w, null);
+	w.writeEndElement();
+
+	w.writeStartElement(NODE.DISCRIMINATION_SPECIFIC);
+	for(int did =0; did < suite.disCnt(); did ++) {
+	    Discrimination dis  = suite.getDisc( did);
+	    DiscPriorSet dps =  discPriors.get(dis.getName());
+	    if (dps==null) continue;
+
+	    w.writeStartElement(NODE.DISCRIMINATION);
+	    w.writeAttribute(ATTR.NAME, dis.getName());
+	    w.writeStartElement(NODE.OVERALL);
+	    if (dps.L_overall != null) {
+		dps.L_overall.writeXML(w);
+	    }
+	    w.writeEndElement();
+	    dps.writeFeatureSpecificXML(w, suite.getDic());
+	    dps.writeClassSpecificXML(w, dis);
+	    dps.writeCoeffSpecificXML(w, suite.getDic(), dis);   
+	    w.writeEndElement();
+	}
+	w.writeEndElement();
+	w.writeEndElement();
+    }
+
+    /** Sets used[f]=true for every feature f for which there are
+	feature-specific (or coefficient-specific) priors, on any
+	level. Such features are not dropped by {@link
+	Suite#compactFeatures()}, because the model depends on them
+	even when they are not in it (e.g., through the prior's mode).
+     */
+    void markUsedFeatures(boolean used[]) {
+	crossDisc.markUsedFeatures(used);
+	for( DiscPriorSet q: 	 discPriors.values() ) q.markUsedFeatures(used);
+    }
+
+    /** Changes feature ids in all stored priors' keys. This is called
+	from {@link Suite#compactFeatures()}. */
+    void renumberFeatures(FeatureRenumMap map) {
+	crossDisc.renumberFeatures(map);
+	for( DiscPriorSet q: 	 discPriors.values() ) q.renumberFeatures(map);
+    }
+
     int objectCnt() {
 	int cnt = crossDisc.objectCnt();
 	for( DiscPriorSet q: 	 discPriors.values() ) cnt += q.objectCnt();
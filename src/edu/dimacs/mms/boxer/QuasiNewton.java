@@ -0,0 +1,417 @@
+package edu.dimacs.mms.boxer;
+
+import java.util.Arrays;
+import java.util.Vector;
+
+
+/** An instance of this class is created to run one quasi-Newton
+    optimization process, which is invoked as a special mode for the
+    TruncatedGradient class, as an alternative to {@link
+    AdaptiveSteepestDescent}. It maximizes the same function, f(B) =
+    L - P (the average log-likelihood minus the penalty from the
+    prior, if any), and accepts the same kinds of priors; but instead
+    of moving along the gradient, it uses the limited-memory BFGS
+    approximation of the inverse Hessian built from the last few steps.
+
+    <ul>
+    <li>Without priors, or with a Gaussian prior, plain L-BFGS with a
+    backtracking (Armijo) line search is used.
+
+    <li>With a Laplace prior (or with truncation, which is converted to
+    one), the penalty isn't differentiable at 0, and OWL-QN
+    (Orthant-Wise Limited-memory Quasi-Newton, Andrew and Gao, 2007) is
+    used instead. It works with the pseudo-gradient of f, and keeps
+    each step within one orthant, so that the coefficients that
+    would cross zero are set to zero instead. As a result, the model
+    is sparse, just like one produced by ASD.
+    </ul>
+
+    <p>Internally, the coefficients for all features that occur in the
+    training set (or are already non-zero in the matrix) are kept in a
+    flat array, and copied into the block's matrix whenever the
+    log-likelihood needs to be evaluated. The log-likelihood and its
+    gradient are computed with the help of {@link DataPointArray}, so
+    identical data points are only scored once.
+*/
+class QuasiNewton  {
+
+    /** How many recent (s,y) pairs are used to approximate the inverse Hessian */
+    static final int M = 10;
+
+    /** Armijo constant for the line search */
+    static final double C1 = 1e-4;
+    /** The step is multiplied by this on each backtrack */
+    static final double BACKTRACK = 0.5;
+    /** Give up the line search after this many backtracks */
+    static final int MAX_BACKTRACK = 50;
+
+    final Prior prior;
+    final DataPointArray dpa;
+    final BetaMatrix w;
+    final Discrimination dis;
+    final TruncatedGradient.TruncatedGradientLearnerBlock block;
+    final Learner learner;
+
+    /** Number of classes */
+    final int r;
+    /** The feature ID for each slot of the flat coefficient array;
+	slot s occupies positions s*r thru s*r+r-1 */
+    private int slotFeature[];
+    /** The slot for each feature ID, or -1 */
+    private int slotOf[];
+    /** Number of coefficients, i.e. nSlots*r */
+    private int nv;
+    /** Have the rows of all slots been made dense, for {@link
+	#loadMatrix(double[])}? */
+    private boolean rowsDense = false;
+
+    /** The inverse of the Gaussian prior's variance, or 0 */
+    private double ivar = 0;
+    /** The Laplace prior's lambda, or 0 */
+    private double lambda = 0;
+
+    /** Number of function evaluations */
+    int nEval = 0;
+
+    QuasiNewton(TruncatedGradient.TruncatedGradientLearnerBlock _block,
+		Vector<DataPoint> xvec, int i1, int i2,
+		double eps, double gradEps) {
+	block = _block;
+	learner = block.getLearner();
+	w = block.w;
+	dis = block.dis;
+	r = dis.claCount();
+	prior = AdaptiveSteepestDescent.verifyPriors( _block.trunc, dis);
+
+	final int n=i2-i1;
+
+	if (prior!=null && prior.avar != Double.POSITIVE_INFINITY) {
+	    if (prior instanceof GaussianPrior) ivar = 1/prior.avar;
+	    else if (prior instanceof LaplacePrior) lambda = ((LaplacePrior)prior).getLambda();
+	    else throw new IllegalArgumentException("Unsupported prior type: " + prior.getType() );
+	}
+	final boolean owl = (lambda != 0);
+
+	System.out.println("[QN] " + (owl? "OWL-QN" : "L-BFGS") + " (m="+M+") with convergence criteria: |delta L|<=eps=" + eps+", |grad L|<=geps=" + gradEps);
+	System.out.println("[QN] Maximizing f(B)=L-P, where:\n[QN] L=(1/n)*sum_{j=1..n} log(C_{correct(x_j)}|x_j), n="+n);
+	if (ivar != 0) {
+	    System.out.println("[QN] Gaussian penalty, P=("+ivar+"/2)*|B|_2^2 ");
+	} else if (owl) {
+	    System.out.println("[QN] Laplacian penalty, P="+lambda +"*|B|_1 ");
+	} else {
+	    System.out.println("[QN] No penalty, P=0");
+	}
+
+	dpa = new DataPointArray(xvec, i1, i2, dis);
+	if (Suite.verbosity>0) {
+	    System.out.println("[QN] Among "+(i2-i1)+" data points, found "+
+			       dpa.sumCnt + " labeled ones, " + dpa.length() + " unique ones");
+	}
+	if (dpa.sumCnt==0) return; // no labeled points, nothing to optimize
+
+	initSlots();
+	if (Suite.verbosity>0) {
+	    System.out.println("[QN] Optimizing over " + slotFeature.length + " features x " + r + " classes = " + nv + " coefficients");
+	}
+
+	// x: the current point; g: the gradient of the smooth part of
+	// F=-f; pg: the pseudo-gradient (same as g, unless OWL-QN)
+	double x[] = readMatrix();
+	double g[] = new double[nv];
+	double fx = evaluate(x, g) + l1(x);
+	double pg[] = owl ? pseudoGradient(x, g) : g;
+
+	double s[][] = new double[M][], y[][] = new double[M][];
+	double rho[] = new double[M];
+	int nPairs = 0, newest = -1;
+
+	double xNew[] = new double[nv], gNew[] = new double[nv];
+	// scratch space for the candidate (s,y) pair; it only goes into
+	// the ring once its curvature has been accepted
+	double sNew[] = new double[nv], yNew[] = new double[nv];
+	double d[] = new double[nv];
+	int t = 0;
+
+	while(true) {
+	    double pgNorm = Math.sqrt(dot(pg,pg));
+	    if (Suite.verbosity>0) {
+		System.out.println("[QN] t="+t+", L="+(-fx)+", |grad L|=" + pgNorm + ", evals=" + nEval);
+	    }
+	    if (pgNorm <= gradEps) break;
+
+	    // d := - H pg, by the two-loop recursion
+	    for(int i=0; i<nv; i++) d[i] = -pg[i];
+	    double alpha[] = new double[M];
+	    for(int h=0; h<nPairs; h++) {
+		int q = (newest - h + M) % M;
+		alpha[q] = rho[q] * dot(s[q], d);
+		axpy(-alpha[q], y[q], d);
+	    }
+	    if (nPairs > 0) {
+		int q = newest;
+		double gamma = dot(s[q],y[q]) / dot(y[q],y[q]);
+		for(int i=0; i<nv; i++) d[i] *= gamma;
+	    }
+	    for(int h=nPairs-1; h>=0; h--) {
+		int q = (newest - h + M) % M;
+		double beta = rho[q] * dot(y[q], d);
+		axpy(alpha[q]-beta, s[q], d);
+	    }
+
+	    if (owl) {
+		// keep only the components that agree in sign with
+		// the steepest descent direction
+		for(int i=0; i<nv; i++) {
+		    if (d[i] * pg[i] >= 0) d[i] = 0;
+		}
+	    }
+
+	    double dirDeriv = dot(pg, d);
+	    if (dirDeriv >= 0) {
+		// Not a descent direction (may happen due to round-off);
+		// restart from the steepest descent
+		if (Suite.verbosity>0) System.out.println("[QN] Resetting the L-BFGS memory");
+		nPairs = 0;
+		for(int i=0; i<nv; i++) d[i] = -pg[i];
+		dirDeriv = dot(pg, d);
+		if (dirDeriv >= 0) break;
+	    }
+
+	    // Backtracking line search. The very first step is scaled
+	    // so that it has the unit length.
+	    double step = (nPairs==0 && t==0) ? 1/Math.sqrt(-dirDeriv) : 1;
+	    double fNew = 0;
+	    boolean found = false;
+	    for(int b=0; b<MAX_BACKTRACK; b++) {
+		for(int i=0; i<nv; i++) xNew[i] = x[i] + step*d[i];
+		if (owl) {
+		    // Project onto the orthant of x (or, for x_i=0, of -pg)
+		    for(int i=0; i<nv; i++) {
+			double orth = (x[i] != 0) ? x[i] : -pg[i];
+			if (xNew[i] * orth <= 0) xNew[i] = 0;
+		    }
+		}
+		fNew = evaluate(xNew, gNew) + l1(xNew);
+		double decrease = 0;
+		for(int i=0; i<nv; i++) decrease += pg[i] * (xNew[i]-x[i]);
+		if (fNew <= fx + C1 * decrease) {
+		    found = true;
+		    break;
+		}
+		step *= BACKTRACK;
+	    }
+	    if (!found) {
+		if (Suite.verbosity>0) System.out.println("[QN] Line search failed to improve f; stopping");
+		writeMatrix(x);
+		break;
+	    }
+
+	    // Store the new (s,y) pair; skip it if the curvature is not
+	    // positive, to keep H positive definite
+	    for(int i=0; i<nv; i++) {
+		sNew[i] = xNew[i] - x[i];
+		yNew[i] = gNew[i] - g[i];
+	    }
+	    double sy = dot(sNew, yNew);
+	    if (sy > 0) {
+		newest = (newest + 1) % M;
+		// swap with the slot being replaced, so that its arrays
+		// (if any) become the next scratch pair
+		double sOld[] = s[newest], yOld[] = y[newest];
+		s[newest] = sNew;
+		y[newest] = yNew;
+		sNew = (sOld != null) ? sOld : new double[nv];
+		yNew = (yOld != null) ? yOld : new double[nv];
+		rho[newest] = 1/sy;
+		if (nPairs < M) nPairs++;
+	    }
+
+	    double delta = fx - fNew; // increase of f=L-P
+	    double tmp[] = x; x = xNew; xNew = tmp;
+	    tmp = g; g = gNew; gNew = tmp;
+	    fx = fNew;
+	    pg = owl ? pseudoGradient(x, g) : g;
+	    t++;
+
+	    if (delta < eps) {
+		if (Suite.verbosity>0) {
+		    System.out.println("[QN] t="+t+", L="+(-fx)+" (delta L=" + delta + "), evals=" + nEval);
+		}
+		break;
+	    }
+	}
+	// make sure that w corresponds to x (rather than to the last
+	// point tried by the line search)
+	writeMatrix(x);
+	System.out.println("[QN] Final PLRM matrix after "+t+" iterations, "+nEval+" evaluations: #features="+w.getNRows() + ", #classes="+dis.claCount()+", nzCount="+w.nzCount());
+    }
+
+    /** Decides which features' rows will be optimized: those
+	occurring in the training set, and those already having
+	non-zero values in the matrix */
+    private void initSlots() {
+	int d = w.getNRows();
+	for(DataPoint p: dpa.points) {
+	    for(int j: p.features) d = Math.max(d, j+1);
+	}
+	slotOf = new int[d];
+	Arrays.fill(slotOf, -1);
+	int cnt = 0;
+	for(int j=0; j<w.getNRows(); j++) {
+	    if (w.getRow(j)!=null && slotOf[j]<0) slotOf[j] = cnt++;
+	}
+	for(DataPoint p: dpa.points) {
+	    for(int j: p.features) {
+		if (slotOf[j]<0) slotOf[j] = cnt++;
+	    }
+	}
+	slotFeature = new int[cnt];
+	for(int j=0; j<d; j++) {
+	    if (slotOf[j]>=0) slotFeature[slotOf[j]] = j;
+	}
+	nv = cnt * r;
+    }
+
+    /** Copies the current matrix into a flat array */
+    private double[] readMatrix() {
+	double x[] = new double[nv];
+	for(int s=0; s<slotFeature.length; s++) {
+	    BetaMatrix.Row v = w.getRow(slotFeature[s]);
+	    if (v==null) continue;
+	    for(int h=0; h<v.size; h++) x[s*r + v.icla[h]] = v.value[h];
+	}
+	return x;
+    }
+
+    /** Copies the flat array into the matrix, dropping zero
+	elements. This is done once the optimization is over. */
+    private void writeMatrix(double x[]) {
+	for(int s=0; s<slotFeature.length; s++) {
+	    w.setDenseRow(slotFeature[s], x, s*r, r);
+	}
+	rowsDense = false;
+    }
+
+    /** Copies the flat array into the matrix, for {@link
+	#evaluate(double[],double[])}. On the first call, the rows of
+	all slots are made dense (with elements for all classes); after
+	that, their values are simply overwritten, so that the line
+	search does not allocate new rows on every evaluation. The zeros
+	thus stored are dropped by the final {@link
+	#writeMatrix(double[])}.
+     */
+    private void loadMatrix(double x[]) {
+	if (!rowsDense) {
+	    final double zero[] = new double[r];
+	    for(int s=0; s<slotFeature.length; s++) w.addDenseRow(slotFeature[s], zero, 0);
+	    rowsDense = true;
+	}
+	for(int s=0; s<slotFeature.length; s++) {
+	    System.arraycopy(x, s*r, w.getRow(slotFeature[s]).value, 0, r);
+	}
+	w.modified();
+    }
+
+    /** Computes the smooth part of the objective function we
+	minimize, F = -L + (ivar/2)|B|^2, and its gradient, at the
+	point x. (The non-smooth part, lambda*|B|_1, is added by the caller)
+	@param g Output: grad F
+    */
+    private double evaluate(double x[], final double g[]) {
+	nEval++;
+	loadMatrix(x);
+	final double [][] zz = new double[dpa.length()][];
+	double logLik = dpa.logLikelihood(block, zz);
+
+	// grad F = -(1/n) X(Y-P) + ivar*B
+	Arrays.fill(g, 0);
+	int nc = learner.chunkCount(dpa.length(), DataPointArray.MIN_CHUNK);
+	if (nc==1) {
+	    addGrad(zz, 0, dpa.length(), g);
+	} else {
+	    final double partial[][] = new double[nc][];
+	    learner.forEachChunk(dpa.length(), nc, new Learner.ChunkTask() {
+		    void run(int chunk, int from, int to) {
+			addGrad(zz, from, to, partial[chunk] = new double[g.length]);
+		    }});
+	    for(double[] p: partial) axpy(1, p, g);
+	}
+
+	double f = -logLik;
+	if (ivar != 0) {
+	    f += 0.5 * ivar * dot(x,x);
+	    axpy(ivar, x, g);
+	}
+	return f;
+    }
+
+    /** Adds the contribution of dpa.points[i1:i2-1] to -grad L */
+    private void addGrad(double [][] zz, int i1, int i2, double g[]) {
+	final double mult = -1.0/dpa.sumCnt;
+	for(int i=i1; i<i2; i++) {
+	    double z[] = zz[i];
+	    DataPoint p = dpa.points.elementAt(i);
+	    for(int h=0; h<p.features.length; h++) {
+		int base = slotOf[p.features[h]] * r;
+		double q = p.values[h] * mult;
+		for(int k=0; k<r; k++) g[base+k] += q * z[k];
+	    }
+	}
+    }
+
+    /** lambda*|x|_1, or 0 if no Laplace prior is used */
+    private double l1(double x[]) {
+	if (lambda==0) return 0;
+	double sum = 0;
+	for(double q: x) sum += Math.abs(q);
+	return lambda * sum;
+    }
+
+    /** The pseudo-gradient of F + lambda*|x|_1 (as per OWL-QN): the
+	directional derivative that is the smallest in the absolute
+	value at points where |x_i| is not differentiable */
+    private double[] pseudoGradient(double x[], double g[]) {
+	double pg[] = new double[nv];
+	for(int i=0; i<nv; i++) {
+	    if (x[i] > 0) pg[i] = g[i] + lambda;
+	    else if (x[i] < 0) pg[i] = g[i] - lambda;
+	    else if (g[i] + lambda < 0) pg[i] = g[i] + lambda;
+	    else if (g[i] - lambda > 0) pg[i] = g[i] - lambda;
+	    else pg[i] = 0;
+	}
+	return pg;
+    }
+
+    private static double dot(double a[], double b[]) {
+	double sum = 0;
+	for(int i=0; i<a.length; i++) sum += a[i]*b[i];
+	return sum;
+    }
+
+    /** y += a*x */
+    private static void axpy(double a, double x[], double y[]) {
+	for(int i=0; i<x.length; i++) y[i] += a*x[i];
+    }
+}
+
+/*
+Copyright 2009-2011, Rutgers University, New Brunswick, NJ.
+
+All Rights Reserved
+
+Permission to use, copy, and modify this software and its documentation for any purpose
+other than its incorporation into a commercial product is hereby granted without fee,
+provided that the above copyright notice appears in all copies and that both that
+copyright notice and this permission notice appear in supporting documentation, and that
+the names of Rutgers University, DIMACS, and the authors not be used in advertising or
+publicity pertaining to distribution of the software without specific, written prior
+permission.
+
+RUTGERS UNIVERSITY, DIMACS, AND THE AUTHORS DISCLAIM ALL WARRANTIES WITH REGARD TO
+THIS SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ANY PARTICULAR PURPOSE. IN NO EVENT SHALL RUTGERS UNIVERSITY, DIMACS, OR THE AUTHORS
+BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER
+RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT,
+NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+PERFORMANCE OF THIS SOFTWARE.
+*/
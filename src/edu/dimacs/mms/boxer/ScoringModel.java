@@ -0,0 +1,473 @@
+package edu.dimacs.mms.boxer;
+
+import java.io.*;
+
+/** An immutable, compact form of the model of a trained {@link
+    PLRMLearner}, meant for scoring only. A ScoringModel is produced
+    by {@link PLRMLearner#exportScoringModel(boolean)} (or read from a
+    file written by {@link #save(File)}), and carries none of the
+    training-only state of the learner: no Truncation, no priors, no
+    latent matrices of EG, and no link to the Suite or to its
+    FeatureDictionary. What it does contain is:
+
+    <ul>
+
+    <li>The names of the discriminations and of their classes, and
+    the tables that map positions in a score array to (discrimination,
+    class) and back.
+
+    <li>The coefficients of all discriminations, in one CSR-format
+    matrix (as in {@link FusedBetaView}), with a row only for those
+    features that have at least one non-zero coefficient. The values
+    can be stored as double (which gives exactly the same scores as
+    the learner itself) or as float (which takes less memory).
+
+    <li>An open-addressing hash table that maps feature labels to
+    rows. If the model has been exported from a suite with a {@link
+    HashingFeatureDictionary}, the table maps feature ids instead, and
+    the labels given to the scoring methods are first hashed to ids
+    the same way as that dictionary would do it (the number of bits
+    is stored with the model). The rows' labels are then only kept
+    for display, and for {@link #save(File)}.
+    </ul>
+
+    <p>The scores for all classes of all discriminations are written
+    into a single caller-supplied array of {@link #width()} elements;
+    the classes of discrimination did occupy positions {@link
+    #getOffset(int) getOffset(did)} through getOffset(did+1)-1, in the
+    same order as in the Discrimination. The scoring methods allocate
+    nothing, and, since the object is immutable, they can be called
+    from any number of threads at once.
+ */
+public final class ScoringModel {
+
+    /** Names of the discriminations, and of their classes */
+    private final String[] disNames;
+    private final String[][] claNames;
+    /** The classes of discrimination did occupy positions
+	discOffset[did] through discOffset[did+1]-1 of a score array */
+    private final int[] discOffset;
+    /** For each position of a score array: the discrimination, and
+	the class's position within the discrimination */
+    private final int[] colDid, colCla;
+
+    /** Feature labels, by row */
+    private final String[] labels;
+    /** The number of bits of the hashing dictionary from which the
+	model has been exported, or 0 if it was a regular one */
+    private final int hashingBits;
+    /** With a hashing dictionary, the feature ids, by row (otherwise,
+	null) */
+    private final int[] rowIds;
+    /** Elements of row i are at positions rowStart[i] through
+	rowStart[i+1]-1 of col[] and val[] (or fval[]) */
+    private final int[] rowStart;
+    private final int[] col;
+    /** Coefficient values; exactly one of these arrays is non-null */
+    private final double[] val;
+    private final float[] fval;
+
+    /** The hash table (keyed by labels, or by ids with a hashing
+	dictionary): each slot contains 1+row, or 0 for an empty
+	slot. The size is a power of 2, and at least twice the number
+	of rows. Collisions are resolved by linear probing. */
+    private final int[] slots;
+    private final int mask;
+    /** The row of the intercept (the dummy feature), or -1 if none */
+    private final int dummyRow;
+
+    private ScoringModel(String[] _disNames, String[][] _claNames, String[] _labels, int _hashingBits, int[] _rowStart, int[] _col, double[] _val, float[] _fval) {
+	disNames = _disNames;
+	claNames = _claNames;
+	labels = _labels;
+	hashingBits = _hashingBits;
+	rowStart = _rowStart;
+	col = _col;
+	val = _val;
+	fval = _fval;
+
+	final int nd = disNames.length;
+	discOffset = new int[nd+1];
+	for(int did=0; did<nd; did++) discOffset[did+1] = discOffset[did] + claNames[did].length;
+	colDid = new int[discOffset[nd]];
+	colCla = new int[discOffset[nd]];
+	for(int did=0; did<nd; did++) {
+	    for(int k=0; k<claNames[did].length; k++) {
+		colDid[discOffset[did] + k] = did;
+		colCla[discOffset[did] + k] = k;
+	    }
+	}
+
+	if (hashingBits > 0) {
+	    rowIds = new int[labels.length];
+	    for(int i=0; i<labels.length; i++) rowIds[i] = HashingFeatureDictionary.labelToId(labels[i], hashingBits);
+	} else {
+	    rowIds = null;
+	}
+
+	int size = 2;
+	while(size < 2*labels.length) size *= 2;
+	slots = new int[size];
+	mask = size-1;
+	for(int i=0; i<labels.length; i++) {
+	    int h = (rowIds!=null ? hash(rowIds[i]) : hash(labels[i])) & mask;
+	    while(slots[h]!=0) {
+		int e = slots[h]-1;
+		if (rowIds!=null ? rowIds[e]==rowIds[i] : labels[e].equals(labels[i])) throw new IllegalArgumentException("Duplicate feature label in a scoring model: " + labels[i]);
+		h = (h+1) & mask;
+	    }
+	    slots[h] = i+1;
+	}
+	dummyRow = getRow(FeatureDictionary.DUMMY_LABEL);
+    }
+
+    /** Creates a ScoringModel from the current state of the
+	learner's matrices. This should not be done while the learner
+	is being trained. */
+    static ScoringModel export(PLRMLearner algo, boolean singlePrecision) {
+	final FeatureDictionary dic = algo.getSuite().getDic();
+	final int nd = algo.blocks.length;
+	String[] disNames = new String[nd];
+	String[][] claNames = new String[nd][];
+	for(int did=0; did<nd; did++) {
+	    Discrimination dis = algo.blocks[did].dis;
+	    disNames[did] = dis.getName();
+	    claNames[did] = new String[dis.claCount()];
+	    for(int k=0; k<claNames[did].length; k++) claNames[did][k] = dis.getClaById(k).getName();
+	}
+
+	FusedBetaView f = new FusedBetaView(algo.blocks);
+	// count the non-zero rows and elements
+	int nRows = 0, nnz = 0;
+	for(int j=0; j<f.getNRows(); j++) {
+	    int c = 0;
+	    for(int h=f.rowStart[j]; h<f.rowStart[j+1]; h++) {
+		if (f.val[h]!=0) c++;
+	    }
+	    if (c>0) {
+		nRows++;
+		nnz += c;
+	    }
+	}
+
+	String[] labels = new String[nRows];
+	int[] rowStart = new int[nRows+1];
+	int[] col = new int[nnz];
+	double[] val = singlePrecision ? null : new double[nnz];
+	float[] fval = singlePrecision ? new float[nnz] : null;
+	int i=0, pos=0;
+	for(int j=0; j<f.getNRows(); j++) {
+	    final int pos0 = pos;
+	    for(int h=f.rowStart[j]; h<f.rowStart[j+1]; h++) {
+		if (f.val[h]==0) continue;
+		col[pos] = f.col[h];
+		if (singlePrecision) fval[pos] = (float)f.val[h];
+		else val[pos] = f.val[h];
+		pos++;
+	    }
+	    if (pos > pos0) {
+		labels[i] = dic.getLabel(j);
+		rowStart[++i] = pos;
+	    }
+	}
+	return new ScoringModel(disNames, claNames, labels, dic.getHashingBits(), rowStart, col, val, fval);
+    }
+
+    /** A hash function for the table; String.hashCode() is cached
+	in the String object, so this costs nothing beyond the first
+	call for a given String */
+    private static int hash(String s) {
+	int h = s.hashCode() * 0x9e3779b9;
+	return h ^ (h >>> 16);
+    }
+
+    /** Same, for feature ids (used with a hashing dictionary) */
+    private static int hash(int id) {
+	int h = id * 0x9e3779b9;
+	return h ^ (h >>> 16);
+    }
+
+    /** Returns the row number for the feature with the specified
+	label, or -1 if the feature has no non-zero coefficients in the
+	model. With a hashing dictionary, the label is hashed to an id
+	first. */
+    int getRow(String label) {
+	if (rowIds!=null) return getRowById(HashingFeatureDictionary.labelToId(label, hashingBits));
+	int h = hash(label) & mask;
+	while(true) {
+	    int e = slots[h];
+	    if (e==0) return -1;
+	    if (labels[e-1].equals(label)) return e-1;
+	    h = (h+1) & mask;
+	}
+    }
+
+    /** Returns the row number for the feature with the specified id
+	in the hashing dictionary, or -1 if there is no such row. Only
+	can be used if {@link #getHashingBits()} is positive. */
+    private int getRowById(int id) {
+	int h = hash(id) & mask;
+	while(true) {
+	    int e = slots[h];
+	    if (e==0) return -1;
+	    if (rowIds[e-1]==id) return e-1;
+	    h = (h+1) & mask;
+	}
+    }
+
+    /** The total number of classes in all discriminations, i.e. the
+	required size of the array for scores */
+    public int width() { return discOffset[disNames.length]; }
+
+    /** The number of discriminations */
+    public int disCnt() { return disNames.length; }
+
+    public String getDisName(int did) { return disNames[did]; }
+
+    /** Returns the index of the named discrimination, or -1 if there
+	is none */
+    public int getDid(String disName) {
+	for(int did=0; did<disNames.length; did++) {
+	    if (disNames[did].equals(disName)) return did;
+	}
+	return -1;
+    }
+
+    public int claCount(int did) { return claNames[did].length; }
+
+    public String getClaName(int did, int k) { return claNames[did][k]; }
+
+    /** The position of the first class of discrimination did in a score
+	array. Also can be used with did=disCnt(), which gives width() */
+    public int getOffset(int did) { return discOffset[did]; }
+
+    /** The discrimination to which the class at position pos of a score
+	array belongs */
+    public int getDidAt(int pos) { return colDid[pos]; }
+
+    /** The position, within its discrimination, of the class at
+	position pos of a score array */
+    public int getClaAt(int pos) { return colCla[pos]; }
+
+    /** The number of features with non-zero coefficients */
+    public int getFeatureCount() { return labels.length; }
+
+    /** Were the coefficients stored as floats? */
+    public boolean isSinglePrecision() { return fval!=null; }
+
+    /** The number of bits of the hashing dictionary from which the
+	model has been exported, or 0 if it was a regular dictionary */
+    public int getHashingBits() { return hashingBits; }
+
+    /** Adds x times row r to out[] */
+    private void addRow(int r, double x, double[] out) {
+	if (fval!=null) {
+	    for(int h=rowStart[r]; h<rowStart[r+1]; h++) out[col[h]] += x * fval[h];
+	} else {
+	    for(int h=rowStart[r]; h<rowStart[r+1]; h++) out[col[h]] += x * val[h];
+	}
+    }
+
+    /** Computes the dot products of the vector given by
+	feats[0:n-1] and values[0:n-1] with the beta vectors of all
+	classes, and writes them into out[0:width()-1]. The intercept
+	is added automatically, and the dummy label in the input, if
+	any, is ignored. Features unknown to the model are ignored
+	too. Note that the dot products are accumulated in the order
+	of the input features; so to get exactly the same scores as the
+	learner would give, the features should be in the order of
+	their IDs in the suite's dictionary */
+    private void dotProducts(String[] feats, double[] values, int n, double[] out) {
+	java.util.Arrays.fill(out, 0, width(), 0);
+	if (dummyRow>=0) addRow(dummyRow, 1, out);
+	for(int i=0; i<n; i++) {
+	    int r = getRow(feats[i]);
+	    if (r<0 || r==dummyRow) continue;
+	    addRow(r, values[i], out);
+	}
+    }
+
+    /** Same as dotProducts(String[]...) for a DataPoint. It may come
+	from any suite, as the features are looked up by their labels;
+	but if the point comes from a suite whose hashing dictionary
+	has the same number of bits as the model's, its feature ids are
+	used directly */
+    private void dotProducts(DataPoint p, double[] out) {
+	java.util.Arrays.fill(out, 0, width(), 0);
+	final boolean sameIds = (rowIds!=null && p.dic.getHashingBits()==hashingBits);
+	for(int i=0; i<p.features.length; i++) {
+	    int r = sameIds ? getRowById(p.features[i]) : getRow(p.dic.getLabel(p.features[i]));
+	    if (r<0) continue;
+	    addRow(r, p.values[i], out);
+	}
+    }
+
+    /** Computes the probabilities of the vector (feats[0:n-1],
+	values[0:n-1]) belonging to all classes of all
+	discriminations, writing them into out[0:width()-1]. The
+	features are given by their labels, as they appear in the input
+	data (with a model exported from a suite that uses a hashing
+	dictionary, the labels are hashed the same way as that
+	dictionary would hash them); the dummy feature should not be
+	given (it is ignored if it is).
+     */
+    public void score(String[] feats, double[] values, int n, double[] out) {
+	dotProducts(feats, values, n, out);
+	for(int did=0; did<disNames.length; did++) {
+	    PLRMLearner.expNormalize(out, discOffset[did], claNames[did].length);
+	}
+    }
+
+    /** Same as {@link #score(String[], double[], int, double[])}, but
+	produces the logarithms of the probabilities */
+    public void scoreLog(String[] feats, double[] values, int n, double[] out) {
+	dotProducts(feats, values, n, out);
+	for(int did=0; did<disNames.length; did++) {
+	    PLRMLearner.logNormalize(out, discOffset[did], claNames[did].length);
+	}
+    }
+
+    /** Computes the probabilities of the data point's belonging to
+	all classes of all discriminations, writing them into
+	out[0:width()-1]. With double-precision coefficients, the
+	results are identical to those of the learner's
+	applyModel(p). */
+    public void score(DataPoint p, double[] out) {
+	dotProducts(p, out);
+	for(int did=0; did<disNames.length; did++) {
+	    PLRMLearner.expNormalize(out, discOffset[did], claNames[did].length);
+	}
+    }
+
+    /** Same as {@link #score(DataPoint, double[])}, but produces the
+	logarithms of the probabilities */
+    public void scoreLog(DataPoint p, double[] out) {
+	dotProducts(p, out);
+	for(int did=0; did<disNames.length; did++) {
+	    PLRMLearner.logNormalize(out, discOffset[did], claNames[did].length);
+	}
+    }
+
+    /** Returns the position (within discrimination did) of the class
+	with the highest score in s[], which has been filled by one of
+	the scoring methods */
+    public int bestCla(double[] s, int did) {
+	int best = -1;
+	for(int k=discOffset[did]; k<discOffset[did+1]; k++) {
+	    if (best<0 || s[k] > s[best]) best = k;
+	}
+	return best<0 ? -1 : colCla[best];
+    }
+
+    /** Magic number and format version for save() and read() */
+    private static final int MAGIC = 0x424f5853, FORMAT_VERSION = 2;
+
+    /** Writes the model into a binary file, which can be read back
+	with {@link #read(File)}. This is much faster than reading a
+	learner complex from XML, and needs no Suite. */
+    public void save(File f) throws IOException {
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1<<16));
+	try {
+	    out.writeInt(MAGIC);
+	    out.writeInt(FORMAT_VERSION);
+	    out.writeBoolean(fval!=null);
+	    out.writeInt(hashingBits);
+	    out.writeInt(disNames.length);
+	    for(int did=0; did<disNames.length; did++) {
+		out.writeUTF(disNames[did]);
+		out.writeInt(claNames[did].length);
+		for(String c: claNames[did]) out.writeUTF(c);
+	    }
+	    out.writeInt(labels.length);
+	    out.writeInt(col.length);
+	    for(int i=0; i<labels.length; i++) {
+		out.writeUTF(labels[i]);
+		out.writeInt(rowStart[i+1] - rowStart[i]);
+		for(int h=rowStart[i]; h<rowStart[i+1]; h++) {
+		    out.writeInt(col[h]);
+		    if (fval!=null) out.writeFloat(fval[h]);
+		    else out.writeDouble(val[h]);
+		}
+	    }
+	} finally {
+	    out.close();
+	}
+    }
+
+    /** Reads a model from a file written by {@link #save(File)} */
+    public static ScoringModel read(File f) throws IOException {
+	DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1<<16));
+	try {
+	    if (in.readInt() != MAGIC) throw new IOException("File " + f + " is not a BOXER scoring model file");
+	    int v = in.readInt();
+	    if (v < 1 || v > FORMAT_VERSION) throw new IOException("Scoring model file " + f + " has format version " + v + "; only versions 1 through " + FORMAT_VERSION + " are supported");
+	    boolean single = in.readBoolean();
+	    // version 1 files had no hashing dictionary info
+	    int bits = (v >= 2) ? in.readInt() : 0;
+	    if (bits < 0 || bits > 30) throw new IOException("Scoring model file " + f + " is corrupted");
+	    int nd = in.readInt();
+	    String[] disNames = new String[nd];
+	    String[][] claNames = new String[nd][];
+	    int width = 0;
+	    for(int did=0; did<nd; did++) {
+		disNames[did] = in.readUTF();
+		claNames[did] = new String[in.readInt()];
+		for(int k=0; k<claNames[did].length; k++) claNames[did][k] = in.readUTF();
+		width += claNames[did].length;
+	    }
+	    int nRows = in.readInt(), nnz = in.readInt();
+	    String[] labels = new String[nRows];
+	    int[] rowStart = new int[nRows+1];
+	    int[] col = new int[nnz];
+	    double[] val = single ? null : new double[nnz];
+	    float[] fval = single ? new float[nnz] : null;
+	    for(int i=0; i<nRows; i++) {
+		labels[i] = in.readUTF();
+		rowStart[i+1] = rowStart[i] + in.readInt();
+		if (rowStart[i+1] > nnz) throw new IOException("Scoring model file " + f + " is corrupted");
+		for(int h=rowStart[i]; h<rowStart[i+1]; h++) {
+		    col[h] = in.readInt();
+		    if (col[h]<0 || col[h]>=width) throw new IOException("Scoring model file " + f + " is corrupted");
+		    if (single) fval[h] = in.readFloat();
+		    else val[h] = in.readDouble();
+		}
+	    }
+	    return new ScoringModel(disNames, claNames, labels, bits, rowStart, col, val, fval);
+	} finally {
+	    in.close();
+	}
+    }
+
+    public long memoryEstimate() {
+	long sum = Sizeof.OBJ + (rowStart.length + col.length + slots.length + 3*colDid.length + (rowIds!=null ? rowIds.length : 0)) * Sizeof.INT +
+	    (fval!=null ? fval.length * Sizeof.FLOAT : val.length * Sizeof.DOUBLE);
+	for(String s: labels) sum += Sizeof.OBJREF + 2*Sizeof.OBJ + 2*s.length();
+	return sum;
+    }
+
+    public String describe() {
+	return "ScoringModel: " + disNames.length + " discriminations, " + width() + " classes, " + labels.length + " features, " + col.length + " coefficients (" + (fval!=null ? "float" : "double") + ")" + (hashingBits>0 ? ", hashed to 2^" + hashingBits + " ids" : "") + ", memory use=" + memoryEstimate() + " bytes";
+    }
+}
+
+/*
+Copyright 2009-2011, Rutgers University, New Brunswick, NJ.
+
+All Rights Reserved
+
+Permission to use, copy, and modify this software and its documentation for any purpose
+other than its incorporation into a commercial product is hereby granted without fee,
+provided that the above copyright notice appears in all copies and that both that
+copyright notice and this permission notice appear in supporting documentation, and that
+the names of Rutgers University, DIMACS, and the authors not be used in advertising or
+publicity pertaining to distribution of the software without specific, written prior
+permission.
+
+RUTGERS UNIVERSITY, DIMACS, AND THE AUTHORS DISCLAIM ALL WARRANTIES WITH REGARD TO
+THIS SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ANY PARTICULAR PURPOSE. IN NO EVENT SHALL RUTGERS UNIVERSITY, DIMACS, OR THE AUTHORS
+BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER
+RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT,
+NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+PERFORMANCE OF THIS SOFTWARE.
+*/
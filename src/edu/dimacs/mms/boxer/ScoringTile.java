@@ -0,0 +1,157 @@
+package edu.dimacs.mms.boxer;
+
+import java.util.*;
+
+/** An auxiliary class for batch scoring in {@link PLRMLearner}: a
+    "tile" of data points, transposed into the feature-major layout
+    (feature to the list of (point, value) pairs). Multiplying the
+    tile by a model matrix is done in the style of a sparse matrix
+    by sparse matrix multiplication: each matrix row is fetched once
+    per tile, and applied to all points in the tile that have that
+    feature. This gives much better locality than scoring points one
+    by one, when the model is large and the points share many
+    features.
+
+    <p>The features are processed in increasing order, so that each
+    dot product is accumulated in exactly the same order as in
+    {@link DataPoint#dotProducts(BetaMatrix, Discrimination)}; thus
+    the results are identical to those of point-by-point scoring.
+
+    <p>An object can be reused for any number of tiles, but it is not
+    thread-safe; each thread needs its own.
+*/
+class ScoringTile {
+
+    /** Number of points in the tile */
+    private int n=0;
+    /** Number of (point, feature) pairs in the tile */
+    private int nnz=0;
+    /** Number of distinct features in the tile */
+    private int nf=0;
+    /** The distinct features of the tile, in increasing order */
+    private int[] feat = new int[0];
+    /** The pairs for feat[k] are at positions start[k] through
+	start[k+1]-1 of doc[] and x[], in the order of points */
+    private int[] start = new int[1];
+    /** Point (0 to n-1) and feature value, for each pair */
+    private int[] doc = new int[0];
+    private double[] x = new double[0];
+
+    /** Per-feature counters, indexed by feature id; all zeros
+	between calls to load() */
+    private int[] cnt = new int[0];
+
+    /** Loads the points v[i1:i2-1] into this tile, replacing its
+	previous content. This is a counting sort of the (point,
+	feature) pairs by feature, which only sorts the distinct
+	features, and is stable with respect to the point order. */
+    void load(Vector<DataPoint> v, int i1, int i2) {
+	n = i2-i1;
+	nnz = 0;
+	nf = 0;
+	int maxF = -1;
+	for(int i=i1; i<i2; i++) {
+	    DataPoint p = v.elementAt(i);
+	    nnz += p.features.length;
+	    if (p.features.length>0) maxF = Math.max(maxF, p.features[p.features.length-1]);
+	}
+	if (cnt.length <= maxF) cnt = new int[Math.max(maxF+1, 2*cnt.length)];
+	if (doc.length < nnz) {
+	    int cap = Math.max(nnz, 2*doc.length);
+	    doc = new int[cap];
+	    x = new double[cap];
+	}
+
+	// count the pairs for each feature, and list distinct features
+	for(int i=i1; i<i2; i++) {
+	    for(int j: v.elementAt(i).features) {
+		if (cnt[j]++ == 0) {
+		    if (nf >= feat.length) feat = Arrays.copyOf(feat, Math.max(16, 2*feat.length));
+		    feat[nf++] = j;
+		}
+	    }
+	}
+	Arrays.sort(feat, 0, nf);
+	if (start.length < nf+1) start = new int[Math.max(nf+1, 2*start.length)];
+	// from now on, cnt[j] is the next free position for feature j
+	int pos = 0;
+	for(int k=0; k<nf; k++) {
+	    start[k] = pos;
+	    int c = cnt[feat[k]];
+	    cnt[feat[k]] = pos;
+	    pos += c;
+	}
+	start[nf] = pos;
+
+	for(int i=i1; i<i2; i++) {
+	    DataPoint p = v.elementAt(i);
+	    for(int h=0; h<p.features.length; h++) {
+		int q = cnt[p.features[h]]++;
+		doc[q] = i-i1;
+		x[q] = p.values[h];
+	    }
+	}
+	for(int k=0; k<nf; k++) cnt[feat[k]] = 0;
+    }
+
+    /** Number of points in the tile */
+    int size() { return n; }
+
+    /** Adds the products of the tile's points with the matrix w to
+	the output array: for each point i (0 to n-1) and each column
+	c of w, the dot product goes to out[i*width + off + c] */
+    void multiply(BetaMatrix w, double[] out, int width, int off) {
+	for(int k=0; k<nf; k++) {
+	    BetaMatrix.Row v = w.getRow(feat[k]);
+	    if (v==null) continue;
+	    for(int m=start[k]; m<start[k+1]; m++) {
+		final int base = doc[m]*width + off;
+		final double xv = x[m];
+		for(int h=0; h<v.size; h++) {
+		    out[base + v.icla[h]] += xv * v.value[h];
+		}
+	    }
+	}
+    }
+
+    /** Same as {@link #multiply(BetaMatrix, double[], int, int)}, for
+	the fused matrix of all discriminations (with off=0) */
+    void multiply(FusedBetaView f, double[] out, int width) {
+	final int nRows = f.getNRows();
+	for(int k=0; k<nf; k++) {
+	    final int j = feat[k];
+	    if (j >= nRows) break; // features are in increasing order
+	    final int r0 = f.rowStart[j], r1 = f.rowStart[j+1];
+	    if (r0==r1) continue;
+	    for(int m=start[k]; m<start[k+1]; m++) {
+		final int base = doc[m]*width;
+		final double xv = x[m];
+		for(int h=r0; h<r1; h++) {
+		    out[base + f.col[h]] += xv * f.val[h];
+		}
+	    }
+	}
+    }
+}
+
+/*
+Copyright 2009-2011, Rutgers University, New Brunswick, NJ.
+
+All Rights Reserved
+
+Permission to use, copy, and modify this software and its documentation for any purpose
+other than its incorporation into a commercial product is hereby granted without fee,
+provided that the above copyright notice appears in all copies and that both that
+copyright notice and this permission notice appear in supporting documentation, and that
+the names of Rutgers University, DIMACS, and the authors not be used in advertising or
+publicity pertaining to distribution of the software without specific, written prior
+permission.
+
+RUTGERS UNIVERSITY, DIMACS, AND THE AUTHORS DISCLAIM ALL WARRANTIES WITH REGARD TO
+THIS SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ANY PARTICULAR PURPOSE. IN NO EVENT SHALL RUTGERS UNIVERSITY, DIMACS, OR THE AUTHORS
+BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER
+RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT,
+NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+PERFORMANCE OF THIS SOFTWARE.
+*/
@@ -5,7 +5,7 @@ import java.util.*;
 /** Constants and utilities for estimating memory use of some data structures */
 public class Sizeof {
     /** Sizes, in bytes, of various things */
-    static final int OBJ=8, OBJREF=4, DOUBLE=8, INT=4;
+    static final int OBJ=8, OBJREF=4, DOUBLE=8, FLOAT=4, INT=4;
     
     public static long sizeof(int v[]) {
 	return  (v==null) ? 0 : OBJ + v.length * INT;
@@ -7,12 +7,15 @@ import java.text.NumberFormat;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.apache.xerces.dom.DocumentImpl;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.xml.sax.SAXException;
+import javax.xml.stream.*;
 
 /** A Suite is a set of {@link edu.dimacs.mms.boxer.Discrimination
     Discriminations}. It also keeps track of the list of {@link
@@ -58,8 +61,13 @@ public class Suite {
      * creation, and never changes. */
     public String getName() { return name; }
 
+    /** If positive, new suites use a {@link HashingFeatureDictionary}
+	with 2^defaultFeatureHashing ids, unless their XML definition
+	says otherwise. Set with -DfeatureHashing=b */
+    static int defaultFeatureHashing = new ParseConfig().getOption("featureHashing", 0);
+
     /** The feature dictionary associated with this suite */
-    FeatureDictionary dic = new FeatureDictionary();
+    FeatureDictionary dic = FeatureDictionary.create(defaultFeatureHashing);
 
     /** The priors set associated with the suite. It should be set
 	before any learners are created; it will affect all TG learners
@@ -295,6 +303,181 @@ public class Suite {
 	dic = _dic;
     }
  
+    /** Writes the suite's feature dictionary into a memory-mapped
+	dictionary file, and then replaces the dictionary with a {@link
+	MappedFeatureDictionary} backed by that file. The ids of all
+	features stay the same, so this can be done at any time; but a
+	learner complex saved afterwards will refer to the file, rather
+	than list all features, and thus can be read back much faster
+	(as long as the file is there).
+     */
+    public void mapDic(File f) throws IOException {
+	MappedFeatureDictionary.write(dic, f);
+	MappedFeatureDictionary m = new MappedFeatureDictionary(f);
+	if (m.getDimension() != dic.getDimension()) {
+	    throw new IllegalStateException("The feature dictionary has changed while being written to " + f);
+	}
+	dic = m;
+    }
+
+    /** The default for {@link #setFeatureCounting(boolean)}; it is
+	on if the system property compactModel is set */
+    static boolean defaultFeatureCounting = new ParseConfig().getOption("compactModel", false);
+
+    /** Are the features of training data points being counted? */
+    private volatile boolean featureCounting = defaultFeatureCounting;
+
+    /** For each feature id, the number of training (definitional)
+	data points read in this suite that contain the feature. It is
+	used by {@link #compactFeatures()} to give low ids to frequent
+	features. The counts are stored in chunks laid out the same
+	way as the labels in a FeatureDictionary, so that they can grow
+	without copying, and be incremented by several reader threads
+	at once without locking; chunks are only created while counting
+	is on. The counts are not saved with the suite, and start
+	from zero when a suite is read from a file. Not kept for
+	hashing dictionaries.
+     */
+    private AtomicReferenceArray<AtomicIntegerArray> featureCounts =
+	new AtomicReferenceArray<AtomicIntegerArray>(FeatureDictionary.MAX_CHUNKS);
+
+    /** Turns on or off the counting of features in the training data
+	read in this suite. The counts are only needed to order the
+	features in {@link #compactFeatures()}, so this is off by
+	default, unless the system property compactModel is set. If
+	the suite is compacted without counts, features are kept in
+	their original order. */
+    public void setFeatureCounting(boolean on) {
+	featureCounting = on;
+    }
+
+    /** Records the features of a data point that has just been read
+	from a training set. This is called from data-reading methods
+	(in ParseXML and BXRReader), and does nothing unless feature
+	counting is on.
+     */
+    void countFeatures(DataPoint p) {
+	if (!featureCounting || dic == null || dic instanceof HashingFeatureDictionary) return;
+	for(int j: p.getFeatures()) {
+	    int k = FeatureDictionary.chunkOf(j);
+	    countChunk(k).incrementAndGet(FeatureDictionary.offsetOf(j, k));
+	}
+    }
+
+    /** Gets the specified chunk of featureCounts, creating it if needed */
+    private AtomicIntegerArray countChunk(int k) {
+	AtomicIntegerArray c = featureCounts.get(k);
+	if (c == null) {
+	    featureCounts.compareAndSet(k, null, new AtomicIntegerArray(1 << (FeatureDictionary.FIRST_CHUNK_BITS + k)));
+	    c = featureCounts.get(k);
+	}
+	return c;
+    }
+
+    /** The count for feature j (0 if none has been recorded) */
+    private int getFeatureCount(int j) {
+	int k = FeatureDictionary.chunkOf(j);
+	AtomicIntegerArray c = featureCounts.get(k);
+	return (c == null) ? 0 : c.get(FeatureDictionary.offsetOf(j, k));
+    }
+
+    /** Compacts the feature dictionary and all learners' models. The
+	features are renumbered in the order of decreasing frequency in
+	the training data read so far (see {@link
+	#setFeatureCounting(boolean)}; if no counts have been kept, the
+	features stay in their original order), so that the rows of the most frequently used features end up
+	at the start of the learners' row arrays; and features for
+	which no learner has any non-zero data (e.g., because their
+	rows have been truncated to zero) are dropped. Features that
+	have feature-specific priors are never dropped. The dummy
+	feature stays in position 0.
+
+	<p>All learners' matrices, the state of their truncation, and
+	the feature-specific priors are renumbered consistently, so
+	that the model stays the same (the scores may still differ in
+	the last bits, as dot products are summed in a different
+	order). Further training, though, may not give the same model as
+	it would without compaction, if the learner's results depend on
+	the order of the features (as they do with {@link
+	CoordinateDescent}). Since feature ids change, DataPoint objects created
+	before the compaction must not be used afterwards; the method
+	is meant to be called between data files, e.g. after a
+	training file has been absorbed.
+
+	<p>The compaction is not done (and a warning is logged) if the
+	suite uses a hashing dictionary, whose ids are fixed, or if
+	any learner (such as kNN) does not support renumbering. A
+	compact dictionary is replaced with a new compact one; a mapped
+	one, with a regular one, since its file would no longer match.
+
+	@return The number of features dropped
+     */
+    synchronized public int compactFeatures() throws BoxerXMLException {
+	if (dic instanceof HashingFeatureDictionary) {
+	    Logging.warning("Feature compaction is not applicable to a hashing feature dictionary; skipped");
+	    return 0;
+	}
+	for(Learner algo: usedByLearners) {
+	    if (!algo.canRenumberFeatures()) {
+		Logging.warning("Feature compaction is not supported by learner " + algo.getName() + "; skipped");
+		return 0;
+	    }
+	}
+
+	final int d = dic.getDimension();
+	boolean used[] = new boolean[d];
+	for(Learner algo: usedByLearners) algo.markUsedFeatures(used);
+	if (priors != null) priors.markUsedFeatures(used);
+
+	// Sort kept features by count (descending), then by old id,
+	// packed into longs to avoid boxing
+	int n0 = (d>0 && dic.isDummy(0)) ? 1 : 0;
+	long keys[] = new long[d];
+	int n = 0;
+	for(int j=n0; j<d; j++) {
+	    if (!used[j]) continue;
+	    int cnt = getFeatureCount(j);
+	    keys[n++] = ((long)(Integer.MAX_VALUE - cnt) << 32) | j;
+	}
+	Arrays.sort(keys, 0, n);
+	int order[] = new int[n0 + n];
+	if (n0>0) order[0] = 0;
+	for(int k=0; k<n; k++) order[n0 + k] = (int)keys[k];
+
+	FeatureRenumMap map = new FeatureRenumMap(order, d);
+	if (map.isIdentity()) return 0;
+
+	FeatureDictionary newDic = (dic instanceof CompactFeatureDictionary) ?
+	    new CompactFeatureDictionary(((CompactFeatureDictionary)dic).offHeap) :
+	    new FeatureDictionary();
+	for(int k=newDic.getDimension(); k<order.length; k++) {
+	    if (newDic.getIdAlways(dic.getLabel(order[k])) != k) {
+		throw new AssertionError("Failed to build the renumbered dictionary at feature " + k);
+	    }
+	}
+	if (dic instanceof MappedFeatureDictionary) {
+	    Logging.info("The mapped feature dictionary is replaced with a regular one after compaction");
+	}
+
+	for(Learner algo: usedByLearners) algo.renumberFeatures(map);
+	if (priors != null) priors.renumberFeatures(map);
+	AtomicReferenceArray<AtomicIntegerArray> newCounts =
+	    new AtomicReferenceArray<AtomicIntegerArray>(FeatureDictionary.MAX_CHUNKS);
+	for(int j=0; j<order.length; j++) {
+	    int cnt = getFeatureCount(order[j]);
+	    if (cnt == 0) continue;
+	    int k = FeatureDictionary.chunkOf(j);
+	    if (newCounts.get(k) == null) newCounts.set(k, new AtomicIntegerArray(1 << (FeatureDictionary.FIRST_CHUNK_BITS + k)));
+	    newCounts.get(k).set(FeatureDictionary.offsetOf(j, k), cnt);
+	}
+	featureCounts = newCounts;
+	dic = newDic;
+
+	int dropped = d - order.length;
+	if (verbosity>0) System.out.println("Compacted the feature dictionary: " + d + " features renumbered by frequency, " + dropped + " unused ones dropped");
+	return dropped;
+    }
+
     /** Returns the total number of classes in all discriminations of this
 	suite */
     public int totalClaCnt() {
@@ -933,6 +1116,16 @@ Exception in thread "main" java.lang.IllegalArgumentException: Array of classes
     public void saveAsXML(String fname) {
 
 	Document xmldoc= new DocumentImpl();
+	if (XMLUtil.streamingXML) {
+	    try {
+		XMLStreamWriter w = new FormattedXMLStreamWriter(fname);
+		XMLUtil.writeElement(w, saveAsXML(xmldoc));
+		w.close();
+	    } catch (XMLStreamException ex) {
+		System.err.println("Exception when trying to write XML file " + fname + "\n" + ex);
+	    }
+	    return;
+	}
 	Element e = saveAsXML(xmldoc);
 	xmldoc.appendChild(e);
 	XMLUtil.writeXML(xmldoc, fname);
@@ -957,6 +1150,9 @@ Exception in thread "main" java.lang.IllegalArgumentException: Array of classes
 	root.setAttribute(ParseXML.ATTR.SUITE.SUPPORTS_SIMPLE_LABELS, supportsSimpleLabels.toString());
 	root.setAttribute(ParseXML.ATTR.SUITE.HOW_TO_HANDLE_MISSING_IDS,
 			  howToHandleMissingIDs.toString());
+	if (dic.getHashingBits() > 0) {
+	    root.setAttribute(ParseXML.ATTR.SUITE.FEATURE_HASHING, "" + dic.getHashingBits());
+	}
 
 	int disCnt = disCnt();
        
@@ -971,11 +1167,69 @@ Exception in thread "main" java.lang.IllegalArgumentException: Array of classes
 	return root;
     }
 
+    /** Saves the complete learner complex (the suite, the feature
+	dictionary, the priors, and all learners) into an XML
+	file. Unless {@link XMLUtil#streamingXML} has been turned off,
+	this is done with {@link #serializeLearnerComplex(XMLStreamWriter)},
+	without building a DOM tree for the entire document.
+     */
     public void serializeLearnerComplex(String fname) {
+	if (XMLUtil.streamingXML) {
+	    try {
+		XMLStreamWriter w = new FormattedXMLStreamWriter(fname);
+		serializeLearnerComplex(w);
+		w.close();
+	    } catch (XMLStreamException ex) {
+		System.err.println("Exception when trying to write XML file " + fname + "\n" + ex);
+	    }
+	    return;
+	}
 	Document xmldoc=  serializeLearnerComplex();
 	XMLUtil.writeXML(xmldoc, fname);
     }
 
+    /** Writes the same LEARNERCOMPLEX element as {@link
+	#serializeLearnerComplex()} creates, through a StAX writer. The
+	small parts (the suite, the feature list, the learners'
+	parameters) are still produced as DOM elements and then
+	written out; the matrices of the learners are written row by
+	row, straight from their storage.
+     */
+    public void serializeLearnerComplex(XMLStreamWriter w) throws XMLStreamException {
+	Document xmldoc= new DocumentImpl();
+	w.writeStartElement(XMLUtil.LEARNER_COMPLEX);
+	w.writeAttribute(ParseXML.ATTR.VERSION_ATTR, Version.version);	
+
+	XMLUtil.writeElement(w, saveAsXML(xmldoc));
+	XMLUtil.writeElement(w, dic.createFeaturesElement( xmldoc));
+	if (priors!=null) {
+	    Logging.info("Saving priors into the LearnerComplex XML");
+	    priors.writeXML(w);
+	} else {
+	    Logging.info("No priors to save");
+	}
+
+	w.writeStartElement(XMLUtil.LEARNERS);
+	for(Learner algo: usedByLearners) {
+	    algo.writeXML(w, xmldoc);
+	}
+	w.writeEndElement();
+	w.writeEndElement();
+    }
+
+    /** Saves the complete learner complex (the suite, the feature
+	dictionary, the priors, and all learners) into a binary
+	snapshot file, which can be read with {@link
+	Learner#deserializeLearnerComplexBinary(File)}. This contains
+	the same information as the XML file written by {@link
+	#serializeLearnerComplex(String)}, but is written and read much
+	faster, and without building a DOM tree for the model. The XML
+	format remains the one to use for interchange.
+     */
+    public void serializeLearnerComplexBinary(String fname) throws IOException {
+	BinarySnapshot.write(this, new File(fname));
+    }
+
     /** Creates an XML document made of a LEARNERCOMPLEX element,
       which will describe all the learners for this suite.
      */
@@ -1094,6 +1348,10 @@ Exception in thread "main" java.lang.IllegalArgumentException: Array of classes
       <tt>fallback="true"</tt> tag, in which case it will be
       interpreted as the fallback discrimination for this suite.
 
+      <p>If the "suite" element has the <tt>featurehashing="b"</tt>
+      attribute, the suite will use a {@link HashingFeatureDictionary}
+      with 2^b ids.
+
      This constructor is also used by the "convenience consructor" 
      {@link  #Suite(File) Suite(File)} 
     */
@@ -1145,6 +1403,11 @@ Exception in thread "main" java.lang.IllegalArgumentException: Array of classes
 	howToHandleMissingIDs = (XMLUtil.nonempty(a)) ? 
 	    HowToHandleMissingIDs.valueOf(a): HowToHandleMissingIDs.Error;
 
+	a = e.getAttribute(ParseXML.ATTR.SUITE.FEATURE_HASHING);
+	if (XMLUtil.nonempty(a)) {
+	    dic = FeatureDictionary.create(XMLUtil.getAttributeInt(e, ParseXML.ATTR.SUITE.FEATURE_HASHING));
+	}
+
 	for(Node n = e.getFirstChild(); n!=null; n = n.getNextSibling()) {
 	    int type = n.getNodeType();
 	    String val = n.getNodeValue();
@@ -1308,6 +1571,62 @@ Exception in thread "main" java.lang.IllegalArgumentException: Array of classes
     }
 
 
+    /** The streaming (StAX) counterpart of {@link
+	#deserializeLearners(Element)}
+	@param r A reader positioned at the "learners" element
+	@param xmldoc A scratch document, for the DOM fragments
+     */
+    void deserializeLearners(XMLStreamReader r, Document xmldoc) throws SAXException, BoxerXMLException, XMLStreamException {
+	XMLUtil.assertName(r, XMLUtil.LEARNERS);	
+	while(XMLUtil.nextChildElement(r)) {
+	    XMLUtil.assertName(r, XMLUtil.LEARNER);	
+	    deserializeLearner(r, xmldoc);
+	}
+    }
+
+    /** The streaming (StAX) counterpart of {@link
+	#deserializeLearner(Element)}. The learner is created from a DOM
+	fragment that contains the "learner" element's attributes and
+	its "parameters" element (in the same way as it is done by
+	{@link BinarySnapshot}); after that, the "classifier" elements
+	of a {@link PLRMLearner} are parsed from the stream, without
+	building DOM trees for their matrices. Other learners do not
+	use the content of their "classifier" elements, which is
+	skipped.
+
+	<p>This requires the "parameters" element, if present, to
+	precede all "classifier" elements, which is always the case in
+	the files written by BOXER.
+
+	@param r A reader positioned at the "learner" element
+	@param xmldoc A scratch document, for the DOM fragments
+     */
+    Learner deserializeLearner(XMLStreamReader r, Document xmldoc) throws SAXException, BoxerXMLException, XMLStreamException {
+	Element skeleton = XMLUtil.readStartElement(r, xmldoc);
+	Learner algo = null;
+	while(XMLUtil.nextChildElement(r)) {
+	    String name = r.getLocalName();
+	    if (algo==null && name.equals(Learner.PARAMETERS)) {
+		skeleton.appendChild(XMLUtil.readElement(r, xmldoc));
+		continue;
+	    }
+	    if (algo==null) algo = deserializeLearner(skeleton);
+	    if (name.equals(XMLUtil.CLASSIFIER)) {
+		if (algo instanceof PLRMLearner) {
+		    ((PLRMLearner)algo).parseClassifier(r, xmldoc);
+		} else {
+		    XMLUtil.skipElement(r);
+		}
+	    } else if (name.equals(Learner.PARAMETERS)) {
+		throw new BoxerXMLException("The '"+Learner.PARAMETERS+"' element of learner " + algo.getName() + " appears after a '"+XMLUtil.CLASSIFIER+"' element. This is not supported when reading XML in the streaming mode");
+	    } else {
+		throw new IllegalArgumentException("Unexpected element node name: " +name + " within a " + XMLUtil.LEARNER + " element");
+	    }
+	}
+	if (algo==null) algo = deserializeLearner(skeleton);
+	return algo;
+    }
+
     /** Parses the "learner" XML element, which is typically
       encountered within the "learner complex" element, and creates a
       Learner object described thereby.
@@ -1359,6 +1678,8 @@ Exception in thread "main" java.lang.IllegalArgumentException: Array of classes
 	    return new ExponentiatedGradient(this, e );
 	} else if (algoName.endsWith("boxer.NormalizedKnnLearner")) {
 	    return new NormalizedKnnLearner(this, e );
+	} else if (algoName.endsWith("boxer.CoordinateDescent")) {
+	    return new CoordinateDescent(this, e );
 	} else {
 	    throw new IllegalArgumentException("Model reading for algorithm='"+algoName+"' is not supported.");
 	}
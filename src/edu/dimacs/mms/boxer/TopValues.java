@@ -1,32 +1,31 @@
 package edu.dimacs.mms.boxer;
 
-import java.io.*;
-import java.util.*;
-
 /** An auxiliary class for {@link NormalizedKnnLearner}, this class stores a specified number
     of the top values from those "offered" to it. It may store   more, if it's needed to break a tie.
+
+    <p>Each offered item is a (point ID, multiplicity, cos) triple;
+    the multiplicity is the number of identical vectors the point
+    represents. The items are kept in a binary min-heap (ordered by
+    cos, then by ID), made of parallel primitive arrays, so that
+    offering does not allocate anything. An object can be reused for
+    any number of queries, via {@link #clear()}.
+
+    <p>Items with the same cos form a "group"; the lowest-cos group is
+    only dropped as a whole, if the remaining groups still have the
+    desired total multiplicity. (Cos values are compared as in
+    Double.compare(), i.e. NaN is the greatest value.)
+
+    <p>After all items have been offered, {@link #sort()} puts them in
+    the order of ascending cos (and ascending ID within a group), and
+    they can be read with {@link #getId(int)} etc.
      */
  class TopValues {
 
-     /** it's like a Vector of DataPoints, but each recorded point may represent several identical
-	 vectors (accessible via dataPointInfo); the sum of their multiplicities is stored.
-     */
-     static class VectorDP extends  Vector<DataPoint> {
-	 int multi=0;
-	 VectorDP(int n) { super(n); }
-	 public boolean  add(DataPoint o) {
-	     throw new UnsupportedOperationException("must use add(p,multi) instead");
-	 }
-	 boolean add(DataPoint p, int _multi) {
-	     super.add(p);
-	     multi += _multi;
-	     return true;
-	 }
-     }
-     
-     /** Each vector contains all DataPoints with the same cos
-	 value. They are ordered in the order of ascending cos. */
-     SortedMap<Double, VectorDP> map=new TreeMap<Double, VectorDP>();
+     /** The heap: item i is (ids[i], multis[i], coss[i]) */
+     private int ids[], multis[];
+     private double coss[];
+     /** Number of stored items */
+     private int n=0;
 
      final int desiredSize;
      final double mincos;
@@ -40,38 +39,133 @@ import java.util.*;
 	 desiredSize=n;
 	 if (desiredSize<1) throw new IllegalArgumentException();
 	 mincos = _mincos;
+	 int cap = desiredSize+1;
+	 ids = new int[cap];
+	 multis = new int[cap];
+	 coss = new double[cap];
+     }
+
+     /** Removes all items, so that the object can be used for the next query */
+     void clear() {
+	 n = 0;
+	 cnt = 0;
+     }
+
+     /** Is item a before item b? */
+     private boolean less(int a, int b) {
+	 int c = Double.compare(coss[a], coss[b]);
+	 return c<0 || (c==0 && ids[a] < ids[b]);
+     }
+
+     private void swap(int a, int b) {
+	 int ti = ids[a]; ids[a] = ids[b]; ids[b] = ti;
+	 int tm = multis[a]; multis[a] = multis[b]; multis[b] = tm;
+	 double tc = coss[a]; coss[a] = coss[b]; coss[b] = tc;
+     }
+
+     private void siftUp(int i) {
+	 while(i>0) {
+	     int parent = (i-1)/2;
+	     if (!less(i, parent)) return;
+	     swap(i, parent);
+	     i = parent;
+	 }
+     }
+
+     /** Restores the heap property in [0:size-1], starting at i */
+     private void siftDown(int i, int size) {
+	 while(true) {
+	     int c = 2*i+1;
+	     if (c >= size) return;
+	     if (c+1 < size && less(c+1, c)) c++;
+	     if (!less(c, i)) return;
+	     swap(i, c);
+	     i = c;
+	 }
+     }
+
+     /** Moves the lowest item of the heap [0:n-1] to position n-1, and
+	 decrements n */
+     private void pop() {
+	 n--;
+	 swap(0, n);
+	 siftDown(0, n);
      }
 
      /** Insert the value; adjust counts.	*/
-     private void insert(DataPoint q, int multi, double cos) {
-	 Double key = new Double(cos);
-	 VectorDP v = map.get(key);
-	 if (v == null)  map.put(key, v= new VectorDP(1));
-	 v.add(q, multi);
+     private void insert(int id, int multi, double cos) {
+	 if (n >= ids.length) {
+	     int cap = 2*ids.length;
+	     ids = java.util.Arrays.copyOf(ids, cap);
+	     multis = java.util.Arrays.copyOf(multis, cap);
+	     coss = java.util.Arrays.copyOf(coss, cap);
+	 }
+	 ids[n] = id;
+	 multis[n] = multi;
+	 coss[n] = cos;
+	 siftUp(n++);
 	 cnt += multi;
      }
-     
-     /** Removes the values (a vector of them, that is) with the lowest key value, if doing this
+
+     /** Removes the values (a group of them, that is) with the lowest key value, if doing this
 	 does not make the stored element count less than the desired size. Adjusts the count.
      */
      private void trimIfCan() {
 	 while (cnt > desiredSize) {
-	     Double key = map.firstKey();
-	     int cnt1 = cnt - map.get(key).multi;
-	     if (cnt1 < desiredSize) return;
-	     map.remove(key);
+	     // pop the whole lowest group; its items go to [n:n0-1]
+	     final int n0 = n;
+	     final double key = coss[0];
+	     int groupMulti = 0;
+	     do {
+		 groupMulti += multis[0];
+		 pop();
+	     } while (n>0 && Double.compare(coss[0], key)==0);
+
+	     int cnt1 = cnt - groupMulti;
+	     if (cnt1 < desiredSize) {
+		 // put the group back
+		 while(n < n0) siftUp(n++);
+		 return;
+	     }
 	     cnt=cnt1;
 	 }
      }
-     
-     void offer(DataPoint q, int _multi, double cos) {
+
+     void offer(int id, int _multi, double cos) {
 	 if (cos <= mincos) return;
-	 if (cnt<desiredSize || cos >=  map.firstKey().doubleValue()) {
-	     insert(q,_multi, cos);
+	 if (cnt<desiredSize || cos >=  coss[0]) {
+	     insert(id,_multi, cos);
 	     trimIfCan();
-	 } 
+	 }
      }
-     
+
+     /** Sorts the items in ascending order (of cos, then of ID). After
+	 this, no more items may be offered until clear() is called. */
+     void sort() {
+	 final int size = n;
+	 // heapsort: the lowest items go to the end
+	 while(n > 1) pop();
+	 n = size;
+	 for(int i=0, j=n-1; i<j; i++, j--) swap(i,j);
+     }
+
+     /** Number of stored items */
+     int size() { return n; }
+
+     /** These are to be called after sort() */
+     int getId(int i) { return ids[i]; }
+     int getMulti(int i) { return multis[i]; }
+     double getCos(int i) { return coss[i]; }
+
+     /** Number of distinct cos values among the stored items. Only valid after sort() */
+     int groupCount() {
+	 int g = 0;
+	 for(int i=0; i<n; i++) {
+	     if (i==0 || Double.compare(coss[i], coss[i-1])!=0) g++;
+	 }
+	 return g;
+     }
+
  }
 
 
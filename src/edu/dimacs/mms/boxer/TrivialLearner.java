@@ -90,6 +90,16 @@ public class TrivialLearner extends Learner {
     void deleteDiscrimination( RenumMap map) {
     } 
 
+    /** There is no feature-indexed data in this learner, so it has
+	nothing to mark, or to renumber */
+    boolean canRenumberFeatures() {
+	return true;
+    }
+
+    void markUsedFeatures(boolean used[]) {}
+
+    void renumberFeatures(FeatureRenumMap map) {}
+
     LearnerBlock createBlock(Discrimination dis, LearnerBlock model) {
 	return new TrivialLearnerBlock(dis);
     }
@@ -6,6 +6,7 @@ import java.util.Vector;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import javax.xml.stream.*;
 
 
 /** Using Truncated Gradient for training of Polytomous Logistic
@@ -45,6 +46,50 @@ public class TruncatedGradient extends PLRMLearner {
     double g=0.1;
     /** How often truncation is carried out */
     private int K = 10;
+
+    /** If true, each block is trained with the "hogwild" method:
+	the training set given to absorbExample() is split into {@link
+	Learner#threads} slices, which are processed concurrently by
+	that many threads, all updating the block's matrix without
+	locking it. This gives up exact reproducibility (and possibly a
+	bit of accuracy, as occasional updates are lost or computed
+	from slightly stale coefficients) for speed on a multi-core
+	machine, when there are too few discriminations to keep all
+	cores busy otherwise. The default value comes from the system
+	property <tt>hogwild</tt> (<tt>-Dhogwild=true</tt>), and can be
+	overridden by the "hogwild" learner parameter (1 or 0). Like
+	"threads", it is not saved as part of the model.
+     */
+    boolean hogwild = new ParseConfig().getOption(PARAM.hogwild, false);
+
+    /** The mini-batch size B. With the default value of 1,
+	absorbExample() carries out the usual SGD, updating the matrix
+	after each example. With B&gt;1, the examples are taken B at a
+	time: the (Y-P) vectors for all examples of a batch are
+	computed with the same coefficients (in parallel, if the
+	learner has more than one {@link Learner#threads thread}), the
+	gradient contributions are summed, and the sum, times eta, is
+	added to the matrix once per batch. For truncation, too, each
+	batch counts as a single step, with the learning rate B*eta: the
+	truncation is requested once, before the batch is processed, and
+	is done every K batches (rather than every K examples), by
+	K*g*B*eta. (Thus B=1 is plain SGD, while B=i2-i1 is like {@link
+	TruncatedGradientLearnerBlock#absorbExamplesSD(Vector,int,int)},
+	except that the latter truncates as if the examples had been
+	processed one by one). When B&gt;1, the hogwild flag is ignored,
+	and the truncation's step counter t counts batches.
+
+	<p>This parameter affects the model that is learned, so,
+	unlike threads, it is saved in the learner's XML description
+	(if it's other than 1).
+     */
+    private int batch = 1;
+
+    /** Don't go hogwild on fewer than this many examples per thread */
+    static final int MIN_HOGWILD_SLICE = 16;
+    /** When computing the gradient for a mini-batch, don't give a
+	thread fewer than this many examples */
+    static final int MIN_BATCH_SLICE = 8;
     
     public class TruncatedGradientLearnerBlock extends PLRMLearner.PLRMLearnerBlock {
 
@@ -89,6 +134,14 @@ public class TruncatedGradient extends PLRMLearner {
 	    
 	*/
 	public void absorbExample(Vector<DataPoint> xvec, int i1, int i2) {
+	    if (batch > 1) {
+		absorbExamplesMiniBatch(xvec, i1, i2);
+		return;
+	    } else if (useHogwild(i2-i1)) {
+		absorbExampleHogwild(xvec, i1, i2);
+		return;
+	    }
+
 	    int d =  suite.getDic().getDimension(); // feature count
 	    
 	    if (Suite.verbosity>1) System.out.println("TruncatedGradient.absorbExample (dis="+dis.name+"), "+(i2-i1)+" examples:\n" +
@@ -137,6 +190,152 @@ public class TruncatedGradient extends PLRMLearner {
 	    trunc.applyTruncationToAllRows(); 
 	}
 
+	/** Reusable storage for absorbExamplesMiniBatch(). */
+	private GradientAccumulator acc = null;
+
+	/** The mini-batch version of {@link
+	    #absorbExample(Vector,int,int)}; see {@link
+	    TruncatedGradient#batch}. The result does not depend on the
+	    number of threads: the (Y-P) vectors are computed
+	    concurrently, but they are summed in the order of examples.
+	 */
+	private void absorbExamplesMiniBatch(final Vector<DataPoint> xvec, int i1, int i2) {
+	    int d =  suite.getDic().getDimension(); // feature count
+	    int r = dis.claCount();
+
+	    if (Suite.verbosity>1) System.out.println("TruncatedGradient.absorbExamplesMiniBatch (dis="+dis.name+"), "+(i2-i1)+" examples, B="+batch+":\n" +
+			       "d="+d+"; eta=" + eta +"; "+ commonTrunc.describe());
+
+	    if (acc==null || acc.getR() != r) acc = new GradientAccumulator(r);
+	    final double [][] zz = new double[Math.min(batch, i2-i1)][];
+
+	    for(int b1=i1; b1<i2; b1+=batch) {
+		final int b2 = Math.min(i2, b1+batch);
+
+		// truncation: the batch is one step, with the
+		// learning rate (b2-b1)*eta
+		trunc.requestTruncation(d, (b2-b1)*eta);	    
+		for(int i=b1; i<b2; i++) {
+		    for(int j: xvec.elementAt(i).features) trunc.applyTruncation(j);
+		}
+
+		// (Y-P) for each example, all based on the same matrix
+		computeAdjWeights(xvec, b1, b2, zz);
+
+		// sum up the gradient, and apply it
+		for(int i=b1; i<b2; i++) {
+		    double [] z = zz[i-b1];
+		    if (z==null) continue; // example not labeled for this discr
+		    DataPoint x = xvec.elementAt(i);
+		    for(int h=0; h<x.features.length; h++) {
+			acc.addDenseRow(x.features[h], z, eta * x.values[h]);
+		    }
+		}
+		acc.addTo(w);
+		acc.clear();
+	    }
+	    trunc.applyTruncationToAllRows(); 
+	}
+
+	/** Computes adjWeights(xvec[i]) for i1&le;i&lt;i2 into
+	    zz[i-i1], splitting the work between threads, if we have
+	    any. adjWeights() only reads the matrix, so this is safe.
+	*/
+	private void computeAdjWeights(final Vector<DataPoint> xvec, final int i1, int i2, final double[][] zz) {
+	    forEachChunk(i2-i1, chunkCount(i2-i1, MIN_BATCH_SLICE), new ChunkTask() {
+		    void run(int chunk, int from, int to) {
+			for(int i=from; i<to; i++) {
+			    zz[i] = adjWeights(xvec.elementAt(i1+i));
+			}
+		    }});
+	}
+
+	/** Should absorbExample() use the hogwild method on n examples?
+	    Not in the verbose mode, whose printouts would be
+	    interleaved, and not if the slices would be too small to be
+	    worth it. */
+	private boolean useHogwild(int n) {
+	    return hogwild && threads > 1 && trunc.lazy &&
+		n >= threads * MIN_HOGWILD_SLICE && Suite.verbosity <= 1;
+	}
+
+	/** The hogwild version of {@link #absorbExample(Vector,int,int)}
+	    (see {@link TruncatedGradient#hogwild}). The examples
+	    xvec[i1:i2-1] are split into contiguous slices, one per
+	    thread; each thread goes through its slice in the usual SGD
+	    fashion, updating the shared matrix w.
+
+	    <p>Since BetaMatrix rows can't be safely reallocated while
+	    other threads are reading them, all rows that will be updated
+	    and are not dense yet are first made dense (given elements
+	    for all classes), so that during the concurrent phase only
+	    the values of the existing elements change. Truncation is
+	    coordinated through a {@link Truncation.Concurrent} view, and
+	    all truncations still pending at the end are applied as
+	    usual. Finally, the zero elements that the densification has
+	    left in those rows are removed, so that rows that have not
+	    actually become dense are stored as sparse again.
+	 */
+	private void absorbExampleHogwild(final Vector<DataPoint> xvec, final int i1, int i2) {
+	    int d =  suite.getDic().getDimension(); // feature count
+
+	    // Apply pending truncation first, since it may drop rows
+	    final Truncation.Concurrent ct = trunc.concurrentView(d, eta);
+
+	    // Allocate all rows we'll need, with all r elements in each,
+	    // and remember which ones we had to fill in
+	    final int r = dis.claCount();
+	    final double zero[] = new double[r];
+	    java.util.BitSet filled = new java.util.BitSet();
+	    for(int i=i1; i<i2; i++) {
+		DataPoint x = xvec.elementAt(i);
+		if (x.claForDisc(dis)==null) continue; // won't be used for training
+		for(int j: x.features) {
+		    BetaMatrix.Row v = w.getRow(j);
+		    if (v==null || v.size < r) {
+			w.addDenseRow(j, zero, 0);
+			filled.set(j);
+		    }
+		}
+	    }
+
+	    forEachChunk(i2-i1, threads, new ChunkTask() {
+		    void run(int chunk, int from, int to) {
+			absorbSlice(xvec, i1+from, i1+to, ct);
+		    }});
+	    // the slices update the rows in place, without telling the
+	    // matrix, so that the threads don't all contend for its
+	    // modification counter; tell it now
+	    w.modified();
+
+	    ct.finish();
+	    trunc.applyTruncationToAllRows(); 
+
+	    // Drop the padding zeros that are still zero
+	    for(int j=filled.nextSetBit(0); j>=0; j=filled.nextSetBit(j+1)) {
+		if (w.getRow(j)!=null) w.compressRow(j);
+	    }
+	}
+
+	/** The work done by one thread in absorbExampleHogwild(). All
+	    the rows involved have already been made dense, so the
+	    update is done on their values directly; the caller calls
+	    w.modified() once all threads are done. */
+	private void absorbSlice(Vector<DataPoint> xvec, int i1, int i2, Truncation.Concurrent ct) {
+	    for(int i=i1; i<i2; i++) {
+		DataPoint x = xvec.elementAt(i);
+		ct.requestTruncation();
+		for(int j: x.features) ct.applyTruncation(j);
+		double z[] = adjWeights(x);
+		if (z==null) continue; // example not labeled for this discr
+		for(int h=0; h<x.features.length; h++) {
+		    double q = eta * x.values[h];
+		    double v[] = w.getRow(x.features[h]).value;
+		    for(int k=0; k<z.length; k++) v[k] += z[k] * q;
+		}
+	    }
+	}
+
 	/** Like {@link #absorbExample(Vector,int,int)},
 	    but emulating the SD (Steepest Descent) method. That is,
 	    all gradients are computed first, and then applied at
@@ -330,6 +529,21 @@ public class TruncatedGradient extends PLRMLearner {
 	    new AdaptiveSteepestDescent(this, xvec, i1, i2, eps, gradEps, doAdaptive,  doBonus); 
 	}
 
+	/** Optimizes the same function as {@link #runAdaptiveSD}, but
+	    with a limited-memory quasi-Newton method (L-BFGS, or
+	    OWL-QN when a Laplace prior is in effect), which usually
+	    needs far fewer passes over the training set.  See {@link
+	    QuasiNewton} for details.
+
+	    @param eps Convergence criterion: the increment of the
+	    penalized log-likelihood on one iteration
+	    @param gradEps Alternative convergence criterion: the
+	    absolute value of the (pseudo-)gradient vector
+	 */
+	public void runQuasiNewton(Vector<DataPoint> xvec, int i1, int i2, double eps, double gradEps) {
+	    new QuasiNewton(this, xvec, i1, i2, eps, gradEps);
+	}
+
 
 	public void describe(PrintWriter out, boolean verbose) {
 	    
@@ -346,16 +560,29 @@ public class TruncatedGradient extends PLRMLearner {
 	public Element saveAsXML(Document xmldoc) {	    
  	    Element de =   xmldoc.createElement(XMLUtil.CLASSIFIER);
 
-	    de.appendChild(createParamsElement
-	    	 (xmldoc, 
-		  new String[] { PARAM.t},
-		  new double[] { trunc.t} ));
+	    de.appendChild(saveDSPAsXML(xmldoc));
 	    
 	    de.setAttribute(XMLUtil.DISCRIMINATION, dis.getName());
 	    de.appendChild(w.saveAsXML(xmldoc, dis, suite.getDic(), "W"));
 	    return de;
 	}
 
+	/** Discrimination-specific parameters */
+	private Element saveDSPAsXML(Document xmldoc) {
+	    return createParamsElement
+	    	 (xmldoc, 
+		  new String[] { PARAM.t},
+		  new double[] { trunc.t} );
+	}
+
+	void writeXML(XMLStreamWriter out, Document xmldoc) throws XMLStreamException {
+	    out.writeStartElement(XMLUtil.CLASSIFIER);
+	    out.writeAttribute(XMLUtil.DISCRIMINATION, dis.getName());
+	    XMLUtil.writeElement(out, saveDSPAsXML(xmldoc));
+	    w.writeXML(out, dis, suite.getDic(), "W");
+	    out.writeEndElement();
+	}
+
 	/** List of names of matrices that we may need to serialize
 	 * (and deserialize)
 	 */
@@ -369,6 +596,20 @@ public class TruncatedGradient extends PLRMLearner {
 	    return Sizeof.OBJ +  Sizeof.OBJREF + w.memoryEstimate();
 	}
    
+	void writeStateSnapshot(BinarySnapshot.Out out) throws java.io.IOException {
+	    trunc.writeState(out);
+	}
+
+	void readStateSnapshot(BinarySnapshot.In in) throws java.io.IOException {
+	    trunc.readState(in);
+	}
+
+	void renumberFeatures(FeatureRenumMap map) {
+	    super.renumberFeatures(map);
+	    trunc.renumberFeatures(map);
+	    acc = null;
+	}
+
 	/** Parses the element for discrimination-specific parameters,
 	    which may be supplied in the learner's description. Also,
 	    ensures that the block's Truncation instance is in sync with 
@@ -419,6 +660,14 @@ public class TruncatedGradient extends PLRMLearner {
     }
 
     Element saveParamsAsXML(Document xmldoc) {
+	if (batch != 1) {
+	    return createParamsElement
+		(xmldoc, 
+		 new String[] {PARAM.theta,PARAM.eta,PARAM.g, PARAM.K, PARAM.batch},
+		 new Object[] {new Double(commonTrunc.getTheta()),new Double(eta),
+			       new Double(commonTrunc.getG()),  new Integer(commonTrunc.getK()),
+			       new Integer(batch)});
+	}
 	return createParamsElement
 	    (xmldoc, 
 	     new String[] {PARAM.theta,PARAM.eta,PARAM.g, PARAM.K},
@@ -433,9 +682,10 @@ public class TruncatedGradient extends PLRMLearner {
 	int t=0; // saved position in the truncation sequence
 
 	HashMap<String,Object> h = makeHashMap
-	    ( new String[] { PARAM.theta, PARAM.eta, PARAM.g,PARAM.K, PARAM.t},
+	    ( new String[] { PARAM.theta, PARAM.eta, PARAM.g,PARAM.K, PARAM.t, PARAM.threads, PARAM.hogwild, PARAM.batch},
 	      new Object[] {new Double(theta), new Double(eta), new Double(g), 
-			    new Integer(K),  new Integer(0)});
+			    new Integer(K),  new Integer(0), new Integer(threads),
+			    new Integer(hogwild? 1:0), new Integer(batch)});
 	
 	h = parseParamsElement(e,h);
 
@@ -446,6 +696,10 @@ public class TruncatedGradient extends PLRMLearner {
 	K = ((Number)(h.get(PARAM.K))).intValue();
 	if (K<=0) throw new IllegalArgumentException("K=" + K + " in the XML learner definition. K must be a positive integer");
 	t = ((Number)(h.get(PARAM.t))).intValue();
+	setThreads( ((Number)(h.get(PARAM.threads))).intValue());
+	hogwild = ((Number)(h.get(PARAM.hogwild))).intValue() != 0;
+	batch = ((Number)(h.get(PARAM.batch))).intValue();
+	if (batch<=0) throw new IllegalArgumentException("batch=" + batch + " in the XML learner definition. The mini-batch size must be a positive integer");
 	commonTrunc = defaultCommonTrunc(theta);
 	commonTrunc.setT(t); // part of saved history	
     }
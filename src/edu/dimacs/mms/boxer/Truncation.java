@@ -1,7 +1,8 @@
 package edu.dimacs.mms.boxer;
 
 import java.util.Arrays;
-import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /** An auxiliary class for TruncatedGradient or for any other learners
  that apply truncation to some coefficient matrices. A Truncation
@@ -104,17 +105,27 @@ public class Truncation  {
     */
     Matrix matrices[] = null;
      
-    /** The count of not-yet-applied truncation operations for each
-	row of the matrix (i.e., for each feature). This is only used
+    /** The "global clock" of lazy truncation: the number of
+	truncation operations requested (i.e., of K-th steps passed)
+	since this object was created. This is only used with lazy
+	evaluation.
+     */
+    private int epoch = 0;
+    /** For each row of the matrix (i.e., for each feature), the value
+	of {@link #epoch} as of the last time all requested truncations
+	were applied to this row. The count of not-yet-applied
+	truncation operations for row j is thus (epoch -
+	appliedEpoch[j]), so that recording one more truncation for
+	all rows only requires advancing the clock. This is only used
 	with lazy evaluation.
      */
-    private int truncToApply[];
-    /** This flag stays true when there are no not-applied-yet truncations 
-     (i.e., all elements of truncToApply[] are zeros) */
+    private int appliedEpoch[];
+    /** This flag stays true when there are no not-applied-yet truncations
+     (i.e., all elements of appliedEpoch[] are equal to epoch) */
     private boolean allHasBeenApplied = true;
 
     /** The value of eta*K associated with all not-yet-applied truncations
-	(those whose counts is in truncToApply[])
+	(those counted by epoch - appliedEpoch[])
     */
     private double lastSumEta=0;
     /** The value of the sums of eta since the last multiple-of-K step.
@@ -167,7 +178,7 @@ public class Truncation  {
 	    }
 	}
 
-	if (lazy) truncToApply= new int[0]; // dic.getDimension()];
+	if (lazy) appliedEpoch= new int[0]; // dic.getDimension()];
     }
 
     /** Creates a copy of this Truncation, which copies not only
@@ -190,6 +201,36 @@ public class Truncation  {
 	t = _t;
     }
     
+    /** Writes the current state (but not the parameters, which come
+	from the learner's description) into a binary snapshot. Unlike
+	the XML serialization, which only saves t, this includes the
+	state of lazy truncation, so that the truncations not applied
+	yet are not lost. */
+    void writeState(BinarySnapshot.Out out) throws java.io.IOException {
+	out.writeInt(t);
+	out.writeInt(epoch);
+	out.writeBoolean(allHasBeenApplied);
+	out.writeDouble(lastSumEta);
+	out.writeDouble(recentSumEta);
+	out.writeInt(appliedEpoch==null ? -1 : appliedEpoch.length);
+	if (appliedEpoch!=null) out.writeInts(appliedEpoch, 0, appliedEpoch.length);
+    }
+
+    /** Restores the state written by {@link #writeState(BinarySnapshot.Out)} */
+    void readState(BinarySnapshot.In in) throws java.io.IOException {
+	t = in.readInt();
+	epoch = in.readInt();
+	allHasBeenApplied = in.readBoolean();
+	lastSumEta = in.readDouble();
+	recentSumEta = in.readDouble();
+	int n = in.readInt();
+	if ((n>=0) != lazy) throw in.corrupted("the truncation mode (lazy or not) differs from that of the learner");
+	if (n>=0) {
+	    appliedEpoch = new int[n];
+	    in.readInts(appliedEpoch, 0, n);
+	}
+    }
+
     /** Just prints the value of theta, which may be 0, a positive
       number, or "Infinity"
      */
@@ -245,16 +286,17 @@ public class Truncation  {
 		// so let's apply stored requests right away
 		applyTruncationToAllRows();
 	    }
-	    if (truncToApply.length < d) {
-		truncToApply= Arrays.copyOf( truncToApply, d);
-	    }
-	    for(int i=0; i<truncToApply.length; i++) {
-		truncToApply[i] ++;
+	    if (appliedEpoch.length < d) {
+		// Rows of features that have appeared since the last
+		// K-th step are up to date as of now, and become
+		// subject to this (and later) truncations only
+		int oldLen = appliedEpoch.length;
+		appliedEpoch= Arrays.copyOf( appliedEpoch, d);
+		Arrays.fill(appliedEpoch, oldLen, d, epoch);
 	    }
+	    // one more truncation for every row: just advance the clock
+	    epoch++;
 	    allHasBeenApplied = false;
-	    //System.out.print("truncToApply=(");
-	    //for(int x :truncToApply) System.out.print(" "+x);
-	    //System.out.println(")");
 	}  else  {
 	    truncateNow(recentSumEta);
 	}
@@ -272,8 +314,13 @@ public class Truncation  {
 	truncation needs to be done now. It may be greater than 1 if
 	we are using lazy truncation, and there are several deferred
 	truncations that are finally going to be done now.
+
+	@param mayDrop If false, the matrix structure is not modified
+	(no rows or elements are dropped, even if they become zero). This
+	is needed when other threads may be using the same row at the
+	same time.
      */
-    private void truncateRow(Matrix _w, int j, int mult, double sumEta) {
+    private void truncateRow(Matrix _w, int j, int mult, double sumEta, boolean mayDrop) {
 
 	int countNZ = 0;
 
@@ -282,19 +329,20 @@ public class Truncation  {
 	if (_w instanceof BetaMatrix) {
 	
 	    BetaMatrix w = (BetaMatrix)_w;
-	    Vector<BetaMatrix.Coef> v  = w.getRow(j);
+	    BetaMatrix.Row v  = w.getRow(j);
 
 	    if (v==null) return;
-	    for( BetaMatrix.Coef c: v) {
+	    w.modified();
+	    for(int h=0; h<v.size; h++) {
 		if (priors != null) {
-		    Prior p = priors.get( dis.getClaById(c.icla), j);
-		    c.value = p.apply(c.value, this, mult, sumEta);
+		    Prior p = priors.get( dis.getClaById(v.icla[h]), j);
+		    v.value[h] = p.apply(v.value[h], this, mult, sumEta);
 		} else {
-		    c.value=truncateValue(c.value, g*mult*sumEta);
+		    v.value[h]=truncateValue(v.value[h], g*mult*sumEta);
 		}
-		countNZ += ((c.value == 0) ? 0 : 1);
+		countNZ += ((v.value[h] == 0) ? 0 : 1);
 	    }
-	    if (0 < countNZ  && countNZ < v.size() && 
+	    if (mayDrop && 0 < countNZ  && countNZ < v.size && 
 		dropMode == PHYSICAL_DROP.DROP_ZERO_ROWS_AND_ELEMENTS) {
 		w.compressRow(j);		    
 	    }
@@ -313,7 +361,7 @@ public class Truncation  {
 	    }
 	} else throw new AssertionError("Unknown matrix class");
 
-	if (countNZ == 0 && dropMode != PHYSICAL_DROP.DROP_NONE) {
+	if (mayDrop && countNZ == 0 && dropMode != PHYSICAL_DROP.DROP_NONE) {
 	    // Drop the entire row if it becomes all-zeros
 	    _w.dropRow(j);
 	    //Logging.info("Dropped all-zero row " +  j );
@@ -335,12 +383,12 @@ public class Truncation  {
 	//System.out.println("call apply Truncation(row "+j+")" + t);
 	if (theta == 0) return;
 	if (!lazy) return;
-	if ( truncToApply == null ||  j>=truncToApply.length ) return;
-	int mult = truncToApply[j];
+	if ( appliedEpoch == null ||  j>=appliedEpoch.length ) return;
+	int mult = epoch - appliedEpoch[j];
 	if ( mult == 0) return;
-	truncToApply[j] = 0;
+	appliedEpoch[j] = epoch;
 	for( Matrix _w : matrices) {
-	    truncateRow(_w, j, mult, lastSumEta);
+	    truncateRow(_w, j, mult, lastSumEta, true);
 	}
     }
 
@@ -348,10 +396,21 @@ public class Truncation  {
     void applyTruncationToAllRows() {
 	if (theta == 0) return;
 	if (!lazy) return;
-	for(int j=0; j<	truncToApply.length; j++)  applyTruncation(j);
+	for(int j=0; j<	appliedEpoch.length; j++)  applyTruncation(j);
 	allHasBeenApplied = true;
     }
 
+    /** Moves the per-row truncation state to the new feature ids,
+	along with the rows themselves (the matrices are renumbered
+	separately, by their owner). Positions that no kept row maps
+	to are marked as up to date, just as they would be if they
+	were appended at the next truncation step. This is called
+	(indirectly) from {@link Suite#compactFeatures()}.
+     */
+    void renumberFeatures(FeatureRenumMap map) {
+	if (appliedEpoch != null) appliedEpoch = map.applyTo(appliedEpoch, epoch);
+    }
+
     /** Truncates all matrix elements right now, once.  This is only done in the
 	non-lazy mode, so there is no need to check not-applied-yet truncations.
      */
@@ -360,7 +419,7 @@ public class Truncation  {
 	for( Matrix _w : matrices) {
 	    if (_w instanceof BetaMatrix) {
 		for(int j=0; j< _w.getNRows(); j++) {
-		    truncateRow(_w, j, 1, sumEta);
+		    truncateRow(_w, j, 1, sumEta, true);
 		}
 	    }
 	}
@@ -368,6 +427,108 @@ public class Truncation  {
     }
 
 
+    /** Creates a {@link Concurrent} view of this truncation object,
+	for use by several threads training the same matrix at once
+	(the "hogwild" mode of TruncatedGradient). All pending
+	truncations are applied first, so that the view starts with
+	every row up to date. Until {@link Concurrent#finish()} is
+	called, this object itself must not be used.
+
+	@param d Feature count; rows up to d-1 may be accessed through the view
+	@param eta The (fixed) learning rate with which all truncation
+	requests will be made
+     */
+    Concurrent concurrentView(int d, double eta) {
+	if (!lazy) throw new IllegalArgumentException("Concurrent truncation is only supported in the lazy mode");
+	for(Matrix w: matrices) {
+	    if (!(w instanceof BetaMatrix)) throw new IllegalArgumentException("Concurrent truncation is only supported for BetaMatrix");
+	}
+	applyTruncationToAllRows();
+	if (appliedEpoch.length < d) {
+	    int oldLen = appliedEpoch.length;
+	    appliedEpoch= Arrays.copyOf( appliedEpoch, d);
+	    Arrays.fill(appliedEpoch, oldLen, d, epoch);
+	}
+	return new Concurrent(eta);
+    }
+
+    /** A thread-safe version of the lazy truncation machinery, used
+	while several threads apply updates to the same matrix without
+	locking it. The counters t and {@link #epoch} are kept in
+	atomic integers, and each row's {@link #appliedEpoch} value is
+	advanced with compare-and-set, so that each requested
+	truncation is applied to each row exactly once, no matter which
+	thread gets to the row first. The values of matrix elements,
+	though, are updated without any locking, and an update made by
+	one thread may occasionally be lost due to a concurrent
+	truncation (or update) of the same row by another. That's the
+	accepted price of the hogwild approach.
+
+	<p>The matrix structure is not modified through this view: rows
+	that become all-zero are not dropped. The caller should make
+	sure that all rows that will be updated have been allocated
+	before the threads start.
+     */
+    class Concurrent {
+	private final AtomicInteger ct;
+	private final AtomicInteger cepoch;
+	private final AtomicIntegerArray capplied;
+	private final double eta;
+	/** eta summed K times, the way requestTruncation() does it */
+	private final double sumEta;
+	private final int epoch0;
+
+	private Concurrent(double _eta) {
+	    eta = _eta;
+	    ct = new AtomicInteger(t);
+	    epoch0 = epoch;
+	    cepoch = new AtomicInteger(epoch);
+	    capplied = new AtomicIntegerArray(appliedEpoch);
+	    double s = 0;
+	    for(int i=0; i<K; i++) s += eta;
+	    sumEta = s;
+	}
+
+	/** Same as {@link Truncation#requestTruncation(int, double)},
+	    with the view's eta */
+	void requestTruncation() {
+	    if (theta == 0) return;
+	    if (ct.incrementAndGet() % K == 0) cepoch.incrementAndGet();
+	}
+
+	/** Same as {@link Truncation#applyTruncation(int)} */
+	void applyTruncation(int j) {
+	    if (theta == 0) return;
+	    if ( j>=capplied.length() ) return;
+	    int e = cepoch.get();
+	    int old;
+	    do {
+		old = capplied.get(j);
+		if (old >= e) return;
+	    } while(!capplied.compareAndSet(j, old, e));
+	    for( Matrix _w : matrices) {
+		truncateRow(_w, j, e - old, sumEta, false);
+	    }
+	}
+
+	/** Writes the state of the view back into the parent
+	    Truncation object, which can then be used as usual. Must be
+	    called once all threads are done. */
+	void finish() {
+	    t = ct.get();
+	    epoch = cepoch.get();
+	    for(int j=0; j<appliedEpoch.length; j++) appliedEpoch[j] = capplied.get(j);
+	    if (epoch != epoch0) {
+		lastSumEta = sumEta;
+		allHasBeenApplied = false;
+	    }
+	    if (theta != 0) {
+		recentSumEta = 0;
+		for(int i=0; i< t%K; i++) recentSumEta += eta;
+	    }
+	}
+    }
+
     String describe() {
 	return theta==0 ? 
 	    "No truncation" :
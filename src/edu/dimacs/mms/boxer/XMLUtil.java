@@ -2,11 +2,15 @@ package edu.dimacs.mms.boxer;
 
 import java.io.*;
 
+import javax.xml.stream.*;
+
 import org.apache.xml.serialize.OutputFormat;
 import org.apache.xml.serialize.XMLSerializer;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
 
 
 /** Constants and auxiliary methods for producing and parsing XML files. 
@@ -24,6 +28,17 @@ public class XMLUtil {
 	CLASSES="classes",
 	MATRIX = "matrix", ROW="row", FEATURE="feature";
     
+    /** If true (the default), the methods that save a learner
+	complex, a learner, a suite, a matrix, or a set of priors into
+	an XML file, and the method that reads a learner complex from an
+	XML file, use the streaming (StAX) path: matrices are written
+	row by row straight from their storage, and parsed row by row,
+	without a DOM tree for the whole document ever being built.
+	The files written are byte-for-byte the same as with the DOM
+	path. This can be turned off with <tt>-DstreamingXML=false</tt>.
+     */
+    static boolean streamingXML = new ParseConfig().getOption("streamingXML", true);
+
     /** Returns true if x is neither a null nor an empty string (nor a
      * string of all blanks) */
     static boolean nonempty(String x) { 
@@ -92,6 +107,129 @@ public class XMLUtil {
 	}
     }
 
+    /** Creates a StAX writer that formats its output the same way
+	{@link #writeXML(Element, OutputStream)} does */
+    public static XMLStreamWriter createXMLWriter(OutputStream fos) throws IOException {
+	return new FormattedXMLStreamWriter(fos);
+    }
+
+    /** Creates a StAX reader for an XML file */
+    public static XMLStreamReader createXMLReader(InputStream is) throws XMLStreamException {
+	XMLInputFactory factory = XMLInputFactory.newInstance();
+	factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+	XMLStreamReader r = factory.createXMLStreamReader(is);
+	// move to the root element
+	while(r.getEventType() != XMLStreamConstants.START_ELEMENT) r.next();
+	return r;
+    }
+
+    /** Converts a StAX parsing error into the exception that the DOM
+	parser would throw on a malformed document */
+    static SAXException toSAXException(XMLStreamException ex) {
+	return new SAXException(ex.getMessage(), ex);
+    }
+
+    /** Writes a (small) DOM element, with all its descendants,
+	through a StAX writer. This is used for the parts of a
+	document whose DOM representation is cheap (such as the suite,
+	or the algorithm parameters), within a document whose bulk is
+	written directly. Comments are dropped. */
+    public static void writeElement(XMLStreamWriter w, Element e) throws XMLStreamException {
+	writeStartElement(w, e);
+	for(Node n = e.getFirstChild(); n!=null; n = n.getNextSibling()) {
+	    int type = n.getNodeType();
+	    if (type == Node.ELEMENT_NODE) {
+		writeElement(w, (Element)n);
+	    } else if (type == Node.TEXT_NODE || type == Node.CDATA_SECTION_NODE) {
+		w.writeCharacters(n.getNodeValue());
+	    }
+	}
+	w.writeEndElement();
+    }
+
+    /** Writes the start tag of a DOM element, with its attributes;
+	the caller then writes the content, and ends the element */
+    static void writeStartElement(XMLStreamWriter w, Element e) throws XMLStreamException {
+	w.writeStartElement(e.getTagName());
+	NamedNodeMap attr = e.getAttributes();
+	for(int i=0; i<attr.getLength(); i++) {
+	    Node a = attr.item(i);
+	    w.writeAttribute(a.getNodeName(), a.getNodeValue());
+	}
+    }
+
+    /** Reads the element at which the StAX reader is positioned (with
+	all its descendants) into a DOM element. When this method
+	returns, the reader is positioned at the element's end tag.
+	This is used for the small parts of a large document.
+	@param doc The document in which the element is to be created
+     */
+    static Element readElement(XMLStreamReader r, Document doc) throws XMLStreamException {
+	Element e = readStartElement(r, doc);
+	while(true) {
+	    int type = r.next();
+	    if (type == XMLStreamConstants.START_ELEMENT) {
+		e.appendChild(readElement(r, doc));
+	    } else if (type == XMLStreamConstants.CHARACTERS || 
+		       type == XMLStreamConstants.CDATA ||
+		       type == XMLStreamConstants.SPACE) {
+		e.appendChild(doc.createTextNode(r.getText()));
+	    } else if (type == XMLStreamConstants.END_ELEMENT) {
+		return e;
+	    }
+	}
+    }
+
+    /** Creates a DOM element with the name and the attributes of the
+	element at which the StAX reader is positioned, but without
+	its content. The reader is not moved. */
+    static Element readStartElement(XMLStreamReader r, Document doc) {
+	Element e = doc.createElement(r.getLocalName());
+	for(int i=0; i<r.getAttributeCount(); i++) {
+	    e.setAttribute(r.getAttributeLocalName(i), r.getAttributeValue(i));
+	}
+	return e;
+    }
+
+    /** Advances the StAX reader to the start of the next child
+	element of the current element. Whitespace and comments are
+	skipped; non-whitespace text is skipped with a warning.
+
+	@return true if positioned at the start of a child element,
+	false if the end of the current element has been reached
+     */
+    static boolean nextChildElement(XMLStreamReader r) throws XMLStreamException {
+	while(true) {
+	    int type = r.next();
+	    if (type == XMLStreamConstants.START_ELEMENT) {
+		return true;
+	    } else if (type == XMLStreamConstants.END_ELEMENT) {
+		return false;
+	    } else if (type == XMLStreamConstants.CHARACTERS && !r.isWhiteSpace()) {
+		Logging.warning("Found an unexpected non-empty text node, val="  + r.getText().trim());
+	    }
+	}
+    }
+
+    /** Skips the element at which the StAX reader is positioned,
+	with all its content; stops at its end tag */
+    static void skipElement(XMLStreamReader r) throws XMLStreamException {
+	int depth = 0;
+	while(true) {
+	    int type = r.next();
+	    if (type == XMLStreamConstants.START_ELEMENT) depth++;
+	    else if (type == XMLStreamConstants.END_ELEMENT && depth-- == 0) return;
+	}
+    }
+
+    /** Gets an attribute of the element at which the StAX reader is
+	positioned. Like Element.getAttribute(), returns an empty string
+	if the attribute is absent. */
+    static String getAttribute(XMLStreamReader r, String aname) {
+	String a = r.getAttributeValue(null, aname);
+	return a==null? "" : a;
+    }
+
     /** Verifies that the specified XML Node is indeed an element with
      a particular name
      
@@ -106,6 +244,18 @@ public class XMLUtil {
 	    throw new BoxerXMLException("Found element is '"+ name +"' where '" + expectedName + "' was expected" );	
     }
 
+    /** Verifies that the StAX reader is positioned at an element
+	with a particular name
+	@throws BoxerXMLException if the name of the element is not
+	what's expected
+     */
+    static public void assertName(XMLStreamReader r, String expectedName) 
+	throws BoxerXMLException {
+	String name = r.getLocalName();
+	if (!name.equals(expectedName)) 
+	    throw new BoxerXMLException("Found element is '"+ name +"' where '" + expectedName + "' was expected" );	
+    }
+
     static public boolean isNamedElement(Node /*Element*/ e, String expectedName) 
 	throws BoxerXMLException {
 	if (!(e instanceof Element)) return false;	    
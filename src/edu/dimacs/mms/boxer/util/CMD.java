@@ -13,6 +13,7 @@ public class CMD {
 	READ_PRIORS = "read-priors",
 	WRITE_SUITE="write-suite", 
 	WRITE_PRIORS = "write-priors",
+	WRITE_FEATURES = "write-features",
 	READ="read", 
 	READ_LEARNER="read-learner", 
 	WRITE="write",